@@ -17,12 +17,17 @@
  */
 package org.sakaiproject.kernel.activity;
 
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTOR_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.PUBLISHED_FEED_NAME;
 import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
 import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
 
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.kernel.api.activity.ActivityConstants;
@@ -33,14 +38,37 @@ import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 /**
+ * Delivers new activities to the feeds of the connections of their actor. The event
+ * handler only queues the activity, a worker thread takes the queued activities in
+ * batches and delivers them, grouped by the feed they go to so that each feed is saved
+ * once per batch. The event thread never waits: when the queue is full the activity is
+ * dropped and counted, so that a burst of activities can't hold up the delivery of other
+ * events. Each delivered item is stamped with the time its activity was created. The
+ * activities of an actor with more connections than the
+ * pull threshold are not copied to every connection but to the published feed of the
+ * actor, which {@link ActivityFeedServlet} merges into the feeds of their connections
+ * when they are read.
+ * 
  * @scr.component immediate="true" label="ActivityEventProcessor"
  *                description="ActivityEventProcessor"
  * @scr.property name="service.description" value="ActivityEventProcessor"
@@ -55,104 +83,257 @@ import javax.jcr.Session;
  */
 public class ActivityEventProcessor implements EventHandler {
   private static final Logger LOG = LoggerFactory.getLogger(ActivityEventProcessor.class);
+
+  /** @scr.property value="1000" type="Integer" */
+  static final String QUEUE_SIZE = "activity.queue.size";
+
+  /** @scr.property value="100" type="Integer" */
+  static final String BATCH_SIZE = "activity.batch.size";
+
+  /** @scr.property value="500" type="Integer" */
+  static final String PULL_THRESHOLD = "activity.pull.threshold";
+
+  /**
+   * How long in ms to wait for the worker to stop.
+   */
+  static final long STOP_WAIT = 1000L;
+
   protected ConnectionManager connectionManager = null;
 
   protected SlingRepository slingRepository;
 
+  private int batchSize = 100;
+  private int pullThreshold = 500;
+  private BlockingQueue<String> queue;
+  private Thread worker;
+  private final AtomicLong dropped = new AtomicLong();
+
   public void handleEvent(Event event) {
     LOG.debug("handleEvent(Event {})", event);
     final String activityItemPath = (String) event.getProperty("activityItemPath");
-    LOG.info("Processing activity: {}", activityItemPath);
+    LOG.info("Queueing activity: {}", activityItemPath);
+    BlockingQueue<String> queue = this.queue;
+    if (queue == null || !queue.offer(activityItemPath)) {
+      LOG.warn("Activity queue is full, dropped {} ({} dropped so far)", activityItemPath,
+          dropped.incrementAndGet());
+    }
+  }
+
+  /**
+   * @return the number of activities dropped because the queue was full.
+   */
+  public long getDroppedActivities() {
+    return dropped.get();
+  }
+
+  /**
+   * Deliver a batch of activities, saving each feed they go to once.
+   * 
+   * @param activityItemPaths
+   */
+  protected void deliverActivities(List<String> activityItemPaths) {
     Session session = null;
     try {
       session = slingRepository.loginAdministrative(null);
-      Node activity = (Node) session.getItem(activityItemPath);
-      if (activity != null) {
-        // process activity
-        // hints will be attached to the activity as to where we need to deliver
-        // for example: connections, siteA, siteB
-        // from Nico: /sites/siteid/activityFeed.json
-        // Let's try the the simpler connections case first
-        String actor = activity.getProperty(ACTOR_PROPERTY).getString();
-        if (actor == null || "".equals(actor)) { // we must know the actor
-          throw new IllegalStateException("Could not determine actor of activity: "
-              + activity);
+      Map<String, List<Node>> feeds = new LinkedHashMap<String, List<Node>>();
+      for (String activityItemPath : activityItemPaths) {
+        LOG.info("Processing activity: {}", activityItemPath);
+        try {
+          Node activity = (Node) session.getItem(activityItemPath);
+          // process activity
+          // hints will be attached to the activity as to where we need to deliver
+          // for example: connections, siteA, siteB
+          // from Nico: /sites/siteid/activityFeed.json
+          // Let's try the the simpler connections case first
+          String actor = activity.getProperty(ACTOR_PROPERTY).getString();
+          if (actor == null || "".equals(actor)) { // we must know the actor
+            LOG.error("Could not determine actor of activity: {}", activityItemPath);
+            continue;
+          }
+          // TODO assume we were passed the connections hint; need to check
+          for (String feed : getActivityFeeds(actor)) {
+            List<Node> activities = feeds.get(feed);
+            if (activities == null) {
+              activities = new ArrayList<Node>();
+              feeds.put(feed, activities);
+            }
+            activities.add(activity);
+          }
+        } catch (RepositoryException e) {
+          LOG.error("Could not process activity: {}", activityItemPath);
+          LOG.error(e.getMessage(), e);
         }
-        // TODO assume we were passed the connections hint; need to check
-        deliverActivityToConnections(session, activity, actor);
-      } else {
-        LOG.error("Could not process activity: {}", activityItemPath);
-        throw new Error("Could not process activity: " + activityItemPath);
       }
 
+      for (Entry<String, List<Node>> feed : feeds.entrySet()) {
+        try {
+          deliverActivitiesToFeed(session, feed.getValue(), feed.getKey());
+          session.save();
+        } catch (RepositoryException e) {
+          LOG.error("Could not deliver activities to: {}", feed.getKey());
+          LOG.error(e.getMessage(), e);
+          session.refresh(false);
+        }
+      }
     } catch (RepositoryException e) {
-      LOG.error("Could not process activity: {}", activityItemPath);
+      LOG.error("Could not process activities: {}", activityItemPaths);
       LOG.error(e.getMessage(), e);
     } finally {
       if (session != null) {
         session.logout();
       }
     }
-
   }
 
-  private void deliverActivityToConnections(Session session, Node activity, String actor)
-      throws RepositoryException {
-    LOG.debug("deliverActivityToConnections(Session {}, Node {}, String {})",
-        new Object[] { session, activity, actor });
+  /**
+   * @param actor
+   * @return the paths of the feeds the activities of the actor go to: the feeds of their
+   *         connections, or their published feed if they have too many connections.
+   */
+  private List<String> getActivityFeeds(String actor) {
+    List<String> feeds = new ArrayList<String>();
     // get the users connected to the actor and distribute to them
-    String activityFeedPath = null;
     List<String> connections = connectionManager.getConnectedUsers(actor,
         ConnectionState.ACCEPTED);
     if (connections == null || connections.size() <= 0) {
       LOG.debug("{} acted but has no connections; nothing to do.", actor);
+    } else if (pullThreshold > 0 && connections.size() > pullThreshold) {
+      LOG.debug("{} acted; publishing activity for {} connections to read", actor,
+          connections.size());
+      feeds.add(getFeedPath(actor, PUBLISHED_FEED_NAME));
     } else { // actor has connections
       for (String connection : connections) {
         // deliver to each connection
         LOG.debug("{} acted; delivering activity to connection: {}", new Object[] {
             actor, connection });
-        // /_user/private is a BigStore, get the hashed path
-        activityFeedPath = PathUtils.toInternalHashedPath(_USER_PRIVATE, connection,
-            "/activityFeed");
-        deliverActivityToFeed(session, activity, activityFeedPath);
+        feeds.add(getFeedPath(connection, ACTIVITY_FEED_NAME));
       }
     }
+    return feeds;
+  }
+
+  /**
+   * @param user
+   * @param feedName
+   * @return the path of the feed of the user.
+   */
+  public static String getFeedPath(String user, String feedName) {
+    // /_user/private is a BigStore, get the hashed path
+    return PathUtils.toInternalHashedPath(_USER_PRIVATE, user, "/" + feedName);
   }
 
-  private void deliverActivityToFeed(Session session, Node activity,
+  private void deliverActivitiesToFeed(Session session, List<Node> activities,
       String activityFeedPath) throws RepositoryException {
     // ensure the activityFeed node with the proper type
     Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session, activityFeedPath);
     if (activityFeedNode.isNew()) {
       activityFeedNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
           ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
-      session.save();
     }
-    // activityFeed exists, let's continue with delivery
-    // activityFeed is a BigStore, get the hashed (real) path
-    final String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
-        .randomUUID().toString(), "");
-    // ensure the parent path exists before we copy source activity
-    final String parentPath = deliveryPath.substring(0, deliveryPath.lastIndexOf("/"));
-    final Node parentNode = JcrUtils.deepGetOrCreateNode(session, parentPath);
-    if (parentNode.isNew()) {
-      session.save();
+    for (Node activity : activities) {
+      // activityFeed is a BigStore, get the hashed (real) path
+      final String deliveryPath = PathUtils.toInternalHashedPath(activityFeedPath, UUID
+          .randomUUID().toString(), "");
+      // copy the activity in the session, so that it is saved with the rest of the feed
+      Node feedItem = JcrUtils.deepGetOrCreateNode(session, deliveryPath, activity
+          .getPrimaryNodeType().getName());
+      copyActivityItem(activity, feedItem);
+      // next let's create a source property to refer back to the original item
+      // in the ActivityStore
+      feedItem.setProperty(SOURCE_PROPERTY, activity.getPath());
+      feedItem.setProperty(CREATED_PROPERTY, getCreated(activity));
+    }
+  }
+
+  /**
+   * @param activity
+   * @return when the activity was created, or now if that is not known, so that the
+   *         items of a batch keep the order of their activities.
+   * @throws RepositoryException
+   */
+  private Calendar getCreated(Node activity) throws RepositoryException {
+    if (activity.hasProperty(JcrConstants.JCR_CREATED)) {
+      return activity.getProperty(JcrConstants.JCR_CREATED).getDate();
+    }
+    return Calendar.getInstance();
+  }
+
+  private void copyActivityItem(Node source, Node destination) throws RepositoryException {
+    LOG.debug("copyActivityItem(Node {}, Node {})", source, destination);
+    PropertyIterator pi = source.getProperties();
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      if (p.getDefinition().isProtected()) {
+        continue;
+      }
+      if (p.getDefinition().isMultiple()) {
+        destination.setProperty(p.getName(), p.getValues());
+      } else {
+        destination.setProperty(p.getName(), p.getValue());
+      }
+    }
+    NodeIterator ni = source.getNodes();
+    while (ni.hasNext()) {
+      Node child = ni.nextNode();
+      copyActivityItem(child, destination.addNode(child.getName(), child
+          .getPrimaryNodeType().getName()));
     }
-    // now copy the activity from the store to the feed
-    copyActivityItem(session, activity.getPath(), deliveryPath);
   }
 
-  private void copyActivityItem(Session session, String source, String destination)
-      throws RepositoryException {
-    LOG.debug("copyActivityItem(Session {}, String {}, String {})", new Object[] {
-        session, source, destination });
-    // now copy the activity from the source to the destination
-    session.getWorkspace().copy(source, destination);
-    // next let's create a source property to refer back to the original item
-    // in the ActivityStore
-    Node feedItem = (Node) session.getItem(destination);
-    feedItem.setProperty(SOURCE_PROPERTY, source);
-    session.save();
+  protected void activate(ComponentContext ctx) {
+    Dictionary<?, ?> props = ctx.getProperties();
+    int queueSize = 1000;
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    if (_queueSize != null && _queueSize > 0) {
+      queueSize = _queueSize;
+    }
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    Integer _pullThreshold = (Integer) props.get(PULL_THRESHOLD);
+    if (_pullThreshold != null) {
+      pullThreshold = _pullThreshold;
+    }
+    final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(queueSize);
+    worker = new Thread("activity-fanout") {
+      @Override
+      public void run() {
+        try {
+          while (!isInterrupted()) {
+            List<String> batch = new ArrayList<String>();
+            batch.add(queue.take());
+            queue.drainTo(batch, batchSize - 1);
+            deliverActivities(batch);
+          }
+        } catch (InterruptedException e) {
+          LOG.debug("Activity fan out stopped");
+        }
+      }
+    };
+    worker.setDaemon(true);
+    this.queue = queue;
+    worker.start();
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    BlockingQueue<String> queue = this.queue;
+    this.queue = null;
+    if (worker != null) {
+      worker.interrupt();
+      try {
+        worker.join(STOP_WAIT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      worker = null;
+    }
+    // deliver what is left, the events will not come again.
+    if (queue != null && !queue.isEmpty()) {
+      List<String> batch = new ArrayList<String>();
+      queue.drainTo(batch);
+      deliverActivities(batch);
+    }
   }
 
   protected void bindSlingRepository(SlingRepository slingRepository) {
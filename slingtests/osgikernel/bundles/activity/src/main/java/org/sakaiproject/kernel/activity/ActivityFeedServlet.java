@@ -17,30 +17,64 @@
  */
 package org.sakaiproject.kernel.activity;
 
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.PUBLISHED_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.activity.ActivityConstants;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
 import org.sakaiproject.kernel.api.doc.BindingType;
 import org.sakaiproject.kernel.api.doc.ServiceBinding;
 import org.sakaiproject.kernel.api.doc.ServiceDocumentation;
 import org.sakaiproject.kernel.api.doc.ServiceMethod;
+import org.sakaiproject.kernel.api.doc.ServiceParameter;
 import org.sakaiproject.kernel.resource.AbstractVirtualPathServlet;
 import org.sakaiproject.kernel.resource.VirtualResourceProvider;
+import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
 /**
+ * Maps the items of an activity feed to their hashed paths. A GET of the feed itself
+ * lists its newest items, merged with the newest items of the published feeds of the
+ * connections of its owner, whose activities are read from there rather than copied to
+ * every feed. The users with a published feed are tracked by {@link PublishedFeeds}, so
+ * a GET only looks in the published feeds that exist.
  */
 @SlingServlet(resourceTypes="sakai/activityFeed",methods={"GET","POST","PUT","DELETE"})
 @Properties(value = {
     @Property(name = "service.description", value = "Provides support for activity feed stores."),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
 @ServiceDocumentation(name = "sakai/activityFeed BigStore", description = "BigStore URL hash mapping for sakai/activityFeed stores", bindings = { @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/activityFeed") }, methods = {
-		@ServiceMethod(name = "GET", description = ""),
+		@ServiceMethod(name = "GET", description = "A GET of the feed itself lists its newest items, along with those published by the connections of its owner.", parameters = @ServiceParameter(name = "items", description = "The number of items to list, 25 by default.")),
 		@ServiceMethod(name = "POST", description = ""),
 		@ServiceMethod(name = "PUT", description = ""),
 		@ServiceMethod(name = "DELETE", description = "") })
@@ -48,9 +82,185 @@ public class ActivityFeedServlet extends AbstractVirtualPathServlet {
   private static final long serialVersionUID = -330576547323301568L;
   private static final Logger LOG = LoggerFactory.getLogger(ActivityFeedServlet.class);
 
+  private static final int DEFAULT_ITEMS = 25;
+  private static final int MAX_ITEMS = 100;
+  private static final String JCR_CREATED = "jcr:created";
+
   @Reference
   protected VirtualResourceProvider virtualResourceProvider;
 
+  @Reference
+  protected ConnectionManager connectionManager;
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  protected PublishedFeeds publishedFeeds = new PublishedFeeds();
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.resource.AbstractVirtualPathServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    // a GET of the feed itself lists it, anything below it is hashed to its item.
+    Node feed = request.getResource().adaptTo(Node.class);
+    try {
+      if (feed == null || !feed.getPath().equals(request.getResource().getPath())) {
+        super.doGet(request, response);
+        return;
+      }
+    } catch (RepositoryException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+    int items = DEFAULT_ITEMS;
+    String itemsParam = request.getParameter("items");
+    if (itemsParam != null) {
+      try {
+        items = Math.max(1, Math.min(MAX_ITEMS, Integer.parseInt(itemsParam)));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid items parameter");
+        return;
+      }
+    }
+    Session adminSession = null;
+    try {
+      List<String> publishers = getPublishers(feed.getParent().getName());
+      if (publishers.size() > 0) {
+        // the published feeds are private to their owners, the connection grants access.
+        adminSession = slingRepository.loginAdministrative(null);
+      }
+      List<Node> feedItems = getFeedItems(feed, adminSession, publishers, items);
+
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+      write.object();
+      write.key("items");
+      write.array();
+      for (Node feedItem : feedItems) {
+        ExtendedJSONWriter.writeNodeToWriter(write, feedItem);
+      }
+      write.endArray();
+      write.endObject();
+    } catch (RepositoryException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (JSONException e) {
+      LOG.warn(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * @param owner
+   *          the owner of a feed.
+   * @return those of the connections of the owner that have a published feed.
+   */
+  protected List<String> getPublishers(String owner) {
+    List<String> connections = connectionManager.getConnectedUsers(owner,
+        ConnectionState.ACCEPTED);
+    if (connections == null || connections.size() == 0) {
+      return Collections.emptyList();
+    }
+    return publishedFeeds.getOwners(connections);
+  }
+
+  /**
+   * Get the newest items of a feed, merged with the newest items of the published feeds
+   * of some of the connections of its owner.
+   * 
+   * @param feed
+   * @param adminSession
+   *          the session to read the published feeds with, null if there are none.
+   * @param publishers
+   *          the connections whose published feeds to merge.
+   * @param items
+   *          the number of items to get.
+   * @return the items, newest first.
+   * @throws RepositoryException
+   */
+  protected static List<Node> getFeedItems(Node feed, Session adminSession,
+      List<String> publishers, int items) throws RepositoryException {
+    List<Node> feedItems = new ArrayList<Node>();
+    addFeedItems(feed.getSession(), feed.getPath(), items, feedItems);
+    if (adminSession != null) {
+      for (String publisher : publishers) {
+        addFeedItems(adminSession, ActivityEventProcessor.getFeedPath(publisher,
+            PUBLISHED_FEED_NAME), items, feedItems);
+      }
+    }
+    Collections.sort(feedItems, new Comparator<Node>() {
+      public int compare(Node o1, Node o2) {
+        long c1 = getCreated(o1);
+        long c2 = getCreated(o2);
+        return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+      }
+    });
+    return feedItems.subList(0, Math.min(items, feedItems.size()));
+  }
+
+  /**
+   * Add the newest items of a feed. Items delivered before they were stamped with
+   * {@link ActivityConstants#CREATED_PROPERTY} are ordered by their creation instead.
+   * 
+   * @param session
+   * @param feedPath
+   * @param items
+   *          the number of items to add.
+   * @param feedItems
+   * @throws RepositoryException
+   */
+  private static void addFeedItems(Session session, String feedPath, int items,
+      List<Node> feedItems) throws RepositoryException {
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery("/jcr:root" + ISO9075.encodePath(feedPath)
+        + "//*[@" + SOURCE_PROPERTY + "] order by @" + CREATED_PROPERTY + " descending, @"
+        + JCR_CREATED + " descending", Query.XPATH);
+    NodeIterator nodes = query.execute().getNodes();
+    for (int i = 0; i < items && nodes.hasNext(); i++) {
+      feedItems.add(nodes.nextNode());
+    }
+  }
+
+  /**
+   * @param feedItem
+   * @return the stamp the item was delivered with, or when it was created if it
+   *         predates the stamp, 0 if neither is known so that it sorts last.
+   */
+  private static long getCreated(Node feedItem) {
+    try {
+      if (feedItem.hasProperty(CREATED_PROPERTY)) {
+        return feedItem.getProperty(CREATED_PROPERTY).getDate().getTimeInMillis();
+      }
+      if (feedItem.hasProperty(JCR_CREATED)) {
+        return feedItem.getProperty(JCR_CREATED).getDate().getTimeInMillis();
+      }
+    } catch (RepositoryException e) {
+      LOG.debug(e.getMessage(), e);
+    }
+    return 0;
+  }
+
+  protected void activate(ComponentContext context) {
+    try {
+      publishedFeeds.start(slingRepository.loginAdministrative(null));
+    } catch (RepositoryException e) {
+      LOG.error("Unable to track the published activity feeds", e);
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    publishedFeeds.stop();
+  }
+
   @Override
   protected String getTargetPath(Resource baseResource, SlingHttpServletRequest request,
       SlingHttpServletResponse response, String realPath, String virtualPath) {
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.PUBLISHED_FEED_NAME;
+import static org.sakaiproject.kernel.api.personal.PersonalConstants._USER_PRIVATE;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+/**
+ * Keeps track of the users that have a published activity feed, so that a feed is only
+ * merged with the published feeds of those of its connections that have one. The feeds
+ * are found with one query when tracking starts, and followed by observation after that.
+ */
+public class PublishedFeeds implements EventListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PublishedFeeds.class);
+  private static final String SUFFIX = "/" + PUBLISHED_FEED_NAME;
+
+  private final Map<String, Boolean> owners = new ConcurrentHashMap<String, Boolean>();
+  private Session session;
+
+  /**
+   * Start tracking the published feeds.
+   *
+   * @param session
+   *          a session that can see every published feed, it is kept until
+   *          {@link #stop()} and then logged out.
+   * @throws RepositoryException
+   */
+  public void start(Session session) throws RepositoryException {
+    this.session = session;
+    // follow changes before looking, so that no feed is missed in between.
+    session.getWorkspace().getObservationManager().addEventListener(this,
+        Event.NODE_ADDED | Event.NODE_REMOVED, _USER_PRIVATE, true, null, null, false);
+    Query query = session.getWorkspace().getQueryManager().createQuery(
+        "/jcr:root" + _USER_PRIVATE + "//" + PUBLISHED_FEED_NAME, Query.XPATH);
+    NodeIterator feeds = query.execute().getNodes();
+    while (feeds.hasNext()) {
+      Node feed = feeds.nextNode();
+      owners.put(feed.getParent().getName(), Boolean.TRUE);
+    }
+    LOG.info("Tracking {} published activity feeds", owners.size());
+  }
+
+  /**
+   * Stop tracking the published feeds.
+   */
+  public void stop() {
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOG.warn("Failed to remove published feed listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+    owners.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        if (path.endsWith(SUFFIX)) {
+          String parent = path.substring(0, path.length() - SUFFIX.length());
+          String owner = parent.substring(parent.lastIndexOf('/') + 1);
+          if (event.getType() == Event.NODE_ADDED) {
+            owners.put(owner, Boolean.TRUE);
+          } else {
+            owners.remove(owner);
+          }
+        }
+      } catch (RepositoryException e) {
+        LOG.warn("Failed to read event {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param users
+   * @return those of the users that have a published feed.
+   */
+  public List<String> getOwners(List<String> users) {
+    List<String> published = new ArrayList<String>();
+    for (String user : users) {
+      if (owners.containsKey(user)) {
+        published.add(user);
+      }
+    }
+    return published;
+  }
+}
@@ -34,6 +34,19 @@ public interface ActivityConstants {
   public static final String PROPERTY_ROOT = "sakaiActivityFeed";
   public static final String ACTOR_PROPERTY = PROPERTY_ROOT + "Actor";
   public static final String SOURCE_PROPERTY = PROPERTY_ROOT + "Source";
+  public static final String CREATED_PROPERTY = PROPERTY_ROOT + "Created";
+
+  /**
+   * Name of the feed of a user, below their private space, that the activities of their
+   * connections are delivered to.
+   */
+  public static final String ACTIVITY_FEED_NAME = "activityFeed";
+  /**
+   * Name of the feed of a user, below their private space, that holds their own
+   * activities when they have too many connections to deliver them to. Their connections
+   * read it along with their own feed.
+   */
+  public static final String PUBLISHED_FEED_NAME = "publishedActivityFeed";
 
   /**
    * Events
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTOR_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.PUBLISHED_FEED_NAME;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.apache.sling.commons.testing.jcr.MockPropertyIterator;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+public class ActivityEventProcessorTest extends AbstractEasyMockTest {
+
+  private Map<String, Node> activities = new HashMap<String, Node>();
+  private List<String> items = new ArrayList<String>();
+  private List<Long> stamps = new ArrayList<Long>();
+  private int saves;
+
+  @Test
+  public void testOneSavePerFeed() throws Exception {
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList("bob", "carol")).anyTimes();
+    expect(connectionManager.getConnectedUsers("dave", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList("bob")).anyTimes();
+    ActivityEventProcessor processor = createProcessor(connectionManager);
+    replay();
+
+    processor.deliverActivities(Arrays.asList(activity("/a1", "alice", 1000L), activity(
+        "/a2", "alice", 2000L), activity("/d1", "dave", 3000L)));
+    assertEquals(3, delivered(ActivityEventProcessor.getFeedPath("bob", ACTIVITY_FEED_NAME)));
+    assertEquals(2, delivered(ActivityEventProcessor
+        .getFeedPath("carol", ACTIVITY_FEED_NAME)));
+    assertEquals(5, items.size());
+    // one save for each feed, not one for each activity or delivery.
+    assertEquals(2, saves);
+    // each item is stamped with when its activity was created.
+    assertEquals(5, stamps.size());
+    assertEquals(Arrays.asList(1000L, 2000L, 3000L), new ArrayList<Long>(new TreeSet<Long>(
+        stamps)));
+    verify();
+  }
+
+  @Test
+  public void testDroppedWhenFull() throws Exception {
+    final CountDownLatch delivering = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ActivityEventProcessor processor = new ActivityEventProcessor() {
+      @Override
+      protected void deliverActivities(List<String> activityItemPaths) {
+        delivering.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ActivityEventProcessor.QUEUE_SIZE, 1);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(properties);
+    replay();
+
+    processor.activate(context);
+    try {
+      processor.handleEvent(event("/a1"));
+      // the worker holds the first, the queue the second, the third is dropped at once.
+      delivering.await();
+      processor.handleEvent(event("/a2"));
+      long start = System.currentTimeMillis();
+      processor.handleEvent(event("/a3"));
+      assertTrue(System.currentTimeMillis() - start < 500);
+      assertEquals(1, processor.getDroppedActivities());
+    } finally {
+      release.countDown();
+      processor.deactivate(context);
+    }
+    verify();
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("activityItemPath", path);
+    return new Event("org/sakaiproject/kernel/activity", properties);
+  }
+
+  @Test
+  public void testPublishedOverThreshold() throws Exception {
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList("bob", "carol")).anyTimes();
+    expect(connectionManager.getConnectedUsers("dave", ConnectionState.ACCEPTED))
+        .andReturn(Arrays.asList("bob")).anyTimes();
+    ActivityEventProcessor processor = createProcessor(connectionManager);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ActivityEventProcessor.PULL_THRESHOLD, 1);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(properties);
+    replay();
+
+    processor.activate(context);
+    try {
+      processor.deliverActivities(Arrays.asList(activity("/a1", "alice"), activity("/a2",
+          "alice"), activity("/d1", "dave")));
+    } finally {
+      processor.deactivate(context);
+    }
+    // alice publishes rather than copying to both connections, dave is under the threshold.
+    assertEquals(2, delivered(ActivityEventProcessor.getFeedPath("alice",
+        PUBLISHED_FEED_NAME)));
+    assertEquals(1, delivered(ActivityEventProcessor.getFeedPath("bob", ACTIVITY_FEED_NAME)));
+    assertEquals(3, items.size());
+    assertEquals(2, saves);
+    verify();
+  }
+
+  private int delivered(String feedPath) {
+    int delivered = 0;
+    for (String item : items) {
+      if (item.startsWith(feedPath + "/")) {
+        delivered++;
+      }
+    }
+    return delivered;
+  }
+
+  private ActivityEventProcessor createProcessor(ConnectionManager connectionManager)
+      throws RepositoryException {
+    final Session session = EasyMock.createNiceMock(Session.class);
+    expect(session.itemExists((String) anyObject())).andStubReturn(true);
+    expect(session.getItem((String) anyObject())).andStubAnswer(new IAnswer<Node>() {
+      public Node answer() throws Throwable {
+        String path = (String) EasyMock.getCurrentArguments()[0];
+        if (activities.containsKey(path)) {
+          return activities.get(path);
+        }
+        // a feed, or one of the items delivered to it.
+        if (path.split("/").length > 10) {
+          items.add(path);
+        }
+        Node node = EasyMock.createNiceMock(Node.class);
+        expect(node.setProperty(eq(CREATED_PROPERTY), (Calendar) anyObject()))
+            .andStubAnswer(new IAnswer<Property>() {
+              public Property answer() throws Throwable {
+                stamps.add(((Calendar) EasyMock.getCurrentArguments()[1])
+                    .getTimeInMillis());
+                return null;
+              }
+            });
+        EasyMock.replay(node);
+        return node;
+      }
+    });
+    session.save();
+    expectLastCall().andStubAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        saves++;
+        return null;
+      }
+    });
+    EasyMock.replay(session);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session).anyTimes();
+    ActivityEventProcessor processor = new ActivityEventProcessor();
+    processor.bindConnectionManager(connectionManager);
+    processor.bindSlingRepository(slingRepository);
+    return processor;
+  }
+
+  private String activity(String path, String actor) throws RepositoryException {
+    return activity(path, actor, 0L);
+  }
+
+  private String activity(String path, String actor, long created)
+      throws RepositoryException {
+    Property property = EasyMock.createNiceMock(Property.class);
+    expect(property.getString()).andStubReturn(actor);
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(created);
+    Property createdProperty = EasyMock.createNiceMock(Property.class);
+    expect(createdProperty.getDate()).andStubReturn(calendar);
+    NodeType nodeType = EasyMock.createNiceMock(NodeType.class);
+    expect(nodeType.getName()).andStubReturn("nt:unstructured");
+    Node activity = EasyMock.createNiceMock(Node.class);
+    expect(activity.getPath()).andStubReturn(path);
+    expect(activity.getProperty(ACTOR_PROPERTY)).andStubReturn(property);
+    expect(activity.hasProperty(JcrConstants.JCR_CREATED)).andStubReturn(created > 0);
+    expect(activity.getProperty(JcrConstants.JCR_CREATED)).andStubReturn(createdProperty);
+    expect(activity.getPrimaryNodeType()).andStubReturn(nodeType);
+    expect(activity.getProperties()).andStubReturn(
+        new MockPropertyIterator(new ArrayList<Property>().iterator()));
+    expect(activity.getNodes()).andStubReturn(new MockNodeIterator());
+    EasyMock.replay(property, createdProperty, nodeType, activity);
+    activities.put(path, activity);
+    return path;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.activity;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.ACTIVITY_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.CREATED_PROPERTY;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.PUBLISHED_FEED_NAME;
+import static org.sakaiproject.kernel.api.activity.ActivityConstants.SOURCE_PROPERTY;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.connections.ConnectionManager;
+import org.sakaiproject.kernel.api.connections.ConnectionState;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class ActivityFeedServletTest extends AbstractEasyMockTest {
+
+  private static final String BOB_FEED = ActivityEventProcessor.getFeedPath("bob",
+      ACTIVITY_FEED_NAME);
+  private static final String ALICE_PUBLISHED = ActivityEventProcessor.getFeedPath(
+      "alice", PUBLISHED_FEED_NAME);
+
+  @Test
+  public void testMergesNewestFirst() throws Exception {
+    Node b1 = item("b1", 100L, null);
+    Node b2 = item("b2", 300L, null);
+    Node a1 = item("a1", 200L, null);
+    Node a2 = item("a2", 400L, null);
+    Node feed = createMock(Node.class);
+    expect(feed.getPath()).andReturn(BOB_FEED).anyTimes();
+    expect(feed.getSession()).andReturn(session(BOB_FEED, b2, b1)).anyTimes();
+    Session adminSession = session(ALICE_PUBLISHED, a2, a1);
+    replay();
+
+    assertEquals(Arrays.asList(a2, b2, a1, b1), ActivityFeedServlet.getFeedItems(feed,
+        adminSession, Arrays.asList("alice"), 10));
+    assertEquals(Arrays.asList(a2, b2), ActivityFeedServlet.getFeedItems(feed,
+        adminSession, Arrays.asList("alice"), 2));
+    verify();
+  }
+
+  @Test
+  public void testUnstampedItemsSortLast() throws Exception {
+    // delivered before the delivery stamp, ordered by creation and after stamped items.
+    Node old = item("old", null, 50L);
+    Node older = item("older", null, 10L);
+    Node unknown = item("unknown", null, null);
+    Node stamped = item("stamped", 5L, null);
+    Node feed = createMock(Node.class);
+    expect(feed.getPath()).andReturn(BOB_FEED).anyTimes();
+    expect(feed.getSession()).andReturn(session(BOB_FEED, stamped, old, unknown, older))
+        .anyTimes();
+    replay();
+
+    assertEquals(Arrays.asList(old, older, stamped, unknown), ActivityFeedServlet
+        .getFeedItems(feed, null, Collections.<String> emptyList(), 10));
+    verify();
+  }
+
+  @Test
+  public void testPublishersTracked() throws Exception {
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("bob", ConnectionState.ACCEPTED)).andReturn(
+        Arrays.asList("alice", "carol", "dave")).anyTimes();
+    Session session = observingSession(new MockNodeIterator(new Node[] { feedNode("alice") }));
+    EventIterator added = events(event(Event.NODE_ADDED, ActivityEventProcessor
+        .getFeedPath("carol", PUBLISHED_FEED_NAME)));
+    EventIterator removed = events(event(Event.NODE_REMOVED, ALICE_PUBLISHED));
+    EventIterator other = events(event(Event.NODE_ADDED, ActivityEventProcessor
+        .getFeedPath("dave", ACTIVITY_FEED_NAME)));
+    // nobody logs in administratively to look for feeds.
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    replay();
+
+    ActivityFeedServlet servlet = new ActivityFeedServlet();
+    servlet.connectionManager = connectionManager;
+    servlet.slingRepository = slingRepository;
+    servlet.activate(null);
+    assertEquals(Arrays.asList("alice"), servlet.getPublishers("bob"));
+    servlet.publishedFeeds.onEvent(added);
+    assertEquals(Arrays.asList("alice", "carol"), servlet.getPublishers("bob"));
+    servlet.publishedFeeds.onEvent(removed);
+    servlet.publishedFeeds.onEvent(other);
+    assertEquals(Arrays.asList("carol"), servlet.getPublishers("bob"));
+    servlet.deactivate(null);
+    assertTrue(servlet.getPublishers("bob").isEmpty());
+    verify();
+  }
+
+  private Node item(String name, Long created, Long jcrCreated) throws RepositoryException {
+    Node item = createMock(name, Node.class);
+    expect(item.hasProperty(CREATED_PROPERTY)).andReturn(created != null).anyTimes();
+    if (created != null) {
+      expect(item.getProperty(CREATED_PROPERTY)).andReturn(date(created)).anyTimes();
+    }
+    expect(item.hasProperty("jcr:created")).andReturn(jcrCreated != null).anyTimes();
+    if (jcrCreated != null) {
+      expect(item.getProperty("jcr:created")).andReturn(date(jcrCreated)).anyTimes();
+    }
+    return item;
+  }
+
+  private Property date(long time) throws RepositoryException {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(time);
+    Property property = createMock(Property.class);
+    expect(property.getDate()).andReturn(calendar).anyTimes();
+    return property;
+  }
+
+  /**
+   * @return a session whose query of the feed finds the items in the given order.
+   */
+  private Session session(String feedPath, final Node... items) throws RepositoryException {
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andAnswer(new IAnswer<NodeIterator>() {
+      public NodeIterator answer() throws Throwable {
+        return new MockNodeIterator(items);
+      }
+    }).anyTimes();
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result).anyTimes();
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery(
+        "/jcr:root" + ISO9075.encodePath(feedPath) + "//*[@" + SOURCE_PROPERTY + "] order by @"
+            + CREATED_PROPERTY + " descending, @jcr:created descending", Query.XPATH))
+        .andReturn(query).anyTimes();
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager).anyTimes();
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    return session;
+  }
+
+  private Session observingSession(MockNodeIterator feeds) throws RepositoryException {
+    ObservationManager observationManager = EasyMock.createNiceMock(ObservationManager.class);
+    EasyMock.replay(observationManager);
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(feeds);
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery("/jcr:root/_user/private//" + PUBLISHED_FEED_NAME,
+        Query.XPATH)).andReturn(query);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    session.logout();
+    expectLastCall();
+    return session;
+  }
+
+  private Node feedNode(String owner) throws RepositoryException {
+    Node parent = createMock(Node.class);
+    expect(parent.getName()).andReturn(owner);
+    Node feed = createMock(Node.class);
+    expect(feed.getParent()).andReturn(parent);
+    return feed;
+  }
+
+  private Event event(int type, String path) throws RepositoryException {
+    Event event = createMock(Event.class);
+    expect(event.getType()).andReturn(type).anyTimes();
+    expect(event.getPath()).andReturn(path).anyTimes();
+    return event;
+  }
+
+  private EventIterator events(Event event) {
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event);
+    expect(events.hasNext()).andReturn(false);
+    return events;
+  }
+}
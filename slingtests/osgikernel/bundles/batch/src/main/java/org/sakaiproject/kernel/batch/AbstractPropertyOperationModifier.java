@@ -82,6 +82,7 @@ public abstract class AbstractPropertyOperationModifier extends
         }
       }
       modifyProperties(operation, item, params);
+      save(item);
       changes.add(Modification.onModified(resource.getPath()));
     } else {
       log.info("Changing multiple operation.");
@@ -89,12 +90,19 @@ public abstract class AbstractPropertyOperationModifier extends
         Item item = session.getItem(path);
         if (item != null) {
           modifyProperties(operation, item, params);
+          save(item);
           changes.add(Modification.onModified(path));
         }
       }
     }
   }
 
+  private void save(Item item) throws RepositoryException {
+    if (item.isModified()) {
+      item.save();
+    }
+  }
+
   /**
    * Returns an array of string which holds the JCR path's for the :applyTo request
    * parameter.
@@ -123,14 +131,14 @@ public abstract class AbstractPropertyOperationModifier extends
 
   /**
    * Loops over the properties of a node and modifies all those that are provided in the
-   * parameters map.
+   * parameters map, without saving them.
    * 
    * @param operation
    * @param item
    * @param params
    * @throws RepositoryException
    */
-  protected void modifyProperties(String operation, Item item,
+  protected static void modifyProperties(String operation, Item item,
       Map<String, String[]> params) throws RepositoryException {
     if (item.isNode()) {
       Node node = (Node) item;
@@ -161,7 +169,7 @@ public abstract class AbstractPropertyOperationModifier extends
             }
           }
 
-          // Write the properties to the node and save them.
+          // Write the properties to the node.
           String[] newValues = new String[oldValues.size()];
           for (int i = 0; i < oldValues.size(); i++) {
             newValues[i] = oldValues.get(i);
@@ -169,9 +177,6 @@ public abstract class AbstractPropertyOperationModifier extends
           node.setProperty(prop, newValues);
         }
       }
-      if (node.isModified()) {
-        node.save();
-      }
     }
   }
 }
@@ -16,19 +16,34 @@
  */
 package org.sakaiproject.kernel.batch;
 
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Session;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -40,12 +55,24 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * This filter will look for batch requests.
+ * This filter will look for batch requests. When every request of the batch is a GET, the
+ * parallel parameter is true and there are no more than batch.max.requests of them, the
+ * requests are processed at the same time on a bounded pool of threads, each as a request
+ * of its own with its own session; otherwise they are processed one after the other, as
+ * they always have been. A parallel batch has batch.timeout ms to finish, after which the
+ * requests that have not are reported with a status of 504. Once the bodies a batch has
+ * written run over batch.max.bytes, the remaining requests are reported with a status of
+ * 413 rather than written.
  * 
  * @scr.component metatype="no"
  * @scr.property name="filter.scope" value="request" private="true"
  * @scr.property name="filter.order" value="-2500" type="Integer" private="true"
  * @scr.service interface="javax.servlet.Filter"
+ * @scr.reference name="slingRepository" interface="org.apache.sling.jcr.api.SlingRepository"
+ * @scr.reference name="resourceResolverFactory"
+ *                interface="org.apache.sling.jcr.resource.JcrResourceResolverFactory"
+ * @scr.reference name="requestProcessor"
+ *                interface="org.apache.sling.engine.SlingRequestProcessor"
  */
 public class BatchFilter implements Filter {
 
@@ -58,6 +85,37 @@ public class BatchFilter implements Filter {
 
   private static final String REQUESTS_PARAMETER = "requests";
   private static final String IS_BATCH_PARAMETER = "isBatch";
+  private static final String PARALLEL_PARAMETER = "parallel";
+
+  /** @scr.property value="8" type="Integer" */
+  static final String PARALLEL_THREADS = "batch.parallel.threads";
+
+  /**
+   * The most requests processed in parallel, larger batches are processed one after the
+   * other.
+   * 
+   * @scr.property value="50" type="Integer"
+   */
+  static final String MAX_REQUESTS = "batch.max.requests";
+
+  /** @scr.property value="4194304" type="Integer" */
+  static final String MAX_BYTES = "batch.max.bytes";
+
+  /**
+   * The time in ms a parallel batch has to finish.
+   * 
+   * @scr.property value="30000" type="Long"
+   */
+  static final String TIMEOUT = "batch.timeout";
+
+  private int maxRequests = 50;
+  private int maxBytes = 4194304;
+  private long timeout = 30000L;
+  private ExecutorService executor;
+
+  private SlingRepository slingRepository;
+  private JcrResourceResolverFactory resourceResolverFactory;
+  private SlingRequestProcessor requestProcessor;
 
   public void doFilter(ServletRequest req, ServletResponse resp,
       FilterChain chain) throws IOException, ServletException {
@@ -85,17 +143,66 @@ public class BatchFilter implements Filter {
             "Failed to parse the " + REQUESTS_PARAMETER + " parameter");
         LOGGER.warn("Failed to parse the " + REQUESTS_PARAMETER + " parameter");
         e.printStackTrace();
+        return;
+      }
+      long deadline = System.currentTimeMillis() + timeout;
+      List<IsolatedGetTask> tasks = null;
+      if ("true".equals(request.getParameter(PARALLEL_PARAMETER))) {
+        tasks = startParallel(request, response, operations);
       }
 
       // Loop over the requests and handle each one.
       try {
-        JSONWriter write = new JSONWriter(response.getWriter());
+        Writer writer = response.getWriter();
+        JSONWriter write = new JSONWriter(writer);
         write.array();
 
-        for (RequestData operation : operations) {
-          doRequest(request, response, operation, write);
+        int bytes = 0;
+        boolean interrupted = false;
+        for (int i = 0; i < operations.size(); i++) {
+          RequestData operation = operations.get(i);
+          ResponseWrapper responseWrapper;
+          if (tasks != null) {
+            IsolatedGetTask task = tasks.get(i);
+            if (interrupted) {
+              responseWrapper = task.cancel();
+            } else {
+              try {
+                responseWrapper = task.await(deadline);
+              } catch (InterruptedException e) {
+                // the response has started, so the rest of the batch is reported as
+                // timed out rather than as an error.
+                LOGGER.warn("Interrupted while waiting for the batch");
+                interrupted = true;
+                responseWrapper = task.cancel();
+              }
+            }
+            if (task.isFailed()) {
+              writeFailedRequest(write, operation);
+              continue;
+            }
+          } else {
+            responseWrapper = doRequest(request, response, operation);
+            if (responseWrapper == null) {
+              writeFailedRequest(write, operation);
+              continue;
+            }
+          }
+
+          if (responseWrapper == null) {
+            writeSkippedRequest(write, operation, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+          } else if (bytes + responseWrapper.getDataLength() > maxBytes) {
+            writeSkippedRequest(write, operation,
+                HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+          } else {
+            bytes += responseWrapper.getDataLength();
+            writeResponse(write, writer, responseWrapper, operation);
+          }
         }
         write.endArray();
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
       } catch (JSONException e) {
         LOGGER.warn("Failed to create a JSON response");
         e.printStackTrace();
@@ -109,9 +216,55 @@ public class BatchFilter implements Filter {
     }
   }
 
-  private void doRequest(HttpServletRequest request,
-      HttpServletResponse response, RequestData requestData, JSONWriter write)
-      throws JSONException {
+  /**
+   * Start processing the requests of a batch in parallel, if they are all GETs and there
+   * are not too many of them.
+   * 
+   * @param request
+   * @param response
+   * @param operations
+   * @return a task for each request, or null if they can't be processed in parallel.
+   */
+  private List<IsolatedGetTask> startParallel(HttpServletRequest request,
+      HttpServletResponse response, List<RequestData> operations) {
+    if (executor == null || requestProcessor == null
+        || !(request instanceof SlingHttpServletRequest)
+        || operations.size() > maxRequests) {
+      return null;
+    }
+    for (RequestData operation : operations) {
+      // a request that changes something has to be seen by the ones after it.
+      if (operation.getMethod() != null && !"GET".equalsIgnoreCase(operation.getMethod())) {
+        return null;
+      }
+    }
+    SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+    Session session = slingRequest.getResourceResolver().adaptTo(Session.class);
+    if (session == null) {
+      return null;
+    }
+    String userId = session.getUserID();
+    List<IsolatedGetTask> tasks = new ArrayList<IsolatedGetTask>();
+    for (RequestData operation : operations) {
+      IsolatedGetTask task = new IsolatedGetTask(slingRequest,
+          (SlingHttpServletResponse) response, operation, userId,
+          slingRepository, resourceResolverFactory, requestProcessor);
+      tasks.add(task);
+      task.start(executor);
+    }
+    return tasks;
+  }
+
+  /**
+   * Process a request of the batch on this thread.
+   * 
+   * @param request
+   * @param response
+   * @param requestData
+   * @return the response, or null if the request failed.
+   */
+  private ResponseWrapper doRequest(HttpServletRequest request,
+      HttpServletResponse response, RequestData requestData) {
 
     // Wrap the request and response so we can read them.
     RequestWrapper requestWrapper = new RequestWrapper(request);
@@ -122,44 +275,56 @@ public class BatchFilter implements Filter {
       // Get the response
       request.getRequestDispatcher(requestData.getUrl()).forward(
           requestWrapper, responseWrapper);
-
-      // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestData);
+      return responseWrapper;
     } catch (ServletException e) {
-      writeFailedRequest(write, requestData);
+      return null;
     } catch (IOException e) {
-      writeFailedRequest(write, requestData);
+      return null;
     }
 
   }
 
-  private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestData requestData) throws JSONException {
-    try {
-      String body = responseWrapper.getDataAsString();
-      write.object();
-      write.key("url");
-      write.value(requestData.getUrl());
-      write.key("succes");
-      write.value(true);
-      write.key("body");
-      write.value(body);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
-      Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
-      Enumeration<String> keys = headers.keys();
-      while (keys.hasMoreElements()) {
-        String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
-      }
-      write.endObject();
-      write.endObject();
-    } catch (UnsupportedEncodingException e) {
-      writeFailedRequest(write, requestData);
+  /**
+   * Write the response (status, headers, body) back to the client.
+   */
+  private void writeResponse(JSONWriter write, Writer writer,
+      ResponseWrapper responseWrapper, RequestData requestData) throws JSONException,
+      IOException {
+    write.object();
+    write.key("url");
+    write.value(requestData.getUrl());
+    write.key("succes");
+    write.value(true);
+    responseWrapper.writeDataMember("body", writer);
+    write.key("status");
+    write.value(responseWrapper.getResponseStatus());
+    write.key("headers");
+    write.object();
+    Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      write.key(k);
+      write.value(headers.get(k));
     }
+    write.endObject();
+    write.endObject();
+  }
+
+  /**
+   * Report a request that was not processed or written because the batch ran out of
+   * time or space.
+   */
+  private void writeSkippedRequest(JSONWriter write, RequestData requestData, int status)
+      throws JSONException {
+    write.object();
+    write.key("url");
+    write.value(requestData.getUrl());
+    write.key("succes");
+    write.value(false);
+    write.key("status");
+    write.value(status);
+    write.endObject();
   }
 
   private void writeFailedRequest(JSONWriter write, RequestData requestData)
@@ -178,4 +343,59 @@ public class BatchFilter implements Filter {
   public void destroy() {
   }
 
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    int threads = OsgiUtil.toInteger(properties.get(PARALLEL_THREADS), 8);
+    maxRequests = OsgiUtil.toInteger(properties.get(MAX_REQUESTS), maxRequests);
+    maxBytes = OsgiUtil.toInteger(properties.get(MAX_BYTES), maxBytes);
+    timeout = OsgiUtil.toLong(properties.get(TIMEOUT), timeout);
+    // a full queue runs the request on the batch thread rather than failing it.
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(threads * maxRequests),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "batch-get-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    pool.allowCoreThreadTimeOut(true);
+    executor = pool;
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  protected void bindResourceResolverFactory(
+      JcrResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = resourceResolverFactory;
+  }
+
+  protected void unbindResourceResolverFactory(
+      JcrResourceResolverFactory resourceResolverFactory) {
+    this.resourceResolverFactory = null;
+  }
+
+  protected void bindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    this.requestProcessor = requestProcessor;
+  }
+
+  protected void unbindRequestProcessor(SlingRequestProcessor requestProcessor) {
+    this.requestProcessor = null;
+  }
+
 }
\ No newline at end of file
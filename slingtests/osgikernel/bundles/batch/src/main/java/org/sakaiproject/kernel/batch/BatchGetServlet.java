@@ -34,7 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -134,13 +134,14 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
         write.object();
         write.key("path");
         write.value(resourcePath);
-        write.key("data");
         try {
           outputResource(request, response, write, resourcePath);
         } catch (ResourceNotFoundException e) {
+          write.key("data");
           write.value(404);
           LOGGER.warn("Unable to get data for resource: " + resourcePath, e);
         } catch (Exception e) {
+          write.key("data");
           write.value(500);
           LOGGER.warn("Unable to get data for resource: " + resourcePath, e);
         }
@@ -162,13 +163,12 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
     request.getRequestDispatcher(resourcePath)
         .forward(request, responseWrapper);
 
-    outputResponseAsJSON(responseWrapper, write);
+    outputResponseAsJSON(responseWrapper, write, response.getWriter());
   }
 
   private void outputResponseAsJSON(ResponseWrapper responseWrapper,
-      ExtendedJSONWriter write) throws UnsupportedEncodingException,
-      JSONException {
-    write.value(responseWrapper.getDataAsString());
+      ExtendedJSONWriter write, Writer out) throws JSONException, IOException {
+    responseWrapper.writeDataMember("data", out);
     write.key("status");
     write.value(responseWrapper.getResponseStatus());
   }
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.servlets.HtmlResponse;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.servlets.post.AbstractSlingPostOperation;
+import org.apache.sling.servlets.post.Modification;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.URIExpander;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Applies a list of writes in the session of the request, so that they are saved
+ * together rather than one request and one save at a time. The writes are given in the
+ * operations parameter as a JSON array of requests, as for a batch request, each with a
+ * url and the parameters of the write. The :operation parameter of a write may be
+ * addProperty, removeProperty, tag, createTree or delete; without it the parameters are
+ * set as properties of the node, which is created if need be.
+ *
+ * By default the writes are saved once, after the last of them, and if any of them
+ * fails none are saved. With a :chunkSize the writes are saved every so many writes, and
+ * a failure only discards the writes since the last save.
+ *
+ * @scr.component metatype="no" immediate="true"
+ * @scr.service
+ * @scr.property name="sling.post.operation" value="batchWrite"
+ */
+public class BatchWriteOperation extends AbstractSlingPostOperation {
+
+  private static final String OPERATIONS_PARAMETER = "operations";
+  private static final String CHUNK_SIZE_PARAMETER = ":chunkSize";
+  private static final String OPERATION_PARAMETER = ":operation";
+  private static final String TREE_PARAMETER = "tree";
+  private static final String TAGS_PARAMETER = "sakai:tags";
+
+  @Override
+  protected void doRun(SlingHttpServletRequest request, HtmlResponse response,
+      List<Modification> changes) throws RepositoryException {
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    List<RequestData> writes = getWrites(request);
+    int chunkSize = getChunkSize(request);
+
+    int saved = 0;
+    for (int i = 0; i < writes.size(); i++) {
+      RequestData write = writes.get(i);
+      try {
+        doWrite(session, write, changes);
+      } catch (RepositoryException e) {
+        // the post operation discards the changes that have not been saved.
+        throw new RepositoryException("Write " + i + " to " + write.getUrl()
+            + " failed, " + saved + " writes were saved: " + e.getMessage(), e);
+      }
+      if (chunkSize > 0 && (i + 1) % chunkSize == 0 && session.hasPendingChanges()) {
+        session.save();
+        saved = i + 1;
+      }
+    }
+  }
+
+  private List<RequestData> getWrites(SlingHttpServletRequest request)
+      throws RepositoryException {
+    RequestParameter operationsParam = request.getRequestParameter(OPERATIONS_PARAMETER);
+    if (operationsParam == null) {
+      throw new RepositoryException("No " + OPERATIONS_PARAMETER + " parameter found.");
+    }
+    List<RequestData> writes = new ArrayList<RequestData>();
+    try {
+      JSONArray arr = new JSONArray(operationsParam.getString());
+      for (int i = 0; i < arr.length(); i++) {
+        writes.add(new RequestData(arr.getJSONObject(i)));
+      }
+    } catch (JSONException e) {
+      throw new RepositoryException("Invalid " + OPERATIONS_PARAMETER + " parameter: "
+          + e.getMessage());
+    }
+    return writes;
+  }
+
+  private int getChunkSize(SlingHttpServletRequest request) throws RepositoryException {
+    RequestParameter chunkSizeParam = request.getRequestParameter(CHUNK_SIZE_PARAMETER);
+    if (chunkSizeParam == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(chunkSizeParam.getString());
+    } catch (NumberFormatException e) {
+      throw new RepositoryException("Invalid " + CHUNK_SIZE_PARAMETER + " parameter.");
+    }
+  }
+
+  /**
+   * Apply one write to the session, without saving it.
+   *
+   * @param session
+   * @param write
+   * @param changes
+   * @throws RepositoryException
+   */
+  private void doWrite(Session session, RequestData write, List<Modification> changes)
+      throws RepositoryException {
+    String path = URIExpander.expandStorePath(session, write.getUrl());
+    Map<String, String[]> params = write.getParameters();
+    String operation = getParameter(params, OPERATION_PARAMETER);
+
+    if (operation == null) {
+      Node node = JcrUtils.deepGetOrCreateNode(session, path);
+      setProperties(node, params);
+      changes.add(Modification.onModified(path));
+    } else if ("createTree".equals(operation)) {
+      String tree = getParameter(params, TREE_PARAMETER);
+      if (tree == null) {
+        throw new RepositoryException("No " + TREE_PARAMETER + " parameter found.");
+      }
+      try {
+        CreateTreeOperation.createTree(new JSONObject(tree), JcrUtils.deepGetOrCreateNode(
+            session, path));
+      } catch (JSONException e) {
+        throw new RepositoryException("Invalid JSON tree structure");
+      }
+      changes.add(Modification.onModified(path));
+    } else if ("delete".equals(operation)) {
+      if (session.itemExists(path)) {
+        session.getItem(path).remove();
+        changes.add(Modification.onDeleted(path));
+      }
+    } else {
+      if (!session.itemExists(path)) {
+        throw new PathNotFoundException("Missing source " + path + " for " + operation);
+      }
+      Item item = session.getItem(path);
+      if ("tag".equals(operation)) {
+        String[] tags = params.get(TAGS_PARAMETER);
+        TagOperation.setTags(item, tags == null ? new ArrayList<String>() : Arrays
+            .asList(tags));
+      } else if ("addProperty".equals(operation) || "removeProperty".equals(operation)) {
+        AbstractPropertyOperationModifier.modifyProperties(operation, item, params);
+      } else {
+        throw new RepositoryException("Unsupported operation " + operation);
+      }
+      changes.add(Modification.onModified(path));
+    }
+  }
+
+  /**
+   * Set each parameter as a property of the node, skipping those that start with a
+   * colon.
+   *
+   * @param node
+   * @param params
+   * @throws RepositoryException
+   */
+  private void setProperties(Node node, Map<String, String[]> params)
+      throws RepositoryException {
+    for (Entry<String, String[]> e : params.entrySet()) {
+      String name = e.getKey();
+      String[] values = e.getValue();
+      if (name.startsWith(":")) {
+        continue;
+      }
+      if (values.length == 1) {
+        node.setProperty(name, values[0]);
+      } else {
+        node.setProperty(name, values);
+      }
+    }
+  }
+
+  private String getParameter(Map<String, String[]> params, String name) {
+    String[] values = params.get(name);
+    if (values != null && values.length > 0) {
+      return values[0];
+    }
+    return null;
+  }
+
+}
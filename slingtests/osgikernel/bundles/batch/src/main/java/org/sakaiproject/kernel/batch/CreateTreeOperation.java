@@ -79,7 +79,7 @@ public class CreateTreeOperation extends AbstractSlingPostOperation {
     node = JcrUtils.deepGetOrCreateNode(session, path);
 
     // Start creating the tree.
-    createTree(session, json, node);
+    createTree(json, node);
 
     // Save the session.
     if (session.hasPendingChanges()) {
@@ -87,7 +87,14 @@ public class CreateTreeOperation extends AbstractSlingPostOperation {
     }
   }
 
-  private void createTree(Session session, JSONObject json, Node node)
+  /**
+   * Creates the tree under a node, without saving it, so that the batchWrite operation
+   * can save it along with its other writes.
+   *
+   * @param json
+   * @param node
+   */
+  static void createTree(JSONObject json, Node node)
       throws ItemExistsException, PathNotFoundException, VersionException,
       ConstraintViolationException, LockException, RepositoryException {
 
@@ -101,7 +108,7 @@ public class CreateTreeOperation extends AbstractSlingPostOperation {
         if (obj instanceof JSONObject) {
           // This represents a child node.
           Node childNode = addNode(node, key);
-          createTree(session, (JSONObject) obj, childNode);
+          createTree((JSONObject) obj, childNode);
         } else if (obj instanceof JSONArray) {
           // This represents a multivalued property
 
@@ -138,7 +145,7 @@ public class CreateTreeOperation extends AbstractSlingPostOperation {
     }
   }
 
-  private Node addNode(Node node, String key) throws ItemExistsException,
+  private static Node addNode(Node node, String key) throws ItemExistsException,
       PathNotFoundException, VersionException, ConstraintViolationException,
       LockException, RepositoryException {
     if (node.hasNode(key)) {
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * Processes a GET sub request of a batch on a thread of its own. The Sling request
+ * dispatcher works on the state of the request it is given and can't be shared between
+ * threads, so the sub request is processed by the Sling request processor as a request
+ * of its own, through the same filters and servlet resolution as any other request, with
+ * a session of its own for the user of the batch request.
+ */
+public class IsolatedGetTask implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IsolatedGetTask.class);
+
+  private enum State {
+    waiting, running, done, skipped
+  }
+
+  /**
+   * How long in ms to wait for a sub request to stop once it has been interrupted,
+   * before it is left to finish on its own.
+   */
+  static final long STOP_WAIT = 2000L;
+
+  private final SlingHttpServletRequest request;
+  private final RequestData requestData;
+  private final String userId;
+  private final SlingRepository slingRepository;
+  private final JcrResourceResolverFactory resourceResolverFactory;
+  private final SlingRequestProcessor requestProcessor;
+  private final ResponseWrapper responseWrapper;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private State state = State.waiting;
+  private Future<?> future;
+  private volatile Session session;
+  private Exception failure;
+
+  /**
+   * @param request
+   *          the batch request.
+   * @param response
+   *          the batch response.
+   * @param requestData
+   *          the sub request.
+   * @param userId
+   *          the user of the batch request, read on the request thread.
+   * @param slingRepository
+   * @param resourceResolverFactory
+   * @param requestProcessor
+   */
+  public IsolatedGetTask(SlingHttpServletRequest request, SlingHttpServletResponse response,
+      RequestData requestData, String userId, SlingRepository slingRepository,
+      JcrResourceResolverFactory resourceResolverFactory,
+      SlingRequestProcessor requestProcessor) {
+    this.request = request;
+    this.requestData = requestData;
+    this.userId = userId;
+    this.slingRepository = slingRepository;
+    this.resourceResolverFactory = resourceResolverFactory;
+    this.requestProcessor = requestProcessor;
+    this.responseWrapper = new ResponseWrapper(response);
+  }
+
+  /**
+   * Submit the sub request to be processed.
+   *
+   * @param executor
+   */
+  public void start(ExecutorService executor) {
+    Future<?> submitted = executor.submit(this);
+    synchronized (this) {
+      future = submitted;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    synchronized (this) {
+      if (state != State.waiting) {
+        return;
+      }
+      state = State.running;
+    }
+    try {
+      execute();
+    } catch (Exception e) {
+      LOGGER.warn("Failed to get {}: {}", requestData.getUrl(), e.getMessage());
+      failure = e;
+    } finally {
+      synchronized (this) {
+        state = State.done;
+      }
+      done.countDown();
+    }
+  }
+
+  private void execute() throws Exception {
+    Session session;
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      session = adminSession.impersonate(new SimpleCredentials(userId, new char[0]));
+    } finally {
+      adminSession.logout();
+    }
+    this.session = session;
+    try {
+      ResourceResolver resourceResolver = resourceResolverFactory.getResourceResolver(session);
+      requestProcessor.processRequest(new IsolatedRequestWrapper(request, requestData),
+          responseWrapper, resourceResolver);
+    } finally {
+      this.session = null;
+      session.logout();
+    }
+  }
+
+  /**
+   * Wait for the sub request to finish until the deadline. After the deadline a sub
+   * request that has not started is skipped, and one that is running is interrupted and
+   * waited for a little while, so that it is not normally left running against the
+   * batch request once it returns. A sub request that ignores the interrupt is
+   * abandoned: its session is logged out, so that it fails at its next use of the
+   * repository and gives its thread back to the pool, and it only writes to a response
+   * of its own, which is never read.
+   *
+   * @param deadline
+   *          the time in ms by which the batch should be done.
+   * @return the response, or null if the sub request did not finish in time.
+   * @throws InterruptedException
+   */
+  public ResponseWrapper await(long deadline) throws InterruptedException {
+    long wait = deadline - System.currentTimeMillis();
+    if (wait > 0 && done.await(wait, TimeUnit.MILLISECONDS)) {
+      return responseWrapper;
+    }
+    if (cancel() != null) {
+      return responseWrapper;
+    }
+    if (!done.await(STOP_WAIT, TimeUnit.MILLISECONDS)) {
+      LOGGER.warn("Abandoning {}, it did not stop when interrupted", requestData.getUrl());
+      Session running = session;
+      if (running != null) {
+        running.logout();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stop the sub request without waiting for it: skip it if it has not started, and
+   * interrupt it if it is running.
+   *
+   * @return the response if the sub request has already finished, otherwise null.
+   */
+  public synchronized ResponseWrapper cancel() {
+    if (state == State.waiting) {
+      state = State.skipped;
+      if (future != null) {
+        future.cancel(false);
+      }
+    } else if (state == State.done) {
+      return responseWrapper;
+    } else if (state == State.running) {
+      LOGGER.info("Interrupting {}, the batch has run out of time", requestData.getUrl());
+      // the pool clears the interrupt before the thread runs another task.
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if the sub request failed with an exception.
+   */
+  public boolean isFailed() {
+    return failure != null;
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A GET sub request that is processed on a thread of its own, as a request of its own
+ * rather than a dispatch of the batch request. It has its own attributes, so nothing it
+ * does is seen by the batch request or the other sub requests, and it is processed with
+ * its own resource resolver, and so its own session.
+ */
+public class IsolatedRequestWrapper extends HttpServletRequestWrapper {
+
+  private final RequestData requestData;
+  private final String path;
+  private final String queryString;
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  public IsolatedRequestWrapper(HttpServletRequest wrappedRequest, RequestData requestData) {
+    super(wrappedRequest);
+    this.requestData = requestData;
+    String url = requestData.getUrl();
+    int query = url.indexOf('?');
+    this.path = query < 0 ? url : url.substring(0, query);
+    this.queryString = query < 0 ? null : url.substring(query + 1);
+  }
+
+  @Override
+  public String getMethod() {
+    return "GET";
+  }
+
+  @Override
+  public String getServletPath() {
+    return "";
+  }
+
+  @Override
+  public String getPathInfo() {
+    return path;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return getContextPath() + path;
+  }
+
+  @Override
+  public StringBuffer getRequestURL() {
+    StringBuffer url = new StringBuffer();
+    url.append(getScheme()).append("://").append(getServerName()).append(':').append(
+        getServerPort()).append(getRequestURI());
+    return url;
+  }
+
+  @Override
+  public String getQueryString() {
+    return queryString;
+  }
+
+  @Override
+  public int getContentLength() {
+    return 0;
+  }
+
+  @Override
+  public String getContentType() {
+    return null;
+  }
+
+  private Hashtable<String, String[]> getParameters() {
+    return requestData.getParameters();
+  }
+
+  @Override
+  public String getParameter(String name) {
+    String[] param = getParameters().get(name);
+    if (param != null && param.length > 0) {
+      return param[0];
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Map getParameterMap() {
+    return getParameters();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Enumeration getParameterNames() {
+    return getParameters().keys();
+  }
+
+  @Override
+  public String[] getParameterValues(String name) {
+    return getParameters().get(name);
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object o) {
+    attributes.put(name, o);
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+
+}
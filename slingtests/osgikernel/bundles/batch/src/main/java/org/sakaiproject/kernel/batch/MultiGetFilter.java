@@ -25,7 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -218,7 +218,7 @@ public class MultiGetFilter implements Filter {
       request.getRequestDispatcher(resourcePath).include(requestWrapper,
           responseWrapper);
 
-      outputResponseAsJSON(responseWrapper, write, resourcePath);
+      outputResponseAsJSON(responseWrapper, write, response.getWriter(), resourcePath);
 
     } catch (ServletException e) {
       e.printStackTrace();
@@ -228,34 +228,27 @@ public class MultiGetFilter implements Filter {
   }
 
   private void outputResponseAsJSON(ResponseWrapper responseWrapper,
-      ExtendedJSONWriter write, String resourcePath) throws JSONException {
-    try {
-      write.object();
-      write.key("path");
-      write.value(resourcePath);
-      write.key("status");
-      write.value(responseWrapper.getResponseStatus());
-      write.key("headers");
-      write.object();
-
-      Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
-      Enumeration<String> keys = headers.keys();
-      while (keys.hasMoreElements()) {
-        String k = keys.nextElement();
-        write.key(k);
-        write.value(headers.get(k));
-      }
-
-      write.endObject();
-      write.key("data");
-      String s = responseWrapper.getDataAsString();
-      write.value(s);
-      LOGGER.info(s);
-      write.endObject();
-    } catch (UnsupportedEncodingException e) {
-      e.printStackTrace();
+      ExtendedJSONWriter write, Writer out, String resourcePath) throws JSONException,
+      IOException {
+    write.object();
+    write.key("path");
+    write.value(resourcePath);
+    write.key("status");
+    write.value(responseWrapper.getResponseStatus());
+    write.key("headers");
+    write.object();
+
+    Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      write.key(k);
+      write.value(headers.get(k));
     }
 
+    write.endObject();
+    responseWrapper.writeDataMember("data", out);
+    write.endObject();
   }
 
 }
\ No newline at end of file
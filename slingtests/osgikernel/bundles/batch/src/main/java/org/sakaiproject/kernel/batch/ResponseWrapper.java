@@ -19,11 +19,17 @@ package org.sakaiproject.kernel.batch;
 
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.apache.sling.commons.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -31,16 +37,50 @@ import java.util.Hashtable;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Captures the status, headers and body of a sub request. Bytes written to the output
+ * stream and characters written to the writer are each kept as they are written, so
+ * the body can be streamed into a JSON response as a string value without first being
+ * copied into a String.
+ */
 public class ResponseWrapper extends SlingHttpServletResponseWrapper {
 
-  ByteArrayOutputStream boas = new ByteArrayOutputStream();
-  ServletOutputStream servletOutputStream = new ServletOutputStream() {
+  private static final String DEFAULT_CHARSET = "utf-8";
+
+  /**
+   * Bytes written to the output stream, exposing the buffer to read it in place.
+   */
+  private static class Bytes extends ByteArrayOutputStream {
+    Reader getReader(String charset) throws UnsupportedEncodingException {
+      return new InputStreamReader(new ByteArrayInputStream(buf, 0, count), charset);
+    }
+  }
+
+  /**
+   * Characters written to the writer, exposing the buffer to read it in place.
+   */
+  private static class Chars extends CharArrayWriter {
+    void writeQuoted(int previous, Writer out) throws IOException {
+      for (int i = 0; i < count; i++) {
+        ResponseWrapper.writeQuoted(buf[i], i > 0 ? buf[i - 1] : previous, out);
+      }
+    }
+  }
+
+  private final Bytes boas = new Bytes();
+  private final Chars chars = new Chars();
+  private final ServletOutputStream servletOutputStream = new ServletOutputStream() {
     @Override
     public void write(int b) throws IOException {
       boas.write(b);
     }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boas.write(b, off, len);
+    }
   };
-  PrintWriter pw = new PrintWriter(servletOutputStream);
+  private final PrintWriter pw = new PrintWriter(chars);
   private String type;
   private String charset;
   private int status = 200; // Default is 200, this is also the statuscode if none get's
@@ -103,8 +143,109 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
   }
 
   public String getDataAsString() throws UnsupportedEncodingException {
-    pw.close();
-    return boas.toString("utf-8");
+    pw.flush();
+    return boas.toString(getBodyCharset()) + chars.toString();
+  }
+
+  /**
+   * @return the number of bytes and characters written to the body.
+   */
+  public int getDataLength() {
+    pw.flush();
+    return boas.size() + chars.size();
+  }
+
+  /**
+   * Write the body as a member of the object a JSON writer is writing, escaping it
+   * directly onto the writer underneath rather than building the quoted String. The JSON
+   * writer does not see the member, so it has to come after another member of the
+   * object: the JSON writer then puts a comma before the next key as it would anyway.
+   * 
+   * @param key
+   *          the key of the member.
+   * @param out
+   *          the writer the JSON writer writes to, after it has written a value of the
+   *          object.
+   * @throws IOException
+   */
+  public void writeDataMember(String key, Writer out) throws IOException {
+    out.write(',');
+    out.write(JSONObject.quote(key));
+    out.write(':');
+    writeDataAsJSON(out);
+  }
+
+  /**
+   * Write the body as a quoted JSON string.
+   * 
+   * @param out
+   * @throws IOException
+   */
+  public void writeDataAsJSON(Writer out) throws IOException {
+    pw.flush();
+    out.write('"');
+    Reader reader = boas.getReader(getBodyCharset());
+    int previous = 0;
+    for (int c = reader.read(); c != -1; c = reader.read()) {
+      writeQuoted((char) c, previous, out);
+      previous = c;
+    }
+    chars.writeQuoted(previous, out);
+    out.write('"');
+  }
+
+  /**
+   * Write a character of a JSON string, escaped as JSONObject.quote would.
+   * 
+   * @param c
+   *          the character.
+   * @param previous
+   *          the character before it, or 0.
+   * @param out
+   * @throws IOException
+   */
+  private static void writeQuoted(char c, int previous, Writer out) throws IOException {
+    switch (c) {
+    case '\\':
+    case '"':
+      out.write('\\');
+      out.write(c);
+      break;
+    case '/':
+      if (previous == '<') {
+        out.write('\\');
+      }
+      out.write(c);
+      break;
+    case '\b':
+      out.write("\\b");
+      break;
+    case '\t':
+      out.write("\\t");
+      break;
+    case '\n':
+      out.write("\\n");
+      break;
+    case '\f':
+      out.write("\\f");
+      break;
+    case '\r':
+      out.write("\\r");
+      break;
+    default:
+      if (c < ' ') {
+        String hex = Integer.toHexString(c);
+        out.write("\\u");
+        out.write("0000", 0, 4 - hex.length());
+        out.write(hex);
+      } else {
+        out.write(c);
+      }
+    }
+  }
+
+  private String getBodyCharset() {
+    return charset == null ? DEFAULT_CHARSET : charset;
   }
 
   @Override
@@ -97,6 +97,7 @@ public class SlingRequestPathInfo implements RequestPathInfo {
         if ((resource = resourceResolver.getResource(pathToParse)) != null) {
           return pathToParse;
         }
+        lastSlash = pathToParse.lastIndexOf("/");
       }
       if ((resource = resourceResolver.getResource(pathToParse)) != null) {
         return pathToParse;
@@ -47,6 +47,7 @@ public class TagOperation extends AbstractSlingPostOperation {
       }
 
       setTags(item, newTags);
+      item.save();
       changes.add(Modification.onModified(resource.getPath()));
 
     } else {
@@ -56,6 +57,7 @@ public class TagOperation extends AbstractSlingPostOperation {
         Item item = resource.adaptTo(Item.class);
         if (item != null) {
           setTags(item, newTags);
+          item.save();
           changes.add(Modification.onModified(resource.getPath()));
         }
       }
@@ -64,7 +66,7 @@ public class TagOperation extends AbstractSlingPostOperation {
   }
 
   /**
-   * Writes a set of tags to a node.
+   * Writes a set of tags to a node, without saving it.
    * 
    * @param item
    * @param newTags
@@ -72,7 +74,7 @@ public class TagOperation extends AbstractSlingPostOperation {
    * @throws PathNotFoundException
    * @throws RepositoryException
    */
-  private void setTags(Item item, List<String> newTags) throws ValueFormatException,
+  static void setTags(Item item, List<String> newTags) throws ValueFormatException,
       PathNotFoundException, RepositoryException {
     Node n = (Node) item;
     // Get the old properties
@@ -97,7 +99,6 @@ public class TagOperation extends AbstractSlingPostOperation {
       writeTags[i] = oldTags.get(i);
     }
     n.setProperty("sakai:tags", writeTags);
-    n.save();
   }
 
 }
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.jcr.Credentials;
+import javax.jcr.Session;
+import javax.servlet.FilterChain;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class BatchFilterTest extends AbstractEasyMockTest {
+
+  /**
+   * Writes the path of the request as the body. /slow takes a long time unless it is
+   * interrupted, /stuck takes a long time whatever happens.
+   */
+  private static class PathProcessor implements SlingRequestProcessor {
+    private final Set<String> threads = new ConcurrentSkipListSet<String>();
+
+    public void processRequest(HttpServletRequest req, HttpServletResponse res,
+        ResourceResolver resourceResolver) throws ServletException, IOException {
+      threads.add(Thread.currentThread().getName());
+      String path = req.getPathInfo();
+      if (!"GET".equals(req.getMethod()) || req.getAttribute("batch") != null) {
+        throw new ServletException("Not a request of its own");
+      }
+      req.setAttribute("batch", path);
+      if ("/slow".equals(path)) {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          return;
+        }
+      } else if ("/stuck".equals(path)) {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+          try {
+            Thread.sleep(end - System.currentTimeMillis());
+          } catch (InterruptedException e) {
+            // ignored.
+          }
+        }
+      }
+      res.getWriter().write("body of " + path);
+    }
+  }
+
+  private BatchFilter filter;
+  private PathProcessor processor = new PathProcessor();
+
+  @After
+  public void tearDown() {
+    if (filter != null) {
+      filter.deactivate(null);
+    }
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    JSONArray result = batch(30000, 4194304, "/a", "/b", "/c");
+    assertEquals(3, result.length());
+    for (int i = 0; i < 3; i++) {
+      JSONObject o = result.getJSONObject(i);
+      assertEquals("body of " + o.getString("url"), o.getString("body"));
+      assertEquals(200, o.getInt("status"));
+    }
+    assertEquals("/b", result.getJSONObject(1).getString("url"));
+    for (String thread : processor.threads) {
+      assertTrue(thread, thread.startsWith("batch-get-"));
+    }
+    verify();
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    long start = System.currentTimeMillis();
+    JSONArray result = batch(200, 4194304, "/a", "/slow", "/b");
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(3, result.length());
+    assertEquals("body of /a", result.getJSONObject(0).getString("body"));
+    assertEquals(504, result.getJSONObject(1).getInt("status"));
+    assertFalse(result.getJSONObject(1).getBoolean("succes"));
+    assertFalse(result.getJSONObject(1).has("body"));
+    assertEquals("body of /b", result.getJSONObject(2).getString("body"));
+    verify();
+  }
+
+  @Test
+  public void testAbandonsStuckRequest() throws Exception {
+    long start = System.currentTimeMillis();
+    JSONArray result = batch(200, 4194304, "/stuck", "/a");
+    // the stuck request takes 5s, the batch only waits for the timeout and the stop.
+    assertTrue(System.currentTimeMillis() - start < 200 + IsolatedGetTask.STOP_WAIT + 1000);
+    assertEquals(504, result.getJSONObject(0).getInt("status"));
+    assertEquals("body of /a", result.getJSONObject(1).getString("body"));
+    verify();
+  }
+
+  @Test
+  public void testSizeBudget() throws Exception {
+    // each body is 10 bytes.
+    JSONArray result = batch(30000, 25, "/a", "/b", "/c");
+    assertEquals("body of /a", result.getJSONObject(0).getString("body"));
+    assertEquals("body of /b", result.getJSONObject(1).getString("body"));
+    assertEquals(413, result.getJSONObject(2).getInt("status"));
+    assertFalse(result.getJSONObject(2).has("body"));
+    verify();
+  }
+
+  @Test
+  public void testInterrupted() throws Exception {
+    Thread.currentThread().interrupt();
+    JSONArray result;
+    try {
+      result = batch(30000, 4194304, "/slow", "/a");
+    } finally {
+      // the interrupt is kept for the caller.
+      assertTrue(Thread.interrupted());
+    }
+    // the response was already started, so the batch is still written out in full.
+    assertEquals(2, result.length());
+    assertEquals(504, result.getJSONObject(0).getInt("status"));
+    assertEquals("/a", result.getJSONObject(1).getString("url"));
+    verify();
+  }
+
+  @Test
+  public void testTooManyForParallel() throws Exception {
+    // a batch larger than the parallel limit is processed one request after the other.
+    JSONArray result = batch(30000, 4194304, 2, "/a", "/b", "/c");
+    assertEquals(3, result.length());
+    for (int i = 0; i < 3; i++) {
+      assertEquals("forwarded " + result.getJSONObject(i).getString("url"), result
+          .getJSONObject(i).getString("body"));
+    }
+    assertTrue(processor.threads.isEmpty());
+    verify();
+  }
+
+  private JSONArray batch(long timeout, int maxBytes, String... paths) throws Exception {
+    return batch(timeout, maxBytes, 50, paths);
+  }
+
+  private JSONArray batch(long timeout, int maxBytes, int maxRequests, String... paths)
+      throws Exception {
+    boolean parallel = paths.length <= maxRequests;
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(BatchFilter.TIMEOUT, timeout);
+    properties.put(BatchFilter.MAX_BYTES, maxBytes);
+    properties.put(BatchFilter.MAX_REQUESTS, maxRequests);
+    properties.put(BatchFilter.PARALLEL_THREADS, 2);
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties);
+
+    Session adminSession = createMock(Session.class);
+    Session userSession = createMock(Session.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession).anyTimes();
+    expect(adminSession.impersonate(isA(Credentials.class))).andReturn(userSession)
+        .anyTimes();
+    adminSession.logout();
+    expectLastCall().anyTimes();
+    userSession.logout();
+    expectLastCall().anyTimes();
+
+    ResourceResolver resourceResolver = createMock(ResourceResolver.class);
+    JcrResourceResolverFactory resourceResolverFactory = createMock(JcrResourceResolverFactory.class);
+    expect(resourceResolverFactory.getResourceResolver(userSession)).andReturn(
+        resourceResolver).anyTimes();
+
+    StringBuilder requests = new StringBuilder("[");
+    for (String path : paths) {
+      requests.append(requests.length() > 1 ? "," : "").append("{\"url\":\"").append(path)
+          .append("\",\"method\":\"GET\"}");
+    }
+    requests.append("]");
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getMethod()).andReturn("POST");
+    expect(request.getParameter("isBatch")).andReturn("true");
+    expect(request.getParameter("requests")).andReturn(requests.toString());
+    expect(request.getParameter("parallel")).andReturn("true");
+    if (parallel) {
+      Session session = createMock(Session.class);
+      expect(session.getUserID()).andReturn("alice");
+      ResourceResolver requestResolver = createMock(ResourceResolver.class);
+      expect(requestResolver.adaptTo(Session.class)).andReturn(session);
+      expect(request.getResourceResolver()).andReturn(requestResolver);
+    } else {
+      for (final String path : paths) {
+        RequestDispatcher dispatcher = createMock(RequestDispatcher.class);
+        expect(request.getRequestDispatcher(path)).andReturn(dispatcher);
+        dispatcher.forward(isA(ServletRequest.class), isA(ServletResponse.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+          public Object answer() throws Throwable {
+            ServletResponse res = (ServletResponse) getCurrentArguments()[1];
+            res.getWriter().write("forwarded " + path);
+            return null;
+          }
+        });
+      }
+    }
+
+    // nothing but the writer: no error is sent once the response has started.
+    StringWriter out = new StringWriter();
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(out));
+    FilterChain chain = createMock(FilterChain.class);
+    replay();
+
+    filter = new BatchFilter();
+    filter.bindSlingRepository(slingRepository);
+    filter.bindResourceResolverFactory(resourceResolverFactory);
+    filter.bindRequestProcessor(processor);
+    filter.activate(componentContext);
+    filter.doFilter(request, response, chain);
+    return new JSONArray(out.toString());
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.HtmlResponse;
+import org.apache.sling.servlets.post.SlingPostProcessor;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+public class BatchWriteOperationTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchWriteOperationTest.class);
+
+  private final AtomicInteger saves = new AtomicInteger();
+  private final AtomicInteger refreshes = new AtomicInteger();
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private Node node;
+  private Resource resource;
+
+  @Test
+  public void testSavesOnce() throws Exception {
+    HtmlResponse response = run(writes(5, -1), null, 0);
+    assertNull(response.getError());
+    // by the post operation, after the last write.
+    assertEquals(1, saves.get());
+    assertEquals(0, refreshes.get());
+  }
+
+  @Test
+  public void testSavesInChunks() throws Exception {
+    HtmlResponse response = run(writes(5, -1), "2", 0);
+    assertNull(response.getError());
+    // after the second and fourth writes, then the last one by the post operation.
+    assertEquals(3, saves.get());
+  }
+
+  @Test
+  public void testFailedChunkDiscarded() throws Exception {
+    HtmlResponse response = run(writes(5, 3), "2", 0);
+    Throwable error = response.getError();
+    assertNotNull(error);
+    assertTrue(error.getMessage(), error.getMessage().startsWith(
+        "Write 3 to /missing failed, 2 writes were saved"));
+    // the first chunk was saved, the write after it is discarded rather than saved.
+    assertEquals(1, saves.get());
+    assertEquals(1, refreshes.get());
+  }
+
+  @Test
+  public void testFailureSavesNothing() throws Exception {
+    HtmlResponse response = run(writes(5, 3), null, 0);
+    assertNotNull(response.getError());
+    assertEquals(0, saves.get());
+    assertEquals(1, refreshes.get());
+  }
+
+  @Test
+  public void testTagOperationSaves() throws Exception {
+    Session session = createSession(0);
+    SlingHttpServletRequest request = createRequest(session);
+    RequestParameter tag = createNiceMock(RequestParameter.class);
+    expect(tag.getString()).andReturn("physics");
+    expect(request.getRequestParameters("sakai:tags")).andReturn(
+        new RequestParameter[] { tag });
+    expect(resource.adaptTo(Item.class)).andReturn(node);
+    node.save();
+    replay(request, tag, resource, node);
+
+    // run on its own, the operation saves the node it tagged.
+    new TagOperation().run(request, new HtmlResponse(), new SlingPostProcessor[0]);
+    verify(node);
+  }
+
+  /**
+   * Not a rigorous benchmark, but applies 1,000 writes against a session that takes a
+   * millisecond to save, saving after each write as was done before, and once, and logs
+   * the time each took.
+   */
+  @Test
+  public void testBenchmark() throws Exception {
+    String writes = writes(1000, -1);
+    long t = System.nanoTime();
+    run(writes, "1", 1);
+    long eachTime = System.nanoTime() - t;
+    int eachSaves = saves.getAndSet(0);
+
+    t = System.nanoTime();
+    run(writes, null, 1);
+    long onceTime = System.nanoTime() - t;
+    int onceSaves = saves.get();
+
+    LOGGER.info("Applied 1000 writes saving each in {} ms with {} saves", eachTime / 1000000,
+        eachSaves);
+    LOGGER.info("Applied 1000 writes saving once in {} ms with {} saves", onceTime / 1000000,
+        onceSaves);
+    assertEquals(1000, eachSaves);
+    assertEquals(1, onceSaves);
+    assertTrue(onceTime < eachTime);
+  }
+
+  /**
+   * @param count
+   *          the number of writes.
+   * @param failing
+   *          the index of a write to a missing node, which fails, or -1.
+   * @return the operations parameter.
+   */
+  private String writes(int count, int failing) {
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        sb.append(",");
+      }
+      if (i == failing) {
+        sb.append("{\"url\":\"/missing\",\"method\":\"POST\","
+            + "\"parameters\":{\":operation\":\"tag\",\"sakai:tags\":\"a\"}}");
+      } else {
+        sb.append("{\"url\":\"/a/").append(i).append("\",\"method\":\"POST\",")
+            .append("\"parameters\":{\"title\":\"t").append(i).append("\"}}");
+      }
+    }
+    return sb.append("]").toString();
+  }
+
+  private HtmlResponse run(String writes, String chunkSize, long saveTime) throws Exception {
+    Session session = createSession(saveTime);
+    SlingHttpServletRequest request = createRequest(session);
+    RequestParameter operations = createNiceMock(RequestParameter.class);
+    expect(operations.getString()).andReturn(writes);
+    expect(request.getRequestParameter("operations")).andReturn(operations);
+    if (chunkSize != null) {
+      RequestParameter chunkSizeParam = createNiceMock(RequestParameter.class);
+      expect(chunkSizeParam.getString()).andReturn(chunkSize);
+      expect(request.getRequestParameter(":chunkSize")).andReturn(chunkSizeParam);
+      replay(chunkSizeParam);
+    }
+    replay(request, operations, resource, node);
+
+    HtmlResponse response = new HtmlResponse();
+    new BatchWriteOperation().run(request, response, new SlingPostProcessor[0]);
+    return response;
+  }
+
+  private Session createSession(long saveTime) throws Exception {
+    node = createNiceMock(Node.class);
+    Session session = createNiceMock(Session.class);
+    expect(session.itemExists("/missing")).andStubReturn(false);
+    expect(session.itemExists(isA(String.class))).andStubReturn(true);
+    // each write gets the node it writes to.
+    expect(session.getItem(isA(String.class))).andStubAnswer(new IAnswer<Item>() {
+      public Item answer() throws Throwable {
+        pending.set(true);
+        return node;
+      }
+    });
+    expect(session.hasPendingChanges()).andStubAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() throws Throwable {
+        return pending.get();
+      }
+    });
+    session.save();
+    expectLastCall().andStubAnswer(countSave(saveTime));
+    session.refresh(false);
+    expectLastCall().andStubAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        pending.set(false);
+        refreshes.incrementAndGet();
+        return null;
+      }
+    });
+    replay(session);
+    return session;
+  }
+
+  private SlingHttpServletRequest createRequest(Session session) {
+    ResourceResolver resourceResolver = createNiceMock(ResourceResolver.class);
+    expect(resourceResolver.adaptTo(Session.class)).andStubReturn(session);
+    replay(resourceResolver);
+    resource = createNiceMock(Resource.class);
+    expect(resource.getPath()).andStubReturn("/a");
+    SlingHttpServletRequest request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getResourceResolver()).andStubReturn(resourceResolver);
+    expect(request.getResource()).andStubReturn(resource);
+    return request;
+  }
+
+  private IAnswer<Object> countSave(final long saveTime) {
+    return new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        pending.set(false);
+        saves.incrementAndGet();
+        if (saveTime > 0) {
+          Thread.sleep(saveTime);
+        }
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.kernel.batch;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.StringWriter;
+
+public class ResponseWrapperTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testEscapingMatchesQuote() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (char c = 0; c < 0x2200; c++) {
+      sb.append(c);
+      if (c % 64 == 0) {
+        sb.append("</");
+      }
+    }
+    sb.append("<</a>\\\"/");
+    String body = sb.toString();
+    replay();
+
+    // characters written to the writer.
+    ResponseWrapper chars = new ResponseWrapper(createResponse());
+    chars.getWriter().write(body);
+    StringWriter out = new StringWriter();
+    chars.writeDataAsJSON(out);
+    assertEquals(JSONObject.quote(body), out.toString());
+
+    // bytes written to the output stream, in the encoding of the response.
+    for (String charset : new String[] { "utf-8", "UTF-16BE" }) {
+      ResponseWrapper bytes = new ResponseWrapper(createResponse());
+      bytes.setCharacterEncoding(charset);
+      bytes.getOutputStream().write(body.getBytes(charset));
+      out = new StringWriter();
+      bytes.writeDataAsJSON(out);
+      assertEquals(JSONObject.quote(body), out.toString());
+    }
+
+    // split between the bytes and the characters.
+    ResponseWrapper both = new ResponseWrapper(createResponse());
+    both.getOutputStream().write("a<".getBytes("utf-8"));
+    both.getWriter().write("/b");
+    out = new StringWriter();
+    both.writeDataAsJSON(out);
+    assertEquals(JSONObject.quote("a</b"), out.toString());
+  }
+
+  @Test
+  public void testWriteDataMember() throws Exception {
+    replay();
+    ResponseWrapper responseWrapper = new ResponseWrapper(createResponse());
+    responseWrapper.getOutputStream().write("{\"a\": \"b\"}\n".getBytes("utf-8"));
+    responseWrapper.getWriter().write("</script>");
+
+    StringWriter out = new StringWriter();
+    JSONWriter write = new JSONWriter(out);
+    write.object();
+    write.key("url");
+    write.value("/a.json");
+    responseWrapper.writeDataMember("body", out);
+    write.key("status");
+    write.value(200);
+    write.endObject();
+
+    JSONObject o = new JSONObject(out.toString());
+    assertEquals("/a.json", o.getString("url"));
+    assertEquals("{\"a\": \"b\"}\n</script>", o.getString("body"));
+    assertEquals(-1, out.toString().indexOf("</"));
+    assertEquals(200, o.getInt("status"));
+    assertEquals(3, o.length());
+  }
+
+  private SlingHttpServletResponse createResponse() {
+    return EasyMock.createNiceMock(SlingHttpServletResponse.class);
+  }
+}
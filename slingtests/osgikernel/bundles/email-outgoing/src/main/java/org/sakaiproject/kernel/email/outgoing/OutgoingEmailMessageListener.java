@@ -23,6 +23,7 @@ import org.apache.commons.mail.MultiPartEmail;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
@@ -34,19 +35,30 @@ import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.email.outgoing.SmtpTransportPool.PooledTransport;
+import org.sakaiproject.kernel.email.outgoing.SmtpTransportPool.Relay;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -61,7 +73,21 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Session;
 import javax.jms.Topic;
-
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends the emails posted to the outgoing email topic. The emails are queued and sent by
+ * a number of senders, each of which keeps an administrative session for as long as it
+ * runs. A sender takes the emails from the queue in batches and sends them a relay at a
+ * time over connections from a pool, so that a mass notification does not open a
+ * connection for every email. A message from the topic is only acknowledged once its
+ * email has been dealt with, so the broker delivers it again if the server stops first.
+ * If some recipients of an email can't be reached for now, only they are sent to again.
+ */
 @Component(label = "%email.out.name", description = "%email.out.description", immediate = true, metatype = true)
 public class OutgoingEmailMessageListener implements MessageListener {
   private static final Logger LOGGER = LoggerFactory
@@ -77,6 +103,20 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(value = "", cardinality = Integer.MAX_VALUE)
+  private static final String SMTP_RELAYS = "sakai.smtp.relays";
+  @Property(intValue = 2)
+  private static final String SMTP_MAX_IDLE = "sakai.smtp.maxIdleConnections";
+  @Property(intValue = 100)
+  private static final String SMTP_MAX_MESSAGES = "sakai.smtp.maxMessagesPerConnection";
+  @Property(intValue = 4)
+  private static final String SENDERS = "sakai.email.senders";
+  @Property(intValue = 1000)
+  private static final String QUEUE_SIZE = "sakai.email.queueSize";
+  @Property(intValue = 50)
+  private static final String BATCH_SIZE = "sakai.email.batchSize";
+  @Property(value = "sakai.email.outgoing")
+  private static final String CONNECTION_CLIENT_ID = "email.out.connectionClientId";
 
   protected static final String TOPIC_NAME = "org/sakaiproject/kernel/message/email/outgoing";
 
@@ -104,6 +144,16 @@ public class OutgoingEmailMessageListener implements MessageListener {
 
   private Integer retryInterval;
 
+  private Relay defaultRelay;
+  private Map<String, Relay> relays = new HashMap<String, Relay>();
+  private SmtpTransportPool transportPool;
+  private int batchSize = 50;
+  private BlockingQueue<OutgoingEmail> queue;
+  private List<Thread> senders = new ArrayList<Thread>();
+  private Sender inlineSender;
+  private volatile boolean running;
+  private final LinkedList<OutgoingEmail> unacknowledged = new LinkedList<OutgoingEmail>();
+
   public OutgoingEmailMessageListener() {
   }
 
@@ -130,92 +180,285 @@ public class OutgoingEmailMessageListener implements MessageListener {
         }
       }
 
-      javax.jcr.Session adminSession = repository.loginAdministrative(null);
-      ResourceResolver resolver = jcrResourceResolverFactory.getResourceResolver(adminSession);
+      String rcptType = "null";
+      if (objRcpt != null) {
+        rcptType = objRcpt.getClass().toString();
+      }
+      OutgoingEmail email = new OutgoingEmail(message, nodePath, recipients, rcptType);
+      synchronized (unacknowledged) {
+        unacknowledged.add(email);
+      }
+      BlockingQueue<OutgoingEmail> queue = this.queue;
+      if (queue != null) {
+        // waits for room, the message is not acknowledged until the email is sent so the
+        // broker delivers it again if the listener stops first.
+        while (!queue.offer(email, 1, TimeUnit.SECONDS)) {
+          if (!running) {
+            LOGGER.warn("Email senders have stopped, not sending {}", nodePath);
+            break;
+          }
+        }
+      } else if (inlineSender != null) {
+        synchronized (inlineSender) {
+          inlineSender.sendBatch(Collections.singletonList(email));
+        }
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.error("Interrupted while queueing an email");
+    }
+  }
 
-      Node messageNode = resolver.getResource(nodePath).adaptTo(Node.class);
+  /**
+   * Acknowledge the messages of emails that have been dealt with. Acknowledging a message
+   * acknowledges every message the session received before it, so a message is only
+   * acknowledged once the emails of all those before it have been dealt with too.
+   *
+   * @param emails
+   */
+  private void acknowledge(List<OutgoingEmail> emails) {
+    synchronized (unacknowledged) {
+      for (OutgoingEmail email : emails) {
+        email.done = true;
+      }
+      Message last = null;
+      while (!unacknowledged.isEmpty() && unacknowledged.getFirst().done) {
+        last = unacknowledged.removeFirst().message;
+      }
+      if (last != null) {
+        try {
+          last.acknowledge();
+        } catch (JMSException e) {
+          LOGGER.warn("Unable to acknowledge sent emails: " + e.getMessage(), e);
+        }
+      }
+    }
+  }
 
-      if (objRcpt != null) {
-        // validate the message
-        if (messageNode != null) {
-          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
-              && MessageConstants.BOX_OUTBOX.equals(messageNode.getProperty(
-                  MessageConstants.PROP_SAKAI_MESSAGEBOX).getString())) {
-            if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-              // We're retrying this message, so clear the errors
-              messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, (String) null);
-            }
-            if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_TO)
-                && messageNode.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
-              // make a commons-email message from the message
-              MultiPartEmail email;
-              try {
-                email = constructMessage(messageNode, recipients);
-
-                email.setSmtpPort(smtpPort);
-                email.setHostName(smtpServer);
-
-                email.send();
-              } catch (EmailException e) {
-                String exMessage = e.getMessage();
-                Throwable cause = e.getCause();
-
-                setError(messageNode, exMessage);
-                LOGGER.warn("Unable to send email: " + exMessage);
-
-                // Get the SMTP error code
-                // There has to be a better way to do this
-                boolean rescheduled = false;
-                if (cause != null && cause.getMessage() != null) {
-                  String smtpError = cause.getMessage().trim();
-                  try {
-                    int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                    // All retry-able SMTP errors should have codes starting
-                    // with 4
-                    scheduleRetry(errorCode, messageNode);
-                    rescheduled = true;
-                  } catch (NumberFormatException nfe) {
-                    // smtpError didn't start with an error code, let's dig for
-                    // it
-                    String searchFor = "response:";
-                    int rindex = smtpError.indexOf(searchFor);
-                    if (rindex > -1 && (rindex + searchFor.length()) < smtpError.length()) {
-                      int errorCode = Integer.parseInt(smtpError.substring(searchFor.length(),
-                          searchFor.length() + 3));
-                      scheduleRetry(errorCode, messageNode);
-                      rescheduled = true;
-                    }
-                  }
-                }
-                if (rescheduled) {
-                  LOGGER.info("Email rescheduled for redelivery.");
-                } else {
-                  LOGGER.error("Unable to reschedule email for delivery: " + e.getMessage(), e);
-                }
-              }
-            } else {
-              setError(messageNode, "Message must have a to and from set");
+  /**
+   * Check an email and build the message to send, grouping its recipients by relay.
+   *
+   * @param resolver
+   * @param outgoing
+   * @param byRelay
+   *          the emails to send to each relay.
+   * @param retries
+   *          the recipients to send each message to again later.
+   * @return the message node, or null if there is none.
+   * @throws RepositoryException
+   */
+  private Node prepare(ResourceResolver resolver, OutgoingEmail outgoing,
+      Map<Relay, List<PreparedEmail>> byRelay, Map<Node, Set<String>> retries)
+      throws RepositoryException {
+    Resource resource = resolver.getResource(outgoing.nodePath);
+    if (resource == null) {
+      LOGGER.warn("Unable to find email {}", outgoing.nodePath);
+      return null;
+    }
+    Node messageNode = resource.adaptTo(Node.class);
+    List<String> recipients = outgoing.recipients;
+
+    if (recipients != null) {
+      // validate the message
+      if (messageNode != null) {
+        if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
+            && MessageConstants.BOX_OUTBOX.equals(messageNode.getProperty(
+                MessageConstants.PROP_SAKAI_MESSAGEBOX).getString())) {
+          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+            // We're retrying this message, so clear the errors
+            messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, (String) null);
+          }
+          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_TO)
+              && messageNode.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+            // make a commons-email message from the message
+            try {
+              MultiPartEmail email = constructMessage(messageNode, recipients);
+
+              email.setSmtpPort(smtpPort);
+              email.setHostName(smtpServer);
+
+              email.buildMimeMessage();
+              MimeMessage mimeMessage = email.getMimeMessage();
+              mimeMessage.saveChanges();
+              groupByRelay(messageNode, mimeMessage, byRelay);
+            } catch (EmailException e) {
+              handleSendFailure(messageNode, e, e.getCause(), recipients, retries);
+            } catch (MessagingException e) {
+              handleSendFailure(messageNode, e, e, recipients, retries);
             }
           } else {
-            setError(messageNode, "Not an outbox");
+            setError(messageNode, "Message must have a to and from set");
           }
-          if (!messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-            messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-                MessageConstants.BOX_SENT);
+        } else {
+          setError(messageNode, "Not an outbox");
+        }
+      }
+    } else if (messageNode != null) {
+      setError(messageNode, "Expected recipients to be String or List<String>.  Found "
+          + outgoing.rcptType);
+    }
+    return messageNode;
+  }
+
+  private void groupByRelay(Node messageNode, MimeMessage mimeMessage,
+      Map<Relay, List<PreparedEmail>> byRelay) throws MessagingException {
+    Map<Relay, List<Address>> addressesByRelay = new LinkedHashMap<Relay, List<Address>>();
+    for (Address address : mimeMessage.getAllRecipients()) {
+      Relay relay = getRelay(address);
+      List<Address> addresses = addressesByRelay.get(relay);
+      if (addresses == null) {
+        addresses = new ArrayList<Address>();
+        addressesByRelay.put(relay, addresses);
+      }
+      addresses.add(address);
+    }
+    for (Entry<Relay, List<Address>> e : addressesByRelay.entrySet()) {
+      List<PreparedEmail> emails = byRelay.get(e.getKey());
+      if (emails == null) {
+        emails = new ArrayList<PreparedEmail>();
+        byRelay.put(e.getKey(), emails);
+      }
+      emails.add(new PreparedEmail(messageNode, mimeMessage, e.getValue().toArray(
+          new Address[e.getValue().size()])));
+    }
+  }
+
+  /**
+   * @param address
+   * @return the relay configured for the domain of the address, or the SMTP server.
+   */
+  private Relay getRelay(Address address) {
+    if (address instanceof InternetAddress) {
+      String email = ((InternetAddress) address).getAddress();
+      int at = email.lastIndexOf('@');
+      if (at >= 0) {
+        Relay relay = relays.get(email.substring(at + 1).toLowerCase());
+        if (relay != null) {
+          return relay;
+        }
+      }
+    }
+    return defaultRelay;
+  }
+
+  /**
+   * Send the emails for one relay over one connection, replacing the connection if it
+   * is lost.
+   *
+   * @param relay
+   * @param emails
+   * @param retries
+   *          the recipients to send each message to again later, those of other relays
+   *          are not sent to again.
+   */
+  private void deliver(Relay relay, List<PreparedEmail> emails,
+      Map<Node, Set<String>> retries) {
+    PooledTransport transport = null;
+    try {
+      for (PreparedEmail email : emails) {
+        try {
+          if (transport == null) {
+            transport = transportPool.borrow(relay);
+          }
+          transport.send(email.mimeMessage, email.recipients);
+        } catch (MessagingException e) {
+          if (transport != null && !transport.isConnected()) {
+            transport.close();
+            transport = null;
+          }
+          Address[] unsent = email.recipients;
+          if (e instanceof SendFailedException
+              && ((SendFailedException) e).getValidUnsentAddresses() != null) {
+            // the relay took some of the recipients, or refused some for good.
+            unsent = ((SendFailedException) e).getValidUnsentAddresses();
+          }
+          List<String> recipients = new ArrayList<String>();
+          for (Address address : unsent) {
+            recipients.add(address instanceof InternetAddress ? ((InternetAddress) address)
+                .getAddress() : address.toString());
+          }
+          try {
+            handleSendFailure(email.messageNode, e, e, recipients, retries);
+          } catch (RepositoryException ex) {
+            LOGGER.error(ex.getMessage(), ex);
           }
         }
-      } else {
-        String retval = "null";
-        if (objRcpt != null) {
-          retval = objRcpt.getClass().toString();
+      }
+    } finally {
+      if (transport != null) {
+        transportPool.release(transport);
+      }
+    }
+  }
+
+  /**
+   * Record why an email could not be sent to some of its recipients, and note them to be
+   * sent to again if the SMTP error says they may be.
+   *
+   * @param messageNode
+   * @param e
+   * @param cause
+   *          the exception that holds the SMTP error, if any.
+   * @param recipients
+   *          the recipients the email did not go to.
+   * @param retries
+   *          the recipients to send each message to again later.
+   * @throws RepositoryException
+   */
+  private void handleSendFailure(Node messageNode, Exception e, Throwable cause,
+      Collection<String> recipients, Map<Node, Set<String>> retries)
+      throws RepositoryException {
+    String exMessage = e.getMessage();
+
+    setError(messageNode, exMessage);
+    LOGGER.warn("Unable to send email: " + exMessage);
+
+    int errorCode = getErrorCode(cause);
+    // All retry-able SMTP errors should have codes starting with 4
+    if (errorCode / 100 == 4) {
+      Set<String> retry = retries.get(messageNode);
+      if (retry == null) {
+        retry = new LinkedHashSet<String>();
+        retries.put(messageNode, retry);
+      }
+      retry.addAll(recipients);
+    } else if (errorCode >= 0) {
+      LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
+    } else {
+      LOGGER.error("Unable to reschedule email for delivery: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param cause
+   *          the exception that holds the SMTP error, if any.
+   * @return the SMTP error code, or -1 if there is none.
+   */
+  private int getErrorCode(Throwable cause) {
+    // There has to be a better way to do this
+    if (cause != null && cause.getMessage() != null) {
+      String smtpError = cause.getMessage().trim();
+      try {
+        return Integer.parseInt(smtpError.substring(0, 3));
+      } catch (NumberFormatException nfe) {
+        // smtpError didn't start with an error code, let's dig for it
+      } catch (IndexOutOfBoundsException e) {
+        // too short to start with one
+      }
+      String searchFor = "response:";
+      int rindex = smtpError.indexOf(searchFor);
+      if (rindex > -1 && (rindex + searchFor.length()) < smtpError.length()) {
+        try {
+          return Integer.parseInt(smtpError.substring(searchFor.length(), searchFor
+              .length() + 3));
+        } catch (RuntimeException e) {
+          LOGGER.debug("No SMTP error code in {}", smtpError);
         }
-        setError(messageNode, "Expected recipients to be String or List<String>.  Found " + retval);
       }
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      LOGGER.error(e.getMessage(), e);
     }
+    return -1;
   }
 
   private MultiPartEmail constructMessage(Node messageNode, List<String> recipients)
@@ -281,45 +524,52 @@ public class OutgoingEmailMessageListener implements MessageListener {
     return email;
   }
 
-  private void scheduleRetry(int errorCode, Node messageNode) throws RepositoryException {
-    // All retry-able SMTP errors should have codes starting with 4
-    if ((int) (errorCode / 100) == 4) {
-      long retryCount = 0;
-      if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
-        retryCount = messageNode.getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)
-            .getLong();
-      }
+  /**
+   * Schedule an email to be sent again to some of its recipients.
+   *
+   * @param messageNode
+   * @param recipients
+   *          the recipients to send to, the others have had the email or can't.
+   * @throws RepositoryException
+   */
+  private void scheduleRetry(Node messageNode, Collection<String> recipients)
+      throws RepositoryException {
+    long retryCount = 0;
+    if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
+      retryCount = messageNode.getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)
+          .getLong();
+    }
 
-      if (retryCount < maxRetries) {
-        Job job = new Job() {
+    if (retryCount < maxRetries) {
+      messageNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
+      Job job = new Job() {
 
-          public void execute(JobContext jc) {
-            Map<String, Serializable> config = jc.getConfiguration();
-            Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+        public void execute(JobContext jc) {
+          Map<String, Serializable> config = jc.getConfiguration();
+          Properties eventProps = new Properties();
+          eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+          eventProps.put(RECIPIENTS, config.get(RECIPIENTS));
 
-            Event retryEvent = new Event(TOPIC_NAME, eventProps);
-            eventAdmin.postEvent(retryEvent);
+          Event retryEvent = new Event(TOPIC_NAME, eventProps);
+          eventAdmin.postEvent(retryEvent);
 
-          }
-        };
+        }
+      };
 
-        HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, messageNode.getPath());
+      HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
+      jobConfig.put(NODE_PATH_PROPERTY, messageNode.getPath());
+      jobConfig.put(RECIPIENTS, StringUtils.join(recipients.iterator(), ','));
 
-        int retryIntervalMillis = retryInterval * 60000;
-        Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
+      int retryIntervalMillis = retryInterval * 60000;
+      Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
 
-        try {
-          scheduler.fireJobAt(null, job, jobConfig, nextTry);
-        } catch (Exception e) {
-          LOGGER.error(e.getMessage(), e);
-        }
-      } else {
-        setError(messageNode, "Unable to send message, exhausted SMTP retries.");
+      try {
+        scheduler.fireJobAt(null, job, jobConfig, nextTry);
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
       }
     } else {
-      LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
+      setError(messageNode, "Unable to send message, exhausted SMTP retries.");
     }
   }
 
@@ -369,6 +619,61 @@ public class OutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
+    if (smtpServer != null && smtpPort != null) {
+      defaultRelay = new Relay(smtpServer, smtpPort);
+    }
+    relays = new HashMap<String, Relay>();
+    Object _relays = props.get(SMTP_RELAYS);
+    String[] relayMapping = _relays instanceof String ? new String[] { (String) _relays }
+        : (String[]) _relays;
+    if (relayMapping != null) {
+      for (String mapping : relayMapping) {
+        if (mapping == null || mapping.trim().length() == 0) {
+          continue;
+        }
+        int splitIndex = mapping.indexOf("=>");
+        if (splitIndex < 1) {
+          LOGGER.error("Improperly formatted relay [" + mapping
+              + "]. Should be domain=>host:port.");
+          continue;
+        }
+        try {
+          relays.put(mapping.substring(0, splitIndex).trim().toLowerCase(), Relay.parse(
+              mapping.substring(splitIndex + 2), smtpPort == null ? 25 : smtpPort));
+        } catch (NumberFormatException e) {
+          LOGGER.error("Invalid port in relay [" + mapping + "]");
+        }
+      }
+    }
+
+    int maxIdle = 2;
+    Integer _maxIdle = (Integer) props.get(SMTP_MAX_IDLE);
+    if (_maxIdle != null && _maxIdle >= 0) {
+      maxIdle = _maxIdle;
+    }
+    int maxMessages = 100;
+    Integer _maxMessages = (Integer) props.get(SMTP_MAX_MESSAGES);
+    if (_maxMessages != null && _maxMessages > 0) {
+      maxMessages = _maxMessages;
+    }
+    transportPool = new SmtpTransportPool(maxIdle, maxMessages);
+
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    int queueSize = 1000;
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    if (_queueSize != null && _queueSize > 0) {
+      queueSize = _queueSize;
+    }
+    int senderCount = 4;
+    Integer _senders = (Integer) props.get(SENDERS);
+    if (_senders != null && _senders >= 0) {
+      senderCount = _senders;
+    }
+    startSenders(senderCount, queueSize);
+
     String _brokerUrl = (String) props.get(BROKER_URL);
 
     try {
@@ -381,9 +686,16 @@ public class OutgoingEmailMessageListener implements MessageListener {
 
         if (connectionFactory != null) {
           connection = connectionFactory.createConnection();
-          Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+          // a durable subscription keeps the messages that were not acknowledged while
+          // the listener is away.
+          String clientId = (String) props.get(CONNECTION_CLIENT_ID);
+          if (clientId == null || clientId.trim().length() == 0) {
+            clientId = "sakai.email.outgoing";
+          }
+          connection.setClientID(clientId);
+          Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
           Topic dest = session.createTopic(TOPIC_NAME);
-          MessageConsumer consumer = session.createConsumer(dest);
+          MessageConsumer consumer = session.createDurableSubscriber(dest, clientId);
           consumer.setMessageListener(this);
           connection.start();
         }
@@ -402,6 +714,28 @@ public class OutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * Start the senders, with no senders the emails are sent on the thread that receives
+   * them.
+   *
+   * @param senderCount
+   * @param queueSize
+   */
+  private void startSenders(int senderCount, int queueSize) {
+    if (senderCount == 0) {
+      inlineSender = new Sender(null);
+      return;
+    }
+    running = true;
+    queue = new ArrayBlockingQueue<OutgoingEmail>(queueSize);
+    for (int i = 0; i < senderCount; i++) {
+      Thread sender = new Thread(new Sender(queue), "email-sender-" + i);
+      sender.setDaemon(true);
+      senders.add(sender);
+      sender.start();
+    }
+  }
+
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
       try {
@@ -409,6 +743,29 @@ public class OutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    // the senders send what is left in the queue before they stop.
+    running = false;
+    for (Thread sender : senders) {
+      try {
+        sender.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    senders.clear();
+    queue = null;
+    synchronized (unacknowledged) {
+      unacknowledged.clear();
+    }
+    if (inlineSender != null) {
+      synchronized (inlineSender) {
+        inlineSender.logout();
+      }
+      inlineSender = null;
+    }
+    if (transportPool != null) {
+      transportPool.close();
+    }
   }
 
   private void setError(Node node, String error) throws RepositoryException {
@@ -435,6 +792,174 @@ public class OutgoingEmailMessageListener implements MessageListener {
     return diff;
   }
 
+  /**
+   * An email received from the topic.
+   */
+  private static class OutgoingEmail {
+    private final Message message;
+    private final String nodePath;
+    private final List<String> recipients;
+    private final String rcptType;
+    /**
+     * Whether the email has been dealt with, guarded by the unacknowledged list.
+     */
+    private boolean done;
+
+    private OutgoingEmail(Message message, String nodePath, List<String> recipients,
+        String rcptType) {
+      this.message = message;
+      this.nodePath = nodePath;
+      this.recipients = recipients;
+      this.rcptType = rcptType;
+    }
+  }
+
+  /**
+   * An email ready to be sent to the recipients that share a relay.
+   */
+  private static class PreparedEmail {
+    private final Node messageNode;
+    private final MimeMessage mimeMessage;
+    private final Address[] recipients;
+
+    private PreparedEmail(Node messageNode, MimeMessage mimeMessage, Address[] recipients) {
+      this.messageNode = messageNode;
+      this.mimeMessage = mimeMessage;
+      this.recipients = recipients;
+    }
+  }
+
+  /**
+   * Sends batches of emails. A sender logs in once and keeps its session until it stops,
+   * the session is only ever used by the thread of the sender.
+   */
+  private class Sender implements Runnable {
+    private final BlockingQueue<OutgoingEmail> queue;
+    private javax.jcr.Session adminSession;
+    private ResourceResolver resolver;
+
+    /**
+     * @param queue
+     *          the queue to take emails from, or null if emails are given to the sender.
+     */
+    private Sender(BlockingQueue<OutgoingEmail> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      try {
+        while (running) {
+          OutgoingEmail first = queue.poll(1, TimeUnit.SECONDS);
+          if (first != null) {
+            List<OutgoingEmail> batch = new ArrayList<OutgoingEmail>();
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            sendBatch(batch);
+          }
+        }
+      } catch (InterruptedException e) {
+        LOGGER.debug("Email sender interrupted");
+      }
+      while (!queue.isEmpty()) {
+        List<OutgoingEmail> batch = new ArrayList<OutgoingEmail>();
+        queue.drainTo(batch, batchSize);
+        sendBatch(batch);
+      }
+      logout();
+    }
+
+    /**
+     * Send a batch of emails, whatever goes wrong with it the sender goes on to the next
+     * batch, so that the queue keeps being drained. The messages of the batch are
+     * acknowledged once it has been tried, as the emails it did not reach are either
+     * scheduled to be sent again or marked with the error, and one that breaks a batch
+     * would break it again.
+     *
+     * @param batch
+     */
+    private void sendBatch(List<OutgoingEmail> batch) {
+      try {
+        send(batch);
+      } catch (Throwable t) {
+        LOGGER.error("Unable to send a batch of " + batch.size() + " emails: "
+            + t.getMessage(), t);
+        // the session may hold half made changes, the next batch starts with a new one.
+        try {
+          logout();
+        } catch (Throwable ex) {
+          LOGGER.warn(ex.getMessage(), ex);
+          adminSession = null;
+          resolver = null;
+        }
+      } finally {
+        acknowledge(batch);
+      }
+    }
+
+    /**
+     * Send a batch of emails, a relay at a time, and save the state of their messages.
+     *
+     * @param batch
+     */
+    private void send(List<OutgoingEmail> batch) {
+      try {
+        if (adminSession == null || !adminSession.isLive()) {
+          adminSession = repository.loginAdministrative(null);
+          resolver = jcrResourceResolverFactory.getResourceResolver(adminSession);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.error("Unable to log in to send emails: " + e.getMessage(), e);
+        return;
+      }
+
+      Map<Relay, List<PreparedEmail>> byRelay = new LinkedHashMap<Relay, List<PreparedEmail>>();
+      Map<Node, Set<String>> retries = new LinkedHashMap<Node, Set<String>>();
+      List<Node> messageNodes = new ArrayList<Node>();
+      for (OutgoingEmail email : batch) {
+        try {
+          Node messageNode = prepare(resolver, email, byRelay, retries);
+          if (messageNode != null) {
+            messageNodes.add(messageNode);
+          }
+        } catch (RepositoryException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+      for (Entry<Relay, List<PreparedEmail>> e : byRelay.entrySet()) {
+        deliver(e.getKey(), e.getValue(), retries);
+      }
+      try {
+        // an email that failed on more than one relay is sent again once, to the
+        // recipients of all of them.
+        for (Entry<Node, Set<String>> e : retries.entrySet()) {
+          scheduleRetry(e.getKey(), e.getValue());
+        }
+        for (Node messageNode : messageNodes) {
+          if (!messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+            messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+                MessageConstants.BOX_SENT);
+          }
+        }
+        adminSession.save();
+      } catch (RepositoryException e) {
+        LOGGER.error("Unable to save the state of sent emails: " + e.getMessage(), e);
+        try {
+          adminSession.refresh(false);
+        } catch (RepositoryException ex) {
+          LOGGER.warn(ex.getMessage(), ex);
+        }
+      }
+    }
+
+    private void logout() {
+      if (adminSession != null) {
+        adminSession.logout();
+        adminSession = null;
+        resolver = null;
+      }
+    }
+  }
+
   protected void bindRepository(SlingRepository repository) {
     this.repository = repository;
   }
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A pool of connected SMTP transports for each relay, so that many messages are sent over
+ * one connection rather than a connection being opened for every message. A connection
+ * is checked before it is handed out again, and is closed once it has sent a number of
+ * messages so that no connection is held for ever.
+ */
+public class SmtpTransportPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+  private final Session mailSession;
+  private final int maxIdle;
+  private final int maxMessages;
+  private final Map<Relay, LinkedList<PooledTransport>> idle = new HashMap<Relay, LinkedList<PooledTransport>>();
+  private boolean closed;
+
+  /**
+   * @param maxIdle
+   *          the number of idle connections to keep for each relay.
+   * @param maxMessages
+   *          the number of messages to send over a connection before it is closed.
+   */
+  public SmtpTransportPool(int maxIdle, int maxMessages) {
+    this.mailSession = Session.getInstance(new Properties());
+    this.maxIdle = maxIdle;
+    this.maxMessages = maxMessages;
+  }
+
+  /**
+   * Get a connected transport for a relay, reusing an idle one if there is one.
+   *
+   * @param relay
+   * @return the transport, which should be released once it has been used.
+   * @throws MessagingException
+   *           if no connection could be made.
+   */
+  public PooledTransport borrow(Relay relay) throws MessagingException {
+    while (true) {
+      PooledTransport transport = null;
+      synchronized (this) {
+        LinkedList<PooledTransport> transports = idle.get(relay);
+        if (transports != null && !transports.isEmpty()) {
+          transport = transports.removeFirst();
+        }
+      }
+      if (transport == null) {
+        break;
+      }
+      // the server may have dropped the connection while it was idle.
+      if (transport.transport.isConnected()) {
+        return transport;
+      }
+      transport.close();
+    }
+    Transport transport = mailSession.getTransport("smtp");
+    transport.connect(relay.getHost(), relay.getPort(), null, null);
+    return new PooledTransport(relay, transport);
+  }
+
+  /**
+   * Give a transport back to the pool.
+   *
+   * @param transport
+   */
+  public void release(PooledTransport transport) {
+    if (transport.sent < maxMessages) {
+      synchronized (this) {
+        if (!closed) {
+          LinkedList<PooledTransport> transports = idle.get(transport.relay);
+          if (transports == null) {
+            transports = new LinkedList<PooledTransport>();
+            idle.put(transport.relay, transports);
+          }
+          if (transports.size() < maxIdle) {
+            transports.addLast(transport);
+            return;
+          }
+        }
+      }
+    }
+    transport.close();
+  }
+
+  /**
+   * Close all idle transports, any transport released from now on is closed.
+   */
+  public void close() {
+    LinkedList<PooledTransport> toClose = new LinkedList<PooledTransport>();
+    synchronized (this) {
+      closed = true;
+      for (LinkedList<PooledTransport> transports : idle.values()) {
+        toClose.addAll(transports);
+      }
+      idle.clear();
+    }
+    for (PooledTransport transport : toClose) {
+      transport.close();
+    }
+  }
+
+  /**
+   * @return the number of idle transports for a relay.
+   */
+  protected synchronized int getIdleCount(Relay relay) {
+    LinkedList<PooledTransport> transports = idle.get(relay);
+    return transports == null ? 0 : transports.size();
+  }
+
+  /**
+   * A connection to a relay, which counts the messages sent over it.
+   */
+  public static class PooledTransport {
+    private final Relay relay;
+    private final Transport transport;
+    private int sent;
+
+    PooledTransport(Relay relay, Transport transport) {
+      this.relay = relay;
+      this.transport = transport;
+    }
+
+    /**
+     * Send a message to some of its recipients.
+     *
+     * @param message
+     * @param recipients
+     * @throws MessagingException
+     */
+    public void send(MimeMessage message, Address[] recipients) throws MessagingException {
+      sent++;
+      transport.sendMessage(message, recipients);
+    }
+
+    /**
+     * @return true if the connection is still usable.
+     */
+    public boolean isConnected() {
+      return transport.isConnected();
+    }
+
+    void close() {
+      try {
+        transport.close();
+      } catch (MessagingException e) {
+        LOGGER.debug("Failed to close the connection to {}: {}", relay, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * An SMTP server that mail is handed to.
+   */
+  public static final class Relay {
+    private final String host;
+    private final int port;
+
+    public Relay(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * @param relay
+     *          a relay of the form host or host:port.
+     * @param defaultPort
+     *          the port if none is given.
+     * @return the relay.
+     */
+    public static Relay parse(String relay, int defaultPort) {
+      int colon = relay.lastIndexOf(':');
+      if (colon < 0) {
+        return new Relay(relay.trim(), defaultPort);
+      }
+      return new Relay(relay.substring(0, colon).trim(), Integer.parseInt(relay.substring(
+          colon + 1).trim()));
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public int getPort() {
+      return port;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Relay)) {
+        return false;
+      }
+      Relay other = (Relay) obj;
+      return host.equals(other.host) && port == other.port;
+    }
+
+    @Override
+    public int hashCode() {
+      return host.hashCode() * 31 + port;
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+}
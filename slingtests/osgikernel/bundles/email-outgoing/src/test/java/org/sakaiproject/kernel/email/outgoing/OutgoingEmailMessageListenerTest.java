@@ -3,6 +3,8 @@ package org.sakaiproject.kernel.email.outgoing;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import org.apache.jackrabbit.JcrConstants;
@@ -10,6 +12,7 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -60,11 +63,16 @@ public class OutgoingEmailMessageListenerTest {
     props.put("sakai.smtp.port", smtpPort);
     props.put("sakai.email.maxRetries", 240);
     props.put("sakai.email.retryIntervalMinutes", 30);
+    // send on the calling thread so the results can be checked straight away.
+    props.put("sakai.email.senders", 0);
 
     ComponentContext ctx = createMock(ComponentContext.class);
     expect(ctx.getProperties()).andReturn(props);
 
+    // the batch of each message is saved, and the session goes when the listener does.
     adminSession = createMock(Session.class);
+    adminSession.save();
+    adminSession.logout();
 
     messageNode = createMock(Node.class);
 
@@ -89,6 +97,12 @@ public class OutgoingEmailMessageListenerTest {
     wiser.getMessages().clear();
   }
 
+  @After
+  public void tearDown() {
+    oeml.deactivate(null);
+    verify(adminSession);
+  }
+
   @BeforeClass
   public static void startWiser() {
     wiser = new Wiser();
@@ -115,6 +129,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testNoBoxParam() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "xx@123.com,yyy@345.com");
@@ -135,6 +150,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testNotOutBox() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "xx@123.com,yyy@345.com");
@@ -161,6 +177,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testNoTo() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "xx@123.com,yyy@345.com");
@@ -190,6 +207,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testNoFrom() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "xx@123.com,yyy@345.com");
@@ -220,6 +238,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testSingleTo() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "tonobody@example.com");
@@ -266,6 +285,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testMultiTo() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "tonobody0@example.com,tonobody1@example.com");
@@ -322,6 +342,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testBody() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "tonobody@example.com");
@@ -374,6 +395,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testSubject() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "tonobody@example.com");
@@ -426,10 +448,13 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testJMSExceptionHandling() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andThrow(
         new JMSException("Test JMS Exception"));
+    // nothing is sent, so the session is not used.
+    reset(adminSession);
 
-    replay(message);
+    replay(message, adminSession, messageNode);
 
     oeml.onMessage(message);
   }
@@ -437,6 +462,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testRepoExceptionHandling() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "xx@123.com,yyy@345.com");
@@ -451,6 +477,7 @@ public class OutgoingEmailMessageListenerTest {
   @Test
   public void testAttachment() throws Exception {
     Message message = createMock(Message.class);
+    message.acknowledge();
     expect(message.getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH);
     expect(message.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS)).andReturn(
         "tonobody@example.com");
@@ -528,4 +555,68 @@ public class OutgoingEmailMessageListenerTest {
       assertEquals("fromnobody@example.com", m.getEnvelopeSender());
     }
   }
+
+  @Test
+  public void testSenderSurvivesFailedBatch() throws Exception {
+    Properties props = new Properties();
+    props.put("sakai.smtp.server", "localhost");
+    props.put("sakai.smtp.port", smtpPort);
+    props.put("sakai.email.maxRetries", 240);
+    props.put("sakai.email.retryIntervalMinutes", 30);
+    props.put("sakai.email.senders", 1);
+    props.put("sakai.email.batchSize", 1);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+
+    // the first email breaks its batch, the sender logs out and starts again.
+    Session session = createMock(Session.class);
+    session.logout();
+    session.save();
+    session.logout();
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).times(2);
+    Node badNode = createMock(Node.class);
+    expect(badNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andThrow(
+        new IllegalStateException("Test Runtime Exception"));
+    Node goodNode = createMock(Node.class);
+    expect(goodNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andReturn(false);
+    expect(goodNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, "Not an outbox"))
+        .andReturn(null);
+    expect(goodNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)).andReturn(true);
+    Resource bad = createMock(Resource.class);
+    expect(bad.adaptTo(Node.class)).andReturn(badNode);
+    Resource good = createMock(Resource.class);
+    expect(good.adaptTo(Node.class)).andReturn(goodNode);
+    ResourceResolver rr = createMock(ResourceResolver.class);
+    expect(rr.getResource("/bad")).andReturn(bad);
+    expect(rr.getResource("/good")).andReturn(good);
+    JcrResourceResolverFactory jrrf = createMock(JcrResourceResolverFactory.class);
+    expect(jrrf.getResourceResolver(session)).andReturn(rr).times(2);
+    Message badMessage = createMock(Message.class);
+    expect(badMessage.getStringProperty(NODE_PATH_PROPERTY)).andReturn("/bad");
+    expect(badMessage.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS))
+        .andReturn("xx@123.com");
+    badMessage.acknowledge();
+    Message goodMessage = createMock(Message.class);
+    expect(goodMessage.getStringProperty(NODE_PATH_PROPERTY)).andReturn("/good");
+    expect(goodMessage.getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS))
+        .andReturn("xx@123.com");
+    goodMessage.acknowledge();
+    // the listener of the other tests is not used.
+    reset(adminSession);
+    replay(ctx, session, repository, badNode, goodNode, bad, good, rr, jrrf, badMessage,
+        goodMessage, adminSession);
+
+    OutgoingEmailMessageListener listener = new OutgoingEmailMessageListener(
+        connFactoryService);
+    listener.bindRepository(repository);
+    listener.bindJcrResourceResolverFactory(jrrf);
+    listener.activate(ctx);
+    listener.onMessage(badMessage);
+    listener.onMessage(goodMessage);
+    // the sender sends what is queued before it stops.
+    listener.deactivate(null);
+
+    verify(session, repository, badNode, goodNode, rr, jrrf, badMessage, goodMessage);
+  }
 }
@@ -0,0 +1,126 @@
+package org.sakaiproject.kernel.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.kernel.email.outgoing.SmtpTransportPool.PooledTransport;
+import org.sakaiproject.kernel.email.outgoing.SmtpTransportPool.Relay;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import java.net.BindException;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpTransportPoolTest {
+  private static Wiser wiser;
+  private static int smtpPort;
+  private Relay relay;
+
+  @BeforeClass
+  public static void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8125;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopWiser() {
+    wiser.stop();
+  }
+
+  @Before
+  public void setup() {
+    relay = new Relay("localhost", smtpPort);
+    wiser.getMessages().clear();
+  }
+
+  @Test
+  public void testConnectionReused() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool(1, 100);
+
+    PooledTransport transport = pool.borrow(relay);
+    for (int i = 0; i < 3; i++) {
+      send(transport, "tonobody" + i + "@example.com");
+    }
+    pool.release(transport);
+    assertEquals(1, pool.getIdleCount(relay));
+
+    // the connection is handed out again rather than a new one being made.
+    PooledTransport again = pool.borrow(relay);
+    assertSame(transport, again);
+    send(again, "tonobody3@example.com");
+    pool.release(again);
+    pool.close();
+
+    assertEquals(4, wiser.getMessages().size());
+    int i = 0;
+    for (WiserMessage m : wiser.getMessages()) {
+      assertEquals("tonobody" + i++ + "@example.com", m.getEnvelopeReceiver());
+      assertEquals("fromnobody@example.com", m.getEnvelopeSender());
+    }
+  }
+
+  @Test
+  public void testConnectionRecycled() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool(1, 2);
+
+    PooledTransport transport = pool.borrow(relay);
+    send(transport, "tonobody0@example.com");
+    send(transport, "tonobody1@example.com");
+    // the connection has sent as many messages as it may, so is closed.
+    pool.release(transport);
+    assertEquals(0, pool.getIdleCount(relay));
+    pool.close();
+
+    assertEquals(2, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testIdleLimit() throws Exception {
+    SmtpTransportPool pool = new SmtpTransportPool(1, 100);
+
+    PooledTransport first = pool.borrow(relay);
+    PooledTransport second = pool.borrow(relay);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(1, pool.getIdleCount(relay));
+    pool.close();
+    assertEquals(0, pool.getIdleCount(relay));
+  }
+
+  @Test
+  public void testParseRelay() {
+    assertEquals(new Relay("mail.example.com", 2525), Relay.parse("mail.example.com:2525", 25));
+    assertEquals(new Relay("mail.example.com", 25), Relay.parse(" mail.example.com ", 25));
+  }
+
+  private void send(PooledTransport transport, String to) throws Exception {
+    MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+    message.setFrom(new InternetAddress("fromnobody@example.com"));
+    message.setRecipient(RecipientType.TO, new InternetAddress(to));
+    message.setSubject("Pooled");
+    message.setText("Sent over a pooled connection.");
+    message.saveChanges();
+    transport.send(message, new Address[] { new InternetAddress(to) });
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the events that pass through the bridge and times how long they take from
+ * being queued to being published, so a backlog in the outbound queue shows up before
+ * events start to be dropped.
+ */
+public class BridgeMetrics implements BridgeMetricsMBean {
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+  private Collection<?> queue;
+
+  /**
+   * @param queue
+   *          the queue whose depth is reported, may be null.
+   */
+  public BridgeMetrics(Collection<?> queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * @param nanos
+   *          the time from an event being queued to it being published.
+   */
+  public void eventPublished(long nanos) {
+    published.incrementAndGet();
+    latency.addAndGet(nanos);
+    long max = maxLatency.get();
+    while (nanos > max && !maxLatency.compareAndSet(max, nanos)) {
+      max = maxLatency.get();
+    }
+  }
+
+  public void eventDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * @param count
+   *          the number of events that could not be published.
+   */
+  public void eventsFailed(int count) {
+    failed.addAndGet(count);
+  }
+
+  public void batchPublished() {
+    batches.incrementAndGet();
+  }
+
+  public int getQueueDepth() {
+    if (queue == null) {
+      return 0;
+    }
+    return queue.size();
+  }
+
+  public long getPublished() {
+    return published.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getMeanPublishLatency() {
+    long n = published.get();
+    if (n == 0) {
+      return 0;
+    }
+    return latency.get() / n;
+  }
+
+  public long getMaxPublishLatency() {
+    return maxLatency.get();
+  }
+
+  public void reset() {
+    published.set(0);
+    dropped.set(0);
+    failed.set(0);
+    batches.set(0);
+    latency.set(0);
+    maxLatency.set(0);
+  }
+}
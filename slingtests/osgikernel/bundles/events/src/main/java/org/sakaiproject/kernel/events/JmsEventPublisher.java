@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Publishes batches of OSGi events to JMS topics named after the event topics. A JMS
+ * session may only be used by one thread at a time, so a publisher belongs to the thread
+ * that drains the outbound queue. Producers are kept per topic, up to a limit after which
+ * the least recently used is closed. If the session is transacted each batch is
+ * committed once, and rolled back as a whole if sending any of it fails. An event that
+ * can't be made into a message is skipped on its own. A batch that fails to send is tried
+ * again, waiting twice as long each time, and its events are only counted as failed once
+ * the retries are used up.
+ */
+public class JmsEventPublisher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsEventPublisher.class);
+
+  private final Session session;
+  private final boolean transacted;
+  private final BridgeMetrics metrics;
+  private final Map<String, MessageProducer> producers;
+  private final int retries;
+  private final long retryDelay;
+
+  /**
+   * The default number of times a failed batch is sent again.
+   */
+  public static final int DEFAULT_RETRIES = 3;
+
+  /**
+   * The default time in ms before the first retry of a batch.
+   */
+  public static final long DEFAULT_RETRY_DELAY = 1000L;
+
+  /**
+   * @param session
+   * @param transacted
+   *          whether the session is transacted.
+   * @param maxProducers
+   *          the number of producers to keep open.
+   * @param metrics
+   */
+  public JmsEventPublisher(Session session, boolean transacted, int maxProducers,
+      BridgeMetrics metrics) {
+    this(session, transacted, maxProducers, DEFAULT_RETRIES, DEFAULT_RETRY_DELAY, metrics);
+  }
+
+  /**
+   * @param session
+   * @param transacted
+   *          whether the session is transacted.
+   * @param maxProducers
+   *          the number of producers to keep open.
+   * @param retries
+   *          the number of times to send a failed batch again.
+   * @param retryDelay
+   *          the time in ms before the first retry, doubled for each one after.
+   * @param metrics
+   */
+  public JmsEventPublisher(Session session, boolean transacted, final int maxProducers,
+      int retries, long retryDelay, BridgeMetrics metrics) {
+    this.session = session;
+    this.transacted = transacted;
+    this.retries = retries;
+    this.retryDelay = retryDelay;
+    this.metrics = metrics;
+    this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, MessageProducer> eldest) {
+        if (size() > maxProducers) {
+          close(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Publish a batch of events. An event with a property that can't be put into a message
+   * is skipped and counted as failed, rather than failing the rest of the batch with it.
+   * If the batch can't be sent the events that have not gone are sent again after a
+   * while, on the thread of the caller. An interrupt stops the retries.
+   *
+   * @param batch
+   */
+  public void publish(List<QueuedEvent> batch) {
+    List<QueuedEvent> pending = new ArrayList<QueuedEvent>(batch);
+    long delay = retryDelay;
+    for (int attempt = 0;; attempt++) {
+      try {
+        send(pending);
+        metrics.batchPublished();
+        return;
+      } catch (JMSException e) {
+        if (attempt >= retries) {
+          LOGGER.error("Unable to publish " + pending.size() + " events, dropping them: "
+              + e.getMessage(), e);
+          metrics.eventsFailed(pending.size());
+          return;
+        }
+        LOGGER.warn("Unable to publish {} events, trying again in {} ms: {}",
+            new Object[] { pending.size(), delay, e.getMessage() });
+        // the producers may belong to a broken connection, so start again with new ones.
+        close();
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          metrics.eventsFailed(pending.size());
+          return;
+        }
+        delay *= 2;
+      }
+    }
+  }
+
+  /**
+   * Send events, removing from the list those that have gone or were skipped.
+   *
+   * @param pending
+   *          the events to send.
+   * @throws JMSException
+   *           if sending failed, the events left in the list must be sent again.
+   */
+  private void send(List<QueuedEvent> pending) throws JMSException {
+    List<QueuedEvent> sent = new ArrayList<QueuedEvent>();
+    try {
+      for (Iterator<QueuedEvent> i = pending.iterator(); i.hasNext();) {
+        QueuedEvent queued = i.next();
+        Event event = queued.getEvent();
+        MessageProducer producer = getProducer(event.getTopic());
+        Message msg;
+        try {
+          msg = createMessage(event);
+        } catch (MessageFormatException e) {
+          LOGGER.warn("Unable to publish event {}: {}", event, e.getMessage());
+          metrics.eventsFailed(1);
+          i.remove();
+          continue;
+        }
+        producer.send(msg);
+        if (transacted) {
+          sent.add(queued);
+        } else {
+          // the event has gone, whatever happens to the rest.
+          i.remove();
+          metrics.eventPublished(System.nanoTime() - queued.getQueued());
+        }
+      }
+      if (transacted) {
+        session.commit();
+        long now = System.nanoTime();
+        for (QueuedEvent queued : sent) {
+          metrics.eventPublished(now - queued.getQueued());
+        }
+        pending.clear();
+      }
+    } catch (JMSException e) {
+      if (transacted) {
+        try {
+          session.rollback();
+        } catch (JMSException ex) {
+          LOGGER.warn(ex.getMessage(), ex);
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Close the producers, the session is closed by its owner.
+   */
+  public void close() {
+    for (MessageProducer producer : producers.values()) {
+      close(producer);
+    }
+    producers.clear();
+  }
+
+  private MessageProducer getProducer(String topic) throws JMSException {
+    MessageProducer producer = producers.get(topic);
+    if (producer == null) {
+      producer = session.createProducer(session.createTopic(topic));
+      producers.put(topic, producer);
+    }
+    return producer;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Message createMessage(Event event) throws JMSException {
+    Message msg = session.createMessage();
+    msg.setJMSType(event.getTopic());
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Map || obj instanceof List) {
+        // a Map or List is only taken if everything in it is allowed.
+        if (!isAllowed(obj)) {
+          throw new MessageFormatException("Property " + name + " of " + event.getTopic()
+              + " holds a type a message can't");
+        }
+        msg.setObjectProperty(name, obj);
+      } else if (isAllowed(obj)) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * @param obj
+   * @return true if the object may be put into a message.
+   */
+  private boolean isAllowed(Object obj) {
+    if (obj instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+        if (!(entry.getKey() instanceof String) || !isAllowed(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (obj instanceof List) {
+      for (Object value : (List<?>) obj) {
+        if (!isAllowed(value)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+        || obj instanceof Number || obj instanceof String;
+  }
+
+  private void close(MessageProducer producer) {
+    try {
+      producer.close();
+    } catch (JMSException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
@@ -29,27 +29,38 @@ import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
-import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are queued on the thread that
+ * delivers them and published in batches by a thread of the bridge, so a slow broker
+ * does not hold up the delivery of events within OSGi. If the queue stays full the event
+ * is dropped and counted, unless its topic is one of the blocking topics, whose events
+ * must not be lost: those wait for room for as long as the bridge runs.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate=true)
 @Service
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
-  @Property(value = "*", propertyPrivate = true)
+  @Property(value = { "org/sakaiproject/*" })
   static final String TOPICS = EventConstants.EVENT_TOPIC;
 
   @Property(value = "vm://localhost:61616")
@@ -58,12 +69,41 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = "sakai.event.bridge")
   static final String CONNECTION_CLIENT_ID = "bridge.connectionClientId";
 
-  @Property(boolValue = false, propertyPrivate = true)
+  @Property(boolValue = true, propertyPrivate = true)
   static final String SESSION_TRANSACTED = "bridge.sessionTransacted";
 
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  @Property(intValue = 100)
+  static final String QUEUE_TIMEOUT = "bridge.queueTimeout";
+
+  @Property(value = { "org/sakaiproject/kernel/message/email/outgoing" })
+  static final String BLOCKING_TOPICS = "bridge.blockingTopics";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  @Property(intValue = 100)
+  static final String MAX_PRODUCERS = "bridge.maxProducers";
+
+  @Property(intValue = JmsEventPublisher.DEFAULT_RETRIES)
+  static final String PUBLISH_RETRIES = "bridge.publishRetries";
+
+  @Property(longValue = JmsEventPublisher.DEFAULT_RETRY_DELAY)
+  static final String PUBLISH_RETRY_DELAY = "bridge.publishRetryDelay";
+
+  /**
+   * The time in ms to wait for the publisher to finish when stopping, before it is
+   * interrupted and waited for once more.
+   */
+  static final long STOP_WAIT = 10000L;
+
+  static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.events:type=OsgiJmsBridge";
+
   @Reference
   private ConnectionFactoryService connFactoryService;
 
@@ -75,6 +115,13 @@ public class OsgiJmsBridge implements EventHandler {
   private String connectionClientId;
   private int acknowledgeMode;
   private String cliBrokerUrl;
+  private int queueTimeout = 100;
+  private int batchSize = 100;
+  private Set<String> blockingTopics = new HashSet<String>();
+  private volatile BlockingQueue<QueuedEvent> queue;
+  private BridgeMetrics metrics = new BridgeMetrics(null);
+  private volatile boolean running;
+  private Thread publisher;
 
   /**
    * Default constructor.
@@ -175,6 +222,86 @@ public class OsgiJmsBridge implements EventHandler {
     } catch (JMSException e) {
       throw new RuntimeException(e.getMessage(), e);
     }
+
+    int queueSize = 10000;
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    if (_queueSize != null && _queueSize > 0) {
+      queueSize = _queueSize;
+    }
+    Integer _queueTimeout = (Integer) props.get(QUEUE_TIMEOUT);
+    if (_queueTimeout != null) {
+      queueTimeout = _queueTimeout;
+    }
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    blockingTopics = new HashSet<String>();
+    Object _blockingTopics = props.get(BLOCKING_TOPICS);
+    if (_blockingTopics instanceof String[]) {
+      blockingTopics.addAll(Arrays.asList((String[]) _blockingTopics));
+    } else if (_blockingTopics instanceof String) {
+      blockingTopics.add((String) _blockingTopics);
+    }
+    int maxProducers = 100;
+    Integer _maxProducers = (Integer) props.get(MAX_PRODUCERS);
+    if (_maxProducers != null && _maxProducers > 0) {
+      maxProducers = _maxProducers;
+    }
+    int retries = JmsEventPublisher.DEFAULT_RETRIES;
+    Integer _retries = (Integer) props.get(PUBLISH_RETRIES);
+    if (_retries != null && _retries >= 0) {
+      retries = _retries;
+    }
+    long retryDelay = JmsEventPublisher.DEFAULT_RETRY_DELAY;
+    Long _retryDelay = (Long) props.get(PUBLISH_RETRY_DELAY);
+    if (_retryDelay != null && _retryDelay > 0) {
+      retryDelay = _retryDelay;
+    }
+    queue = new ArrayBlockingQueue<QueuedEvent>(queueSize);
+    metrics = new BridgeMetrics(queue);
+    registerMBean(metrics);
+    startPublisher(new JmsEventPublisher(clientSession, transacted, maxProducers, retries,
+        retryDelay, metrics));
+  }
+
+  /**
+   * Start the thread that publishes the queued events. The thread owns the session from
+   * here on, and once stopped publishes what is left in the queue before closing its
+   * producers.
+   *
+   * @param jmsPublisher
+   */
+  private void startPublisher(final JmsEventPublisher jmsPublisher) {
+    final BlockingQueue<QueuedEvent> queue = this.queue;
+    running = true;
+    publisher = new Thread("osgi-jms-bridge") {
+      @Override
+      public void run() {
+        try {
+          while (running) {
+            QueuedEvent first = queue.poll(1, TimeUnit.SECONDS);
+            if (first != null) {
+              List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+              batch.add(first);
+              queue.drainTo(batch, batchSize - 1);
+              jmsPublisher.publish(batch);
+            }
+          }
+        } catch (InterruptedException e) {
+          LOGGER.debug("Bridge publisher interrupted");
+        }
+        // publish what is left, the events will not come again.
+        while (!queue.isEmpty()) {
+          List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+          queue.drainTo(batch, batchSize);
+          jmsPublisher.publish(batch);
+        }
+        jmsPublisher.close();
+      }
+    };
+    publisher.setDaemon(true);
+    publisher.start();
   }
 
   /**
@@ -183,6 +310,26 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    running = false;
+    if (publisher != null) {
+      try {
+        publisher.join(STOP_WAIT);
+        if (publisher.isAlive()) {
+          // stuck on the broker or retrying a batch, the rest are only tried once.
+          LOGGER.warn("Bridge publisher has not stopped, interrupting it");
+          publisher.interrupt();
+          publisher.join(STOP_WAIT);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (publisher.isAlive()) {
+        LOGGER.warn("Bridge publisher has not stopped, closing its session");
+      }
+      publisher = null;
+    }
+    queue = null;
+    unregisterMBean();
     if (clientSession != null) {
       try {
         clientSession.close();
@@ -204,33 +351,62 @@ public class OsgiJmsBridge implements EventHandler {
    *
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  @SuppressWarnings("unchecked")
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if (conn != null) {
-      LOGGER.debug("Processing event {}", event);
+    BlockingQueue<QueuedEvent> queue = this.queue;
+    if (queue != null) {
+      LOGGER.debug("Queueing event {}", event);
+      QueuedEvent queued = new QueuedEvent(event);
       try {
-        // post to JMS
-        Topic emailTopic = clientSession.createTopic(event.getTopic());
-        MessageProducer client = clientSession.createProducer(emailTopic);
-        Message msg = clientSession.createMessage();
-        msg.setJMSType(event.getTopic());
-        for (String name : event.getPropertyNames()) {
-          Object obj = event.getProperty(name);
-          // "Only objectified primitive objects, String, Map and List types are
-          // allowed" as stated by an exception when putting something into the
-          // message that was not of one of these types.
-          if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-              || obj instanceof Number || obj instanceof Map || obj instanceof String
-              || obj instanceof List) {
-            msg.setObjectProperty(name, obj);
+        if (queue.offer(queued, queueTimeout, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+        if (blockingTopics.contains(event.getTopic())) {
+          LOGGER.warn("Bridge queue is full, waiting to queue event {}", event);
+          // wait for room while the bridge runs, its queue goes when it stops.
+          while (queue == this.queue) {
+            if (queue.offer(queued, 1, TimeUnit.SECONDS)) {
+              return;
+            }
           }
         }
+        LOGGER.warn("Bridge queue is full, dropping event {}", event);
+        metrics.eventDropped();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        metrics.eventDropped();
+      }
+    }
+  }
 
-        client.send(msg);
-      } catch (JMSException e) {
-        LOGGER.error(e.getMessage(), e);
+  /**
+   * @return the metrics of the bridge.
+   */
+  protected BridgeMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void registerMBean(Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(mbean, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
       }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister {} {} ", METRICS_OBJECT_NAME, e.getMessage());
     }
   }
 
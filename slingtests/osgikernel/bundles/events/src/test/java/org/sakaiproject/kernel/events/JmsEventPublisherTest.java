@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Unit test for publishing batches of events to JMS.
+ */
+public class JmsEventPublisherTest {
+  private Session sess;
+  private BridgeMetrics metrics;
+
+  @Before
+  public void setUp() {
+    sess = createMock(Session.class);
+    metrics = new BridgeMetrics(null);
+  }
+
+  /**
+   * A batch is committed once, and a producer is created once for each topic.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBatchCommittedOnce() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    MessageProducer prodB = expectProducer("topic/b");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prodA.send((Message) anyObject());
+    expectLastCall().times(2);
+    prodB.send((Message) anyObject());
+    sess.commit();
+    prodA.close();
+    prodB.close();
+    replay(sess, prodA, prodB);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, true, 10, metrics);
+    publisher.publish(batch("topic/a", "topic/b", "topic/a"));
+    publisher.close();
+
+    verify(sess, prodA, prodB);
+    assertEquals(3, metrics.getPublished());
+    assertEquals(1, metrics.getBatches());
+  }
+
+  /**
+   * A failure rolls the whole batch back.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBatchRolledBack() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prodA.send((Message) anyObject());
+    prodA.send((Message) anyObject());
+    expectLastCall().andThrow(new JMSException("can't send"));
+    sess.rollback();
+
+    replay(sess, prodA);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, true, 10, 0, 1, metrics);
+    publisher.publish(batch("topic/a", "topic/a"));
+
+    verify(sess, prodA);
+    assertEquals(0, metrics.getPublished());
+    assertEquals(2, metrics.getFailed());
+  }
+
+  /**
+   * A batch that was rolled back is sent again, with new producers.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBatchRetried() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prodA.send((Message) anyObject());
+    prodA.send((Message) anyObject());
+    expectLastCall().andThrow(new JMSException("can't send"));
+    sess.rollback();
+    prodA.close();
+    MessageProducer prodA2 = expectProducer("topic/a");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prodA2.send((Message) anyObject());
+    expectLastCall().times(2);
+    sess.commit();
+    replay(sess, prodA, prodA2);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, true, 10, 3, 1, metrics);
+    publisher.publish(batch("topic/a", "topic/a"));
+
+    verify(sess, prodA, prodA2);
+    assertEquals(2, metrics.getPublished());
+    assertEquals(0, metrics.getFailed());
+    assertEquals(1, metrics.getBatches());
+  }
+
+  /**
+   * Without a transaction only the events that have not gone are sent again, and they
+   * are counted as failed once the retries are used up.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testUnsentEventsRetried() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prodA.send((Message) anyObject());
+    prodA.send((Message) anyObject());
+    expectLastCall().andThrow(new JMSException("can't send")).times(2);
+    prodA.close();
+    expect(sess.createTopic("topic/a")).andReturn(createMock(Topic.class));
+    expect(sess.createProducer((Topic) anyObject())).andReturn(prodA);
+    replay(sess, prodA);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, false, 10, 1, 1, metrics);
+    publisher.publish(batch("topic/a", "topic/a", "topic/a"));
+
+    verify(sess, prodA);
+    assertEquals(1, metrics.getPublished());
+    assertEquals(2, metrics.getFailed());
+    assertEquals(0, metrics.getBatches());
+  }
+
+  /**
+   * An event that can't be made into a message is skipped, the rest of the batch is
+   * committed.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testBadEventSkipped() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(3);
+    prodA.send((Message) anyObject());
+    expectLastCall().times(2);
+    sess.commit();
+    replay(sess, prodA);
+
+    List<QueuedEvent> batch = batch("topic/a", "topic/a", "topic/a");
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("when", new Date());
+    props.put("map", map);
+    batch.set(1, new QueuedEvent(new Event("topic/a", props)));
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, true, 10, metrics);
+    publisher.publish(batch);
+
+    verify(sess, prodA);
+    assertEquals(2, metrics.getPublished());
+    assertEquals(1, metrics.getFailed());
+    assertEquals(1, metrics.getBatches());
+  }
+
+  /**
+   * The least recently used producer is closed once there are too many.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testProducerEvicted() throws JMSException {
+    MessageProducer prodA = expectProducer("topic/a");
+    MessageProducer prodB = expectProducer("topic/b");
+    expect(sess.createMessage()).andReturn(new ActiveMQMessage()).times(2);
+    prodA.send((Message) anyObject());
+    prodA.close();
+    prodB.send((Message) anyObject());
+    replay(sess, prodA, prodB);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(sess, false, 1, metrics);
+    publisher.publish(batch("topic/a", "topic/b"));
+
+    verify(sess, prodA, prodB);
+    assertEquals(2, metrics.getPublished());
+  }
+
+  private MessageProducer expectProducer(String topicName) throws JMSException {
+    Topic topic = createMock(Topic.class);
+    expect(sess.createTopic(topicName)).andReturn(topic);
+    MessageProducer prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(topic)).andReturn(prod);
+    replay(topic);
+    return prod;
+  }
+
+  private List<QueuedEvent> batch(String... topics) {
+    List<QueuedEvent> batch = new ArrayList<QueuedEvent>();
+    for (String topic : topics) {
+      Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+      props.put("string", "tes");
+      batch.add(new QueuedEvent(new Event(topic, props)));
+    }
+    return batch;
+  }
+}
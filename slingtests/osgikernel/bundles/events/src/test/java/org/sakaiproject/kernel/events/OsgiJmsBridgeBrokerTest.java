@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.activemq.ConnectionFactoryService;
+
+import java.util.Hashtable;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Test of the bridge against an embedded broker over the VM transport.
+ */
+public class OsgiJmsBridgeBrokerTest {
+  private static final String BROKER_URL = "vm://bridge-test?broker.persistent=false&broker.useJmx=false";
+  private static final String TOPIC = "org/sakaiproject/kernel/events/test";
+
+  private ConnectionFactory connFactory;
+  private Connection consumerConn;
+  private MessageConsumer consumer;
+  private OsgiJmsBridge bridge;
+  private ComponentContext ctx;
+
+  @Before
+  public void setUp() throws Exception {
+    connFactory = new ActiveMQConnectionFactory(BROKER_URL);
+
+    // the first connection starts the broker, and the topic only keeps messages for
+    // the consumers it has when they are sent.
+    consumerConn = connFactory.createConnection();
+    consumerConn.start();
+    Session session = consumerConn.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    consumer = session.createConsumer(session.createTopic(TOPIC));
+
+    ConnectionFactoryService connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.createFactory(BROKER_URL)).andReturn(connFactory);
+
+    Hashtable<Object, Object> compProps = new Hashtable<Object, Object>();
+    compProps.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
+    compProps.put(OsgiJmsBridge.BROKER_URL, BROKER_URL);
+    compProps.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge.test");
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, true);
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 5);
+    ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(compProps);
+    replay(connFactoryService, ctx);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.activate(ctx);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    consumerConn.close();
+  }
+
+  @Test
+  public void testEventsPublished() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+      props.put("count", i);
+      bridge.handleEvent(new Event(TOPIC, props));
+    }
+
+    // the events arrive in the order they were handled.
+    for (int i = 0; i < 20; i++) {
+      Message msg = consumer.receive(5000);
+      assertNotNull(msg);
+      assertEquals(TOPIC, msg.getJMSType());
+      assertEquals(i, msg.getObjectProperty("count"));
+    }
+
+    bridge.deactivate(ctx);
+    assertEquals(20, bridge.getMetrics().getPublished());
+    assertEquals(0, bridge.getMetrics().getDropped());
+  }
+}
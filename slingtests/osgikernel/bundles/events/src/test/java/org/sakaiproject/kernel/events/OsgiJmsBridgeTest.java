@@ -21,6 +21,7 @@ import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -29,6 +30,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
@@ -40,6 +42,7 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -144,6 +147,7 @@ public class OsgiJmsBridgeTest {
 
     // verify that all expected calls were made.
     verify(ctx, connFactory, conn, sess, topic, prod);
+    assertEquals(1, bridge.getMetrics().getPublished());
 
     int namesCount = 0;
     Enumeration names = message.getPropertyNames();
@@ -283,6 +287,67 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory);
   }
 
+  /**
+   * When the queue is full an event is dropped, unless its topic is a blocking topic, in
+   * which case it waits for room.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testBlockingTopicWaits() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch broker = new CountDownLatch(1);
+    conn = createNiceMock(Connection.class);
+    expect(connFactory.createConnection()).andReturn(conn);
+    sess = createNiceMock(Session.class);
+    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createNiceMock(MessageProducer.class);
+    expect(sess.createProducer((Topic) anyObject())).andReturn(prod).anyTimes();
+    expect(sess.createMessage()).andAnswer(new IAnswer<Message>() {
+      public Message answer() throws Throwable {
+        return new ActiveMQMessage();
+      }
+    }).anyTimes();
+    // the broker is slow with the first event.
+    prod.send((Message) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        sending.countDown();
+        broker.await();
+        return null;
+      }
+    }).anyTimes();
+    compProps.put(OsgiJmsBridge.QUEUE_SIZE, 1);
+    compProps.put(OsgiJmsBridge.QUEUE_TIMEOUT, 10);
+    compProps.put(OsgiJmsBridge.BLOCKING_TOPICS, new String[] { "critical" });
+    replay(ctx, connFactory, connFactoryService, conn, sess, prod);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.activate(ctx);
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    sending.await();
+    // fills the queue.
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    assertEquals(1, bridge.getMetrics().getDropped());
+
+    Thread critical = new Thread() {
+      @Override
+      public void run() {
+        bridge.handleEvent(new Event("critical", buildEventProperties()));
+      }
+    };
+    critical.start();
+    critical.join(200);
+    assertTrue(critical.isAlive());
+    broker.countDown();
+    critical.join(5000);
+    bridge.deactivate(ctx);
+
+    assertEquals(1, bridge.getMetrics().getDropped());
+    assertEquals(3, bridge.getMetrics().getPublished());
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -385,6 +450,9 @@ public class OsgiJmsBridgeTest {
       // expect the message to be sent
       prod.send(message);
 
+      // expect the cached producer to be closed when the bridge stops
+      prod.close();
+
       if (closeConnection) {
         sess.close();
       }
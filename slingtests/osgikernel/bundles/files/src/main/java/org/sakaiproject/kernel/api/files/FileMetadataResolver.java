@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.files;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.sakaiproject.kernel.util.ExtendedJSONWriter;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.AccessControlException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Writes the metadata of sakai/file and sakai/link nodes for one request. The results of
+ * a search share stores, folders and sites, so the store of each folder, the privileges
+ * on each path and the details of each site are looked up once and remembered for the
+ * rest of the request. Each node is written as soon as it has been resolved, nothing but
+ * what is remembered is held back. A resolver belongs to the session of one request and
+ * must not be shared between threads.
+ */
+public class FileMetadataResolver {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileMetadataResolver.class);
+  /**
+   * Remembers that a folder is in no store.
+   */
+  private static final String NO_STORE = "";
+
+  private final Session session;
+  private final SiteService siteService;
+  private final Map<String, String> stores = new HashMap<String, String>();
+  private final Map<String, Set<String>> privileges = new HashMap<String, Set<String>>();
+  private final Map<String, SiteInfo> sites = new HashMap<String, SiteInfo>();
+  private AccessControlManager accessControlManager;
+  private boolean accessControlSupported = true;
+
+  /**
+   * A site that files are used in, as the user of the session sees it.
+   */
+  private static class SiteInfo {
+    private final Node siteNode;
+    private final int memberCount;
+
+    SiteInfo(Node siteNode, int memberCount) {
+      this.siteNode = siteNode;
+      this.memberCount = memberCount;
+    }
+  }
+
+  /**
+   * @param session
+   *          the session of the request.
+   * @param siteService
+   */
+  public FileMetadataResolver(Session session, SiteService siteService) {
+    this.session = session;
+    this.siteService = siteService;
+  }
+
+  /**
+   * Writes all the properties of a sakai/file node. Also checks what the permissions are
+   * for the session and where the links are.
+   * 
+   * @param node
+   * @param write
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public void writeFileNode(Node node, JSONWriter write) throws JSONException,
+      RepositoryException {
+    write.object();
+    // dump all the properties.
+    ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
+    // The permissions for this session.
+    writePermissions(node, write);
+
+    // The download path to this file.
+    write.key("path");
+    write.value(getDownloadPath(node));
+
+    if (node.hasNode(JcrConstants.JCR_CONTENT)) {
+      Node contentNode = node.getNode(JcrConstants.JCR_CONTENT);
+      write.key(JcrConstants.JCR_LASTMODIFIED);
+      Calendar cal = contentNode.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate();
+      write.value(FilesConstants.DATEFORMAT.format(cal));
+      write.key(FilesConstants.SAKAI_MIMETYPE);
+      write.value(contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString());
+
+      if (contentNode.hasProperty(JcrConstants.JCR_DATA)) {
+        write.key("filesize");
+        write.value(contentNode.getProperty(JcrConstants.JCR_DATA).getLength());
+      }
+    }
+
+    // Get all the sites where this file is referenced.
+    writeSites(node, write);
+
+    write.endObject();
+  }
+
+  /**
+   * Writes all the properties for a linked node, and the file it links to.
+   * 
+   * @param node
+   * @param write
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public void writeLinkNode(Node node, JSONWriter write) throws JSONException,
+      RepositoryException {
+    write.object();
+    // Write all the properties.
+    ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
+    // The name of this file.
+    write.key("name");
+    write.value(node.getName());
+    // Download path.
+    write.key("path");
+    write.value(node.getPath());
+    // permissions
+    writePermissions(node, write);
+
+    // Write the actual file.
+    if (node.hasProperty("jcr:reference")) {
+      String uuid = node.getProperty("jcr:reference").getString();
+      write.key("file");
+      try {
+        Node fileNode = session.getNodeByUUID(uuid);
+        writeFileNode(fileNode, write);
+      } catch (ItemNotFoundException e) {
+        write.value(false);
+      }
+    }
+
+    write.endObject();
+  }
+
+  /**
+   * @param node
+   *          a sakai/file node.
+   * @return the download path for the file.
+   * @throws RepositoryException
+   */
+  public String getDownloadPath(Node node) throws RepositoryException {
+    if (node.hasProperty(FilesConstants.SAKAI_ID)) {
+      String id = node.getProperty(FilesConstants.SAKAI_ID).getString();
+      return FileUtils.getDownloadPath(findStore(node), id);
+    }
+    return node.getPath();
+  }
+
+  /**
+   * @param node
+   * @return the path of the store the node is in, or null if it isn't in one.
+   * @throws RepositoryException
+   */
+  public String findStore(Node node) throws RepositoryException {
+    List<String> walked = new ArrayList<String>();
+    String store = NO_STORE;
+    Node current = node;
+    while (!current.getPath().equals("/")) {
+      String path = current.getPath();
+      String known = stores.get(path);
+      if (known != null) {
+        store = known;
+        break;
+      }
+      walked.add(path);
+      if (current.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
+          && current.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)
+              .getString().equals(FilesConstants.RT_FILE_STORE)) {
+        store = path;
+        break;
+      }
+      current = current.getParent();
+    }
+    for (String path : walked) {
+      stores.put(path, store);
+    }
+    return store == NO_STORE ? null : store;
+  }
+
+  /**
+   * Checks if the session has a permission on a node. The privileges of the session on a
+   * path are found once, and all three permissions are worked out from them.
+   * 
+   * @param path
+   *          the path of a node.
+   * @param permission
+   *          read, set_property or remove.
+   * @return true if the session has the permission.
+   */
+  public boolean hasPermission(String path, String permission) {
+    try {
+      Set<String> granted = getPrivileges(path);
+      if (granted == null) {
+        session.checkPermission(path, permission);
+        return true;
+      }
+      if ("read".equals(permission)) {
+        return granted.contains(Privilege.JCR_READ);
+      } else if ("set_property".equals(permission)) {
+        return granted.contains(Privilege.JCR_MODIFY_PROPERTIES);
+      } else if ("remove".equals(permission)) {
+        // removing a node takes the right to remove it and to remove it from its parent.
+        if (!granted.contains(Privilege.JCR_REMOVE_NODE) || "/".equals(path)) {
+          return false;
+        }
+        Set<String> parent = getPrivileges(PathUtils.getParentReference(path));
+        return parent != null && parent.contains(Privilege.JCR_REMOVE_CHILD_NODES);
+      }
+      session.checkPermission(path, permission);
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    } catch (RepositoryException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param path
+   * @return the names of the privileges the session has on the path, with aggregates
+   *         expanded, or null if the repository can't say.
+   * @throws RepositoryException
+   */
+  private Set<String> getPrivileges(String path) throws RepositoryException {
+    if (!accessControlSupported) {
+      return null;
+    }
+    Set<String> granted = privileges.get(path);
+    if (granted == null) {
+      if (accessControlManager == null) {
+        try {
+          accessControlManager = AccessControlUtil.getAccessControlManager(session);
+        } catch (RepositoryException e) {
+          // the session can't say, so it will be asked for each permission.
+          LOGGER.debug("No access control manager for the session {} ", e.getMessage());
+          accessControlSupported = false;
+          return null;
+        }
+      }
+      granted = new HashSet<String>();
+      for (Privilege privilege : accessControlManager.getPrivileges(path)) {
+        granted.add(privilege.getName());
+        if (privilege.isAggregate()) {
+          for (Privilege aggregated : privilege.getAggregatePrivileges()) {
+            granted.add(aggregated.getName());
+          }
+        }
+      }
+      privileges.put(path, granted);
+    }
+    return granted;
+  }
+
+  /**
+   * Gives the permissions for this user.
+   * 
+   * @param node
+   * @param write
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  private void writePermissions(Node node, JSONWriter write) throws RepositoryException,
+      JSONException {
+    String path = node.getPath();
+    write.key("permissions");
+    write.object();
+    write.key("set_property");
+    write.value(hasPermission(path, "set_property"));
+    write.key("read");
+    write.value(hasPermission(path, "read"));
+    write.key("remove");
+    write.value(hasPermission(path, "remove"));
+    write.endObject();
+  }
+
+  /**
+   * Writes the sites this file is used in that the user can see.
+   * 
+   * @param node
+   * @param write
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  private void writeSites(Node node, JSONWriter write) throws RepositoryException,
+      JSONException {
+    write.key("usedIn");
+    write.object();
+    write.key("sites");
+    write.array();
+
+    Set<String> paths = new LinkedHashSet<String>();
+    for (Value v : JcrUtils.getValues(node, "sakai:sites")) {
+      paths.add(v.getString());
+    }
+    int total = 0;
+    for (String path : paths) {
+      SiteInfo site = getSite(path);
+      if (site != null) {
+        write.object();
+        write.key("member-count");
+        write.value(String.valueOf(site.memberCount));
+        write.key("path");
+        write.value(path);
+        ExtendedJSONWriter.writeNodeContentsToWriter(write, site.siteNode);
+        write.endObject();
+        total++;
+      }
+    }
+    write.endArray();
+    write.key("total");
+    write.value(total);
+    write.endObject();
+  }
+
+  /**
+   * @param path
+   * @return the site at a path, or null if there is no site there that the user can
+   *         read.
+   */
+  private SiteInfo getSite(String path) {
+    if (sites.containsKey(path)) {
+      return sites.get(path);
+    }
+    SiteInfo site = null;
+    try {
+      if (session.itemExists(path)) {
+        Item item = session.getItem(path);
+        if (item.isNode() && siteService.isSite(item) && hasPermission(path, "read")) {
+          Node siteNode = (Node) item;
+          site = new SiteInfo(siteNode, siteService.getMemberCount(siteNode));
+        }
+      }
+    } catch (RepositoryException e) {
+      // a site that can't be looked up is left out.
+      LOGGER.info("Unable to look up site {} a file is used in {} ", path, e.getMessage());
+    }
+    sites.put(path, site);
+    return site;
+  }
+}
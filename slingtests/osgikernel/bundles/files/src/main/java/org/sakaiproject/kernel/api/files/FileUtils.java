@@ -26,8 +26,6 @@ import static org.sakaiproject.kernel.util.ACLUtils.WRITE_GRANTED;
 import static org.sakaiproject.kernel.util.ACLUtils.addEntry;
 
 import org.apache.jackrabbit.JcrConstants;
-import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
-import org.apache.jackrabbit.api.jsr283.security.Privilege;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.value.ValueFactoryImpl;
@@ -39,7 +37,6 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.kernel.api.site.SiteService;
-import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
@@ -47,12 +44,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.AccessControlException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
 
-import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.PropertyType;
@@ -82,6 +75,38 @@ public class FileUtils {
   public static Node saveFile(Session session, String path, String id,
       InputStream is, String fileName, String contentType, SlingRepository slingRepository)
       throws RepositoryException, IOException {
+    return saveFile(session, path, id, is, null, null, fileName, contentType,
+        slingRepository);
+  }
+
+  /**
+   * Save a file whose content is held in the blob store. The file takes the blob's
+   * binary value rather than a copy of the bytes, and records the path of the blob.
+   * 
+   * @param session
+   * @param path
+   * @param id
+   * @param data
+   *          the binary value of the blob.
+   * @param blob
+   *          the path of the blob.
+   * @param fileName
+   * @param contentType
+   * @param slingRepository
+   * @return
+   * @throws RepositoryException
+   * @throws IOException
+   */
+  public static Node saveFile(Session session, String path, String id, Value data,
+      String blob, String fileName, String contentType, SlingRepository slingRepository)
+      throws RepositoryException, IOException {
+    return saveFile(session, path, id, null, data, blob, fileName, contentType,
+        slingRepository);
+  }
+
+  private static Node saveFile(Session session, String path, String id, InputStream is,
+      Value data, String blob, String fileName, String contentType,
+      SlingRepository slingRepository) throws RepositoryException, IOException {
     if (fileName != null && !fileName.equals("")) {
       // Clean the filename.
 
@@ -95,32 +120,10 @@ public class FileUtils {
         Session adminSession = null;
         try {
           adminSession = slingRepository.loginAdministrative(null);
-
-          Node fileNode = JcrUtils.deepGetOrCreateNode(adminSession, path, JcrConstants.NT_FILE);
-          Node content = null;
           UserManager userManager = AccessControlUtil.getUserManager(adminSession);
           Authorizable authorizable = userManager.getAuthorizable(userId);
-          // configure the ACL for this node.
-          addEntry(fileNode.getPath(), authorizable, adminSession, READ_GRANTED, WRITE_GRANTED,
-              REMOVE_CHILD_NODES_GRANTED, MODIFY_PROPERTIES_GRANTED, ADD_CHILD_NODES_GRANTED,
-              REMOVE_NODE_GRANTED);
-          if (fileNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
-            fileNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
-          }
-          fileNode.addMixin("sakai:propertiesmix");
-          fileNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-              FilesConstants.RT_SAKAI_FILE);
-          fileNode.setProperty(FilesConstants.SAKAI_ID, id);
-
-          // Create the content node.
-          content = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
-          content.setProperty(JcrConstants.JCR_DATA, is);
-          content.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
-          content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
-          // Set the person who last modified it.s
-          fileNode.setProperty(FilesConstants.SAKAI_USER, userId);
-
-          fileNode.setProperty("sakai:filename", fileName);
+          createFileNode(adminSession, path, id, authorizable, is, data, blob, fileName,
+              contentType);
           if (adminSession.hasPendingChanges()) {
             adminSession.save();
           }
@@ -139,7 +142,7 @@ public class FileUtils {
           content = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
         }
 
-        content.setProperty(JcrConstants.JCR_DATA, is);
+        setData(fileNode, content, is, data, blob);
         content.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
         content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
         // Set the person who last modified it.
@@ -155,6 +158,78 @@ public class FileUtils {
     return null;
   }
 
+  /**
+   * Create a new file node and its content without saving it. The session has to be
+   * able to set the access control of the node, which gives the user all rights on it.
+   * 
+   * @param adminSession
+   * @param path
+   * @param id
+   * @param authorizable
+   *          the user the file belongs to.
+   * @param is
+   *          the content, or null if it comes from a blob.
+   * @param data
+   *          the value of the blob the content comes from, or null.
+   * @param blob
+   *          the path of the blob, or null.
+   * @param fileName
+   * @param contentType
+   * @return the file node.
+   * @throws RepositoryException
+   */
+  public static Node createFileNode(Session adminSession, String path, String id,
+      Authorizable authorizable, InputStream is, Value data, String blob,
+      String fileName, String contentType) throws RepositoryException {
+    Node fileNode = JcrUtils.deepGetOrCreateNode(adminSession, path, JcrConstants.NT_FILE);
+    // configure the ACL for this node.
+    addEntry(fileNode.getPath(), authorizable, adminSession, READ_GRANTED, WRITE_GRANTED,
+        REMOVE_CHILD_NODES_GRANTED, MODIFY_PROPERTIES_GRANTED, ADD_CHILD_NODES_GRANTED,
+        REMOVE_NODE_GRANTED);
+    if (fileNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
+      fileNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
+    }
+    fileNode.addMixin("sakai:propertiesmix");
+    fileNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        FilesConstants.RT_SAKAI_FILE);
+    fileNode.setProperty(FilesConstants.SAKAI_ID, id);
+
+    // Create the content node.
+    Node content = fileNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+    setData(fileNode, content, is, data, blob);
+    content.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
+    content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+    // Set the person who last modified it.
+    fileNode.setProperty(FilesConstants.SAKAI_USER, authorizable.getID());
+
+    fileNode.setProperty("sakai:filename", fileName);
+    return fileNode;
+  }
+
+  /**
+   * Set the content of a file, either from a stream or from the value of a blob.
+   * 
+   * @param fileNode
+   * @param content
+   * @param is
+   * @param data
+   * @param blob
+   * @throws RepositoryException
+   */
+  private static void setData(Node fileNode, Node content, InputStream is, Value data,
+      String blob) throws RepositoryException {
+    if (data != null) {
+      content.setProperty(JcrConstants.JCR_DATA, data);
+    } else {
+      content.setProperty(JcrConstants.JCR_DATA, is);
+    }
+    if (blob != null) {
+      fileNode.setProperty(FilesConstants.SAKAI_BLOB, blob);
+    } else if (fileNode.hasProperty(FilesConstants.SAKAI_BLOB)) {
+      fileNode.getProperty(FilesConstants.SAKAI_BLOB).remove();
+    }
+  }
+
   /**
    * Save a file.
    * 
@@ -190,20 +265,7 @@ public class FileUtils {
   public static String createLink(Session session, Node fileNode, String linkPath,
       String sitePath, SlingRepository slingRepository) throws RepositoryException {
     String fileUUID = fileNode.getUUID();
-    Node linkNode = JcrUtils.deepGetOrCreateNode(session, linkPath);
-    // linkNode.addMixin("sakai:propertiesmix");
-    linkNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-        FilesConstants.RT_SAKAI_LINK);
-    String fileName = fileNode.getProperty(FilesConstants.SAKAI_FILENAME).getString();
-    linkNode.setProperty(FilesConstants.SAKAI_FILENAME, fileName);
-    String uri = FileUtils.getDownloadPath(fileNode);
-    linkNode.setProperty(FilesConstants.SAKAI_LINK, "jcrinternal:" + uri);
-    linkNode.setProperty("jcr:reference", fileUUID);
-
-    // Make sure we can reference this node.
-    if (linkNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
-      linkNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
-    }
+    Node linkNode = createLinkNode(session, fileNode, linkPath);
     // Save the linkNode.
     if (session.hasPendingChanges()) {
       session.save();
@@ -218,9 +280,7 @@ public class FileUtils {
       // Get the node trough the admin session.
       Node adminFileNode = adminSession.getNodeByUUID(fileUUID);
 
-      addValue(adminFileNode, "jcr:reference", linkNode.getUUID());
-      addValue(adminFileNode, "sakai:sites", sitePath);
-      addValue(adminFileNode, "sakai:linkpaths", linkPath);
+      addLinkReferences(adminFileNode, linkNode, sitePath);
 
       // Save the reference.
       if (adminSession.hasPendingChanges()) {
@@ -235,6 +295,51 @@ public class FileUtils {
 
   }
 
+  /**
+   * Create the node of a link to a file without saving it.
+   * 
+   * @param session
+   *          the session of the user making the link.
+   * @param fileNode
+   * @param linkPath
+   * @return the link node.
+   * @throws RepositoryException
+   */
+  public static Node createLinkNode(Session session, Node fileNode, String linkPath)
+      throws RepositoryException {
+    Node linkNode = JcrUtils.deepGetOrCreateNode(session, linkPath);
+    // linkNode.addMixin("sakai:propertiesmix");
+    linkNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        FilesConstants.RT_SAKAI_LINK);
+    String fileName = fileNode.getProperty(FilesConstants.SAKAI_FILENAME).getString();
+    linkNode.setProperty(FilesConstants.SAKAI_FILENAME, fileName);
+    String uri = FileUtils.getDownloadPath(fileNode);
+    linkNode.setProperty(FilesConstants.SAKAI_LINK, "jcrinternal:" + uri);
+    linkNode.setProperty("jcr:reference", fileNode.getUUID());
+
+    // Make sure we can reference this node.
+    if (linkNode.canAddMixin(JcrConstants.MIX_REFERENCEABLE)) {
+      linkNode.addMixin(JcrConstants.MIX_REFERENCEABLE);
+    }
+    return linkNode;
+  }
+
+  /**
+   * Record a link and its site on the file it links to, without saving it.
+   * 
+   * @param adminFileNode
+   *          the file, through a session that can change it.
+   * @param linkNode
+   * @param sitePath
+   * @throws RepositoryException
+   */
+  public static void addLinkReferences(Node adminFileNode, Node linkNode, String sitePath)
+      throws RepositoryException {
+    addValue(adminFileNode, "jcr:reference", linkNode.getUUID());
+    addValue(adminFileNode, "sakai:sites", sitePath);
+    addValue(adminFileNode, "sakai:linkpaths", linkNode.getPath());
+  }
+
   /**
    * Add a value to to a multi-valued property.
    * 
@@ -326,7 +431,8 @@ public class FileUtils {
 
   /**
    * Writes all the properties of a sakai/file node. Also checks what the permissions are
-   * for a session and where the links are.
+   * for a session and where the links are. When many nodes are written for one request
+   * use a single {@link FileMetadataResolver} for all of them instead.
    * 
    * @param node
    * @param write
@@ -335,34 +441,7 @@ public class FileUtils {
    */
   public static void writeFileNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
-    write.object();
-    // dump all the properties.
-    ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
-    // The permissions for this session.
-    writePermissions(node, session, write);
-
-    // The download path to this file.
-    write.key("path");
-    write.value(FileUtils.getDownloadPath(node));
-
-    if (node.hasNode(JcrConstants.JCR_CONTENT)) {
-      Node contentNode = node.getNode(JcrConstants.JCR_CONTENT);
-      write.key(JcrConstants.JCR_LASTMODIFIED);
-      Calendar cal = contentNode.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate();
-      write.value(FilesConstants.DATEFORMAT.format(cal));
-      write.key(FilesConstants.SAKAI_MIMETYPE);
-      write.value(contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString());
-
-      if (contentNode.hasProperty(JcrConstants.JCR_DATA)) {
-        write.key("filesize");
-        write.value(contentNode.getProperty(JcrConstants.JCR_DATA).getLength());
-      }
-    }
-
-    // Get all the sites where this file is referenced.
-    getSites(node, write, siteService);
-
-    write.endObject();
+    new FileMetadataResolver(session, siteService).writeFileNode(node, write);
   }
 
   /**
@@ -376,141 +455,6 @@ public class FileUtils {
    */
   public static void writeLinkNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
-    write.object();
-    // Write all the properties.
-    ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
-    // The name of this file.
-    write.key("name");
-    write.value(node.getName());
-    // Download path.
-    write.key("path");
-    write.value(node.getPath());
-    // permissions
-    writePermissions(node, session, write);
-
-    // Write the actual file.
-    if (node.hasProperty("jcr:reference")) {
-      String uuid = node.getProperty("jcr:reference").getString();
-      write.key("file");
-      try {
-        Node fileNode = session.getNodeByUUID(uuid);
-        writeFileNode(fileNode, session, write, siteService);
-      } catch (ItemNotFoundException e) {
-        write.value(false);
-      }
-    }
-
-    write.endObject();
-  }
-
-  /**
-   * Gives the permissions for this user.
-   * 
-   * @param node
-   * @param session
-   * @param write
-   * @throws RepositoryException
-   * @throws JSONException
-   */
-  private static void writePermissions(Node node, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
-    String path = node.getPath();
-    write.key("permissions");
-    write.object();
-    write.key("set_property");
-    write.value(hasPermission(session, path, "set_property"));
-    write.key("read");
-    write.value(hasPermission(session, path, "read"));
-    write.key("remove");
-    write.value(hasPermission(session, path, "remove"));
-    write.endObject();
-  }
-
-  /**
-   * Checks if the current user has a permission on a path.
-   * 
-   * @param session
-   * @param path
-   * @param permission
-   * @return
-   */
-  private static boolean hasPermission(Session session, String path, String permission) {
-    try {
-      session.checkPermission(path, permission);
-      return true;
-    } catch (AccessControlException e) {
-      return false;
-    } catch (RepositoryException e) {
-      return false;
-    }
-  }
-
-  /**
-   * Gets all the sites where this file is used and parses the info for it.
-   * 
-   * @param node
-   * @param write
-   * @throws RepositoryException
-   * @throws JSONException
-   */
-  private static void getSites(Node node, JSONWriter write, SiteService siteService)
-      throws RepositoryException, JSONException {
-
-    write.key("usedIn");
-    write.object();
-    write.key("sites");
-    write.array();
-
-    Value[] sites = JcrUtils.getValues(node, "sakai:sites");
-    Session session = node.getSession();
-
-    int total = 0;
-    try {
-      List<String> handledSites = new ArrayList<String>();
-      for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = (Node) session.getItem(v.getString());
-
-          AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-          Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-          Privilege[] privs = new Privilege[] { read };
-          boolean hasAccess = acm.hasPrivileges(path, privs);
-          if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
-            total++;
-          }
-        }
-      }
-    } catch (Exception e) {
-      // We ignore every exception it has when looking up sites.
-      // it is dirty ..
-      log.info("Catched exception when looking up used sites for a file.");
-      e.printStackTrace();
-    }
-    write.endArray();
-    write.key("total");
-    write.value(total);
-    write.endObject();
-  }
-
-  /**
-   * Parses the info for a site.
-   * 
-   * @param siteNode
-   * @param write
-   * @throws JSONException
-   * @throws RepositoryException
-   */
-  private static void writeSiteInfo(Node siteNode, JSONWriter write,
-      SiteService siteService) throws JSONException, RepositoryException {
-    write.object();
-    write.key("member-count");
-    write.value(String.valueOf(siteService.getMemberCount(siteNode)));
-    write.key("path");
-    write.value(siteNode.getPath());
-    ExtendedJSONWriter.writeNodeContentsToWriter(write, siteNode);
-    write.endObject();
+    new FileMetadataResolver(session, siteService).writeLinkNode(node, write);
   }
 }
@@ -73,6 +73,27 @@ public interface FilesConstants {
    */
   public static final String SAKAI_LINK = "sakai:link";
 
+  /**
+   * The root of the content addressed blob store, blobs live at hashed paths below it.
+   */
+  public static final String BLOB_ROOT = "/var/files/blobs";
+  /**
+   * sakai:blob, the path of the blob a file's content came from.
+   */
+  public static final String SAKAI_BLOB = "sakai:blob";
+  /**
+   * sakai:hash, the SHA-256 of a blob's content.
+   */
+  public static final String SAKAI_HASH = "sakai:hash";
+  /**
+   * sakai:references, the paths of the files that use a blob.
+   */
+  public static final String SAKAI_REFERENCES = "sakai:references";
+  /**
+   * sakai:refCount, the number of files that use a blob.
+   */
+  public static final String SAKAI_REFCOUNT = "sakai:refCount";
+
   /**
    * FileHandlerProcessor
    */
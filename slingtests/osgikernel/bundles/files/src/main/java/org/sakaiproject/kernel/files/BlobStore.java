@@ -0,0 +1,750 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files;
+
+import static org.sakaiproject.kernel.util.ACLUtils.READ_DENIED;
+import static org.sakaiproject.kernel.util.ACLUtils.WRITE_DENIED;
+import static org.sakaiproject.kernel.util.ACLUtils.addEntry;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.files.FilesConstants;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.sakaiproject.kernel.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Item;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A content addressed store for the binaries of uploaded files. An upload is spooled to
+ * a temporary file while its SHA-256 is taken, and is only written to the repository if
+ * no blob with that hash exists, at a path hashed the same way as the file stores. A
+ * file takes the value of the blob's jcr:data, which the repository's data store holds
+ * once however many properties use it. Each blob lists the paths of the files that use
+ * it and is removed once the last of them is removed or given other content. Removals
+ * are watched while deduplication is on or any blob is stored, and handled on a thread of
+ * the store's own. A move is seen as the removal of the old path and the addition of the
+ * new one in the same save, so the files that turn up under the new path are listed
+ * before the old path is released, and a blob that is still used is never removed.
+ */
+@Component(immediate = true, metatype = true, label = "BlobStore")
+@Service(value = BlobStore.class)
+@Properties(value = {
+    @Property(name = "service.description", value = "Content addressed store for the binaries of uploaded files."),
+    @Property(name = "service.vendor", value = "The Sakai Foundation") })
+public class BlobStore implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+  private static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.files:type=BlobStore";
+  /**
+   * The number of times a change to a blob is tried when it clashes with another.
+   */
+  private static final int MAX_ATTEMPTS = 5;
+  /**
+   * The number of removed paths looked for in one query.
+   */
+  private static final int MAX_QUERY_PATHS = 50;
+
+  @Property(boolValue = false, description = "Store the content of uploads once for each distinct SHA-256, files use the stored blob.")
+  static final String DEDUP = "sakai.files.dedup";
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  private final BlobStoreMetrics metrics = new BlobStoreMetrics();
+  private volatile boolean enabled;
+  private Session session;
+  private ExecutorService executor;
+
+  /**
+   * A blob in the store.
+   */
+  public static class Blob {
+    private final String path;
+    private final String hash;
+    private final long length;
+    private final Value data;
+    private final boolean deduplicated;
+
+    Blob(String path, String hash, long length, Value data, boolean deduplicated) {
+      this.path = path;
+      this.hash = hash;
+      this.length = length;
+      this.data = data;
+      this.deduplicated = deduplicated;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return the value of the blob's jcr:data.
+     */
+    public Value getData() {
+      return data;
+    }
+
+    /**
+     * @return true if the blob was already in the store.
+     */
+    public boolean isDeduplicated() {
+      return deduplicated;
+    }
+  }
+
+  /**
+   * An upload spooled to a temporary file.
+   */
+  static class Spool {
+    final File file;
+    final String hash;
+    final long length;
+
+    Spool(File file, String hash, long length) {
+      this.file = file;
+      this.hash = hash;
+      this.length = length;
+    }
+
+    void delete() {
+      if (!file.delete()) {
+        LOGGER.warn("Unable to delete {} ", file);
+      }
+    }
+  }
+
+  protected void activate(ComponentContext ctx) throws RepositoryException {
+    Dictionary<?, ?> props = ctx.getProperties();
+    Boolean _dedup = (Boolean) props.get(DEDUP);
+    enabled = _dedup != null && _dedup;
+    registerMBean(metrics);
+    Session adminSession = slingRepository.loginAdministrative(null);
+    boolean observing = false;
+    try {
+      if (enabled) {
+        createRoot(adminSession);
+      }
+      // files stored while deduplication was on still use blobs after it is turned off,
+      // so removals are watched as long as there are any.
+      if (enabled || hasBlobs(adminSession)) {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "blob-store");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        adminSession.getWorkspace().getObservationManager().addEventListener(this,
+            Event.NODE_ADDED | Event.NODE_REMOVED, "/", true, null, null, false);
+        session = adminSession;
+        observing = true;
+      }
+    } finally {
+      if (!observing) {
+        adminSession.logout();
+      }
+    }
+    LOGGER.info("Blob store started, deduplication is {} ", enabled ? "on" : "off");
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove blob store listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+    unregisterMBean();
+  }
+
+  private boolean hasBlobs(Session adminSession) throws RepositoryException {
+    return adminSession.itemExists(FilesConstants.BLOB_ROOT)
+        && ((Node) adminSession.getItem(FilesConstants.BLOB_ROOT)).hasNodes();
+  }
+
+  /**
+   * @return true if uploads should be stored as blobs.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return the metrics of the store.
+   */
+  public BlobStoreMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Store some content, or find it if it is already stored, on behalf of a file.
+   * 
+   * @param in
+   *          the content, which is read to the end but not closed.
+   * @param filePath
+   *          the path of the file that will use the blob.
+   * @return the blob.
+   * @throws IOException
+   * @throws RepositoryException
+   */
+  public Blob store(InputStream in, String filePath) throws IOException,
+      RepositoryException {
+    Spool spool = spool(in);
+    try {
+      String blobPath = getBlobPath(spool.hash);
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        for (int attempt = 1;; attempt++) {
+          try {
+            return store(adminSession, blobPath, spool, filePath);
+          } catch (ItemExistsException e) {
+            // another upload of the same content created the blob first.
+            retry(adminSession, attempt, e);
+          } catch (InvalidItemStateException e) {
+            retry(adminSession, attempt, e);
+          }
+        }
+      } finally {
+        adminSession.logout();
+      }
+    } finally {
+      spool.delete();
+    }
+  }
+
+  private Blob store(Session adminSession, String blobPath, Spool spool, String filePath)
+      throws IOException, RepositoryException {
+    boolean created = false;
+    Node blobNode;
+    if (adminSession.itemExists(blobPath)) {
+      blobNode = (Node) adminSession.getItem(blobPath);
+    } else {
+      blobNode = JcrUtils.deepGetOrCreateNode(adminSession, blobPath, JcrConstants.NT_FILE);
+      blobNode.addMixin("sakai:propertiesmix");
+      blobNode.setProperty(FilesConstants.SAKAI_HASH, spool.hash);
+      Node content = blobNode.addNode(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE);
+      InputStream data = new FileInputStream(spool.file);
+      try {
+        content.setProperty(JcrConstants.JCR_DATA, data);
+      } finally {
+        data.close();
+      }
+      content.setProperty(JcrConstants.JCR_MIMETYPE, "application/octet-stream");
+      content.setProperty(JcrConstants.JCR_LASTMODIFIED, Calendar.getInstance());
+      created = true;
+    }
+    String[] references = getReferences(blobNode);
+    String[] newReferences = StringUtils.addString(references, filePath);
+    if (newReferences != references) {
+      setReferences(blobNode, newReferences);
+    }
+    if (adminSession.hasPendingChanges()) {
+      adminSession.save();
+    }
+    if (created) {
+      metrics.blobStored(spool.length);
+    } else {
+      metrics.blobDeduplicated(spool.length);
+    }
+    Value data = blobNode.getNode(JcrConstants.JCR_CONTENT).getProperty(
+        JcrConstants.JCR_DATA).getValue();
+    return new Blob(blobPath, spool.hash, spool.length, data, !created);
+  }
+
+  /**
+   * A file no longer uses a blob, because it was given other content or was never saved.
+   * 
+   * @param blobPath
+   * @param filePath
+   * @throws RepositoryException
+   */
+  public void release(String blobPath, String filePath) throws RepositoryException {
+    Set<String> filePaths = new LinkedHashSet<String>();
+    filePaths.add(filePath);
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      release(adminSession, blobPath, filePaths, false);
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * Bring the blobs up to date with nodes that were removed and added in one save.
+   * 
+   * @param removedPaths
+   *          the paths of nodes that were removed, most of which will not be files with
+   *          blobs. The files below them are released too.
+   * @param addedPaths
+   *          the paths of nodes that were added with them, which are looked through for
+   *          files that were moved.
+   * @throws RepositoryException
+   */
+  protected void process(Set<String> removedPaths, Set<String> addedPaths)
+      throws RepositoryException {
+    Set<String> removed = getTopmost(removedPaths);
+    Set<String> added = getTopmost(addedPaths);
+    Session adminSession = slingRepository.loginAdministrative(null);
+    try {
+      // list the new paths of moved files first, so their blobs are still used when the
+      // old paths are released.
+      Map<String, Set<String>> moved = getBlobUsers(adminSession, added);
+      for (Map.Entry<String, Set<String>> blob : moved.entrySet()) {
+        reference(adminSession, blob.getKey(), blob.getValue());
+      }
+      Set<String> blobPaths = new LinkedHashSet<String>();
+      List<String> chunk = new ArrayList<String>();
+      for (Iterator<String> i = removed.iterator(); i.hasNext();) {
+        chunk.add(i.next());
+        if (chunk.size() == MAX_QUERY_PATHS || !i.hasNext()) {
+          Query query = adminSession.getWorkspace().getQueryManager().createQuery(
+              getReferencesQuery(chunk), Query.XPATH);
+          for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+            blobPaths.add(nodes.nextNode().getPath());
+          }
+          chunk.clear();
+        }
+      }
+      for (String blobPath : blobPaths) {
+        release(adminSession, blobPath, removed, true);
+      }
+    } finally {
+      adminSession.logout();
+    }
+  }
+
+  /**
+   * @return the files at or below some paths that use a blob, by the path of the blob.
+   */
+  private Map<String, Set<String>> getBlobUsers(Session adminSession, Set<String> paths)
+      throws RepositoryException {
+    Map<String, Set<String>> users = new LinkedHashMap<String, Set<String>>();
+    for (String path : paths) {
+      if (!adminSession.itemExists(path)) {
+        continue;
+      }
+      Item item = adminSession.getItem(path);
+      if (!item.isNode()) {
+        continue;
+      }
+      Node node = (Node) item;
+      addBlobUser(node, users);
+      if (node.hasNodes()) {
+        Query query = adminSession.getWorkspace().getQueryManager().createQuery(
+            "/jcr:root" + ISO9075.encodePath(path) + "//*[@" + FilesConstants.SAKAI_BLOB
+                + "]", Query.XPATH);
+        for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+          addBlobUser(nodes.nextNode(), users);
+        }
+      }
+    }
+    return users;
+  }
+
+  private void addBlobUser(Node node, Map<String, Set<String>> users)
+      throws RepositoryException {
+    if (node.hasProperty(FilesConstants.SAKAI_BLOB)) {
+      String blobPath = node.getProperty(FilesConstants.SAKAI_BLOB).getString();
+      Set<String> filePaths = users.get(blobPath);
+      if (filePaths == null) {
+        filePaths = new LinkedHashSet<String>();
+        users.put(blobPath, filePaths);
+      }
+      filePaths.add(node.getPath());
+    }
+  }
+
+  private void reference(Session adminSession, String blobPath, Set<String> filePaths)
+      throws RepositoryException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        if (!adminSession.itemExists(blobPath)) {
+          LOGGER.warn("Files {} use blob {} which is gone ", filePaths, blobPath);
+          return;
+        }
+        Node blobNode = (Node) adminSession.getItem(blobPath);
+        String[] references = getReferences(blobNode);
+        String[] newReferences = references;
+        for (String filePath : filePaths) {
+          newReferences = StringUtils.addString(newReferences, filePath);
+        }
+        if (newReferences != references) {
+          setReferences(blobNode, newReferences);
+          adminSession.save();
+        }
+        return;
+      } catch (InvalidItemStateException e) {
+        retry(adminSession, attempt, e);
+      }
+    }
+  }
+
+  /**
+   * @param filePaths
+   *          the paths to drop from the blob's references.
+   * @param removed
+   *          true if the paths were removed, in which case references below them are
+   *          dropped too, unless the file there still uses the blob.
+   */
+  private void release(Session adminSession, String blobPath, Set<String> filePaths,
+      boolean removed) throws RepositoryException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        if (!adminSession.itemExists(blobPath)) {
+          return;
+        }
+        Node blobNode = (Node) adminSession.getItem(blobPath);
+        String[] references = getReferences(blobNode);
+        String[] newReferences = references;
+        if (removed) {
+          for (String reference : references) {
+            if (isAtOrBelow(reference, filePaths)
+                && !usesBlob(adminSession, reference, blobPath)) {
+              newReferences = StringUtils.removeString(newReferences, reference);
+            }
+          }
+        } else {
+          for (String filePath : filePaths) {
+            newReferences = StringUtils.removeString(newReferences, filePath);
+          }
+        }
+        if (newReferences == references) {
+          return;
+        }
+        long length = -1;
+        if (newReferences.length == 0) {
+          length = blobNode.getNode(JcrConstants.JCR_CONTENT).getProperty(
+              JcrConstants.JCR_DATA).getLength();
+          blobNode.remove();
+        } else {
+          setReferences(blobNode, newReferences);
+        }
+        adminSession.save();
+        if (length >= 0) {
+          metrics.blobRemoved(length);
+        }
+        return;
+      } catch (InvalidItemStateException e) {
+        retry(adminSession, attempt, e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    final Set<String> removed = new LinkedHashSet<String>();
+    final Set<String> added = new LinkedHashSet<String>();
+    while (events.hasNext()) {
+      try {
+        Event event = events.nextEvent();
+        String path = event.getPath();
+        if (path.startsWith(FilesConstants.BLOB_ROOT + "/")) {
+          continue;
+        }
+        if (event.getType() == Event.NODE_REMOVED) {
+          removed.add(path);
+        } else {
+          added.add(path);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to get the path of a changed node {} ", e.getMessage());
+      }
+    }
+    // nodes that are only added can not have taken a blob from anywhere.
+    ExecutorService executor = this.executor;
+    if (removed.isEmpty() || executor == null) {
+      return;
+    }
+    // the queries and saves are kept off the thread that delivers the events.
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            process(removed, added);
+          } catch (RepositoryException e) {
+            LOGGER.error("Failed to release the blobs of removed files " + e.getMessage(),
+                e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Blob store is stopping, the blobs of {} are not released ", removed);
+    }
+  }
+
+  /**
+   * @return the paths that are not below another of the paths.
+   */
+  protected static Set<String> getTopmost(Set<String> paths) {
+    Set<String> topmost = new LinkedHashSet<String>();
+    // a parent sorts before the paths below it.
+    for (String path : new TreeSet<String>(paths)) {
+      if (!isAtOrBelow(path, topmost)) {
+        topmost.add(path);
+      }
+    }
+    return topmost;
+  }
+
+  private static boolean isAtOrBelow(String path, Set<String> parents) {
+    for (String parent : parents) {
+      if (isAtOrBelow(path, parent)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isAtOrBelow(String path, String parent) {
+    return path.equals(parent) || path.startsWith(parent + "/");
+  }
+
+  private static boolean usesBlob(Session adminSession, String filePath, String blobPath)
+      throws RepositoryException {
+    if (!adminSession.itemExists(filePath)) {
+      return false;
+    }
+    Item item = adminSession.getItem(filePath);
+    return item.isNode() && ((Node) item).hasProperty(FilesConstants.SAKAI_BLOB)
+        && blobPath.equals(((Node) item).getProperty(FilesConstants.SAKAI_BLOB).getString());
+  }
+
+  /**
+   * @param hash
+   * @return the path of the blob with a hash.
+   */
+  protected static String getBlobPath(String hash) {
+    return PathUtils.toInternalHashedPath(FilesConstants.BLOB_ROOT, hash, "");
+  }
+
+  /**
+   * @param filePaths
+   * @return an XPath query for the blobs that any of the files, or the files below them,
+   *         use.
+   */
+  protected static String getReferencesQuery(List<String> filePaths) {
+    StringBuilder sb = new StringBuilder("/jcr:root");
+    sb.append(ISO9075.encodePath(FilesConstants.BLOB_ROOT));
+    sb.append("//element(*, nt:file)[");
+    for (int i = 0; i < filePaths.size(); i++) {
+      if (i > 0) {
+        sb.append(" or ");
+      }
+      String filePath = filePaths.get(i);
+      sb.append("@").append(FilesConstants.SAKAI_REFERENCES).append(" = '");
+      sb.append(filePath.replace("'", "''")).append("'");
+      sb.append(" or jcr:like(@").append(FilesConstants.SAKAI_REFERENCES).append(", '");
+      sb.append(filePath.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+          .replace("'", "''"));
+      sb.append("/%')");
+    }
+    return sb.append("]").toString();
+  }
+
+  /**
+   * Copy content to a temporary file, taking its SHA-256 on the way.
+   * 
+   * @param in
+   * @return the spooled content.
+   * @throws IOException
+   */
+  static Spool spool(InputStream in) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    File file = File.createTempFile("sakai-blob", ".tmp");
+    long length = 0;
+    boolean spooled = false;
+    try {
+      OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file)), digest);
+      try {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+          length += n;
+        }
+      } finally {
+        out.close();
+      }
+      spooled = true;
+    } finally {
+      if (!spooled && !file.delete()) {
+        LOGGER.warn("Unable to delete {} ", file);
+      }
+    }
+    return new Spool(file, toHex(digest.digest()), length);
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+      sb.append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static String[] getReferences(Node blobNode) throws RepositoryException {
+    Value[] values = JcrUtils.getValues(blobNode, FilesConstants.SAKAI_REFERENCES);
+    String[] references = new String[values.length];
+    for (int i = 0; i < values.length; i++) {
+      references[i] = values[i].getString();
+    }
+    return references;
+  }
+
+  private static void setReferences(Node blobNode, String[] references)
+      throws RepositoryException {
+    blobNode.setProperty(FilesConstants.SAKAI_REFERENCES, references);
+    blobNode.setProperty(FilesConstants.SAKAI_REFCOUNT, references.length);
+  }
+
+  private static void retry(Session adminSession, int attempt, RepositoryException e)
+      throws RepositoryException {
+    if (attempt >= MAX_ATTEMPTS) {
+      throw e;
+    }
+    LOGGER.debug("Blob changed while it was being saved, retrying {} ", e.getMessage());
+    adminSession.refresh(false);
+  }
+
+  /**
+   * Make sure the root of the store exists and only the administrator can see it, the
+   * content of a blob is read through the files that use it.
+   * 
+   * @param adminSession
+   * @throws RepositoryException
+   */
+  private void createRoot(Session adminSession) throws RepositoryException {
+    if (adminSession.itemExists(FilesConstants.BLOB_ROOT)) {
+      return;
+    }
+    Node root = JcrUtils.deepGetOrCreateNode(adminSession, FilesConstants.BLOB_ROOT);
+    UserManager userManager = AccessControlUtil.getUserManager(adminSession);
+    PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(adminSession);
+    Authorizable everyone = userManager.getAuthorizable(principalManager.getEveryone());
+    if (everyone != null) {
+      addEntry(root.getPath(), everyone, adminSession, READ_DENIED, WRITE_DENIED);
+    }
+    if (adminSession.hasPendingChanges()) {
+      adminSession.save();
+    }
+  }
+
+  private void registerMBean(Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(mbean, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
+  }
+}
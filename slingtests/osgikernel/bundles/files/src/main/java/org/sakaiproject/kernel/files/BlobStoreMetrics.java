@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what passes through the blob store. Every upload is either stored as a new
+ * blob or deduplicated against one that is already there, and the bytes of the
+ * deduplicated uploads are the bytes the store has saved.
+ */
+public class BlobStoreMetrics implements BlobStoreMetricsMBean {
+
+  private final AtomicLong stored = new AtomicLong();
+  private final AtomicLong deduplicated = new AtomicLong();
+  private final AtomicLong removed = new AtomicLong();
+  private final AtomicLong bytesStored = new AtomicLong();
+  private final AtomicLong bytesSaved = new AtomicLong();
+  private final AtomicLong bytesReleased = new AtomicLong();
+
+  /**
+   * @param length
+   *          the length of a blob that was written to the repository.
+   */
+  public void blobStored(long length) {
+    stored.incrementAndGet();
+    bytesStored.addAndGet(length);
+  }
+
+  /**
+   * @param length
+   *          the length of an upload that was already in the store.
+   */
+  public void blobDeduplicated(long length) {
+    deduplicated.incrementAndGet();
+    bytesSaved.addAndGet(length);
+  }
+
+  /**
+   * @param length
+   *          the length of a blob that was removed once nothing used it.
+   */
+  public void blobRemoved(long length) {
+    removed.incrementAndGet();
+    bytesReleased.addAndGet(length);
+  }
+
+  public long getStored() {
+    return stored.get();
+  }
+
+  public long getDeduplicated() {
+    return deduplicated.get();
+  }
+
+  public long getRemoved() {
+    return removed.get();
+  }
+
+  public long getBytesStored() {
+    return bytesStored.get();
+  }
+
+  public long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  public long getBytesReleased() {
+    return bytesReleased.get();
+  }
+
+  public void reset() {
+    stored.set(0);
+    deduplicated.set(0);
+    removed.set(0);
+    bytesStored.set(0);
+    bytesSaved.set(0);
+    bytesReleased.set(0);
+  }
+}
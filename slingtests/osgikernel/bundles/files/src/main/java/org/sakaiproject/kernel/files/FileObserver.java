@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
@@ -28,156 +29,356 @@ import org.sakaiproject.kernel.api.files.FilesConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.AccessDeniedException;
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import javax.jcr.InvalidItemStateException;
-import javax.jcr.ItemExistsException;
+import javax.jcr.Item;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.lock.LockException;
-import javax.jcr.nodetype.ConstraintViolationException;
-import javax.jcr.nodetype.NoSuchNodeTypeException;
-import javax.jcr.observation.ObservationManager;
-import javax.jcr.version.VersionException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * TODO: needs javadoc
+ * Gives files that are added without a sling resource type, over WebDAV for example, the
+ * sakai/file resource type. The listener only notes the path of each added file, so
+ * observation is never held up by the repository work. Events for a file that come within
+ * the coalescing window are handled once, by a single worker thread. A file that isn't
+ * visible yet, is locked or clashes with another save is tried again after a delay that
+ * doubles each time, up to a limit. When too many files are waiting the new ones are
+ * dropped and counted rather than letting a bulk import back up observation for every
+ * other listener.
  */
+@Component(immediate = true, metatype = true, label = "FileObserver")
+@Properties(value = {
+    @Property(name = "service.description", value = "Observer who listens to added nodes."),
+    @Property(name = "service.vendor", value = "The Sakai Foundation") })
+public class FileObserver implements EventListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileObserver.class);
+  private static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.files:type=FileObserver";
+
+  @Property(boolValue = false, description = "Give nt:file nodes added without a resource type the sakai/file resource type.")
+  static final String ENABLED = "sakai.files.observer.enabled";
+
+  @Property(intValue = 1000, description = "The number of files that may wait to be processed, files added when it is full are dropped.")
+  static final String QUEUE_SIZE = "sakai.files.observer.queue.size";
+
+  @Property(intValue = 500, description = "How long (ms) to wait for more events for a file before processing it.")
+  static final String COALESCE_WINDOW = "sakai.files.observer.coalesce.window";
+
+  @Property(intValue = 1000, description = "How long (ms) to wait before trying a file again, doubled for each retry.")
+  static final String RETRY_DELAY = "sakai.files.observer.retry.delay";
+
+  @Property(intValue = 5, description = "The number of times a file is tried again before it is given up on.")
+  static final String MAX_RETRIES = "sakai.files.observer.retry.max";
 
-@Component(label="FileObserver", immediate=true)
-@Properties(value={@Property(name="service.description", value="Observer who listens to added nodes."),
-    @Property(name="service.vendor", value="The Sakai Foundation")})
-public class FileObserver {
-  private static final Logger log = LoggerFactory.getLogger(FileObserver.class);
-  
   @Reference
-  private SlingRepository slingRepository;
+  protected SlingRepository slingRepository;
 
-  private Session session = null;
+  private final Map<String, PendingFile> pending = new HashMap<String, PendingFile>();
+  private final FileObserverMetrics metrics = new FileObserverMetrics(pending);
+  private int queueSize = 1000;
+  private long coalesceWindow = 500;
+  private long retryDelay = 1000;
+  private int maxRetries = 5;
+  private ScheduledExecutorService executor;
+  private Session session;
 
-  protected void activate(ComponentContext ctxt) {
-    try {
-      log.info("Activating service.");
-      session = slingRepository.loginAdministrative(null);
-      ObservationManager observationManager = session.getWorkspace()
-          .getObservationManager();
-      String[] types = { "nt:file" };
-      /*
-      observationManager.addEventListener(new EventListener() {
-        public void onEvent(EventIterator eventIterator) {
-          while (eventIterator.hasNext()) {
-            Event event = eventIterator.nextEvent();
-            if (event.getType() == Event.NODE_ADDED) {
-              log.info("New event.");
-
-              Session adminSession = null;
-              try {
-                String path = event.getPath();
-                adminSession = slingRepository.loginAdministrative(null);
-                Node node = (Node) adminSession.getItem(path);
-
-                if (node.getName().equals(JcrConstants.JCR_CONTENT)) {
-                  node = node.getParent();
-                }
-
-                path = node.getPath();
-
-                log.info("Grabbed node: " + node.getPath());
-
-                // If the name contains a : it's not uploaded trough webdav, so we
-                // should ignore it.
-                // Files starting with a dot are ignored as well.
-                if (!node.getName().startsWith(".") && node.getName().indexOf(":") == -1) {
-                  // We only catch nodes who don't have a sling resource type property
-                  // set.
-                  if (!node
-                      .hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
-                    log.info("Node doesn't have a sling resourceType");
-
-                    // Thread.sleep(1000);
-                    addProps(node, path, adminSession);
-
-                  }
-                }
-              } catch (LoginException e) {
-                log.error(e.getMessage(), e);
-                e.printStackTrace();
-              } catch (RepositoryException e) {
-                log.error(e.getMessage(), e);
-                e.printStackTrace();
-              } finally {
-                if (adminSession != null)
-                  adminSession.logout();
-              }
-
-            }
-          }
-        }
-      }, Event.NODE_ADDED, "/", true, null, types, true);
-      log.info("Started observing changes to the repository.");
-      */
-    } catch (RepositoryException e1) {
-      e1.printStackTrace();
+  /**
+   * A file waiting to be processed.
+   */
+  static class PendingFile {
+    final String path;
+    final String userID;
+    final long queued;
+    int retries;
+
+    PendingFile(String path, String userID, long queued) {
+      this.path = path;
+      this.userID = userID;
+      this.queued = queued;
+    }
+  }
+
+  protected void activate(ComponentContext ctx) throws RepositoryException {
+    Dictionary<?, ?> props = ctx.getProperties();
+    Integer _queueSize = (Integer) props.get(QUEUE_SIZE);
+    if (_queueSize != null && _queueSize > 0) {
+      queueSize = _queueSize;
+    }
+    Integer _coalesceWindow = (Integer) props.get(COALESCE_WINDOW);
+    if (_coalesceWindow != null && _coalesceWindow >= 0) {
+      coalesceWindow = _coalesceWindow;
+    }
+    Integer _retryDelay = (Integer) props.get(RETRY_DELAY);
+    if (_retryDelay != null && _retryDelay > 0) {
+      retryDelay = _retryDelay;
+    }
+    Integer _maxRetries = (Integer) props.get(MAX_RETRIES);
+    if (_maxRetries != null && _maxRetries >= 0) {
+      maxRetries = _maxRetries;
     }
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "file-observer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    registerMBean(metrics);
 
+    Boolean _enabled = (Boolean) props.get(ENABLED);
+    if (_enabled != null && _enabled) {
+      session = slingRepository.loginAdministrative(null);
+      session.getWorkspace().getObservationManager().addEventListener(this,
+          Event.NODE_ADDED, "/", true, null, new String[] { JcrConstants.NT_FILE }, true);
+      LOGGER.info("Started observing files added to the repository.");
+    }
   }
 
-  protected void addProps(Node node, String path, Session adminSession)
-      throws NoSuchNodeTypeException, VersionException, ConstraintViolationException,
-      LockException, RepositoryException {
+  protected void deactivate(ComponentContext ctx) {
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove file observer {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    synchronized (pending) {
+      if (!pending.isEmpty()) {
+        LOGGER.info("File observer stopped with {} files waiting", pending.size());
+        pending.clear();
+      }
+    }
+    unregisterMBean();
+  }
 
-    while (node.isNew() || node.isLocked()) {
-      log.info("Node is new/locked wait untill it is not.");
-      Thread.yield();
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      if (event.getType() != Event.NODE_ADDED) {
+        continue;
+      }
+      try {
+        String path = getFilePath(event.getPath());
+        if (path != null) {
+          enqueue(path, event.getUserID());
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to get the path of an added node {} ", e.getMessage());
+      }
     }
+  }
 
-    // Add the mixin so we can set properties on this file.
-    if (node.canAddMixin("sakai:propertiesmix")) {
-      log.info("Adding sakai:propertiesmix.");
-      node.addMixin("sakai:propertiesmix");
+  /**
+   * @param path
+   *          the path of an added node.
+   * @return the path of the file the node is, or is the content of, or null if it is a
+   *         file that is left alone.
+   */
+  static String getFilePath(String path) {
+    if (path.endsWith("/" + JcrConstants.JCR_CONTENT)) {
+      path = path.substring(0, path.length() - JcrConstants.JCR_CONTENT.length() - 1);
+    }
+    if (path.startsWith(FilesConstants.BLOB_ROOT + "/")) {
+      return null;
+    }
+    // If the name contains a : it's not uploaded trough webdav, so we should ignore it.
+    // Files starting with a dot are ignored as well.
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (name.length() == 0 || name.startsWith(".") || name.indexOf(':') != -1) {
+      return null;
     }
-    // Set resourcetype to sakai/file, set the sakai:filename and the
-    // sakai:user
-    node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-        FilesConstants.RT_SAKAI_FILE);
-    node.setProperty(FilesConstants.SAKAI_FILENAME, node.getName());
-    node.setProperty(FilesConstants.SAKAI_USER, node.getSession().getUserID());
+    return path;
+  }
 
-    log.info("Set properties.");
+  /**
+   * Queue a file to be processed once the coalescing window has passed.
+   * 
+   * @param path
+   * @param userID
+   *          the user who added the file.
+   */
+  protected void enqueue(String path, String userID) {
+    synchronized (pending) {
+      if (pending.containsKey(path)) {
+        metrics.fileCoalesced();
+        return;
+      }
+      if (pending.size() >= queueSize) {
+        metrics.fileDropped();
+        LOGGER.warn("File observer queue is full, {} will not be given a resource type", path);
+        return;
+      }
+      PendingFile file = new PendingFile(path, userID, System.nanoTime());
+      pending.put(path, file);
+      metrics.fileQueued();
+      schedule(file, coalesceWindow);
+    }
+  }
 
-    saveSession(node, path, adminSession);
+  private void schedule(final PendingFile file, long delay) {
+    ScheduledExecutorService executor = this.executor;
+    try {
+      if (executor != null) {
+        executor.schedule(new Runnable() {
+          public void run() {
+            process(file);
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+        return;
+      }
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("File observer is stopping, {} is dropped", file.path);
+    }
+    synchronized (pending) {
+      pending.remove(file.path);
+    }
+  }
 
-    log.info("Saved session.");
+  /**
+   * Process a file, and schedule it to be tried again if it can't be yet.
+   * 
+   * @param file
+   */
+  protected void process(PendingFile file) {
+    synchronized (pending) {
+      // events that come from now on queue the file again.
+      pending.remove(file.path);
+    }
+    boolean done = false;
+    try {
+      done = addProps(file.path, file.userID);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to add the properties to {} {} ", file.path, e.getMessage());
+    }
+    if (done) {
+      metrics.fileProcessed(System.nanoTime() - file.queued);
+      return;
+    }
+    if (file.retries >= maxRetries) {
+      metrics.fileFailed();
+      LOGGER.warn("Gave up adding the properties to {} after {} retries", file.path,
+          file.retries);
+      return;
+    }
+    synchronized (pending) {
+      if (pending.containsKey(file.path)) {
+        // a later event has queued it again.
+        return;
+      }
+      pending.put(file.path, file);
+    }
+    metrics.fileRetried();
+    schedule(file, retryDelay << file.retries++);
   }
 
-  private void saveSession(Node node, String path, Session adminSession)
-      throws AccessDeniedException, ItemExistsException, ConstraintViolationException,
-      VersionException, NoSuchNodeTypeException, RepositoryException {
+  /**
+   * Give a file the sakai/file resource type, if it doesn't have one.
+   * 
+   * @param path
+   * @param userID
+   * @return false if the file should be tried again later.
+   * @throws RepositoryException
+   */
+  protected boolean addProps(String path, String userID) throws RepositoryException {
+    Session adminSession = slingRepository.loginAdministrative(null);
     try {
-      if (adminSession.hasPendingChanges())
-        adminSession.save();
+      if (!adminSession.itemExists(path)) {
+        LOGGER.debug("{} is not visible yet", path);
+        return false;
+      }
+      Item item = adminSession.getItem(path);
+      if (!item.isNode()) {
+        return true;
+      }
+      Node node = (Node) item;
+      // We only catch nodes who don't have a sling resource type property set.
+      if (node.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
+        return true;
+      }
+      if (node.isLocked()) {
+        LOGGER.debug("{} is locked", path);
+        return false;
+      }
+
+      // Add the mixin so we can set properties on this file.
+      if (node.canAddMixin("sakai:propertiesmix")) {
+        node.addMixin("sakai:propertiesmix");
+      }
+      // Set resourcetype to sakai/file, set the sakai:filename and the
+      // sakai:user
+      node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          FilesConstants.RT_SAKAI_FILE);
+      node.setProperty(FilesConstants.SAKAI_FILENAME, node.getName());
+      node.setProperty(FilesConstants.SAKAI_USER, userID != null ? userID : adminSession
+          .getUserID());
+      adminSession.save();
+      LOGGER.debug("Set the properties of {} ", path);
+      return true;
     } catch (InvalidItemStateException e) {
-      retry(node, path, adminSession);
+      LOGGER.debug("Saving {} clashed with another save {} ", path, e.getMessage());
+      return false;
     } catch (LockException e) {
-      retry(node, path, adminSession);
+      LOGGER.debug("{} was locked {} ", path, e.getMessage());
+      return false;
+    } finally {
+      adminSession.logout();
     }
   }
 
-  private void retry(Node node, String path, Session adminSession) throws RepositoryException {
-    // kep retrying...
-    log.info("Failed to save session, retrying...");
-    Thread.yield();
-    adminSession.logout();
-    adminSession = slingRepository.loginAdministrative(null);
-    node = (Node) adminSession.getItem(path);
-    addProps(node, path, adminSession);
+  /**
+   * @return the metrics of the observer.
+   */
+  public FileObserverMetrics getMetrics() {
+    return metrics;
   }
 
-  protected void deactivate(ComponentContext componentContext) {
-    if (session != null) {
-      session.logout();
-      session = null;
+  private void registerMBean(Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(mbean, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} {} ", METRICS_OBJECT_NAME, e.getMessage());
     }
   }
 
+  private void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
+  }
 }
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the files the {@link FileObserver} has been told about and times how long they
+ * wait between the first event and being processed, so a backlog from a bulk import shows
+ * up before events start to be dropped.
+ */
+public class FileObserverMetrics implements FileObserverMetricsMBean {
+
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong lag = new AtomicLong();
+  private final AtomicLong maxLag = new AtomicLong();
+  private final Map<?, ?> pending;
+
+  /**
+   * @param pending
+   *          the pending files whose number is reported as the queue depth.
+   */
+  public FileObserverMetrics(Map<?, ?> pending) {
+    this.pending = pending;
+  }
+
+  public void fileQueued() {
+    queued.incrementAndGet();
+  }
+
+  public void fileCoalesced() {
+    coalesced.incrementAndGet();
+  }
+
+  public void fileDropped() {
+    dropped.incrementAndGet();
+  }
+
+  /**
+   * @param nanos
+   *          the time from the first event for a file to it being processed.
+   */
+  public void fileProcessed(long nanos) {
+    processed.incrementAndGet();
+    lag.addAndGet(nanos);
+    long max = maxLag.get();
+    while (nanos > max && !maxLag.compareAndSet(max, nanos)) {
+      max = maxLag.get();
+    }
+  }
+
+  public void fileRetried() {
+    retried.incrementAndGet();
+  }
+
+  public void fileFailed() {
+    failed.incrementAndGet();
+  }
+
+  public int getQueueDepth() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  public long getQueued() {
+    return queued.get();
+  }
+
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getProcessed() {
+    return processed.get();
+  }
+
+  public long getRetried() {
+    return retried.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getMeanLag() {
+    long n = processed.get();
+    if (n == 0) {
+      return 0;
+    }
+    return lag.get() / n;
+  }
+
+  public long getMaxLag() {
+    return maxLag.get();
+  }
+
+  public void reset() {
+    queued.set(0);
+    coalesced.set(0);
+    dropped.set(0);
+    processed.set(0);
+    retried.set(0);
+    failed.set(0);
+    lag.set(0);
+    maxLag.set(0);
+  }
+}
@@ -27,7 +27,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
-import org.sakaiproject.kernel.api.files.FileUtils;
+import org.sakaiproject.kernel.api.files.FileMetadataResolver;
 import org.sakaiproject.kernel.api.files.FilesConstants;
 import org.sakaiproject.kernel.api.search.Aggregator;
 import org.sakaiproject.kernel.api.search.SearchBatchResultProcessor;
@@ -36,9 +36,9 @@ import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -64,8 +64,6 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
   @Reference
   private SiteService siteService;
 
-  private List<String> processedNodes = new ArrayList<String>();
-
   /**
    * @param siteService
    */
@@ -79,8 +77,10 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
   public void writeNodes(SlingHttpServletRequest request, JSONWriter write, Aggregator aggregator,
       RowIterator iterator, long start, long end) throws JSONException,
       RepositoryException {
-    processedNodes = new ArrayList<String>();
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    // stores, permissions and sites are looked up once for all the results.
+    FileMetadataResolver resolver = new FileMetadataResolver(session, siteService);
+    Set<String> processedNodes = new HashSet<String>();
     iterator.skip(start);
     for (long i = start; i < end && iterator.hasNext(); i++) {
       Row row = iterator.nextRow();
@@ -90,7 +90,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
         aggregator.add(node);
       }
 
-      if (!handleNode(node, path, session, write)) {
+      if (!handleNode(node, resolver, processedNodes, write)) {
         i--;
       }
     }
@@ -100,11 +100,13 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       NodeIterator iterator, int start, long end) throws RepositoryException,
       JSONException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    FileMetadataResolver resolver = new FileMetadataResolver(session, siteService);
+    Set<String> processedNodes = new HashSet<String>();
     iterator.skip(start);
     for (long i = start; i < end && iterator.hasNext(); i++) {
       Node node = iterator.nextNode();
 
-      if (!handleNode(node, node.getPath(), session, write)) {
+      if (!handleNode(node, resolver, processedNodes, write)) {
         i--;
       }
     }
@@ -131,8 +133,9 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
     write.endObject();
   }
 
-  private boolean handleNode(Node node, String path, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
+  private boolean handleNode(Node node, FileMetadataResolver resolver,
+      Set<String> processedNodes, JSONWriter write) throws RepositoryException,
+      JSONException {
     // Every other file..
     if (node.getProperty(JcrConstants.JCR_PRIMARYTYPE).getString().equals(
         JcrConstants.NT_RESOURCE)) {
@@ -145,9 +148,8 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       return false;
     }
 
-    // Check that we didn't handle this file already.
-    if (!processedNodes.contains(path)) {
-      processedNodes.add(path);
+    // Check that we didn't handle this file already, a file and its content can both match.
+    if (processedNodes.add(node.getPath())) {
 
       String type = "";
       if (node.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
@@ -157,10 +159,10 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
 
       // If it is a file node we provide some extra properties.
       if (FilesConstants.RT_SAKAI_FILE.equals(type)) {
-        FileUtils.writeFileNode(node, session, write, siteService);
+        resolver.writeFileNode(node, write);
       } else if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
         // This is a linked file.
-        FileUtils.writeLinkNode(node, session, write, siteService);
+        resolver.writeLinkNode(node, write);
       }
       // Every other file..
       else {
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inclusive range of bytes of a file, as asked for in a HTTP Range header.
+ */
+public class ByteRange implements Comparable<ByteRange> {
+
+  /**
+   * The most ranges that are served in one response, a request for more gets the whole
+   * file.
+   */
+  static final int MAX_RANGES = 16;
+
+  private final long start;
+  private final long end;
+
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Parse a Range header.
+   * 
+   * @param header
+   *          the value of the header.
+   * @param length
+   *          the length of the file.
+   * @return the ranges that lie in the file, in order and with overlapping ranges merged.
+   *         An empty list if none lie in the file, or null if the header can't be parsed,
+   *         in which case it should be ignored.
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (header == null || !header.startsWith("bytes=")) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    for (String spec : header.substring(6).split(",")) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      try {
+        long start;
+        long end;
+        if (dash == 0) {
+          // the last bytes of the file.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix < 0) {
+            return null;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+          if (suffix == 0) {
+            continue;
+          }
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec
+              .substring(dash + 1));
+          if (start < 0 || end < start) {
+            return null;
+          }
+          end = Math.min(end, length - 1);
+        }
+        if (start < length) {
+          ranges.add(new ByteRange(start, end));
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    if (ranges.size() > MAX_RANGES) {
+      return null;
+    }
+    return merge(ranges);
+  }
+
+  /**
+   * @return the ranges in order, with ranges that overlap or touch merged.
+   */
+  private static List<ByteRange> merge(List<ByteRange> ranges) {
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    Collections.sort(ranges);
+    List<ByteRange> merged = new ArrayList<ByteRange>();
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.start <= current.end + 1) {
+        current = new ByteRange(current.start, Math.max(current.end, next.end));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param length
+   *          the length of the file.
+   * @return the value of a Content-Range header for this range.
+   */
+  public String toContentRange(long length) {
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  public int compareTo(ByteRange o) {
+    return start < o.start ? -1 : (start == o.start ? 0 : 1);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ByteRange)) {
+      return false;
+    }
+    ByteRange other = (ByteRange) obj;
+    return start == other.start && end == other.end;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (start ^ (start >>> 32)) * 31 + (int) (end ^ (end >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return start + "-" + end;
+  }
+}
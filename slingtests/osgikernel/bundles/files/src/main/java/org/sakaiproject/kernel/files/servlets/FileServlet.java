@@ -32,12 +32,18 @@ import org.sakaiproject.kernel.api.doc.ServiceMethod;
 import org.sakaiproject.kernel.api.doc.ServiceResponse;
 import org.sakaiproject.kernel.api.files.FilesConstants;
 import org.sakaiproject.kernel.util.IOUtils;
+import org.sakaiproject.kernel.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -45,7 +51,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Stream the file.
+ * Stream the file. Responses carry an ETag and Last-Modified so that clients can ask
+ * again conditionally, and parts of the file can be asked for with a Range header.
  * 
  */
 @SlingServlet(resourceTypes = "sakai/file", methods = { "GET" })
@@ -55,13 +62,16 @@ import javax.servlet.http.HttpServletResponse;
 @ServiceDocumentation(
     name = "FileServlet", 
     shortDescription = "Streams a file too the browser", 
-    description = "Streams a file too the browser.", 
+    description = "Streams a file too the browser. If-None-Match, If-Modified-Since, Range and If-Range are supported.", 
     bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/file"),
     methods = @ServiceMethod(
         name = "GET", 
         description = "Download a file.", 
         response = {
             @ServiceResponse(code = 200, description = "Download succeeded."),
+            @ServiceResponse(code = 206, description = "The ranges asked for, as multipart/byteranges if there is more than one."),
+            @ServiceResponse(code = 304, description = "The file has not changed since the ETag or date given."),
+            @ServiceResponse(code = 416, description = "None of the ranges asked for lie in the file."),
             @ServiceResponse(code = 500, description = "Download failed.")
         }
     )
@@ -83,13 +93,6 @@ public class FileServlet extends SlingAllMethodsServlet {
 
     String filename = null;
     try {
-      if (node.hasNode(JcrConstants.JCR_CONTENT)) {
-        Node content = node.getNode(JcrConstants.JCR_CONTENT);
-        response.setHeader("Content-Type", content.getProperty(JcrConstants.JCR_MIMETYPE)
-            .getString());
-        response.setHeader("Content-Length", ""
-            + content.getProperty(JcrConstants.JCR_DATA).getLength());
-      }
       if (node.hasProperty(FilesConstants.SAKAI_FILENAME)) {
         filename = node.getProperty(FilesConstants.SAKAI_FILENAME).getString();
       }
@@ -99,15 +102,192 @@ public class FileServlet extends SlingAllMethodsServlet {
         response.setHeader("Content-Disposition", "filename=\"" + filename + "\"");
       }
 
-      response.setStatus(HttpServletResponse.SC_OK);
-      InputStream in = (InputStream) request.getResource().adaptTo(InputStream.class);
-      OutputStream out = response.getOutputStream();
+      if (!node.hasNode(JcrConstants.JCR_CONTENT)) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        InputStream in = (InputStream) request.getResource().adaptTo(InputStream.class);
+        IOUtils.stream(in, response.getOutputStream());
+        return;
+      }
+
+      Node content = node.getNode(JcrConstants.JCR_CONTENT);
+      String mimeType = content.getProperty(JcrConstants.JCR_MIMETYPE).getString();
+      javax.jcr.Property data = content.getProperty(JcrConstants.JCR_DATA);
+      long length = data.getLength();
+      long lastModified = -1;
+      if (content.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+        lastModified = content.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate()
+            .getTimeInMillis();
+      }
+      String etag = getETag(content.getPath(), lastModified, length);
+
+      response.setHeader("ETag", etag);
+      if (lastModified >= 0) {
+        response.setDateHeader("Last-Modified", lastModified);
+      }
+      response.setHeader("Accept-Ranges", "bytes");
+
+      if (isNotModified(request, etag, lastModified)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+
+      List<ByteRange> ranges = null;
+      String range = request.getHeader("Range");
+      if (range != null && isRangeCurrent(request, etag, lastModified)) {
+        ranges = ByteRange.parse(range, length);
+      }
+      if (ranges != null && ranges.isEmpty()) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
 
-      IOUtils.stream(in, out);
+      InputStream in = data.getStream();
+      try {
+        OutputStream out = response.getOutputStream();
+        if (ranges == null) {
+          response.setHeader("Content-Type", mimeType);
+          response.setHeader("Content-Length", "" + length);
+          response.setStatus(HttpServletResponse.SC_OK);
+          IOUtils.stream(in, out);
+        } else if (ranges.size() == 1) {
+          ByteRange only = ranges.get(0);
+          response.setHeader("Content-Type", mimeType);
+          response.setHeader("Content-Length", "" + only.getLength());
+          response.setHeader("Content-Range", only.toContentRange(length));
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          skipFully(in, only.getStart());
+          copy(in, out, only.getLength());
+        } else {
+          String boundary = UUID.randomUUID().toString();
+          response.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          // the ranges are in order and don't overlap, so the stream only moves forward.
+          long position = 0;
+          for (ByteRange part : ranges) {
+            out.write(("\r\n--" + boundary + "\r\nContent-Type: " + mimeType
+                + "\r\nContent-Range: " + part.toContentRange(length) + "\r\n\r\n")
+                .getBytes("ISO-8859-1"));
+            skipFully(in, part.getStart() - position);
+            copy(in, out, part.getLength());
+            position = part.getEnd() + 1;
+          }
+          out.write(("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+        }
+      } finally {
+        in.close();
+      }
     } catch (RepositoryException e) {
       logger.warn("Unable to download file due to repositoryexception!");
       e.printStackTrace();
       response.sendError(500);
     }
   }
+
+  /**
+   * @param path
+   *          the path of the content node.
+   * @param lastModified
+   *          when the content was last modified, or -1 if that is not known.
+   * @param length
+   *          the length of the content.
+   * @return a strong ETag for the content.
+   */
+  protected static String getETag(String path, long lastModified, long length) {
+    try {
+      return "\"" + StringUtils.sha1Hash(path + ":" + lastModified + ":" + length) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return true if the client already has the content, by its ETag or else its date.
+   */
+  private boolean isNotModified(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matches(ifNoneMatch, etag);
+    }
+    if (lastModified >= 0) {
+      long since = getDateHeader(request, "If-Modified-Since");
+      return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the ranges asked for may be served, which is when there is no
+   *         If-Range or it names the current content.
+   */
+  private boolean isRangeCurrent(SlingHttpServletRequest request, String etag,
+      long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // only a strong match will do for a range.
+      return ifRange.equals(etag);
+    }
+    long date = getDateHeader(request, "If-Range");
+    return date >= 0 && lastModified >= 0 && lastModified / 1000 <= date / 1000;
+  }
+
+  /**
+   * @return true if the list of ETags in an If-None-Match header has the ETag.
+   */
+  private boolean matches(String header, String etag) {
+    for (String candidate : header.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || etag.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long getDateHeader(SlingHttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Move forward in a stream. A binary in the repository skips without reading the bytes
+   * it passes over.
+   */
+  private void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("The file is shorter than its length.");
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private void copy(InputStream in, OutputStream out, long n) throws IOException {
+    byte[] buffer = new byte[8192];
+    while (n > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+      if (read < 0) {
+        throw new EOFException("The file is shorter than its length.");
+      }
+      out.write(buffer, 0, read);
+      n -= read;
+    }
+  }
 }
@@ -39,6 +39,8 @@ import org.sakaiproject.kernel.api.doc.ServiceResponse;
 import org.sakaiproject.kernel.api.doc.ServiceSelector;
 import org.sakaiproject.kernel.api.files.FileUtils;
 import org.sakaiproject.kernel.api.files.FilesConstants;
+import org.sakaiproject.kernel.files.BlobStore;
+import org.sakaiproject.kernel.files.BlobStore.Blob;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -105,6 +107,9 @@ public class FileUpdateServlet extends SlingAllMethodsServlet {
   @Reference
   private SlingRepository slingRepository;
 
+  @Reference
+  private BlobStore blobStore;
+
 
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
@@ -150,8 +155,33 @@ public class FileUpdateServlet extends SlingAllMethodsServlet {
         }
       }
 
-      Node fileNode = FileUtils.saveFile(session, path, id, file, contentType,
-          slingRepository);
+      // the blob the file used before, which is released once the file has moved on.
+      String oldBlob = null;
+      if (node.hasProperty(FilesConstants.SAKAI_BLOB)) {
+        oldBlob = node.getProperty(FilesConstants.SAKAI_BLOB).getString();
+      }
+      Node fileNode;
+      String newBlob = null;
+      if (blobStore.isEnabled()) {
+        Blob blob = blobStore.store(file.getInputStream(), path);
+        newBlob = blob.getPath();
+        boolean saved = false;
+        try {
+          fileNode = FileUtils.saveFile(session, path, id, blob.getData(), newBlob, file
+              .getFileName(), contentType, slingRepository);
+          saved = true;
+        } finally {
+          if (!saved && !newBlob.equals(oldBlob)) {
+            blobStore.release(newBlob, path);
+          }
+        }
+      } else {
+        fileNode = FileUtils.saveFile(session, path, id, file, contentType,
+            slingRepository);
+      }
+      if (oldBlob != null && !oldBlob.equals(newBlob)) {
+        blobStore.release(oldBlob, path);
+      }
       String fileName = fileNode.getProperty(FilesConstants.SAKAI_FILENAME).getString();
 
       List<String> createdLinks = Lists.newArrayList();
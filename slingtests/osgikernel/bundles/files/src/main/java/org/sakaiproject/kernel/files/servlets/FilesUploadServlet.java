@@ -23,12 +23,15 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.kernel.api.cluster.ClusterTrackingService;
 import org.sakaiproject.kernel.api.doc.BindingType;
 import org.sakaiproject.kernel.api.doc.ServiceBinding;
@@ -39,16 +42,27 @@ import org.sakaiproject.kernel.api.doc.ServiceResponse;
 import org.sakaiproject.kernel.api.doc.ServiceSelector;
 import org.sakaiproject.kernel.api.files.FileUtils;
 import org.sakaiproject.kernel.api.files.FilesConstants;
+import org.sakaiproject.kernel.files.BlobStore;
+import org.sakaiproject.kernel.files.BlobStore.Blob;
+import org.sakaiproject.kernel.files.servlets.MultipartParser.Part;
 import org.sakaiproject.kernel.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -72,7 +86,10 @@ import javax.servlet.http.HttpServletResponse;
     methods = {@ServiceMethod(
         name = "POST", 
         description = "Upload one or more files to the repository. " +
-    		"By default there is a filestore at /_user/files",
+    		"By default there is a filestore at /_user/files. " +
+    		"If sakai.files.dedup is on, content that is already in the blob store is not stored again. " +
+    		"A multipart body is read as it arrives and the files and links are saved together, " +
+    		"the link and site fields may come before or after the files.",
     		parameters = {
             @ServiceParameter(
                 name="Filedata", 
@@ -107,6 +124,14 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
 
   public static final Logger LOG = LoggerFactory.getLogger(FilesUploadServlet.class);
   private static final long serialVersionUID = -2582970789079249113L;
+  private static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.files:type=Upload";
+  /**
+   * The most bytes of a plain form field in a streamed upload.
+   */
+  private static final int MAX_FIELD_SIZE = 65536;
+
+  @Property(boolValue = true, description = "Parse multipart uploads as they are read, rather than through the request parameters.")
+  static final String STREAMING = "sakai.files.upload.streaming";
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
@@ -114,9 +139,191 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
   @Reference
   private SlingRepository slingRepository;
 
+  @Reference
+  private BlobStore blobStore;
+
+  private final UploadMetrics metrics = new UploadMetrics();
+  private boolean streaming = true;
+
+  protected void activate(ComponentContext ctx) {
+    Dictionary<?, ?> props = ctx.getProperties();
+    Boolean _streaming = (Boolean) props.get(STREAMING);
+    streaming = _streaming == null || _streaming;
+    registerMBean(metrics);
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    unregisterMBean();
+  }
+
   @Override
   protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
+    long start = System.nanoTime();
+    if (streaming) {
+      String boundary = MultipartParser.getBoundary(request.getContentType());
+      if (boundary != null) {
+        String encoding = request.getCharacterEncoding();
+        if (encoding == null) {
+          encoding = "UTF-8";
+        }
+        MultipartParser parser = new MultipartParser(request.getInputStream(), boundary,
+            encoding);
+        Part first;
+        try {
+          first = parser.nextPart();
+        } catch (IOException e) {
+          metrics.requestFailed();
+          LOG.warn("Unable to read upload {} ", e.getMessage());
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed multipart body.");
+          return;
+        }
+        if (first != null) {
+          doStreamingPost(request, response, parser, first, encoding, start);
+          return;
+        }
+        // something has already read the body into the request parameters.
+      }
+    }
+    doParameterPost(request, response, start);
+  }
+
+  /**
+   * Create the files as their parts are read from the body. Each file is written
+   * straight to the repository from the request. Once the whole body has been read the
+   * files and their access control are saved, and then the user's links to them. If the
+   * links can't be saved the files are removed again.
+   * 
+   * @param request
+   * @param response
+   * @param parser
+   * @param part
+   *          the first part of the body.
+   * @param encoding
+   *          the character encoding of the fields.
+   * @param start
+   * @throws IOException
+   */
+  private void doStreamingPost(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, MultipartParser parser, Part part,
+      String encoding, long start) throws IOException {
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    String store = request.getResource().getPath();
+    LOG.info("Attempted streamed upload for " + session.getUserID() + " - "
+        + request.getRemoteUser());
+
+    List<Node> fileNodes = Lists.newArrayList();
+    List<String> links = Lists.newArrayList();
+    Map<String, String> fields = new HashMap<String, String>();
+    Map<String, Blob> blobs = new HashMap<String, Blob>();
+    boolean filesSaved = false;
+    boolean saved = false;
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      Authorizable authorizable = AccessControlUtil.getUserManager(adminSession)
+          .getAuthorizable(session.getUserID());
+      for (; part != null; part = parser.nextPart()) {
+        if (!part.isFile()) {
+          if (part.getName() != null && !fields.containsKey(part.getName())) {
+            fields.put(part.getName(), part.getString(encoding, MAX_FIELD_SIZE));
+          }
+        } else if ("Filedata".equals(part.getName()) && part.getFileName().length() > 0) {
+          String contentType = getContentType(part.getContentType(), part.getFileName());
+          String id = getFileId();
+          String path = FileUtils.getHashedPath(store, id);
+          Node fileNode;
+          if (blobStore.isEnabled()) {
+            Blob blob = blobStore.store(part.getInputStream(), path);
+            blobs.put(path, blob);
+            fileNode = FileUtils.createFileNode(adminSession, path, id, authorizable, null,
+                blob.getData(), blob.getPath(), part.getFileName(), contentType);
+          } else {
+            fileNode = FileUtils.createFileNode(adminSession, path, id, authorizable, part
+                .getInputStream(), null, null, part.getFileName(), contentType);
+          }
+          fileNodes.add(fileNode);
+          metrics.fileUploaded(part.getLength());
+        }
+      }
+
+      if (fileNodes.isEmpty()) {
+        response.sendError(400, "Missing Filedata parameter.");
+        return;
+      }
+      String link = fields.get("link");
+      if (link != null && !link.startsWith("/")) {
+        response.sendError(500,
+            "If a link location is specified, it should be absolute and point to a folder.");
+        return;
+      }
+      String site = fields.get("site");
+      if (site != null && !site.startsWith("/")) {
+        response.sendError(500,
+            "If a site is specified, it should be absolute and point to a site.");
+        return;
+      }
+
+      // The links are made by the user, the files only record them.
+      if (link != null && site != null) {
+        Node linkFolder = (Node) session.getItem(link);
+        for (Node fileNode : fileNodes) {
+          String fileName = fileNode.getProperty(FilesConstants.SAKAI_FILENAME)
+              .getString();
+          String linkPath = linkFolder.getPath() + "/" + fileName;
+          Node linkNode = FileUtils.createLinkNode(session, fileNode, linkPath);
+          FileUtils.addLinkReferences(fileNode, linkNode, site);
+          links.add(linkPath);
+        }
+      }
+
+      // the links refer to the files, so the files are saved first.
+      adminSession.save();
+      filesSaved = true;
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      saved = true;
+
+      writeResponse(response, fileNodes, links);
+      metrics.requestHandled(true, System.nanoTime() - start);
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to create file.", e);
+      response.sendError(500, "Failed to save file.");
+    } catch (JSONException e) {
+      LOG.warn("Failed to write JSON format.", e);
+      response.sendError(500, "Failed to write JSON format.");
+    } catch (IOException e) {
+      if (saved) {
+        throw e;
+      }
+      // the body was cut short or isn't well formed.
+      LOG.warn("Unable to read upload {} ", e.getMessage());
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed multipart body.");
+    } finally {
+      if (!saved) {
+        metrics.requestFailed();
+        if (filesSaved) {
+          removeFiles(adminSession, fileNodes);
+        }
+        discard(session, blobs);
+      }
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Create the files from the request parameters, once the body has been read into them.
+   * 
+   * @param request
+   * @param response
+   * @param start
+   * @throws IOException
+   */
+  private void doParameterPost(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, long start) throws IOException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
     String store = request.getResource().getPath();
     LOG.info("Attempted upload for " + session.getUserID() + " - " + request.getRemoteUser());
@@ -127,6 +334,7 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
     if (linkParam != null) {
       String link = linkParam.getString();
       if (!link.startsWith("/")) {
+        metrics.requestFailed();
         response
             .sendError(500,
                 "If a link location is specified, it should be absolute and point to a folder.");
@@ -138,6 +346,7 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
     if (siteParam != null) {
       String site = siteParam.getString();
       if (!site.startsWith("/")) {
+        metrics.requestFailed();
         response.sendError(500,
             "If a site is specified, it should be absolute and point to a site.");
         return;
@@ -152,6 +361,7 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
       // Handle multi files
       RequestParameter[] files = request.getRequestParameters("Filedata");
       if (files == null) {
+        metrics.requestFailed();
         response.sendError(400, "Missing Filedata parameter.");
         return;
       }
@@ -160,6 +370,7 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
       for (RequestParameter file : files) {
         Node fileNode = createFile(session, store, file);
         fileNodes.add(fileNode);
+        metrics.fileUploaded(file.getSize());
       }
 
       // Create a link for each file if there is a need for it.
@@ -178,41 +389,16 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
       }
 
       // Send a response back to the user.
-
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-      writer.object();
-      writer.key("files");
-      writer.array();
-      for (Node fileNode : fileNodes) {
-        writer.object();
-        writer.key("filename");
-        writer.value(fileNode.getProperty(FilesConstants.SAKAI_FILENAME).getString());
-        writer.key("path");
-        writer.value(FileUtils.getDownloadPath(fileNode));
-        writer.key("id");
-        writer.value(fileNode.getProperty(FilesConstants.SAKAI_ID).getString());
-        writer.endObject();
-      }
-      writer.endArray();
-      if (links.size() > 0) {
-        writer.key("links");
-        writer.array();
-        for (String link : links) {
-          writer.value(link);
-        }
-        writer.endArray();
-      }
-      writer.endObject();
-
-      // We send a 200 because SWFUpload has some problems dealing with other status
-      // codes.
-      response.setStatus(HttpServletResponse.SC_OK);
+      writeResponse(response, fileNodes, links);
+      metrics.requestHandled(false, System.nanoTime() - start);
 
     } catch (RepositoryException e) {
+      metrics.requestFailed();
       LOG.warn("Failed to create file.");
       e.printStackTrace();
       response.sendError(500, "Failed to save file.");
     } catch (JSONException e) {
+      metrics.requestFailed();
       LOG.warn("Failed to write JSON format.");
       response.sendError(500, "Failed to write JSON format.");
       e.printStackTrace();
@@ -220,6 +406,94 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
 
   }
 
+  /**
+   * Write the files and links that were created.
+   * 
+   * @param response
+   * @param fileNodes
+   * @param links
+   * @throws IOException
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  private void writeResponse(SlingHttpServletResponse response, List<Node> fileNodes,
+      List<String> links) throws IOException, JSONException, RepositoryException {
+    ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+    writer.object();
+    writer.key("files");
+    writer.array();
+    for (Node fileNode : fileNodes) {
+      writer.object();
+      writer.key("filename");
+      writer.value(fileNode.getProperty(FilesConstants.SAKAI_FILENAME).getString());
+      writer.key("path");
+      writer.value(FileUtils.getDownloadPath(fileNode));
+      writer.key("id");
+      writer.value(fileNode.getProperty(FilesConstants.SAKAI_ID).getString());
+      writer.endObject();
+    }
+    writer.endArray();
+    if (links.size() > 0) {
+      writer.key("links");
+      writer.array();
+      for (String link : links) {
+        writer.value(link);
+      }
+      writer.endArray();
+    }
+    writer.endObject();
+
+    // We send a 200 because SWFUpload has some problems dealing with other status
+    // codes.
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * Remove the files of a streamed upload whose links couldn't be saved.
+   * 
+   * @param adminSession
+   * @param fileNodes
+   */
+  private void removeFiles(Session adminSession, List<Node> fileNodes) {
+    try {
+      List<String> paths = Lists.newArrayList();
+      for (Node fileNode : fileNodes) {
+        paths.add(fileNode.getPath());
+      }
+      adminSession.refresh(false);
+      for (String path : paths) {
+        if (adminSession.itemExists(path)) {
+          adminSession.getItem(path).remove();
+        }
+      }
+      adminSession.save();
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to remove the files of a failed upload {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Throw away the links of a streamed upload that wasn't saved and give back its blobs.
+   * 
+   * @param session
+   * @param blobs
+   *          the blobs stored, by the path of the file that was to use them.
+   */
+  private void discard(Session session, Map<String, Blob> blobs) {
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to discard unsaved links {} ", e.getMessage());
+    }
+    for (Entry<String, Blob> blob : blobs.entrySet()) {
+      try {
+        blobStore.release(blob.getValue().getPath(), blob.getKey());
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to release blob {} {} ", blob.getValue().getPath(), e.getMessage());
+      }
+    }
+  }
+
   /**
    * Creates a file under the store. Ex: store/aa/bb/cc/dd/myID
    * 
@@ -232,9 +506,39 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
    */
   private Node createFile(Session session, String store, RequestParameter file)
       throws RepositoryException, IOException, JSONException {
-    String contentType = file.getContentType();
-    // Try to determine the real content type.
-    // get content type
+    String contentType = getContentType(file.getContentType(), file.getFileName());
+    String id = getFileId();
+
+    String path = FileUtils.getHashedPath(store, id);
+
+    if (blobStore.isEnabled()) {
+      Blob blob = blobStore.store(file.getInputStream(), path);
+      boolean saved = false;
+      try {
+        Node fileNode = FileUtils.saveFile(session, path, id, blob.getData(), blob
+            .getPath(), file.getFileName(), contentType, slingRepository);
+        saved = true;
+        return fileNode;
+      } finally {
+        if (!saved) {
+          blobStore.release(blob.getPath(), path);
+        }
+      }
+    }
+    Node fileNode = FileUtils.saveFile(session, path, id, file, contentType,
+        slingRepository);
+    return fileNode;
+  }
+
+  /**
+   * Try to determine the real content type.
+   * 
+   * @param contentType
+   *          the content type sent with the file.
+   * @param fileName
+   * @return
+   */
+  private String getContentType(String contentType, String fileName) {
     if (contentType != null) {
       int idx = contentType.indexOf(';');
       if (idx > 0) {
@@ -243,22 +547,54 @@ public class FilesUploadServlet extends SlingAllMethodsServlet {
     }
     if (contentType == null || contentType.equals("application/octet-stream")) {
       ServletContext context = this.getServletConfig().getServletContext();
-      contentType = context.getMimeType(file.getFileName());
+      contentType = context.getMimeType(fileName);
       if (contentType == null || contentType.equals("application/octet-stream")) {
         contentType = "application/octet-stream";
       }
     }
+    return contentType;
+  }
+
+  /**
+   * @return a new cluster unique id for a file.
+   */
+  private String getFileId() {
     String id = clusterTrackingService.getClusterUniqueId();
     if (id.endsWith("=="))
       id = id.substring(0, id.length() - 2);
 
-    id = id.replace('/', '_').replace('=', '-');
+    return id.replace('/', '_').replace('=', '-');
+  }
 
-    String path = FileUtils.getHashedPath(store, id);
+  /**
+   * @return the metrics of uploads.
+   */
+  protected UploadMetrics getMetrics() {
+    return metrics;
+  }
 
-    Node fileNode = FileUtils.saveFile(session, path, id, file, contentType,
-        slingRepository);
-    return fileNode;
+  private void registerMBean(Object mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(mbean, name);
+      }
+    } catch (JMException e) {
+      LOG.warn("Unable to register {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOG.warn("Unable to unregister {} {} ", METRICS_OBJECT_NAME, e.getMessage());
+    }
   }
 
 }
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the parts of a multipart/form-data body one after another as they arrive. The
+ * body of a part is read straight from the request through a buffer of fixed size, so a
+ * request of any size is handled in the same memory. A part is skipped if it hasn't been
+ * read to the end when the next part is asked for.
+ */
+public class MultipartParser {
+
+  /**
+   * The most bytes of headers a part may have.
+   */
+  static final int MAX_HEADER_SIZE = 10240;
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final InputStream in;
+  private final String encoding;
+  /**
+   * CRLF--boundary, the part before the first delimiter is read as if it followed a CRLF
+   * so that a body that starts with the delimiter is found the same way.
+   */
+  private final byte[] delimiter;
+  private final byte[] buffer;
+  private int head;
+  private int tail;
+  private boolean eof;
+  private boolean done;
+  private PartInputStream current;
+
+  /**
+   * @param in
+   *          the body of the request.
+   * @param boundary
+   *          the boundary from the Content-Type of the request.
+   */
+  public MultipartParser(InputStream in, String boundary) {
+    this(in, boundary, "UTF-8");
+  }
+
+  /**
+   * @param in
+   *          the body of the request.
+   * @param boundary
+   *          the boundary from the Content-Type of the request.
+   * @param encoding
+   *          the character encoding of the request, which browsers also use for the names
+   *          in the headers of the parts.
+   */
+  public MultipartParser(InputStream in, String boundary, String encoding) {
+    this.in = in;
+    this.encoding = encoding;
+    String delimiter = "\r\n--" + boundary;
+    this.delimiter = new byte[delimiter.length()];
+    for (int i = 0; i < delimiter.length(); i++) {
+      this.delimiter[i] = (byte) delimiter.charAt(i);
+    }
+    this.buffer = new byte[Math.max(BUFFER_SIZE, this.delimiter.length * 4)];
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+    tail = 2;
+    current = new PartInputStream(true);
+  }
+
+  /**
+   * @param contentType
+   *          the Content-Type of the request.
+   * @return the boundary, or null if the request isn't multipart/form-data.
+   */
+  public static String getBoundary(String contentType) {
+    if (contentType == null
+        || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+      return null;
+    }
+    String boundary = getParameter(contentType, "boundary");
+    if (boundary == null || boundary.length() == 0) {
+      return null;
+    }
+    return boundary;
+  }
+
+  /**
+   * @return the next part, or null if there are no more. If the body ends before the
+   *         first boundary, as it does if it has already been read, there are no parts.
+   * @throws IOException
+   *           if the body is cut short or isn't well formed.
+   */
+  public Part nextPart() throws IOException {
+    if (done) {
+      return null;
+    }
+    if (current.skip()) {
+      // there was no delimiter at all.
+      done = true;
+      return null;
+    }
+    // after a delimiter comes -- for the last, or CRLF for another part.
+    if (!fill(2)) {
+      throw new IOException("Multipart body ends after a boundary");
+    }
+    if (buffer[head] == '-' && buffer[head + 1] == '-') {
+      done = true;
+      return null;
+    }
+    String line = readLine();
+    if (line.trim().length() > 0) {
+      throw new IOException("Malformed multipart boundary");
+    }
+    Map<String, String> headers = new HashMap<String, String>();
+    int size = 0;
+    for (line = readLine(); line.length() > 0; line = readLine()) {
+      size += line.length();
+      if (size > MAX_HEADER_SIZE) {
+        throw new IOException("Multipart headers are too large");
+      }
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(
+            colon + 1).trim());
+      }
+    }
+    current = new PartInputStream(false);
+    return new Part(headers, current);
+  }
+
+  /**
+   * @param min
+   * @return true if there are at least min bytes in the buffer, false if the body ended
+   *         first.
+   * @throws IOException
+   */
+  private boolean fill(int min) throws IOException {
+    while (tail - head < min) {
+      if (eof) {
+        return false;
+      }
+      if (head > 0) {
+        System.arraycopy(buffer, head, buffer, 0, tail - head);
+        tail -= head;
+        head = 0;
+      }
+      int n = in.read(buffer, tail, buffer.length - tail);
+      if (n == -1) {
+        eof = true;
+      } else {
+        tail += n;
+      }
+    }
+    return true;
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    while (true) {
+      if (!fill(1)) {
+        throw new IOException("Multipart body ends in the headers of a part");
+      }
+      byte b = buffer[head++];
+      if (b == '\n') {
+        // the line is decoded whole, a file name is sent as the raw bytes of the
+        // request's encoding.
+        String s = line.toString(encoding);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+      }
+      if (line.size() > MAX_HEADER_SIZE) {
+        throw new IOException("Multipart headers are too large");
+      }
+      line.write(b);
+    }
+  }
+
+  /**
+   * @param header
+   * @param name
+   * @return the value of a parameter of a header, without quotes, or null if it isn't
+   *         there.
+   */
+  static String getParameter(String header, String name) {
+    int i = header.indexOf(';');
+    while (i >= 0 && i < header.length()) {
+      int eq = header.indexOf('=', i);
+      if (eq < 0) {
+        return null;
+      }
+      String key = header.substring(i + 1, eq).trim();
+      String value;
+      int next;
+      if (eq + 1 < header.length() && header.charAt(eq + 1) == '"') {
+        int close = header.indexOf('"', eq + 2);
+        if (close < 0) {
+          close = header.length();
+        }
+        value = header.substring(eq + 2, close);
+        next = header.indexOf(';', close);
+      } else {
+        next = header.indexOf(';', eq);
+        value = header.substring(eq + 1, next < 0 ? header.length() : next).trim();
+      }
+      if (key.equalsIgnoreCase(name)) {
+        return value;
+      }
+      i = next;
+    }
+    return null;
+  }
+
+  /**
+   * A part of the body.
+   */
+  public static class Part {
+    private final Map<String, String> headers;
+    private final PartInputStream body;
+    private final String name;
+    private final String fileName;
+
+    Part(Map<String, String> headers, PartInputStream body) {
+      this.headers = headers;
+      this.body = body;
+      String disposition = headers.get("content-disposition");
+      if (disposition == null) {
+        name = null;
+        fileName = null;
+      } else {
+        name = getParameter(disposition, "name");
+        String file = getParameter(disposition, "filename");
+        if (file != null) {
+          // some browsers send the whole path.
+          file = file.substring(Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\')) + 1);
+        }
+        fileName = file;
+      }
+    }
+
+    /**
+     * @return the name of the form field.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the name of the file, or null if this part is a plain field.
+     */
+    public String getFileName() {
+      return fileName;
+    }
+
+    public boolean isFile() {
+      return fileName != null;
+    }
+
+    public String getContentType() {
+      return headers.get("content-type");
+    }
+
+    /**
+     * @param name
+     *          the name of a header, in lower case.
+     * @return the value of the header.
+     */
+    public String getHeader(String name) {
+      return headers.get(name);
+    }
+
+    /**
+     * @return the body of the part, which is only valid until the next part is asked for.
+     */
+    public InputStream getInputStream() {
+      return body;
+    }
+
+    /**
+     * @return the number of bytes of the body read so far.
+     */
+    public long getLength() {
+      return body.count;
+    }
+
+    /**
+     * Read the body of a plain field.
+     * 
+     * @param encoding
+     * @param maxLength
+     *          the most bytes to read.
+     * @return the value of the field.
+     * @throws IOException
+     *           if the value is longer than maxLength.
+     */
+    public String getString(String encoding, int maxLength) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] b = new byte[1024];
+      int n;
+      while ((n = body.read(b)) != -1) {
+        if (out.size() + n > maxLength) {
+          throw new IOException("Form field " + name + " is too long");
+        }
+        out.write(b, 0, n);
+      }
+      return out.toString(encoding);
+    }
+  }
+
+  /**
+   * The bytes up to the next delimiter.
+   */
+  private class PartInputStream extends InputStream {
+    /**
+     * The bytes before the first delimiter, which are thrown away.
+     */
+    private final boolean preamble;
+    private boolean finished;
+    private long count;
+
+    PartInputStream(boolean preamble) {
+      this.preamble = preamble;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (finished) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      boolean full = fill(delimiter.length);
+      int found = indexOfDelimiter();
+      int available;
+      if (found >= 0) {
+        available = found - head;
+        if (available == 0) {
+          finished = true;
+          head += delimiter.length;
+          return -1;
+        }
+      } else if (!full) {
+        // the last delimiter never came.
+        if (preamble) {
+          finished = true;
+          head = tail;
+          return -1;
+        }
+        throw new IOException("Multipart body ends in a part");
+      } else {
+        // the end of the buffer could be the start of a delimiter.
+        available = tail - head - delimiter.length + 1;
+      }
+      int n = Math.min(len, available);
+      System.arraycopy(buffer, head, b, off, n);
+      head += n;
+      count += n;
+      return n;
+    }
+
+    /**
+     * Read to the end of the part.
+     * 
+     * @return true if this is the preamble and the body ended without a delimiter.
+     * @throws IOException
+     */
+    boolean skip() throws IOException {
+      byte[] b = new byte[BUFFER_SIZE];
+      while (read(b, 0, b.length) != -1) {
+        // discard
+      }
+      return eof && head == tail && preamble;
+    }
+
+    private int indexOfDelimiter() {
+      int last = tail - delimiter.length;
+      for (int i = head; i <= last; i++) {
+        int j = 0;
+        while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+          j++;
+        }
+        if (j == delimiter.length) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
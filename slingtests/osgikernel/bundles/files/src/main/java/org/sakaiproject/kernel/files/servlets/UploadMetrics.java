@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the upload requests, files and bytes handled by {@link FilesUploadServlet} and
+ * the time taken, from which the throughput of uploads is worked out.
+ */
+public class UploadMetrics implements UploadMetricsMBean {
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong streamedRequests = new AtomicLong();
+  private final AtomicLong failedRequests = new AtomicLong();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong maxFileSize = new AtomicLong();
+  private final AtomicLong nanos = new AtomicLong();
+
+  /**
+   * @param length
+   *          the length of a file that was uploaded.
+   */
+  public void fileUploaded(long length) {
+    files.incrementAndGet();
+    bytes.addAndGet(length);
+    long max = maxFileSize.get();
+    while (length > max && !maxFileSize.compareAndSet(max, length)) {
+      max = maxFileSize.get();
+    }
+  }
+
+  /**
+   * @param streamed
+   *          true if the body was parsed as it was read.
+   * @param time
+   *          the time the request took in ns.
+   */
+  public void requestHandled(boolean streamed, long time) {
+    requests.incrementAndGet();
+    if (streamed) {
+      streamedRequests.incrementAndGet();
+    }
+    nanos.addAndGet(time);
+  }
+
+  public void requestFailed() {
+    failedRequests.incrementAndGet();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getStreamedRequests() {
+    return streamedRequests.get();
+  }
+
+  public long getFailedRequests() {
+    return failedRequests.get();
+  }
+
+  public long getFiles() {
+    return files.get();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getMaxFileSize() {
+    return maxFileSize.get();
+  }
+
+  public long getMeanRequestTime() {
+    long n = requests.get();
+    if (n == 0) {
+      return 0;
+    }
+    return nanos.get() / n / 1000000L;
+  }
+
+  public long getThroughput() {
+    long time = nanos.get();
+    if (time == 0) {
+      return 0;
+    }
+    return (long) (bytes.get() * 1e9 / time);
+  }
+
+  public void reset() {
+    requests.set(0);
+    streamedRequests.set(0);
+    failedRequests.set(0);
+    files.set(0);
+    bytes.set(0);
+    maxFileSize.set(0);
+    nanos.set(0);
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.files;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.apache.jackrabbit.value.StringValue;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringWriter;
+import java.security.AccessControlException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ * Tests and times rendering file search results with a {@link FileMetadataResolver}.
+ */
+public class FileMetadataResolverTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FileMetadataResolverTest.class);
+  private static final String STORE = "/_user/files";
+  private static final int FOLDERS = 10;
+  private static final int FILES = 1000;
+  private static final int SITES = 5;
+
+  /**
+   * A session that hands out its access control manager, as the Jackrabbit one does.
+   */
+  public interface AccessControlSession extends Session {
+    AccessControlManager getAccessControlManager();
+  }
+
+  private List<Object> mocks;
+  private AtomicInteger privilegeLookups;
+  private AtomicInteger memberCounts;
+  private AccessControlSession session;
+  private SiteService siteService;
+  private List<Node> files;
+
+  @Before
+  public void setUp() throws Exception {
+    mocks = new ArrayList<Object>();
+    privilegeLookups = new AtomicInteger();
+    memberCounts = new AtomicInteger();
+    session = createNiceMock(AccessControlSession.class);
+    mocks.add(session);
+
+    Privilege all = privilege("jcr:all", privilege(Privilege.JCR_READ),
+        privilege(Privilege.JCR_MODIFY_PROPERTIES), privilege(Privilege.JCR_REMOVE_NODE),
+        privilege(Privilege.JCR_REMOVE_CHILD_NODES));
+    final Privilege[] granted = new Privilege[] { all };
+    AccessControlManager acm = createNiceMock(AccessControlManager.class);
+    expect(acm.getPrivileges(isA(String.class))).andStubAnswer(new IAnswer<Privilege[]>() {
+      public Privilege[] answer() throws Throwable {
+        privilegeLookups.incrementAndGet();
+        return granted;
+      }
+    });
+    mocks.add(acm);
+    expect(session.getAccessControlManager()).andStubReturn(acm);
+
+    siteService = createNiceMock(SiteService.class);
+    expect(siteService.isSite((Item) anyObject())).andStubReturn(true);
+    expect(siteService.getMemberCount((Node) anyObject())).andStubAnswer(
+        new IAnswer<Integer>() {
+          public Integer answer() throws Throwable {
+            memberCounts.incrementAndGet();
+            return 10;
+          }
+        });
+    mocks.add(siteService);
+
+    for (int i = 0; i < SITES; i++) {
+      String path = "/sites/site" + i;
+      Node site = node(path, null);
+      expect(session.itemExists(path)).andStubReturn(true);
+      expect(session.getItem(path)).andStubReturn(site);
+    }
+
+    Node root = node("/", null);
+    Node user = node("/_user", root);
+    Node store = node(STORE, user);
+    expect(store.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))
+        .andStubReturn(true);
+    Property type = property(new StringValue(FilesConstants.RT_FILE_STORE));
+    expect(store.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY))
+        .andStubReturn(type);
+
+    files = new ArrayList<Node>();
+    for (int i = 0; i < FOLDERS; i++) {
+      String folderPath = STORE + "/folder" + i;
+      Node folder = node(folderPath, store);
+      for (int j = 0; j < FILES / FOLDERS; j++) {
+        String id = "file" + i + "-" + j;
+        Node file = node(folderPath + "/" + id, folder);
+        expect(file.hasProperty(FilesConstants.SAKAI_ID)).andStubReturn(true);
+        expect(file.getProperty(FilesConstants.SAKAI_ID)).andStubReturn(
+            property(new StringValue(id)));
+        // every file is used in two of the sites.
+        expect(file.hasProperty("sakai:sites")).andStubReturn(true);
+        expect(file.getProperty("sakai:sites")).andStubReturn(
+            property(new StringValue("/sites/site" + (j % SITES)), new StringValue(
+                "/sites/site" + ((j + 1) % SITES))));
+        files.add(file);
+      }
+    }
+  }
+
+  @Test
+  public void testWriteFileNode() throws Exception {
+    replay(mocks.toArray());
+    FileMetadataResolver resolver = new FileMetadataResolver(session, siteService);
+    StringWriter out = new StringWriter();
+    JSONWriter write = new JSONWriter(out);
+    write.array();
+    resolver.writeFileNode(files.get(0), write);
+    write.endArray();
+
+    JSONObject file = new JSONArray(out.toString()).getJSONObject(0);
+    assertEquals(FileUtils.getDownloadPath(STORE, "file0-0"), file.getString("path"));
+    JSONObject permissions = file.getJSONObject("permissions");
+    assertTrue(permissions.getBoolean("read"));
+    assertTrue(permissions.getBoolean("set_property"));
+    assertTrue(permissions.getBoolean("remove"));
+    JSONObject usedIn = file.getJSONObject("usedIn");
+    assertEquals(2, usedIn.getInt("total"));
+    assertEquals("/sites/site0", usedIn.getJSONArray("sites").getJSONObject(0).getString(
+        "path"));
+  }
+
+  @Test
+  public void testPermissionsFromPrivileges() throws Exception {
+    AccessControlSession readOnly = createNiceMock(AccessControlSession.class);
+    AccessControlManager acm = createNiceMock(AccessControlManager.class);
+    expect(readOnly.getAccessControlManager()).andStubReturn(acm);
+    expect(acm.getPrivileges(isA(String.class))).andStubReturn(
+        new Privilege[] { privilege(Privilege.JCR_READ) });
+    replay(readOnly, acm);
+    replay(mocks.toArray());
+
+    FileMetadataResolver resolver = new FileMetadataResolver(readOnly, siteService);
+    String path = files.get(0).getPath();
+    assertTrue(resolver.hasPermission(path, "read"));
+    assertFalse(resolver.hasPermission(path, "set_property"));
+    assertFalse(resolver.hasPermission(path, "remove"));
+  }
+
+  @Test
+  public void testPermissionsWithoutAccessControl() throws Exception {
+    // a session without an access control manager is asked for each permission.
+    Session plain = createNiceMock(Session.class);
+    plain.checkPermission("/a", "remove");
+    expectLastCall().andThrow(new AccessControlException("denied"));
+    replay(plain);
+
+    FileMetadataResolver resolver = new FileMetadataResolver(plain, siteService);
+    assertTrue(resolver.hasPermission("/a", "read"));
+    assertFalse(resolver.hasPermission("/a", "remove"));
+  }
+
+  /**
+   * Not a rigorous benchmark, but renders 1,000 file hits with a resolver for each hit, as
+   * was done before, and with one resolver for all of them, and logs the time and the
+   * number of repository lookups each took.
+   */
+  @Test
+  public void testRenderSearchResults() throws Exception {
+    replay(mocks.toArray());
+
+    // warm up
+    render(true);
+    render(false);
+
+    privilegeLookups.set(0);
+    memberCounts.set(0);
+    long t = System.nanoTime();
+    String perHit = render(false);
+    long perHitTime = System.nanoTime() - t;
+    int perHitPrivileges = privilegeLookups.getAndSet(0);
+    int perHitMembers = memberCounts.getAndSet(0);
+
+    t = System.nanoTime();
+    String shared = render(true);
+    long sharedTime = System.nanoTime() - t;
+    int sharedPrivileges = privilegeLookups.get();
+    int sharedMembers = memberCounts.get();
+
+    LOGGER.info("Rendered {} hits with a resolver per hit in {} ms, {} privilege and "
+        + "{} member count lookups", new Object[] { FILES, perHitTime / 1000000,
+        perHitPrivileges, perHitMembers });
+    LOGGER.info("Rendered {} hits with one resolver in {} ms, {} privilege and "
+        + "{} member count lookups", new Object[] { FILES, sharedTime / 1000000,
+        sharedPrivileges, sharedMembers });
+
+    assertEquals(perHit, shared);
+    assertEquals(FILES * 2, perHitMembers);
+    // each site is counted once, and each file and folder has its privileges found once.
+    assertEquals(SITES, sharedMembers);
+    assertEquals(FILES + FOLDERS + SITES, sharedPrivileges);
+    assertEquals(FILES, new JSONArray(shared).length());
+  }
+
+  private String render(boolean shared) throws Exception {
+    StringWriter out = new StringWriter();
+    JSONWriter write = new JSONWriter(out);
+    FileMetadataResolver resolver = new FileMetadataResolver(session, siteService);
+    write.array();
+    for (Node file : files) {
+      if (!shared) {
+        resolver = new FileMetadataResolver(session, siteService);
+      }
+      resolver.writeFileNode(file, write);
+    }
+    write.endArray();
+    return out.toString();
+  }
+
+  private Node node(String path, Node parent) throws Exception {
+    Node node = createNiceMock(Node.class);
+    expect(node.getPath()).andStubReturn(path);
+    expect(node.getName()).andStubReturn(path.substring(path.lastIndexOf('/') + 1));
+    expect(node.getParent()).andStubReturn(parent);
+    expect(node.isNode()).andStubReturn(true);
+    expect(node.getProperties()).andStubAnswer(new IAnswer<PropertyIterator>() {
+      public PropertyIterator answer() throws Throwable {
+        return new PropertyIteratorAdapter(Collections.EMPTY_LIST);
+      }
+    });
+    mocks.add(node);
+    return node;
+  }
+
+  private Property property(Value... values) throws Exception {
+    Property property = createNiceMock(Property.class);
+    PropertyDefinition definition = createNiceMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andStubReturn(values.length > 1);
+    expect(property.getDefinition()).andStubReturn(definition);
+    expect(property.getValues()).andStubReturn(values);
+    expect(property.getValue()).andStubReturn(values[0]);
+    expect(property.getString()).andStubReturn(values[0].getString());
+    replay(property, definition);
+    return property;
+  }
+
+  private Privilege privilege(String name, Privilege... aggregated) {
+    Privilege privilege = createNiceMock(Privilege.class);
+    expect(privilege.getName()).andStubReturn(name);
+    expect(privilege.isAggregate()).andStubReturn(aggregated.length > 0);
+    expect(privilege.getAggregatePrivileges()).andStubReturn(aggregated);
+    replay(privilege);
+    return privilege;
+  }
+}
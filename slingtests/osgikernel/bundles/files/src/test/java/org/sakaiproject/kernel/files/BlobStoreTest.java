@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.apache.sling.commons.testing.jcr.MockProperty;
+import org.apache.sling.commons.testing.jcr.MockValue;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.files.FilesConstants;
+import org.sakaiproject.kernel.files.BlobStore.Blob;
+import org.sakaiproject.kernel.files.BlobStore.Spool;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class BlobStoreTest {
+
+  private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  private BlobStore blobStore;
+  private Session session;
+  private SlingRepository slingRepository;
+
+  @Before
+  public void setUp() throws Exception {
+    session = createMock(Session.class);
+    slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    replay(slingRepository);
+    blobStore = new BlobStore();
+    blobStore.slingRepository = slingRepository;
+  }
+
+  @Test
+  public void testSpool() throws Exception {
+    Spool spool = BlobStore.spool(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+    try {
+      assertEquals(ABC_SHA256, spool.hash);
+      assertEquals(3, spool.length);
+      assertEquals(3, spool.file.length());
+    } finally {
+      spool.delete();
+    }
+    assertFalse(spool.file.exists());
+  }
+
+  @Test
+  public void testBlobPath() {
+    String path = BlobStore.getBlobPath(ABC_SHA256);
+    assertTrue(path.startsWith(FilesConstants.BLOB_ROOT + "/"));
+    assertTrue(path.endsWith("/" + ABC_SHA256));
+    // the same four levels of hashing as the file stores.
+    assertEquals(FilesConstants.BLOB_ROOT.split("/").length + 5, path.split("/").length);
+  }
+
+  @Test
+  public void testReferencesQuery() {
+    String query = BlobStore.getReferencesQuery(Arrays.asList("/a", "/b's_1"));
+    assertEquals("/jcr:root/var/files/blobs//element(*, nt:file)[@sakai:references = '/a'"
+        + " or jcr:like(@sakai:references, '/a/%') or @sakai:references = '/b''s_1'"
+        + " or jcr:like(@sakai:references, '/b''s\\_1/%')]", query);
+  }
+
+  @Test
+  public void testTopmost() {
+    assertEquals(Arrays.asList("/a", "/a-b", "/c"), new ArrayList<String>(BlobStore
+        .getTopmost(paths("/a/x", "/a-b", "/c", "/a", "/a/x/y"))));
+  }
+
+  @Test
+  public void testNotObservedWithoutBlobs() throws Exception {
+    expect(session.itemExists(FilesConstants.BLOB_ROOT)).andReturn(false);
+    session.logout();
+    replay(session);
+
+    blobStore.activate(componentContext(false));
+    blobStore.deactivate(null);
+    verify(session);
+  }
+
+  @Test
+  public void testObservedWhileBlobsExist() throws Exception {
+    Node root = createMock(Node.class);
+    expect(root.hasNodes()).andReturn(true);
+    expect(session.itemExists(FilesConstants.BLOB_ROOT)).andReturn(true);
+    expect(session.getItem(FilesConstants.BLOB_ROOT)).andReturn(root);
+    ObservationManager observationManager = createMock(ObservationManager.class);
+    observationManager.addEventListener(isA(EventListener.class),
+        eq(Event.NODE_ADDED | Event.NODE_REMOVED), eq("/"),
+        eq(true), (String[]) eq(null), (String[]) eq(null), eq(false));
+    observationManager.removeEventListener(isA(EventListener.class));
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).times(2);
+    expect(session.getWorkspace()).andReturn(workspace).times(2);
+    session.logout();
+    replay(session, root, observationManager, workspace);
+
+    blobStore.activate(componentContext(false));
+    blobStore.deactivate(null);
+    verify(session, root, observationManager, workspace);
+  }
+
+  @Test
+  public void testMoveKeepsBlob() throws Exception {
+    String blobPath = BlobStore.getBlobPath(ABC_SHA256);
+    List<String> references = new ArrayList<String>(Arrays.asList("/old"));
+    Node blobNode = expectReferences(references);
+    expect(blobNode.getPath()).andReturn(blobPath).anyTimes();
+    expect(session.itemExists(blobPath)).andReturn(true).anyTimes();
+    expect(session.getItem(blobPath)).andReturn(blobNode).anyTimes();
+    // the file turns up at its new path.
+    Node fileNode = createMock(Node.class);
+    expect(fileNode.isNode()).andReturn(true);
+    expect(fileNode.getPath()).andReturn("/new").anyTimes();
+    expect(fileNode.hasNodes()).andReturn(false);
+    expect(fileNode.hasProperty(FilesConstants.SAKAI_BLOB)).andReturn(true);
+    MockProperty blob = new MockProperty(FilesConstants.SAKAI_BLOB);
+    blob.setValue(blobPath);
+    expect(fileNode.getProperty(FilesConstants.SAKAI_BLOB)).andReturn(blob);
+    expect(session.itemExists("/new")).andReturn(true);
+    expect(session.getItem("/new")).andReturn(fileNode);
+    expect(session.itemExists("/old")).andReturn(false);
+    Workspace workspace = expectQuery(BlobStore.getReferencesQuery(Arrays.asList("/old")),
+        blobNode);
+    session.save();
+    session.save();
+    session.logout();
+    replay(session, blobNode, fileNode, workspace);
+
+    blobStore.process(paths("/old"), paths("/new"));
+
+    verify(session, blobNode, fileNode);
+    assertEquals(Arrays.asList("/new"), references);
+    assertEquals(0, blobStore.getMetrics().getRemoved());
+  }
+
+  @Test
+  public void testRemovedFolderReleasesFiles() throws Exception {
+    String blobPath = BlobStore.getBlobPath(ABC_SHA256);
+    Node blobNode = expectBlob(createMock(Value.class), 3, "/f/a.txt");
+    expect(blobNode.getPath()).andReturn(blobPath).anyTimes();
+    blobNode.remove();
+    expect(session.itemExists(blobPath)).andReturn(true);
+    expect(session.getItem(blobPath)).andReturn(blobNode);
+    expect(session.itemExists("/f/a.txt")).andReturn(false);
+    // only the folder is queried for.
+    Workspace workspace = expectQuery(BlobStore.getReferencesQuery(Arrays.asList("/f")),
+        blobNode);
+    session.save();
+    session.logout();
+    replay(session, blobNode, workspace);
+
+    blobStore.process(paths("/f", "/f/a.txt"), paths());
+
+    verify(session, blobNode);
+    assertEquals(1, blobStore.getMetrics().getRemoved());
+  }
+
+  private Set<String> paths(String... paths) {
+    return new LinkedHashSet<String>(Arrays.asList(paths));
+  }
+
+  private ComponentContext componentContext(boolean dedup) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(BlobStore.DEDUP, dedup);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(props);
+    replay(context);
+    return context;
+  }
+
+  private Workspace expectQuery(String statement, Node... nodes) throws Exception {
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(new MockNodeIterator(nodes));
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery(statement, Query.XPATH)).andReturn(query);
+    replay(result, query, queryManager);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    expect(session.getWorkspace()).andReturn(workspace);
+    return workspace;
+  }
+
+  /**
+   * A blob whose references are kept in a list, so they change as they are set.
+   */
+  private Node expectReferences(final List<String> references) throws Exception {
+    final PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    replay(definition);
+    Node blobNode = createMock(Node.class);
+    expect(blobNode.hasProperty(FilesConstants.SAKAI_REFERENCES)).andReturn(true)
+        .anyTimes();
+    expect(blobNode.getProperty(FilesConstants.SAKAI_REFERENCES)).andAnswer(
+        new IAnswer<Property>() {
+          public Property answer() throws Throwable {
+            Value[] values = new Value[references.size()];
+            for (int i = 0; i < values.length; i++) {
+              values[i] = new MockValue(references.get(i));
+            }
+            Property property = createMock(Property.class);
+            expect(property.getDefinition()).andReturn(definition).anyTimes();
+            expect(property.getValues()).andReturn(values).anyTimes();
+            replay(property);
+            return property;
+          }
+        }).anyTimes();
+    expect(blobNode.setProperty(eq(FilesConstants.SAKAI_REFERENCES), isA(String[].class)))
+        .andAnswer(new IAnswer<Property>() {
+          public Property answer() throws Throwable {
+            references.clear();
+            Collections.addAll(references, (String[]) getCurrentArguments()[1]);
+            return null;
+          }
+        }).anyTimes();
+    expect(blobNode.setProperty(eq(FilesConstants.SAKAI_REFCOUNT), anyLong())).andReturn(
+        null).anyTimes();
+    return blobNode;
+  }
+
+  @Test
+  public void testStoreDeduplicated() throws Exception {
+    String blobPath = BlobStore.getBlobPath(ABC_SHA256);
+    Value data = createMock(Value.class);
+    Node blobNode = expectBlob(data, 3, "/a");
+    expect(
+        blobNode.setProperty(eq(FilesConstants.SAKAI_REFERENCES), aryEq(new String[] {
+            "/a", "/b" }))).andReturn(null);
+    expect(blobNode.setProperty(FilesConstants.SAKAI_REFCOUNT, 2L)).andReturn(null);
+    expect(session.itemExists(blobPath)).andReturn(true);
+    expect(session.getItem(blobPath)).andReturn(blobNode);
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    session.logout();
+    replay(session, blobNode);
+
+    Blob blob = blobStore.store(new ByteArrayInputStream("abc".getBytes("UTF-8")), "/b");
+
+    verify(session, blobNode);
+    assertTrue(blob.isDeduplicated());
+    assertEquals(blobPath, blob.getPath());
+    assertSame(data, blob.getData());
+    assertEquals(1, blobStore.getMetrics().getDeduplicated());
+    assertEquals(3, blobStore.getMetrics().getBytesSaved());
+    assertEquals(0, blobStore.getMetrics().getStored());
+  }
+
+  @Test
+  public void testReleaseLastReference() throws Exception {
+    String blobPath = BlobStore.getBlobPath(ABC_SHA256);
+    Node blobNode = expectBlob(createMock(Value.class), 3, "/a");
+    blobNode.remove();
+    expect(session.itemExists(blobPath)).andReturn(true);
+    expect(session.getItem(blobPath)).andReturn(blobNode);
+    session.save();
+    session.logout();
+    replay(session, blobNode);
+
+    blobStore.release(blobPath, "/a");
+
+    verify(session, blobNode);
+    assertEquals(1, blobStore.getMetrics().getRemoved());
+    assertEquals(3, blobStore.getMetrics().getBytesReleased());
+  }
+
+  private Node expectBlob(Value data, long length, String... references) throws Exception {
+    Value[] values = new Value[references.length];
+    for (int i = 0; i < references.length; i++) {
+      values[i] = createMock(Value.class);
+      expect(values[i].getString()).andReturn(references[i]).anyTimes();
+      replay(values[i]);
+    }
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    Property referencesProperty = createMock(Property.class);
+    expect(referencesProperty.getDefinition()).andReturn(definition).anyTimes();
+    expect(referencesProperty.getValues()).andReturn(values).anyTimes();
+    Property dataProperty = createMock(Property.class);
+    expect(dataProperty.getValue()).andReturn(data).anyTimes();
+    expect(dataProperty.getLength()).andReturn(length).anyTimes();
+    Node content = createMock(Node.class);
+    expect(content.getProperty(JcrConstants.JCR_DATA)).andReturn(dataProperty).anyTimes();
+    replay(definition, referencesProperty, dataProperty, content);
+
+    Node blobNode = createMock(Node.class);
+    expect(blobNode.hasProperty(FilesConstants.SAKAI_REFERENCES)).andReturn(true)
+        .anyTimes();
+    expect(blobNode.getProperty(FilesConstants.SAKAI_REFERENCES)).andReturn(
+        referencesProperty).anyTimes();
+    expect(blobNode.getNode(JcrConstants.JCR_CONTENT)).andReturn(content).anyTimes();
+    return blobNode;
+  }
+}
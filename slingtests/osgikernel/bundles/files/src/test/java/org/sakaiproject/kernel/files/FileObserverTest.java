@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.jackrabbit.commons.iterator.EventIteratorAdapter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.files.FilesConstants;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+
+public class FileObserverTest {
+
+  private static final String FILE = "/dav/report.doc";
+
+  private FileObserver observer;
+  private ComponentContext ctx;
+
+  @After
+  public void tearDown() {
+    if (observer != null) {
+      observer.deactivate(ctx);
+    }
+  }
+
+  @Test
+  public void testFilePath() {
+    assertEquals(FILE, FileObserver.getFilePath(FILE + "/jcr:content"));
+    assertEquals(FILE, FileObserver.getFilePath(FILE));
+    assertNull(FileObserver.getFilePath("/dav/.DS_Store/jcr:content"));
+    assertNull(FileObserver.getFilePath("/dav/sakai:thing"));
+    assertNull(FileObserver.getFilePath(FilesConstants.BLOB_ROOT + "/ab/cd/ef/01/abcdef01"));
+  }
+
+  @Test
+  public void testEventsCoalesced() throws Exception {
+    Session session = expectSession();
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(session).once();
+    replay(slingRepository);
+    activate(slingRepository, 1000, 50);
+
+    // the content and the file itself, and a second save of the content.
+    observer.onEvent(events(FILE + "/jcr:content", FILE, FILE + "/jcr:content"));
+    waitFor(1);
+
+    verify(slingRepository, session);
+    assertEquals(1, observer.getMetrics().getQueued());
+    assertEquals(2, observer.getMetrics().getCoalesced());
+    assertEquals(0, observer.getMetrics().getQueueDepth());
+  }
+
+  @Test
+  public void testRetriedUntilVisible() throws Exception {
+    Session notYet = createNiceMock(Session.class);
+    expect(notYet.itemExists(FILE)).andReturn(false);
+    notYet.logout();
+    Session visible = expectSession();
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(notYet).andReturn(visible);
+    replay(slingRepository, notYet);
+    activate(slingRepository, 1000, 10);
+
+    observer.onEvent(events(FILE + "/jcr:content"));
+    waitFor(1);
+
+    verify(notYet, visible);
+    assertEquals(1, observer.getMetrics().getRetried());
+    assertEquals(0, observer.getMetrics().getFailed());
+  }
+
+  @Test
+  public void testQueueBounded() throws Exception {
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    replay(slingRepository);
+    // nothing is processed while the test runs.
+    activate(slingRepository, 2, 60000);
+
+    observer.onEvent(events("/dav/a", "/dav/b", "/dav/a", "/dav/c"));
+
+    assertEquals(2, observer.getMetrics().getQueueDepth());
+    assertEquals(1, observer.getMetrics().getCoalesced());
+    assertEquals(1, observer.getMetrics().getDropped());
+  }
+
+  private void activate(SlingRepository slingRepository, int queueSize, int window)
+      throws Exception {
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    props.put(FileObserver.ENABLED, false);
+    props.put(FileObserver.QUEUE_SIZE, queueSize);
+    props.put(FileObserver.COALESCE_WINDOW, window);
+    props.put(FileObserver.RETRY_DELAY, 10);
+    props.put(FileObserver.MAX_RETRIES, 3);
+    ctx = createNiceMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+    replay(ctx);
+    observer = new FileObserver();
+    observer.slingRepository = slingRepository;
+    observer.activate(ctx);
+  }
+
+  private Session expectSession() throws Exception {
+    Node node = createNiceMock(Node.class);
+    expect(node.isNode()).andReturn(true);
+    expect(node.getName()).andReturn("report.doc");
+    expect(node.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)).andReturn(
+        false);
+    expect(node.canAddMixin("sakai:propertiesmix")).andReturn(true);
+    node.addMixin("sakai:propertiesmix");
+    expect(
+        node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+            FilesConstants.RT_SAKAI_FILE)).andReturn(null);
+    expect(node.setProperty(FilesConstants.SAKAI_FILENAME, "report.doc")).andReturn(null);
+    expect(node.setProperty(FilesConstants.SAKAI_USER, "alice")).andReturn(null);
+    replay(node);
+    Session session = createNiceMock(Session.class);
+    expect(session.itemExists(FILE)).andReturn(true);
+    expect(session.getItem(FILE)).andReturn(node);
+    session.save();
+    session.logout();
+    replay(session);
+    return session;
+  }
+
+  private EventIteratorAdapter events(String... paths) throws Exception {
+    List<Event> events = new ArrayList<Event>();
+    for (String path : paths) {
+      Event event = createNiceMock(Event.class);
+      expect(event.getType()).andReturn(Event.NODE_ADDED);
+      expect(event.getPath()).andReturn(path);
+      expect(event.getUserID()).andReturn("alice");
+      replay(event);
+      events.add(event);
+    }
+    return new EventIteratorAdapter(events);
+  }
+
+  private void waitFor(long processed) throws InterruptedException {
+    for (int i = 0; i < 500 && observer.getMetrics().getProcessed() < processed; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(processed, observer.getMetrics().getProcessed());
+  }
+}
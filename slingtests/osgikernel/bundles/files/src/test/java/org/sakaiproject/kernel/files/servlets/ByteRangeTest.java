@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ByteRangeTest {
+
+  @Test
+  public void testParse() {
+    assertEquals(Arrays.asList(new ByteRange(0, 99)), ByteRange.parse("bytes=0-99", 1000));
+    assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=900-", 1000));
+    assertEquals(Arrays.asList(new ByteRange(950, 999)), ByteRange.parse("bytes=-50", 1000));
+    // a range past the end is cut short.
+    assertEquals(Arrays.asList(new ByteRange(990, 999)), ByteRange.parse("bytes=990-2000",
+        1000));
+    // a suffix longer than the file is the whole file.
+    assertEquals(Arrays.asList(new ByteRange(0, 9)), ByteRange.parse("bytes=-50", 10));
+  }
+
+  @Test
+  public void testMerge() {
+    assertEquals(Arrays.asList(new ByteRange(0, 20), new ByteRange(50, 59)), ByteRange
+        .parse("bytes=50-59, 10-20, 0-10", 1000));
+    assertEquals(Arrays.asList(new ByteRange(0, 20)), ByteRange.parse("bytes=0-9,10-20",
+        1000));
+  }
+
+  @Test
+  public void testUnsatisfiable() {
+    assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    assertEquals(Arrays.asList(new ByteRange(0, 9)), ByteRange.parse("bytes=2000-,0-9",
+        1000));
+  }
+
+  @Test
+  public void testInvalid() {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-9", 1000));
+    assertNull(ByteRange.parse("bytes=9-0", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=10", 1000));
+    StringBuilder many = new StringBuilder("bytes=0-0");
+    for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+      many.append(',').append(i * 2).append('-').append(i * 2);
+    }
+    assertNull(ByteRange.parse(many.toString(), 1000));
+  }
+
+  @Test
+  public void testContentRange() {
+    assertEquals("bytes 0-9/1000", new ByteRange(0, 9).toContentRange(1000));
+    assertEquals(10, new ByteRange(0, 9).getLength());
+  }
+}
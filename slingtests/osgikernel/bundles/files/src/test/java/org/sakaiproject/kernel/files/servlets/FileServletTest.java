@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.files.FilesConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+public class FileServletTest {
+
+  private static final String CONTENT = "0123456789abcdefghij";
+  private static final long LAST_MODIFIED = 1234567890000L;
+
+  private FileServlet servlet;
+  private Resource resource;
+  private Map<String, String> requestHeaders;
+  private Map<String, Long> requestDateHeaders;
+  private Map<String, String> responseHeaders;
+  private ByteArrayOutputStream body;
+  private int status;
+
+  @Before
+  public void setUp() throws Exception {
+    servlet = new FileServlet();
+    requestHeaders = new HashMap<String, String>();
+    requestDateHeaders = new HashMap<String, Long>();
+    responseHeaders = new HashMap<String, String>();
+    body = new ByteArrayOutputStream();
+    status = 0;
+
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(LAST_MODIFIED);
+    Property mimeType = createMock(Property.class);
+    expect(mimeType.getString()).andReturn("text/plain").anyTimes();
+    Property data = createMock(Property.class);
+    expect(data.getLength()).andReturn((long) CONTENT.length()).anyTimes();
+    expect(data.getStream()).andReturn(new ByteArrayInputStream(CONTENT.getBytes("UTF-8")))
+        .anyTimes();
+    Property lastModified = createMock(Property.class);
+    expect(lastModified.getDate()).andReturn(cal).anyTimes();
+
+    Node content = createMock(Node.class);
+    expect(content.getPath()).andReturn("/files/test.txt/jcr:content").anyTimes();
+    expect(content.getProperty(JcrConstants.JCR_MIMETYPE)).andReturn(mimeType).anyTimes();
+    expect(content.getProperty(JcrConstants.JCR_DATA)).andReturn(data).anyTimes();
+    expect(content.hasProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(true).anyTimes();
+    expect(content.getProperty(JcrConstants.JCR_LASTMODIFIED)).andReturn(lastModified)
+        .anyTimes();
+
+    Node node = createMock(Node.class);
+    expect(node.hasProperty(FilesConstants.SAKAI_FILENAME)).andReturn(false).anyTimes();
+    expect(node.hasNode(JcrConstants.JCR_CONTENT)).andReturn(true).anyTimes();
+    expect(node.getNode(JcrConstants.JCR_CONTENT)).andReturn(content).anyTimes();
+
+    resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(node).anyTimes();
+    replay(mimeType, data, lastModified, content, node, resource);
+  }
+
+  @Test
+  public void testDownload() throws Exception {
+    doGet();
+    assertEquals(HttpServletResponse.SC_OK, status);
+    assertEquals(CONTENT, body.toString("UTF-8"));
+    assertEquals("20", responseHeaders.get("Content-Length"));
+    assertEquals("bytes", responseHeaders.get("Accept-Ranges"));
+    assertNotNull(responseHeaders.get("ETag"));
+  }
+
+  @Test
+  public void testIfNoneMatch() throws Exception {
+    doGet();
+    String etag = responseHeaders.get("ETag");
+    setUp();
+    requestHeaders.put("If-None-Match", "\"other\", " + etag);
+    doGet();
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+    assertEquals(0, body.size());
+  }
+
+  @Test
+  public void testIfNoneMatchChanged() throws Exception {
+    requestHeaders.put("If-None-Match", "\"other\"");
+    // the ETag wins over the date.
+    requestDateHeaders.put("If-Modified-Since", LAST_MODIFIED);
+    doGet();
+    assertEquals(HttpServletResponse.SC_OK, status);
+    assertEquals(CONTENT, body.toString("UTF-8"));
+  }
+
+  @Test
+  public void testIfModifiedSince() throws Exception {
+    requestDateHeaders.put("If-Modified-Since", LAST_MODIFIED + 500);
+    doGet();
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+
+    setUp();
+    requestDateHeaders.put("If-Modified-Since", LAST_MODIFIED - 1000);
+    doGet();
+    assertEquals(HttpServletResponse.SC_OK, status);
+  }
+
+  @Test
+  public void testSingleRange() throws Exception {
+    requestHeaders.put("Range", "bytes=5-9");
+    doGet();
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+    assertEquals("56789", body.toString("UTF-8"));
+    assertEquals("5", responseHeaders.get("Content-Length"));
+    assertEquals("bytes 5-9/20", responseHeaders.get("Content-Range"));
+  }
+
+  @Test
+  public void testSuffixRange() throws Exception {
+    requestHeaders.put("Range", "bytes=-3");
+    doGet();
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+    assertEquals("hij", body.toString("UTF-8"));
+    assertEquals("bytes 17-19/20", responseHeaders.get("Content-Range"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws Exception {
+    requestHeaders.put("Range", "bytes=10-11,0-1");
+    doGet();
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+    String contentType = responseHeaders.get("Content-Type");
+    assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+    String boundary = contentType.substring(contentType.indexOf('=') + 1);
+    String expected = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\n"
+        + "Content-Range: bytes 0-1/20\r\n\r\n01" + "\r\n--" + boundary
+        + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 10-11/20\r\n\r\nab"
+        + "\r\n--" + boundary + "--\r\n";
+    assertEquals(expected, body.toString("UTF-8"));
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws Exception {
+    requestHeaders.put("Range", "bytes=30-");
+    doGet();
+    assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, status);
+    assertEquals("bytes */20", responseHeaders.get("Content-Range"));
+  }
+
+  @Test
+  public void testIfRange() throws Exception {
+    doGet();
+    String etag = responseHeaders.get("ETag");
+
+    setUp();
+    requestHeaders.put("Range", "bytes=0-1");
+    requestHeaders.put("If-Range", etag);
+    doGet();
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+    assertEquals("01", body.toString("UTF-8"));
+
+    // the file has changed, so the whole of it is sent.
+    setUp();
+    requestHeaders.put("Range", "bytes=0-1");
+    requestHeaders.put("If-Range", "\"other\"");
+    doGet();
+    assertEquals(HttpServletResponse.SC_OK, status);
+    assertEquals(CONTENT, body.toString("UTF-8"));
+  }
+
+  private void doGet() throws Exception {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource).anyTimes();
+    expect(request.getHeader((String) anyObject())).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return requestHeaders.get(getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    expect(request.getDateHeader((String) anyObject())).andAnswer(new IAnswer<Long>() {
+      public Long answer() throws Throwable {
+        Long date = requestDateHeaders.get(getCurrentArguments()[0]);
+        return date == null ? -1L : date;
+      }
+    }).anyTimes();
+
+    SlingHttpServletResponse response = createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        body.write(b);
+      }
+    }).anyTimes();
+    response.setHeader((String) anyObject(), (String) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        responseHeaders.put((String) getCurrentArguments()[0], (String) getCurrentArguments()[1]);
+        return null;
+      }
+    }).anyTimes();
+    response.setDateHeader((String) anyObject(), anyLong());
+    expectLastCall().anyTimes();
+    response.setStatus(anyInt());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        status = (Integer) getCurrentArguments()[0];
+        return null;
+      }
+    }).anyTimes();
+    response.sendError(anyInt());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        status = (Integer) getCurrentArguments()[0];
+        return null;
+      }
+    }).anyTimes();
+    replay(request, response);
+
+    servlet.doGet(request, response);
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.files.servlets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.files.servlets.MultipartParser.Part;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+public class MultipartParserTest {
+
+  private static final String BOUNDARY = "----AaB03x";
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  @Test
+  public void testGetBoundary() {
+    assertEquals(BOUNDARY, MultipartParser.getBoundary("multipart/form-data; boundary="
+        + BOUNDARY));
+    assertEquals("a b", MultipartParser
+        .getBoundary("multipart/form-data; charset=UTF-8; boundary=\"a b\""));
+    assertNull(MultipartParser.getBoundary("application/x-www-form-urlencoded"));
+    assertNull(MultipartParser.getBoundary(null));
+  }
+
+  @Test
+  public void testFieldsAndFiles() throws IOException {
+    byte[] big = new byte[100000];
+    new Random(42).nextBytes(big);
+    // something that looks like the start of a delimiter, but isn't one.
+    System.arraycopy(("\r\n--" + BOUNDARY.substring(0, 5)).getBytes("ISO-8859-1"), 0, big,
+        5000, BOUNDARY.length() - 1);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("preamble\r\n--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(field("link", "/sites/physics/_files"));
+    body.write(CRLF);
+    body.write(file("Filedata", "C:\\slides\\week1.ppt", big));
+    body.write(CRLF);
+    body.write(file("Filedata", "empty.txt", new byte[0]));
+    body.write(CRLF);
+    body.write(field("site", "/sites/physics"));
+    body.write("--\r\nepilogue".getBytes("ISO-8859-1"));
+
+    // read a few bytes at a time, so that delimiters span reads.
+    MultipartParser parser = new MultipartParser(new TrickleInputStream(
+        new ByteArrayInputStream(body.toByteArray()), 7), BOUNDARY);
+
+    Part part = parser.nextPart();
+    assertFalse(part.isFile());
+    assertEquals("link", part.getName());
+    assertEquals("/sites/physics/_files", part.getString("UTF-8", 100));
+
+    part = parser.nextPart();
+    assertTrue(part.isFile());
+    assertEquals("Filedata", part.getName());
+    assertEquals("week1.ppt", part.getFileName());
+    assertEquals("application/octet-stream", part.getContentType());
+    assertArrayEquals(big, read(part.getInputStream()));
+    assertEquals(big.length, part.getLength());
+
+    part = parser.nextPart();
+    assertEquals("empty.txt", part.getFileName());
+    assertEquals(0, read(part.getInputStream()).length);
+
+    part = parser.nextPart();
+    assertEquals("site", part.getName());
+    assertEquals("/sites/physics", part.getString("UTF-8", 100));
+
+    assertNull(parser.nextPart());
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testUnreadPartSkipped() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(file("Filedata", "a.txt", "aaaa".getBytes("ISO-8859-1")));
+    body.write(CRLF);
+    body.write(file("Filedata", "b.txt", "bbbb".getBytes("ISO-8859-1")));
+    body.write("--\r\n".getBytes("ISO-8859-1"));
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body
+        .toByteArray()), BOUNDARY);
+
+    assertEquals("a.txt", parser.nextPart().getFileName());
+    Part part = parser.nextPart();
+    assertEquals("b.txt", part.getFileName());
+    assertEquals("bbbb", new String(read(part.getInputStream()), "ISO-8859-1"));
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testBodyAlreadyRead() throws IOException {
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(new byte[0]),
+        BOUNDARY);
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testTruncatedBody() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(file("Filedata", "a.txt", "aaaa".getBytes("ISO-8859-1")));
+    // the delimiter at the end of the part is cut off.
+    byte[] cut = new byte[body.size() - BOUNDARY.length()];
+    System.arraycopy(body.toByteArray(), 0, cut, 0, cut.length);
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(cut), BOUNDARY);
+
+    Part part = parser.nextPart();
+    try {
+      read(part.getInputStream());
+      fail("The part has no end.");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFieldTooLong() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(field("link", "/a/very/long/path"));
+    body.write("--\r\n".getBytes("ISO-8859-1"));
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body
+        .toByteArray()), BOUNDARY);
+    try {
+      parser.nextPart().getString("UTF-8", 4);
+      fail("The field is longer than allowed.");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testNonAsciiFileName() throws IOException {
+    String fileName = "r\u00e9sum\u00e9 \u65e5\u672c.txt";
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(file("Filedata", fileName, "aaaa".getBytes("ISO-8859-1"), "UTF-8"));
+    body.write("--\r\n".getBytes("ISO-8859-1"));
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body
+        .toByteArray()), BOUNDARY, "UTF-8");
+
+    Part part = parser.nextPart();
+    assertEquals("Filedata", part.getName());
+    assertEquals(fileName, part.getFileName());
+    assertEquals("aaaa", new String(read(part.getInputStream()), "ISO-8859-1"));
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testFileNameInRequestEncoding() throws IOException {
+    String fileName = "r\u00e9sum\u00e9.txt";
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("--" + BOUNDARY + "\r\n").getBytes("ISO-8859-1"));
+    body.write(file("Filedata", fileName, "aaaa".getBytes("ISO-8859-1"), "ISO-8859-1"));
+    body.write("--\r\n".getBytes("ISO-8859-1"));
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body
+        .toByteArray()), BOUNDARY, "ISO-8859-1");
+
+    assertEquals(fileName, parser.nextPart().getFileName());
+  }
+
+  private byte[] field(String name, String value) throws IOException {
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    part.write(("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n")
+        .getBytes("ISO-8859-1"));
+    part.write(value.getBytes("UTF-8"));
+    part.write(("\r\n--" + BOUNDARY).getBytes("ISO-8859-1"));
+    return part.toByteArray();
+  }
+
+  private byte[] file(String name, String fileName, byte[] content) throws IOException {
+    return file(name, fileName, content, "ISO-8859-1");
+  }
+
+  private byte[] file(String name, String fileName, byte[] content, String encoding)
+      throws IOException {
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    part.write(("Content-Disposition: form-data; name=\"" + name + "\"; filename=\""
+        + fileName + "\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+        .getBytes(encoding));
+    part.write(content);
+    part.write(("\r\n--" + BOUNDARY).getBytes("ISO-8859-1"));
+    return part.toByteArray();
+  }
+
+  private byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[4096];
+    int n;
+    while ((n = in.read(b)) != -1) {
+      out.write(b, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Gives back no more than a few bytes for each read.
+   */
+  private static class TrickleInputStream extends FilterInputStream {
+    private final int max;
+
+    TrickleInputStream(InputStream in, int max) {
+      super(in);
+      this.max = max;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, max));
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * A crop that runs after the request that asked for it has returned. The request's
+ * session is gone by then, so the crop is done in a session that impersonates the user
+ * who asked for it.
+ */
+public class CropItJob implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CropItJob.class);
+
+  public enum Status {
+    queued, running, done, failed
+  }
+
+  private final String id = UUID.randomUUID().toString();
+  private final SlingRepository slingRepository;
+  private final String userId;
+  private final int x;
+  private final int y;
+  private final int width;
+  private final int height;
+  private final List<Dimension> dimensions;
+  private final String img;
+  private final String save;
+  private final ExecutorService executor;
+
+  private volatile Status status = Status.queued;
+  private volatile String[] files;
+  private volatile int code;
+  private volatile String message;
+
+  /**
+   * @param slingRepository
+   * @param userId
+   *          the user to crop the image as.
+   * @param executor
+   *          the executor to scale the image on.
+   * @see CropItProcessor#crop(Session, int, int, int, int, List, String, String,
+   *      ExecutorService)
+   */
+  public CropItJob(SlingRepository slingRepository, String userId, int x, int y, int width,
+      int height, List<Dimension> dimensions, String img, String save,
+      ExecutorService executor) {
+    this.slingRepository = slingRepository;
+    this.userId = userId;
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+    this.dimensions = dimensions;
+    this.img = img;
+    this.save = save;
+    this.executor = executor;
+  }
+
+  public void run() {
+    status = Status.running;
+    Session session = null;
+    try {
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        session = adminSession.impersonate(new SimpleCredentials(userId, new char[0]));
+      } finally {
+        adminSession.logout();
+      }
+      files = CropItProcessor.crop(session, x, y, width, height, dimensions, img, save,
+          executor);
+      status = Status.done;
+    } catch (ImageException e) {
+      LOGGER.warn("Unable to crop {}: {}", img, e.getMessage());
+      fail(e.getCode(), e.getMessage());
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to crop {}: {}", img, e.getMessage());
+      fail(500, e.getMessage());
+    } catch (Throwable t) {
+      // anything else, even an error such as running out of memory on a huge image,
+      // still has to leave the job failed rather than running forever.
+      LOGGER.warn("Unable to crop " + img, t);
+      fail(500, t.getMessage());
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  private void fail(int code, String message) {
+    this.code = code;
+    this.message = message;
+    status = Status.failed;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * Write the state of the job.
+   * 
+   * @param output
+   * @throws JSONException
+   */
+  public void write(JSONWriter output) throws JSONException {
+    Status current = status;
+    output.object();
+    output.key("job");
+    output.value(id);
+    output.key("status");
+    output.value(current.toString());
+    if (current == Status.done) {
+      output.key("files");
+      output.array();
+      for (String url : files) {
+        output.value(url);
+      }
+      output.endArray();
+    } else if (current == Status.failed) {
+      output.key("code");
+      output.value(code);
+      output.key("message");
+      output.value(message);
+    }
+    output.endObject();
+  }
+}
@@ -27,18 +27,26 @@ import org.slf4j.LoggerFactory;
 import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
@@ -50,7 +58,31 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  private static final Map<String, Integer> MIME_TO_RGB_TYPE = new HashMap<String, Integer>();
+  static {
+    MIME_TO_RGB_TYPE.put("image/jpg", BufferedImage.TYPE_INT_RGB);
+    MIME_TO_RGB_TYPE.put("image/jpeg", BufferedImage.TYPE_INT_RGB);
+    MIME_TO_RGB_TYPE.put("image/gif", BufferedImage.TYPE_INT_ARGB);
+    MIME_TO_RGB_TYPE.put("image/png", BufferedImage.TYPE_INT_ARGB_PRE);
+    MIME_TO_RGB_TYPE.put("image/bmp", BufferedImage.TYPE_INT_RGB);
+  }
+
   /**
+   * Crop an image and scale it to each dimension, one dimension after the other.
+   *
+   * @see #crop(Session, int, int, int, int, List, String, String, ExecutorService)
+   */
+  public static String[] crop(Session session, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save) throws ImageException {
+    return crop(session, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * Crop an image and scale it to each dimension. The image is decoded once, and only
+   * the part that is cropped out is read. If that part is much larger than the largest
+   * dimension it is subsampled while it is read. The scaled images are encoded in
+   * parallel on the executor, and saved to JCR in this thread as the session may only be
+   * used by one thread at a time.
    * 
    * @param session
    *          The JCR session
@@ -71,14 +103,17 @@ public class CropItProcessor {
    *          The location of the image to scale.
    * @param save
    *          The location where to save all the scaled instances.
+   * @param executor
+   *          The executor to scale the image on, if null each dimension is scaled in this
+   *          thread.
    * @return returns an array with all the location of the scaled instances.
    * @throws ImageException
    */
   public static String[] crop(Session session, int x, int y, int width, int height,
-      List<Dimension> dimensions, String img, String save) throws ImageException {
+      List<Dimension> dimensions, String img, String save, ExecutorService executor)
+      throws ImageException {
 
     InputStream in = null;
-    ByteArrayOutputStream out = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -105,52 +140,76 @@ public class CropItProcessor {
         String sType = getMimeTypeForNode(imgNode, sImg);
 
         // check if this is a valid image
-        if (sType.equalsIgnoreCase("image/png") || sType.equalsIgnoreCase("image/jpg")
-            || sType.equalsIgnoreCase("image/bmp") || sType.equalsIgnoreCase("image/gif")
-            || sType.equalsIgnoreCase("image/jpeg")) {
+        if (isSupportedType(sType)) {
 
           // Read the image
           in = imgNode.getProperty(JCRConstants.JCR_DATA).getStream();
-
-          BufferedImage imgBuf = ImageIO.read(in);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? imgBuf.getWidth() : width;
-          height = (height <= 0) ? imgBuf.getHeight() : height;
-
-          if (x + width > imgBuf.getWidth()) {
-            width = imgBuf.getWidth() - x;
+          ImageInputStream iis = ImageIO.createImageInputStream(in);
+          if (iis == null) {
+            throw new ImageException(500, "Unable to read image in order to crop it.");
           }
-          if (y + height > imgBuf.getHeight()) {
-            height = imgBuf.getHeight() - y;
+          BufferedImage subImage;
+          List<Dimension> sizes = new ArrayList<Dimension>();
+          try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+              throw new ImageException(406, "Invalid filetype: " + sType);
+            }
+            ImageReader reader = readers.next();
+            try {
+              reader.setInput(iis, true, true);
+              int imgWidth = reader.getWidth(0);
+              int imgHeight = reader.getHeight(0);
+
+              // Set the correct width & height.
+              width = (width <= 0) ? imgWidth : width;
+              height = (height <= 0) ? imgHeight : height;
+
+              if (x + width > imgWidth) {
+                width = imgWidth - x;
+              }
+              if (y + height > imgHeight) {
+                height = imgHeight - y;
+              }
+              if (width <= 0 || height <= 0) {
+                throw new ImageException(400, "The area to crop lies outside the image.");
+              }
+
+              for (Dimension d : dimensions) {
+                // get dimension size
+                int iWidth = (d.width <= 0) ? imgWidth : d.width;
+                int iHeight = (d.height <= 0) ? imgHeight : d.height;
+                sizes.add(new Dimension(iWidth, iHeight));
+              }
+
+              // Only decode the piece that is cut out of the image.
+              ImageReadParam param = reader.getDefaultReadParam();
+              param.setSourceRegion(new Rectangle(x, y, width, height));
+              int subsampling = getSubsampling(width, height, sizes);
+              if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+              }
+              subImage = reader.read(0, param);
+            } finally {
+              reader.dispose();
+            }
+          } finally {
+            iis.close();
           }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? imgBuf.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? imgBuf.getHeight() : iHeight;
-
-            // Create the image.
-            out = scaleAndWriteToStream(iWidth, iHeight, subImage, sType, sImg);
+          // Scale the image to each dimension.
+          List<EncodedImage> scaled = scale(subImage, sizes, sType, sImg, executor);
 
-            String sPath = save + iWidth + "x" + iHeight + "_" + sImg;
-            // Save new image to JCR.
-            saveImageToJCR(sPath, sType, out, imgNode, session);
-
-            out.close();
+          // Save the new images to JCR.
+          for (int i = 0; i < sizes.size(); i++) {
+            Dimension d = sizes.get(i);
+            String sPath = save + d.width + "x" + d.height + "_" + sImg;
+            saveImageToJCR(sPath, sType, scaled.get(i).getInputStream(), session);
             arrFiles[i] = sPath;
           }
+          if (session.hasPendingChanges()) {
+            session.save();
+          }
         } else {
           // This is not a valid image.
           LOGGER.error("Unknown image type: " + sType);
@@ -180,65 +239,127 @@ public class CropItProcessor {
           e.printStackTrace();
         }
       }
-      if (out != null) {
-        try {
-          out.close();
-        } catch (IOException e) {
-          LOGGER.debug("Exception closing outputstream.");
-          e.printStackTrace();
+    }
+    return arrFiles;
+  }
+
+  /**
+   * Scale an image to each of a list of sizes.
+   * 
+   * @param img
+   *          The image to scale.
+   * @param sizes
+   *          The sizes to scale it to.
+   * @param sType
+   *          The mime type of the image.
+   * @param sImg
+   *          Filename of the image
+   * @param executor
+   *          The executor to scale on, or null to scale in this thread.
+   * @return The encoded images, in the order of the sizes.
+   * @throws IOException
+   * @throws ImageException
+   */
+  private static List<EncodedImage> scale(final BufferedImage img, List<Dimension> sizes,
+      final String sType, final String sImg, ExecutorService executor) throws IOException,
+      ImageException {
+    List<EncodedImage> scaled = new ArrayList<EncodedImage>();
+    if (executor == null || sizes.size() < 2) {
+      for (Dimension d : sizes) {
+        scaled.add(scaleAndWriteToStream(d.width, d.height, img, sType, sImg));
+      }
+      return scaled;
+    }
+
+    // the source image is only read while it is scaled, so it can be shared.
+    List<Callable<EncodedImage>> tasks = new ArrayList<Callable<EncodedImage>>();
+    for (final Dimension d : sizes) {
+      tasks.add(new Callable<EncodedImage>() {
+        public EncodedImage call() throws IOException {
+          return scaleAndWriteToStream(d.width, d.height, img, sType, sImg);
         }
+      });
+    }
+    try {
+      for (Future<EncodedImage> future : executor.invokeAll(tasks)) {
+        scaled.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while scaling the image.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
       }
+      LOGGER.warn("Unable to scale image.", e.getCause());
+      throw new ImageException(500, "Unable to scale image.");
     }
-    return arrFiles;
+    return scaled;
+  }
+
+  /**
+   * Work out how much an image can be subsampled while it is read. The halving scale
+   * needs at least twice the size it scales to for a smooth result, so the image is
+   * subsampled no further than that.
+   * 
+   * @param width
+   *          The width of the area that is read.
+   * @param height
+   *          The height of the area that is read.
+   * @param sizes
+   *          The sizes the image will be scaled to.
+   * @return The number of pixels to step over on each axis, 1 for none.
+   */
+  protected static int getSubsampling(int width, int height, List<Dimension> sizes) {
+    int maxWidth = 1;
+    int maxHeight = 1;
+    for (Dimension d : sizes) {
+      maxWidth = Math.max(maxWidth, d.width);
+      maxHeight = Math.max(maxHeight, d.height);
+    }
+    return Math.max(1, Math.min(width / maxWidth, height / maxHeight) / 2);
   }
 
   /**
-   * Will save a stream of an image to the JCR.
+   * Will save a stream of an image to the JCR. The session is not saved.
    * 
    * @param path
    *          The JCR path to save the image in.
    * @param mimetype
    *          The Mime type of the node that will be saved.
-   * @param out
+   * @param in
    *          The stream you wish to save.
+   * @param session
+   *          The session to save the image with.
    * @throws ImageException
    */
-  public static void saveImageToJCR(String path, String mimetype,
-      ByteArrayOutputStream out, Node baseNode, Session session) throws ImageException {
+  public static void saveImageToJCR(String path, String mimetype, InputStream in,
+      Session session) throws ImageException {
 
     // Save image into the jcr
-    ByteArrayInputStream bais = null;
     try {
       path = PathUtils.normalizePath(path);
       Node node = JcrUtils.deepGetOrCreateNode(session, path, "nt:file");
 
-      // convert stream to inputstream
-      bais = new ByteArrayInputStream(out.toByteArray());
       Node contentNode = null;
       if (node.hasNode(JCRConstants.JCR_CONTENT)) {
         contentNode = node.getNode(JCRConstants.JCR_CONTENT);
       } else {
         contentNode = node.addNode(JCRConstants.JCR_CONTENT, JCRConstants.NT_RESOURCE);
       }
-      contentNode.setProperty(JCRConstants.JCR_DATA, bais);
+      contentNode.setProperty(JCRConstants.JCR_DATA, in);
       contentNode.setProperty(JCRConstants.JCR_MIMETYPE, mimetype);
       contentNode.setProperty(JCRConstants.JCR_LASTMODIFIED, Calendar.getInstance());
-
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
     } catch (RepositoryException e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       e.printStackTrace();
       throw new ImageException(500, "Unable to save image to JCR.");
     } finally {
-      if (bais != null) {
-        try {
-          bais.close();
-        } catch (IOException e) {
-          LOGGER.warn("Unable to close inputstream.");
-          e.printStackTrace();
-        }
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOGGER.warn("Unable to close inputstream.");
+        e.printStackTrace();
       }
     }
   }
@@ -260,21 +381,14 @@ public class CropItProcessor {
    * @return Returns an outputstream of the scaled image.
    * @throws IOException
    */
-  public static ByteArrayOutputStream scaleAndWriteToStream(int width, int height,
+  public static EncodedImage scaleAndWriteToStream(int width, int height,
       BufferedImage img, String sType, String sImg) throws IOException {
-    ByteArrayOutputStream out = null;
+    EncodedImage out = null;
     try {
 
-      Map<String, Integer> mapExtensionsToRGBType = new HashMap<String, Integer>();
-      mapExtensionsToRGBType.put("image/jpg", BufferedImage.TYPE_INT_RGB);
-      mapExtensionsToRGBType.put("image/jpeg", BufferedImage.TYPE_INT_RGB);
-      mapExtensionsToRGBType.put("image/gif", BufferedImage.TYPE_INT_ARGB);
-      mapExtensionsToRGBType.put("image/png", BufferedImage.TYPE_INT_ARGB_PRE);
-      mapExtensionsToRGBType.put("image/bmp", BufferedImage.TYPE_INT_RGB);
-
       Integer type = BufferedImage.TYPE_INT_RGB;
-      if (mapExtensionsToRGBType.containsKey(sType)) {
-        type = mapExtensionsToRGBType.get(sType);
+      if (MIME_TO_RGB_TYPE.containsKey(sType)) {
+        type = MIME_TO_RGB_TYPE.get(sType);
       }
       
       Image imgScaled = getScaledInstance(img, width, height, type);
@@ -282,7 +396,7 @@ public class CropItProcessor {
       BufferedImage biScaled = toBufferedImage(imgScaled, type);
 
       // Convert image to a stream
-      out = new ByteArrayOutputStream();
+      out = new EncodedImage();
 
       String sIOtype = sType.split("/")[1];
 
@@ -302,6 +416,17 @@ public class CropItProcessor {
     return out;
   }
 
+  /**
+   * @param sType
+   *          The mime type of an image.
+   * @return true if images of this type can be cropped and scaled.
+   */
+  public static boolean isSupportedType(String sType) {
+    return sType.equalsIgnoreCase("image/png") || sType.equalsIgnoreCase("image/jpg")
+        || sType.equalsIgnoreCase("image/bmp") || sType.equalsIgnoreCase("image/gif")
+        || sType.equalsIgnoreCase("image/jpeg");
+  }
+
   /**
    * Tries to fetch the mime type for a node. If the node lacks on, the mimetype will be
    * determined via the extension.
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+/**
+ * Drops the copies the {@link ThumbnailServlet} made of images that have since changed or
+ * been removed.
+ */
+@Component(immediate = true, metatype = false)
+@Service(value = Runnable.class)
+@Properties(value = {
+    @Property(name = "service.description", value = "Drops stale resized copies of images."),
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 3600L) })
+public class ThumbnailCleaner implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ThumbnailCleaner.class);
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      int removed = clean(session);
+      if (removed > 0) {
+        LOGGER.info("Removed the resized copies of {} images.", removed);
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to remove stale resized copies: {}", e.getMessage());
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Remove every folder of copies whose image has changed or gone.
+   * 
+   * @return The number of folders removed.
+   */
+  protected static int clean(Session session) throws RepositoryException {
+    if (!session.itemExists(ThumbnailServlet.DERIVATIVE_ROOT)) {
+      return 0;
+    }
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery("/jcr:root" + ThumbnailServlet.DERIVATIVE_ROOT
+        + "//*[@" + ThumbnailServlet.SOURCE_PROPERTY + "]", Query.XPATH);
+    NodeIterator folders = query.execute().getNodes();
+    int removed = 0;
+    while (folders.hasNext()) {
+      Node folder = folders.nextNode();
+      if (isStale(folder, session)) {
+        folder.remove();
+        removed++;
+      }
+    }
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+    return removed;
+  }
+
+  /**
+   * @return true if the image the copies in a folder were made from has changed or gone.
+   */
+  protected static boolean isStale(Node folder, Session session) throws RepositoryException {
+    String source = folder.getProperty(ThumbnailServlet.SOURCE_PROPERTY).getString();
+    if (!session.itemExists(source)) {
+      return true;
+    }
+    Item item = session.getItem(source);
+    if (!item.isNode()) {
+      return true;
+    }
+    Node content = ThumbnailServlet.getContent((Node) item);
+    return !ThumbnailServlet.isCurrent(folder, ThumbnailServlet.getLastModified(content));
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.List;
+
+public class CropItProcessorTest {
+
+  @Test
+  public void testSubsampling() {
+    // at least twice the biggest size is read.
+    assertEquals(5, CropItProcessor.getSubsampling(1000, 1000, sizes(100, 100)));
+    assertEquals(5, CropItProcessor.getSubsampling(1000, 1000, sizes(16, 16, 100, 100)));
+    // the tighter axis decides.
+    assertEquals(2, CropItProcessor.getSubsampling(1000, 400, sizes(100, 100)));
+    assertEquals(1, CropItProcessor.getSubsampling(1000, 1000, sizes(1000, 10)));
+  }
+
+  @Test
+  public void testNoSubsampling() {
+    assertEquals(1, CropItProcessor.getSubsampling(300, 300, sizes(200, 200)));
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, sizes(400, 400)));
+    assertEquals(1, CropItProcessor.getSubsampling(0, 0, sizes(16, 16)));
+    // a size of 0 does not divide by zero.
+    assertEquals(50, CropItProcessor.getSubsampling(100, 100, sizes(0, 0)));
+  }
+
+  private List<Dimension> sizes(int... sizes) {
+    Dimension[] dimensions = new Dimension[sizes.length / 2];
+    for (int i = 0; i < dimensions.length; i++) {
+      dimensions[i] = new Dimension(sizes[2 * i], sizes[2 * i + 1]);
+    }
+    return Arrays.asList(dimensions);
+  }
+}
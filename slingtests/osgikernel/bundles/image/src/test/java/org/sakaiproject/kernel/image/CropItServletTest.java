@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+
+import java.awt.Dimension;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletResponse;
+
+public class CropItServletTest {
+
+  private static final List<Dimension> SIZES = Collections.singletonList(new Dimension(16,
+      16));
+
+  @Test
+  public void testJobQueueFull() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(2);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andAnswer(new IAnswer<Session>() {
+      public Session answer() throws Throwable {
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        finished.countDown();
+        throw new RepositoryException("Gone");
+      }
+    }).times(2);
+    Session session = createMock(Session.class);
+    expect(session.getUserID()).andReturn("bob").anyTimes();
+
+    // one job runs, one waits and the one after that is turned away.
+    SlingHttpServletResponse accepted = acceptedResponse();
+    SlingHttpServletResponse waiting = acceptedResponse();
+    SlingHttpServletResponse rejected = createMock(SlingHttpServletResponse.class);
+    rejected.sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), isA(String.class));
+    replay(slingRepository, session, accepted, waiting, rejected);
+
+    CropItServlet servlet = new CropItServlet();
+    servlet.slingRepository = slingRepository;
+    servlet.activate(componentContext(1, 1));
+    try {
+      servlet.startJob(session, 0, 0, 100, 100, SIZES, "/a.png", "/b/", accepted);
+      started.await(10, TimeUnit.SECONDS);
+      servlet.startJob(session, 0, 0, 100, 100, SIZES, "/a.png", "/b/", waiting);
+      servlet.startJob(session, 0, 0, 100, 100, SIZES, "/a.png", "/b/", rejected);
+      release.countDown();
+      finished.await(10, TimeUnit.SECONDS);
+    } finally {
+      servlet.deactivate(null);
+    }
+    verify(slingRepository, session, accepted, waiting, rejected);
+  }
+
+  @Test
+  public void testNotActive() throws Exception {
+    Session session = createMock(Session.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), isA(String.class));
+    replay(session, response);
+
+    new CropItServlet().startJob(session, 0, 0, 100, 100, SIZES, "/a.png", "/b/", response);
+    verify(session, response);
+  }
+
+  @Test
+  public void testErrorFailsJob() throws Exception {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andThrow(
+        new OutOfMemoryError("Java heap space"));
+    replay(slingRepository);
+
+    CropItJob job = new CropItJob(slingRepository, "bob", 0, 0, 100, 100, SIZES, "/a.png",
+        "/b/", null);
+    job.run();
+    assertEquals(CropItJob.Status.failed, job.getStatus());
+    StringWriter out = new StringWriter();
+    job.write(new JSONWriter(out));
+    JSONObject json = new JSONObject(out.toString());
+    assertEquals(500, json.getInt("code"));
+    assertEquals("Java heap space", json.getString("message"));
+    verify(slingRepository);
+  }
+
+  private SlingHttpServletResponse acceptedResponse() throws Exception {
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(new PrintWriter(new StringWriter()));
+    return response;
+  }
+
+  private ComponentContext componentContext(int threads, int queue) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(CropItServlet.JOB_THREADS, threads);
+    props.put(CropItServlet.JOB_QUEUE, queue);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(props);
+    replay(context);
+    return context;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.apache.sling.commons.testing.jcr.MockProperty;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.jcr.JCRConstants;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class ThumbnailCleanerTest {
+
+  @Test
+  public void testStaleCopiesRemoved() throws Exception {
+    Session session = createMock(Session.class);
+    expect(session.itemExists(ThumbnailServlet.DERIVATIVE_ROOT)).andReturn(true);
+    // the image is unchanged.
+    Node current = folder("/current.png", 1000L);
+    image(session, "/current.png", 1000L);
+    // the image has changed.
+    Node changed = folder("/changed.png", 1000L);
+    image(session, "/changed.png", 2000L);
+    changed.remove();
+    // the image is gone.
+    Node removed = folder("/removed.png", 1000L);
+    expect(session.itemExists("/removed.png")).andReturn(false);
+    removed.remove();
+
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(
+        new MockNodeIterator(new Node[] { current, changed, removed }));
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery("/jcr:root/var/image/derivatives//*[@"
+            + ThumbnailServlet.SOURCE_PROPERTY + "]", Query.XPATH)).andReturn(query);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    expect(session.getWorkspace()).andReturn(workspace);
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    replay(session, current, changed, removed, result, query, queryManager, workspace);
+
+    assertEquals(2, ThumbnailCleaner.clean(session));
+    verify(session, current, changed, removed);
+  }
+
+  @Test
+  public void testNothingMade() throws Exception {
+    Session session = createMock(Session.class);
+    expect(session.itemExists(ThumbnailServlet.DERIVATIVE_ROOT)).andReturn(false);
+    replay(session);
+
+    assertEquals(0, ThumbnailCleaner.clean(session));
+    verify(session);
+  }
+
+  private Node folder(String source, long lastModified) throws Exception {
+    Node folder = createMock(Node.class);
+    MockProperty sourceProperty = new MockProperty(ThumbnailServlet.SOURCE_PROPERTY);
+    sourceProperty.setValue(source);
+    expect(folder.getProperty(ThumbnailServlet.SOURCE_PROPERTY)).andReturn(sourceProperty)
+        .anyTimes();
+    Property modified = createMock(Property.class);
+    expect(modified.getLong()).andReturn(lastModified).anyTimes();
+    replay(modified);
+    expect(folder.hasProperty(ThumbnailServlet.SOURCE_MODIFIED_PROPERTY)).andReturn(true)
+        .anyTimes();
+    expect(folder.getProperty(ThumbnailServlet.SOURCE_MODIFIED_PROPERTY)).andReturn(
+        modified).anyTimes();
+    return folder;
+  }
+
+  private void image(Session session, String path, long lastModified) throws Exception {
+    Node image = createMock(Node.class);
+    Node content = createMock(Node.class);
+    expect(image.isNode()).andReturn(true);
+    expect(image.hasNode(JCRConstants.JCR_CONTENT)).andReturn(true);
+    expect(image.getNode(JCRConstants.JCR_CONTENT)).andReturn(content);
+    Calendar modified = Calendar.getInstance();
+    modified.setTimeInMillis(lastModified);
+    Property property = createMock(Property.class);
+    expect(property.getDate()).andReturn(modified);
+    expect(content.hasProperty(JCRConstants.JCR_LASTMODIFIED)).andReturn(true);
+    expect(content.getProperty(JCRConstants.JCR_LASTMODIFIED)).andReturn(property);
+    replay(image, content, property);
+    expect(session.itemExists(path)).andReturn(true);
+    expect(session.getItem(path)).andReturn(image);
+  }
+}
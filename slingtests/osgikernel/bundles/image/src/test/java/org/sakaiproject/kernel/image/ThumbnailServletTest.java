@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.image;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.kernel.api.jcr.JCRConstants;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Calendar;
+import java.util.Hashtable;
+
+import javax.imageio.ImageIO;
+import javax.jcr.Node;
+import javax.jcr.Property;
+
+public class ThumbnailServletTest {
+
+  @Test
+  public void testParseSize() {
+    ThumbnailServlet servlet = new ThumbnailServlet();
+    assertEquals(new Dimension(128, 128), servlet.parseSize("128x128"));
+    assertEquals(new Dimension(32, 32), servlet.parseSize("32x32"));
+    // only the sizes allowed are made.
+    assertNull(servlet.parseSize("120x120"));
+    assertNull(servlet.parseSize("128x129"));
+    assertNull(servlet.parseSize("0x0"));
+    assertNull(servlet.parseSize("-32x-32"));
+    assertNull(servlet.parseSize("128"));
+    assertNull(servlet.parseSize("128x128x128"));
+    assertNull(servlet.parseSize("axb"));
+  }
+
+  @Test
+  public void testConfiguredSizes() {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(ThumbnailServlet.SIZES, new String[] { "100x50", " 20x20 ", "bad" });
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(props);
+    replay(context);
+
+    ThumbnailServlet servlet = new ThumbnailServlet();
+    servlet.activate(context);
+    assertEquals(new Dimension(100, 50), servlet.parseSize("100x50"));
+    assertEquals(new Dimension(20, 20), servlet.parseSize("20x20"));
+    assertNull(servlet.parseSize("128x128"));
+  }
+
+  @Test
+  public void testKey() throws Exception {
+    Dimension size = new Dimension(64, 64);
+    String key = ThumbnailServlet.getKey("/a.png", 1000L, size, "jpg");
+    assertEquals(key, ThumbnailServlet.getKey("/a.png", 1000L, new Dimension(64, 64), "jpg"));
+    // any change makes another copy.
+    assertFalse(key.equals(ThumbnailServlet.getKey("/b.png", 1000L, size, "jpg")));
+    assertFalse(key.equals(ThumbnailServlet.getKey("/a.png", 1001L, size, "jpg")));
+    assertFalse(key.equals(ThumbnailServlet.getKey("/a.png", 1000L, new Dimension(64, 32),
+        "jpg")));
+    assertFalse(key.equals(ThumbnailServlet.getKey("/a.png", 1000L, size, "png")));
+  }
+
+  @Test
+  public void testLastModified() throws Exception {
+    Calendar modified = Calendar.getInstance();
+    modified.setTimeInMillis(1000L);
+    Property date = createMock(Property.class);
+    expect(date.getDate()).andReturn(modified);
+    Node content = createMock(Node.class);
+    expect(content.hasProperty(JCRConstants.JCR_LASTMODIFIED)).andReturn(true);
+    expect(content.getProperty(JCRConstants.JCR_LASTMODIFIED)).andReturn(date);
+    replay(date, content);
+    assertEquals(1000L, ThumbnailServlet.getLastModified(content));
+
+    // without a modification date, the value still follows the data.
+    long first = ThumbnailServlet.getLastModified(undated(png(400, 200)));
+    assertEquals(first, ThumbnailServlet.getLastModified(undated(png(400, 200))));
+    assertFalse(first == ThumbnailServlet.getLastModified(undated(png(200, 400))));
+  }
+
+  @Test
+  public void testDerivativeFolder() throws Exception {
+    String folder = ThumbnailServlet.getDerivativeFolder("/dev/_images/gateway.png");
+    assertEquals(folder, ThumbnailServlet.getDerivativeFolder("/dev/_images/gateway.png"));
+    assertEquals(ThumbnailServlet.DERIVATIVE_ROOT + "/", folder.substring(0,
+        ThumbnailServlet.DERIVATIVE_ROOT.length() + 1));
+    assertFalse(folder.equals(ThumbnailServlet.getDerivativeFolder("/dev/_images/other.png")));
+  }
+
+  @Test
+  public void testResize() throws Exception {
+    byte[] png = png(400, 200);
+    // fits in the box, keeping the aspect ratio.
+    BufferedImage resized = read(ThumbnailServlet.resize(new ByteArrayInputStream(png), 100,
+        100, "image/png"));
+    assertEquals(100, resized.getWidth());
+    assertEquals(50, resized.getHeight());
+    resized = read(ThumbnailServlet.resize(new ByteArrayInputStream(png), 256, 64,
+        "image/jpeg"));
+    assertEquals(128, resized.getWidth());
+    assertEquals(64, resized.getHeight());
+    // not enlarged.
+    resized = read(ThumbnailServlet.resize(new ByteArrayInputStream(png), 512, 512,
+        "image/png"));
+    assertEquals(400, resized.getWidth());
+    assertEquals(200, resized.getHeight());
+  }
+
+  @Test
+  public void testResizeNotAnImage() throws Exception {
+    try {
+      ThumbnailServlet.resize(new ByteArrayInputStream("not an image".getBytes("UTF-8")),
+          64, 64, "image/png");
+      fail("Expected an ImageException");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  private byte[] png(int width, int height) throws Exception {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  private Node undated(byte[] data) throws Exception {
+    Property property = createMock(Property.class);
+    expect(property.getStream()).andReturn(new ByteArrayInputStream(data));
+    Node content = createMock(Node.class);
+    expect(content.hasProperty(JCRConstants.JCR_LASTMODIFIED)).andReturn(false);
+    expect(content.hasProperty(JCRConstants.JCR_DATA)).andReturn(true);
+    expect(content.getProperty(JCRConstants.JCR_DATA)).andReturn(property);
+    replay(property, content);
+    return content;
+  }
+
+  private BufferedImage read(EncodedImage image) throws Exception {
+    return ImageIO.read(image.getInputStream());
+  }
+}
@@ -92,6 +92,19 @@ public interface LdapConnectionBroker {
    */
   LDAPConnection getBoundConnection(String name) throws LdapException;
 
+  /**
+   * Returns a connection to the named manager it was taken from so that it can
+   * be pooled rather than left open. Every connection taken from
+   * {@link #getConnection(String)} or {@link #getBoundConnection(String)}
+   * should be returned once it is no longer needed.
+   *
+   * @param name
+   *          The name of the connection manager the connection came from.
+   * @param conn
+   *          The connection to return.
+   */
+  void returnConnection(String name, LDAPConnection conn);
+
   /**
    * Gets a copy of the default configuration settings for LDAP connections.
    * Editing the returned value does not modify the default configuration
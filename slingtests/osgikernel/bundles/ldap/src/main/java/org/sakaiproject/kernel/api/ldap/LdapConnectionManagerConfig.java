@@ -62,6 +62,18 @@ public class LdapConnectionManagerConfig {
   /** Maximum number of connections to allow, if pooling is used. */
   private int poolMaxConns = 10;
 
+  /**
+   * Time (in milliseconds) a pooled connection may be idle and still be lent
+   * out without being validated. 0 validates every connection lent out.
+   */
+  private int poolValidateIdleTime = 10000;
+
+  /** Time (in milliseconds) between checks of idle connections, 0 for none. */
+  private int poolEvictionInterval = 60000;
+
+  /** Time (in milliseconds) an idle connection is kept before it is closed. */
+  private int poolMinEvictableIdleTime = 300000;
+
   public LdapConnectionManagerConfig() {
   }
 
@@ -88,6 +100,9 @@ public class LdapConnectionManagerConfig {
     LdapConnectionManagerConfig config = new LdapConnectionManagerConfig(secureConnection, tls,
         keystoreLocation, keystorePassword, operationTimeout, ldapHost, ldapPort, loginUser,
         loginPassword, followReferrals, autoBind, pooling, poolMaxConns);
+    config.setPoolValidateIdleTime(poolValidateIdleTime);
+    config.setPoolEvictionInterval(poolEvictionInterval);
+    config.setPoolMinEvictableIdleTime(poolMinEvictableIdleTime);
     return config;
   }
 
@@ -301,4 +316,57 @@ public class LdapConnectionManagerConfig {
   public void setPoolMaxConns(int maxConns) {
     this.poolMaxConns = maxConns;
   }
+
+  /**
+   * @return The time (in milliseconds) a pooled connection may be idle and
+   *         still be lent out without being validated. 0 if every connection
+   *         is validated.
+   */
+  public int getPoolValidateIdleTime() {
+    return poolValidateIdleTime;
+  }
+
+  /**
+   * @param validateIdleTime
+   *          The time (in milliseconds) a pooled connection may be idle and
+   *          still be lent out without being validated. 0 to validate every
+   *          connection lent out.
+   */
+  public void setPoolValidateIdleTime(int validateIdleTime) {
+    this.poolValidateIdleTime = validateIdleTime;
+  }
+
+  /**
+   * @return The time (in milliseconds) between checks of the idle connections
+   *         in the pool. 0 if they are not checked.
+   */
+  public int getPoolEvictionInterval() {
+    return poolEvictionInterval;
+  }
+
+  /**
+   * @param evictionInterval
+   *          The time (in milliseconds) between checks of the idle connections
+   *          in the pool, 0 to not check them.
+   */
+  public void setPoolEvictionInterval(int evictionInterval) {
+    this.poolEvictionInterval = evictionInterval;
+  }
+
+  /**
+   * @return The time (in milliseconds) an idle connection is kept in the pool
+   *         before it is closed.
+   */
+  public int getPoolMinEvictableIdleTime() {
+    return poolMinEvictableIdleTime;
+  }
+
+  /**
+   * @param minEvictableIdleTime
+   *          The time (in milliseconds) an idle connection is kept in the pool
+   *          before it is closed.
+   */
+  public void setPoolMinEvictableIdleTime(int minEvictableIdleTime) {
+    this.poolMinEvictableIdleTime = minEvictableIdleTime;
+  }
 }
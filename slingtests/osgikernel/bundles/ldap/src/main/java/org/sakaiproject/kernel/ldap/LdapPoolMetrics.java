@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.ldap;
+
+import org.apache.commons.pool.ObjectPool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the connections lent out by a pool and times how long borrowers wait for them,
+ * along with how often and at what cost connections are validated, so that a pool that
+ * is too small or validates too eagerly shows up.
+ */
+public class LdapPoolMetrics implements LdapPoolMetricsMBean {
+
+  private final AtomicLong borrowed = new AtomicLong();
+  private final AtomicLong borrowFailures = new AtomicLong();
+  private final AtomicLong borrowWait = new AtomicLong();
+  private final AtomicLong maxBorrowWait = new AtomicLong();
+  private final AtomicLong validations = new AtomicLong();
+  private final AtomicLong validationsSkipped = new AtomicLong();
+  private final AtomicLong validationFailures = new AtomicLong();
+  private final AtomicLong validationTime = new AtomicLong();
+  private ObjectPool pool;
+
+  /**
+   * @param pool
+   *          the pool whose active and idle connections are reported, may be null.
+   */
+  public LdapPoolMetrics(ObjectPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * @param nanos
+   *          the time the borrower waited for the connection.
+   */
+  public void connectionBorrowed(long nanos) {
+    borrowed.incrementAndGet();
+    borrowWait.addAndGet(nanos);
+    long max = maxBorrowWait.get();
+    while (nanos > max && !maxBorrowWait.compareAndSet(max, nanos)) {
+      max = maxBorrowWait.get();
+    }
+  }
+
+  public void borrowFailed() {
+    borrowFailures.incrementAndGet();
+  }
+
+  /**
+   * @param nanos
+   *          the time taken to validate a connection.
+   * @param live
+   *          whether the connection passed.
+   */
+  public void connectionValidated(long nanos, boolean live) {
+    validations.incrementAndGet();
+    validationTime.addAndGet(nanos);
+    if (!live) {
+      validationFailures.incrementAndGet();
+    }
+  }
+
+  public void validationSkipped() {
+    validationsSkipped.incrementAndGet();
+  }
+
+  public int getActive() {
+    if (pool == null) {
+      return 0;
+    }
+    return pool.getNumActive();
+  }
+
+  public int getIdle() {
+    if (pool == null) {
+      return 0;
+    }
+    return pool.getNumIdle();
+  }
+
+  public long getBorrowed() {
+    return borrowed.get();
+  }
+
+  public long getBorrowFailures() {
+    return borrowFailures.get();
+  }
+
+  public long getMeanBorrowWait() {
+    long n = borrowed.get();
+    if (n == 0) {
+      return 0;
+    }
+    return borrowWait.get() / n;
+  }
+
+  public long getMaxBorrowWait() {
+    return maxBorrowWait.get();
+  }
+
+  public long getValidations() {
+    return validations.get();
+  }
+
+  public long getValidationsSkipped() {
+    return validationsSkipped.get();
+  }
+
+  public long getValidationFailures() {
+    return validationFailures.get();
+  }
+
+  public long getMeanValidationTime() {
+    long n = validations.get();
+    if (n == 0) {
+      return 0;
+    }
+    return validationTime.get() / n;
+  }
+
+  public void reset() {
+    borrowed.set(0);
+    borrowFailures.set(0);
+    borrowWait.set(0);
+    maxBorrowWait.set(0);
+    validations.set(0);
+    validationsSkipped.set(0);
+    validationFailures.set(0);
+    validationTime.set(0);
+  }
+}
@@ -52,6 +52,9 @@ public class PooledLDAPConnection extends LDAPConnection {
 
 	private long birthdate = new Date().getTime();
 
+	/** when the connection was last given back to the pool */
+	private long idleSince = birthdate;
+
 	/**
 	 * protect against pooled connections leaking out of the pool
 	 */
@@ -187,4 +190,12 @@ public class PooledLDAPConnection extends LDAPConnection {
 	public long getBirthdate() {
 		return birthdate;
 	}
+
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	public void setIdleSince(long idleSince) {
+		this.idleSince = idleSince;
+	}
 }
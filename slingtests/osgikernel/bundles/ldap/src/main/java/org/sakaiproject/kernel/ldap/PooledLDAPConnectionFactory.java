@@ -63,6 +63,11 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
 
   private List<LdapConnectionLivenessValidator> validators;
 
+  /** connections idle for less than this (ms) are not tested for liveness */
+  private long validateIdleTime;
+
+  private LdapPoolMetrics metrics;
+
   public PooledLDAPConnectionFactory() {
   }
 
@@ -70,6 +75,10 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
     this.validators = validators;
   }
 
+  public void setMetrics(LdapPoolMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   /**
    * Constructs a new PooledLDAPConnection object, including: passing it the
    * connection manager so it can return itself to the pool if it falls out of
@@ -141,6 +150,7 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
       PooledLDAPConnection conn = (PooledLDAPConnection) obj;
       conn.setActive(false);
       log.debug("passivateObject(): unset connection active flag");
+      conn.setIdleSince(System.currentTimeMillis());
     } else {
       log.debug("passivateObject(): connection not of expected type [{}] nothing to do",
           (obj == null ? "null" : obj.getClass().getName()));
@@ -197,6 +207,19 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
         }
       }
 
+      // a connection that was in use a moment ago is very likely still alive,
+      // so only those that have been idle a while are tested. the idle
+      // connections are also tested in the background by the pool's evictor.
+      if (validateIdleTime > 0
+          && System.currentTimeMillis() - conn.getIdleSince() < validateIdleTime) {
+        log.debug("validateObject(): connection idle for less than {}ms, skipping liveness test",
+            validateIdleTime);
+        if (metrics != null) {
+          metrics.validationSkipped();
+        }
+        return true;
+      }
+
       log.debug("validateObject(): beginning connection liveness testing");
 
       try {
@@ -227,24 +250,41 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
 
   private boolean isConnectionAlive(LDAPConnection conn) {
     boolean live = false;
-    if (validators != null && !validators.isEmpty()) {
-      for (LdapConnectionLivenessValidator validator : validators) {
-        live = validator.isConnectionAlive(conn);
-        if (!live) {
-          break;
+    long start = System.nanoTime();
+    try {
+      if (validators != null && !validators.isEmpty()) {
+        for (LdapConnectionLivenessValidator validator : validators) {
+          live = validator.isConnectionAlive(conn);
+          if (!live) {
+            break;
+          }
         }
       }
+    } finally {
+      if (metrics != null) {
+        metrics.connectionValidated(System.nanoTime() - start, live);
+      }
     }
     return live;
   }
 
   /**
-   * Cleans up a PooledLDAPConnection that is about to be destroyed. The
-   * finalize method in LDAPConnection handles everything, so there is nothing
-   * to do here.
+   * Cleans up a PooledLDAPConnection that is about to be destroyed. Idle
+   * connections are destroyed by the pool's evictor, so the connection is
+   * closed now rather than being left for the finalize method in
+   * LDAPConnection.
    */
   public void destroyObject(Object obj) throws Exception {
     log.debug("destroyObject()");
+    if (obj instanceof PooledLDAPConnection) {
+      PooledLDAPConnection conn = (PooledLDAPConnection) obj;
+      conn.setActive(false);
+      try {
+        conn.disconnect();
+      } catch (LDAPException e) {
+        log.debug("destroyObject(): failed to disconnect connection: {}", e.getMessage());
+      }
+    }
   }
 
   /**
@@ -274,6 +314,8 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
       }
     }
 
+    this.validateIdleTime = connectionManager.getConfig().getPoolValidateIdleTime();
+
     // determine if we are using TLS
     useTLS = connectionManager.getConfig().isSecureConnection()
         && connectionManager.getConfig().isTLS();
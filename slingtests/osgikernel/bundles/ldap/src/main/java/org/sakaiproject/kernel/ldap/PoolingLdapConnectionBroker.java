@@ -35,20 +35,23 @@ import org.sakaiproject.kernel.api.ldap.LdapConnectionManagerConfig;
 import org.sakaiproject.kernel.api.ldap.LdapException;
 
 import java.util.Dictionary;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Simple implementation of an {@link LdapConnectionBroker}. Maintains an
  * associative pairing of connection factories and names. As connections are
  * requested by name, the associated factory is used to create a pooled
- * connection.
+ * connection. The factories are kept in a concurrent map so that looking one up
+ * doesn't lock, and only one factory is ever made for a name that is asked for
+ * by several threads at once.
  */
 @Component(metatype = true)
 @Service
 public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
-  private Hashtable<String, LdapConnectionManager> factories;
+  private ConcurrentMap<String, PoolingLdapConnectionManager> factories;
   private LdapConnectionManagerConfig defaults;
 
   @Property(boolValue = false)
@@ -87,6 +90,15 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
   @Property(intValue = 10)
   protected static final String POOLING_MAX_CONNS = "sakai.ldap.pooling.maxConns";
 
+  @Property(intValue = 10000)
+  protected static final String POOLING_VALIDATE_IDLE_TIME = "sakai.ldap.pooling.validateIdleTime";
+
+  @Property(intValue = 60000)
+  protected static final String POOLING_EVICTION_INTERVAL = "sakai.ldap.pooling.evictionInterval";
+
+  @Property(intValue = 300000)
+  protected static final String POOLING_MIN_EVICTABLE_IDLE_TIME = "sakai.ldap.pooling.minEvictableIdleTime";
+
   @Property(boolValue = false)
   protected static final String TLS = "sakai.ldap.tls";
 
@@ -105,7 +117,7 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
    * Default constructor for normal usage.
    */
   public PoolingLdapConnectionBroker() {
-    factories = new Hashtable<String, LdapConnectionManager>();
+    factories = new ConcurrentHashMap<String, PoolingLdapConnectionManager>();
   }
 
   /**
@@ -165,12 +177,40 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
     PoolingLdapConnectionManager mgr = newPoolingLdapConnectionManager(name, config);
 
     // put the new connection manager in the store and set it to be
-    // available outside of this block.
-    factories.put(name, mgr);
+    // available outside of this block. a manager it replaces is closed.
+    PoolingLdapConnectionManager old = factories.put(name, mgr);
+    if (old != null && old != mgr) {
+      old.close();
+    }
+    mgr.registerMetrics();
 
     return mgr;
   }
 
+  /**
+   * Get the named manager, creating it with the default configuration if it
+   * doesn't exist. If several threads create it at once, one manager wins and
+   * the others are closed.
+   *
+   * @param name
+   * @return the manager.
+   * @throws LdapException
+   */
+  private LdapConnectionManager getManager(String name) throws LdapException {
+    PoolingLdapConnectionManager mgr = factories.get(name);
+    if (mgr == null) {
+      PoolingLdapConnectionManager newMgr = newPoolingLdapConnectionManager(name, defaults);
+      mgr = factories.putIfAbsent(name, newMgr);
+      if (mgr == null) {
+        mgr = newMgr;
+        mgr.registerMetrics();
+      } else if (mgr != newMgr) {
+        newMgr.close();
+      }
+    }
+    return mgr;
+  }
+
   protected PoolingLdapConnectionManager newPoolingLdapConnectionManager(String poolName,
       LdapConnectionManagerConfig config) throws LdapException {
     PoolingLdapConnectionManager mgr = new PoolingLdapConnectionManager(this, poolName);
@@ -185,12 +225,23 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
    * @see org.sakaiproject.kernel.api.ldap.LdapConnectionBroker#destroy(java.lang.String)
    */
   public void destroy(String name) {
-    if (factories.containsKey(name)) {
-      LdapConnectionManager mgr = factories.remove(name);
-      mgr.destroy();
+    PoolingLdapConnectionManager mgr = factories.remove(name);
+    if (mgr != null) {
+      mgr.close();
     }
   }
 
+  /**
+   * Destroy a manager if it is still the one registered under its name.
+   *
+   * @param name
+   * @param mgr
+   */
+  protected void destroy(String name, PoolingLdapConnectionManager mgr) {
+    factories.remove(name, mgr);
+    mgr.close();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -209,12 +260,7 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
   public LDAPConnection getConnection(String name) throws LdapException {
     // get a connection manager from the local store. if not found, create a
     // new one and store it locally for reuse.
-    LdapConnectionManager mgr = null;
-    if (!factories.containsKey(name)) {
-      mgr = create(name);
-    } else {
-      mgr = factories.get(name);
-    }
+    LdapConnectionManager mgr = getManager(name);
 
     // get a connection from the manager and return it
     LDAPConnection conn = mgr.getConnection();
@@ -234,12 +280,7 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
       throws LdapException {
     // get a connection manager from the local store. if not found, create a
     // new one and store it locally for reuse.
-    LdapConnectionManager mgr = null;
-    if (!factories.containsKey(name)) {
-      mgr = create(name);
-    } else {
-      mgr = factories.get(name);
-    }
+    LdapConnectionManager mgr = getManager(name);
 
     // get a connection from the manager and return it
     LDAPConnection conn = mgr.getBoundConnection();
@@ -250,6 +291,19 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
     // }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.ldap.LdapConnectionBroker#returnConnection(java.lang.String,
+   *      com.novell.ldap.LDAPConnection)
+   */
+  public void returnConnection(String name, LDAPConnection conn) {
+    LdapConnectionManager mgr = factories.get(name);
+    if (mgr != null) {
+      mgr.returnConnection(conn);
+    }
+  }
+
   public LdapConnectionManagerConfig getDefaultConfig() {
     return defaults.copy();
   }
@@ -271,6 +325,9 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
       Boolean pooling = (Boolean) props.get(POOLING);
       Integer maxConns = (Integer) props.get(POOLING_MAX_CONNS);
       Boolean tls = (Boolean) props.get(TLS);
+      Integer validateIdleTime = (Integer) props.get(POOLING_VALIDATE_IDLE_TIME);
+      Integer evictionInterval = (Integer) props.get(POOLING_EVICTION_INTERVAL);
+      Integer minEvictableIdleTime = (Integer) props.get(POOLING_MIN_EVICTABLE_IDLE_TIME);
 
       if (autoBind != null) {
         config.setAutoBind(autoBind);
@@ -301,6 +358,15 @@ public class PoolingLdapConnectionBroker implements LdapConnectionBroker {
       if (tls != null) {
         config.setTLS(tls);
       }
+      if (validateIdleTime != null) {
+        config.setPoolValidateIdleTime(validateIdleTime);
+      }
+      if (evictionInterval != null) {
+        config.setPoolEvictionInterval(evictionInterval);
+      }
+      if (minEvictableIdleTime != null) {
+        config.setPoolMinEvictableIdleTime(minEvictableIdleTime);
+      }
     }
 
     // set the default configuration
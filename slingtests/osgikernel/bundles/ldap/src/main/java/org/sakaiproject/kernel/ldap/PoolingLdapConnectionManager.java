@@ -28,6 +28,12 @@ import org.sakaiproject.kernel.api.ldap.LdapException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 /**
  * Allocates connected, constrained, bound and optionally secure
  * <code>LDAPConnection</code>s. Uses commons-pool to provide a pool of
@@ -58,8 +64,18 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
    */
   private static final int POOL_MAX_WAIT = 60000;
 
+  /**
+   * How many idle connections the evictor looks at on each run
+   */
+  private static final int POOL_TESTS_PER_EVICTION_RUN = 3;
+
+  private static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.ldap:type=LdapConnectionPool,name=";
+
   private LdapConnectionBroker broker;
   private String poolName;
+  private LdapPoolMetrics metrics;
+  private ObjectName metricsName;
+  private volatile boolean closed;
 
   public PoolingLdapConnectionManager() {
   }
@@ -76,25 +92,39 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
   public void init() throws LdapException {
     super.init();
 
-    if (pool != null) {
-      return;
+    if (pool == null) {
+      if (factory == null) {
+        factory = new PooledLDAPConnectionFactory();
+        if (broker != null) {
+          factory.setLivenessValidators(broker.getLivenessValidators());
+        }
+        factory.setConnectionManager(this);
+      }
+
+      LdapConnectionManagerConfig config = getConfig();
+      pool = new GenericObjectPool(factory, config.getPoolMaxConns(), // maxActive
+          GenericObjectPool.WHEN_EXHAUSTED_BLOCK, // whenExhaustedAction
+          POOL_MAX_WAIT, // maxWait (millis)
+          config.getPoolMaxConns(), // maxIdle
+          true, // testOnBorrow, skipped by the factory for recently used connections
+          false, // testOnReturn
+          config.getPoolEvictionInterval(), // timeBetweenEvictionRunsMillis
+          POOL_TESTS_PER_EVICTION_RUN, // numTestsPerEvictionRun
+          config.getPoolMinEvictableIdleTime(), // minEvictableIdleTimeMillis
+          config.getPoolEvictionInterval() > 0 // testWhileIdle
+      );
     }
 
-    if (factory == null) {
-      factory = new PooledLDAPConnectionFactory();
-      if (broker != null) {
-        factory.setLivenessValidators(broker.getLivenessValidators());
+    if (metrics == null) {
+      metrics = new LdapPoolMetrics(pool);
+      if (factory != null) {
+        factory.setMetrics(metrics);
+      }
+      // a broker registers the metrics of a manager once it is sure to use it.
+      if (broker == null) {
+        registerMetrics();
       }
-      factory.setConnectionManager(this);
     }
-
-    pool = new GenericObjectPool(factory, getConfig().getPoolMaxConns(), // maxActive
-        GenericObjectPool.WHEN_EXHAUSTED_BLOCK, // whenExhaustedAction
-        POOL_MAX_WAIT, // maxWait (millis)
-        getConfig().getPoolMaxConns(), // maxIdle
-        true, // testOnBorrow
-        false // testOnReturn
-    );
   }
 
   /**
@@ -104,7 +134,7 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
   public LDAPConnection getConnection() throws LdapException {
     log.debug("getConnection(): attempting to borrow connection from pool");
     try {
-      LDAPConnection conn = (LDAPConnection) pool.borrowObject();
+      LDAPConnection conn = borrowConnection();
       log.debug("getConnection(): successfully to borrowed connection from pool");
       return conn;
     } catch (LDAPException e) {
@@ -123,7 +153,7 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
         user);
     LDAPConnection conn = null;
     try {
-      conn = (LDAPConnection) pool.borrowObject();
+      conn = borrowConnection();
       log.debug(
           "getBoundConnection():dn=[{}] successfully borrowed connection from pool", user);
       conn.bind(LDAPConnection.LDAP_V3, user, pass.getBytes("UTF8"));
@@ -148,6 +178,25 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     }
   }
 
+  /**
+   * Borrow a connection from the pool, timing how long it takes.
+   *
+   * @return the connection.
+   * @throws Exception
+   *           anything the pool throws.
+   */
+  private LDAPConnection borrowConnection() throws Exception {
+    long start = System.nanoTime();
+    try {
+      LDAPConnection conn = (LDAPConnection) pool.borrowObject();
+      metrics.connectionBorrowed(System.nanoTime() - start);
+      return conn;
+    } catch (Exception e) {
+      metrics.borrowFailed();
+      throw e;
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -173,18 +222,75 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
    */
   @Override
   public void destroy() {
-    if (broker != null && poolName != null) {
-      broker.destroy(poolName);
+    if (closed) {
+      return;
+    }
+    if (broker instanceof PoolingLdapConnectionBroker && poolName != null) {
+      // the broker drops this manager and then closes it.
+      ((PoolingLdapConnectionBroker) broker).destroy(poolName, this);
     } else {
-      try {
-        log.debug("destroy(): closing connection pool");
-        pool.close();
-        log.debug("destroy(): successfully closed connection pool");
-      } catch (Exception e) {
-        throw new RuntimeException("failed to shutdown connection pool", e);
+      close();
+    }
+  }
+
+  /**
+   * Close the pool. The manager must not be used after this.
+   */
+  protected void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    unregisterMetrics();
+    try {
+      log.debug("destroy(): closing connection pool");
+      pool.close();
+      log.debug("destroy(): successfully closed connection pool");
+    } catch (Exception e) {
+      throw new RuntimeException("failed to shutdown connection pool", e);
+    }
+  }
+
+  /**
+   * @return the metrics of the pool.
+   */
+  public LdapPoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Make the metrics of the pool available over JMX.
+   */
+  protected void registerMetrics() {
+    if (metrics == null || metricsName != null || closed) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(METRICS_OBJECT_NAME
+          + ObjectName.quote(String.valueOf(poolName)));
+      if (!server.isRegistered(name)) {
+        server.registerMBean(metrics, name);
+        metricsName = name;
+      }
+    } catch (JMException e) {
+      log.warn("Unable to register metrics for pool {} {} ", poolName, e.getMessage());
+    }
+  }
+
+  private void unregisterMetrics() {
+    if (metricsName == null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(metricsName)) {
+        server.unregisterMBean(metricsName);
       }
-      log.debug("destroy(): delegating to parent destroy() impl");
+    } catch (JMException e) {
+      log.warn("Unable to unregister metrics for pool {} {} ", poolName, e.getMessage());
     }
+    metricsName = null;
   }
 
   public PooledLDAPConnectionFactory getFactory() {
@@ -18,6 +18,7 @@ package org.sakaiproject.kernel.ldap;
 
 import static junit.framework.Assert.assertEquals;
 import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
@@ -56,6 +57,7 @@ public class PooledLDAPConnectionFactoryTest {
   private LdapConnectionLivenessValidator livenessValidator;
   private LdapConnectionManager connMgr;
   private LdapConnectionManagerConfig connMgrConfig;
+  private int validateIdleTime;
 
   @Before
   public void setUp() throws Exception {
@@ -132,6 +134,7 @@ public class PooledLDAPConnectionFactoryTest {
     expect(connMgrConfig.getOperationTimeout()).andReturn(LDAP_TIMEOUT).anyTimes();
     expect(connMgrConfig.isFollowReferrals()).andReturn(LDAP_FOLLOW_REFERRALS).anyTimes();
     expect(connMgrConfig.isTLS()).andReturn(false).anyTimes();
+    expect(connMgrConfig.getPoolValidateIdleTime()).andReturn(validateIdleTime).anyTimes();
   }
 
   /**
@@ -282,6 +285,81 @@ public class PooledLDAPConnectionFactoryTest {
 
   }
 
+  /**
+   * Verifies that a connection that was given back to the pool a moment ago is
+   * lent out again without testing its liveness.
+   */
+  @Test
+  public void testValidateObjectSkipsLivenessTestIfRecentlyUsed() {
+    validateIdleTime = 10000;
+    setConnectionManagerConfigExpectations();
+    replay(connMgr, connMgrConfig);
+    factory.setConnectionManager(connMgr);
+    LdapPoolMetrics metrics = new LdapPoolMetrics(null);
+    factory.setMetrics(metrics);
+
+    // will fail if the liveness validator is called
+    expect(conn.isBindAttempted()).andReturn(false);
+    expect(conn.getIdleSince()).andReturn(System.currentTimeMillis() - 1000);
+    replay(conn, livenessValidator);
+
+    assertTrue(factory.validateObject(conn));
+    assertEquals(1, metrics.getValidationsSkipped());
+    assertEquals(0, metrics.getValidations());
+  }
+
+  /**
+   * Verifies that a connection that has been idle for longer than the
+   * validation idle time is tested for liveness.
+   */
+  @Test
+  public void testValidateObjectTestsLivenessIfIdle() {
+    validateIdleTime = 10000;
+    setConnectionManagerConfigExpectations();
+    replay(connMgr, connMgrConfig);
+    factory.setConnectionManager(connMgr);
+    LdapPoolMetrics metrics = new LdapPoolMetrics(null);
+    factory.setMetrics(metrics);
+
+    expect(conn.isBindAttempted()).andReturn(false);
+    expect(conn.getIdleSince()).andReturn(System.currentTimeMillis() - 20000);
+    expect(livenessValidator.isConnectionAlive((LDAPConnection) anyObject())).andReturn(false);
+    conn.setActive(false);
+    expectLastCall().once();
+    replay(conn, livenessValidator);
+
+    assertFalse(factory.validateObject(conn));
+    assertEquals(1, metrics.getValidations());
+    assertEquals(1, metrics.getValidationFailures());
+  }
+
+  /**
+   * Verifies that a connection given back to the pool records when it became
+   * idle.
+   */
+  @Test
+  public void testPassivateObjectMarksConnectionIdle() throws LDAPException {
+    conn.setActive(false);
+    expectLastCall().once();
+    conn.setIdleSince(anyLong());
+    expectLastCall().once();
+    replay(conn);
+    factory.passivateObject(conn);
+  }
+
+  /**
+   * Verifies that a destroyed connection is disconnected.
+   */
+  @Test
+  public void testDestroyObjectDisconnects() throws Exception {
+    conn.setActive(false);
+    expectLastCall().once();
+    conn.disconnect();
+    expectLastCall().once();
+    replay(conn);
+    factory.destroyObject(conn);
+  }
+
   @Test
   public void testInvalidatesNullObjects() {
 
@@ -38,7 +38,12 @@ import org.sakaiproject.kernel.api.ldap.LdapException;
 
 import java.net.ServerSocket;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit test for {@link PoolingLdapConnectionBroker}
@@ -48,6 +53,7 @@ public class PoolingLdapConnectionBrokerTest {
   private PoolingLdapConnectionBroker broker;
   private String name = "brokerTest";
   private ServerSocket serverSocket;
+  private List<LDAPConnection> returned;
 
   @Before
   public void setUp() throws Exception {
@@ -65,7 +71,13 @@ public class PoolingLdapConnectionBrokerTest {
       public LDAPConnection getBoundConnection() {
         return new LDAPConnection();
       }
+
+      @Override
+      public void returnConnection(LDAPConnection conn) {
+        returned.add(conn);
+      }
     };
+    returned = new LinkedList<LDAPConnection>();
     config = new LdapConnectionManagerConfig();
     config.setLdapHost("localhost");
     config.setLdapPort(LDAPConnection.DEFAULT_PORT + 1000);
@@ -120,6 +132,78 @@ public class PoolingLdapConnectionBrokerTest {
     broker.destroy(name);
   }
 
+  @Test
+  public void testReturnConnection() throws Exception {
+    broker.create(name, config);
+    LDAPConnection conn = broker.getBoundConnection(name);
+    broker.returnConnection(name, conn);
+    assertEquals(1, returned.size());
+    assertTrue(conn == returned.get(0));
+
+    // nothing to return a connection to once the manager is gone.
+    broker.destroy(name);
+    broker.returnConnection(name, conn);
+    assertEquals(1, returned.size());
+  }
+
+  /**
+   * Many threads asking for a connection from a manager that doesn't exist yet
+   * all end up with the same manager, and any extra managers made are closed.
+   */
+  @Test
+  public void testConcurrentGetConnection() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+    final PoolingLdapConnectionBroker concurrentBroker = new PoolingLdapConnectionBroker() {
+      @Override
+      protected PoolingLdapConnectionManager newPoolingLdapConnectionManager(String poolName,
+          LdapConnectionManagerConfig config) {
+        created.incrementAndGet();
+        return new PoolingLdapConnectionManager(this, poolName) {
+          @Override
+          public LDAPConnection getConnection() {
+            return new LDAPConnection();
+          }
+
+          @Override
+          protected void close() {
+            closed.incrementAndGet();
+          }
+        };
+      }
+    };
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(new Properties());
+    replay(ctx);
+    concurrentBroker.activate(ctx);
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Throwable> failures = new Vector<Throwable>();
+    Thread[] threads = new Thread[10];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            assertNotNull(concurrentBroker.getConnection(name));
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.isEmpty());
+    assertTrue(concurrentBroker.exists(name));
+    assertEquals(created.get() - 1, closed.get());
+  }
+
   @Test
   public void testCreateIfNotExists() throws Exception {
     broker.create(name);
@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import com.novell.ldap.LDAPConnection;
@@ -64,6 +65,25 @@ public class PoolingLdapConnectionManagerTest {
     poolingConnMgr.returnConnection(null);
   }
 
+  @Test
+  public void testBorrowRecordedInMetrics() throws Exception {
+    expect(pool.borrowObject()).andReturn(new LDAPConnection());
+    expect(pool.borrowObject()).andThrow(new Exception("exhausted"));
+    replay(pool);
+    poolingConnMgr.init();
+
+    poolingConnMgr.getConnection();
+    try {
+      poolingConnMgr.getConnection();
+      fail("Should throw an exception if the pool can't lend a connection.");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    LdapPoolMetrics metrics = poolingConnMgr.getMetrics();
+    assertEquals(1, metrics.getBorrowed());
+    assertEquals(1, metrics.getBorrowFailures());
+  }
+
   @Test
   public void testReturnConnectionException() throws Exception {
     expect(pool.borrowObject()).andReturn(new LDAPConnection());
@@ -56,6 +56,24 @@ public class LdapConnectionManagerConfigTest {
     assertFalse(config.isSecureConnection());
 
     assertFalse(config.isTLS());
+
+    assertEquals(10000, config.getPoolValidateIdleTime());
+
+    assertEquals(60000, config.getPoolEvictionInterval());
+
+    assertEquals(300000, config.getPoolMinEvictableIdleTime());
+  }
+
+  @Test
+  public void testCopyKeepsPoolSettings() {
+    LdapConnectionManagerConfig config = new LdapConnectionManagerConfig();
+    config.setPoolValidateIdleTime(1);
+    config.setPoolEvictionInterval(2);
+    config.setPoolMinEvictableIdleTime(3);
+    LdapConnectionManagerConfig copy = config.copy();
+    assertEquals(1, copy.getPoolValidateIdleTime());
+    assertEquals(2, copy.getPoolEvictionInterval());
+    assertEquals(3, copy.getPoolMinEvictableIdleTime());
   }
 
   @Test
@@ -54,6 +54,10 @@ public class LockImpl implements Lock, ThreadBound {
    * The ID of the lock instance.
    */
   private long lockId;
+  /**
+   * The time in ms after which the lock lapses, unless renewed.
+   */
+  private long expires;
 
   /**
    * Create a new lock on the item id, with owner ownerId for the lockmanage instanceId
@@ -64,13 +68,16 @@ public class LockImpl implements Lock, ThreadBound {
    *          the owner of the lock.
    * @param instanceId
    *          the instance of the lock manager creating the lock.
+   * @param expires
+   *          the time in ms when the lease on the lock lapses.
    */
-  public LockImpl(String id, long lockId, long ownerId, long instanceId) {
+  public LockImpl(String id, long lockId, long ownerId, long instanceId, long expires) {
     this.locked = true;
     this.id = id;
     this.ownerId = ownerId;
     this.instanceId = instanceId;
     this.lockId = lockId;
+    this.expires = expires;
   }
 
   /**
@@ -137,10 +144,40 @@ public class LockImpl implements Lock, ThreadBound {
   }
 
   /**
-   * @return the locked state.
+   * @return the locked state, a lock whose lease has lapsed is not locked.
    */
   public boolean isLocked() {
-    return locked;
+    return locked && !isExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * @param now
+   * @return true if the lease lapsed before now.
+   */
+  protected boolean isExpired(long now) {
+    return now > expires;
+  }
+
+  /**
+   * @return the time in ms when the lease lapses.
+   */
+  protected long getExpires() {
+    return expires;
+  }
+
+  /**
+   * @param expires
+   *          extend the lease to this time in ms.
+   */
+  protected void setExpires(long expires) {
+    this.expires = expires;
+  }
+
+  /**
+   * @return the id of the lock manager instance that created the lock.
+   */
+  protected long getInstanceId() {
+    return instanceId;
   }
 
   /**
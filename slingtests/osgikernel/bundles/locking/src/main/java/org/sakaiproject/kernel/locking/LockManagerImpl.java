@@ -29,9 +29,31 @@ import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that keeps the state of each lock id separately, so threads
+ * locking different ids never contend. Threads waiting for a lock queue in
+ * arrival order and are signalled when it is released, rather than polling.
+ * Locks are leased, a lock that is not released or renewed before its lease
+ * lapses is treated as free, so a holder that never cleans up cannot block
+ * others forever.
+ *
+ * Locks are also published to a cluster replicated cache, and a lock held by
+ * another node in the cluster is respected until it is released or lapses.
+ * Renewing a lease publishes the lock again, so other nodes see the new expiry.
+ * Releases on other nodes arrive through the cache rather than as a signal, so
+ * waiters for a remote lock check again every {@link #DEFAULT_REMOTE_CHECK} ms.
+ *
+ * Mutual exclusion is only guaranteed between threads of the same JVM. The cache
+ * replicates asynchronously, so two nodes that take a free lock within one
+ * replication interval of each other can both hold it, and a node does not see a
+ * remote lock until it has been replicated. Across the cluster the lock is a
+ * best effort that keeps nodes out of each other's way, not a guarantee; work
+ * that must never run twice needs a check of its own, such as a JCR lock or a
+ * save that fails on conflict.
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
@@ -53,6 +75,19 @@ public class LockManagerImpl implements LockManager {
    *
    */
   private static final String REQUEST_LOCKS = "lockmanager.requestmap";
+  /**
+   * The default lease on a lock in ms.
+   */
+  public static final long DEFAULT_LEASE = 120000L;
+  /**
+   * The default time to wait for a lock in ms, about as long as the 300 polls the
+   * lock manager used to make before giving up.
+   */
+  public static final long DEFAULT_WAIT = 150000L;
+  /**
+   * The default interval in ms between checks on a lock held by another node.
+   */
+  public static final long DEFAULT_REMOTE_CHECK = 100L;
   /**
    * The Logger
    */
@@ -66,13 +101,20 @@ public class LockManagerImpl implements LockManager {
    */
   private CacheManagerService cacheManagerService;
   /**
-   * container for Locks.
+   * container for Locks, shared with the cluster.
    */
   private Cache<LockImpl> lockMap;
+  /**
+   * The local state of each lock id that is held or waited for.
+   */
+  private ConcurrentMap<String, LockState> lockStates = new ConcurrentHashMap<String, LockState>();
   /**
    * The id of this instance of this class.
    */
   private long instanceId;
+  private long lease;
+  private long waitTimeout;
+  private long remoteCheck;
   /**
    *
    */
@@ -91,7 +133,6 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
 
   /**
    * @throws NoSuchAlgorithmException
@@ -99,8 +140,25 @@ public class LockManagerImpl implements LockManager {
    */
   public LockManagerImpl()
       throws NoSuchAlgorithmException {
+    this(DEFAULT_LEASE, DEFAULT_WAIT, DEFAULT_REMOTE_CHECK);
+  }
+
+  /**
+   * @param lease
+   *          the lease on a lock in ms.
+   * @param waitTimeout
+   *          the time to wait for a lock in ms.
+   * @param remoteCheck
+   *          the interval in ms between checks on a lock held by another node.
+   * @throws NoSuchAlgorithmException
+   */
+  protected LockManagerImpl(long lease, long waitTimeout, long remoteCheck)
+      throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    this.lease = lease;
+    this.waitTimeout = waitTimeout;
+    this.remoteCheck = remoteCheck;
   }
 
   public Lock getLock(String id) {
@@ -108,26 +166,36 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
+   * Get the lock on id without waiting. If create is true and the lock is free
+   * the current thread takes it, unless other threads are already queued for
+   * it, in which case null is returned. If the lock is held, the holder's lock
+   * is returned; check {@link Lock#isOwner()} to see if that is this thread.
+   *
    * @param id
-   * @return
+   * @return the lock, or null if there is none.
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+    while (true) {
+      LockState state = getState(id);
+      state.mutex.lock();
+      try {
+        if (state.removed) {
+          continue;
+        }
+        LockImpl lock = getHolder(state, id);
+        if (lock != null) {
+          if (lock.isOwner()) {
+            renew(lock);
           }
+        } else if (create && state.waiters.isEmpty()) {
+          lock = acquire(state, id);
         }
+        releaseState(state, id);
+        return lock;
+      } finally {
+        state.mutex.unlock();
       }
     }
-    lock.bind(this);
-    return lock;
   }
 
   /**
@@ -137,6 +205,109 @@ public class LockManagerImpl implements LockManager {
     return cacheManagerService.getCache(REQUEST_LOCKS, CacheScope.REQUEST);
   }
 
+  /**
+   * @param id
+   * @return the state for the id, created if there is none.
+   */
+  private LockState getState(String id) {
+    LockState state = lockStates.get(id);
+    if (state == null) {
+      state = new LockState();
+      LockState existing = lockStates.putIfAbsent(id, state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Remove the state from the map if nothing holds or waits for the lock. Must
+   * be called holding the state mutex.
+   *
+   * @param state
+   * @param id
+   */
+  private void releaseState(LockState state, String id) {
+    if (state.holder == null && state.waiters.isEmpty()) {
+      state.removed = true;
+      lockStates.remove(id, state);
+    }
+  }
+
+  /**
+   * Find the live holder of the lock, either in this JVM or elsewhere in the
+   * cluster. Lapsed locks are cleared. Must be called holding the state mutex.
+   *
+   * @param state
+   * @param id
+   * @return the lock, bound to this manager, or null if the lock is free.
+   */
+  private LockImpl getHolder(LockState state, String id) {
+    long now = System.currentTimeMillis();
+    if (state.holder != null) {
+      if (state.holder.isLocked()) {
+        state.holder.bind(this);
+        return state.holder;
+      }
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " lease lapsed on " + id);
+      }
+      removeShared(state.holder);
+      state.holder = null;
+    }
+    LockImpl shared = lockMap.get(id);
+    if (shared != null && shared.getInstanceId() != instanceId && shared.isLocked()
+        && !shared.isExpired(now)) {
+      shared.bind(this);
+      return shared;
+    }
+    return null;
+  }
+
+  /**
+   * Take the lock for the current thread. Must be called holding the state
+   * mutex, with the lock free.
+   *
+   * @param state
+   * @param id
+   * @return the new lock.
+   */
+  private LockImpl acquire(LockState state, String id) {
+    LockImpl lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId, System
+        .currentTimeMillis()
+        + lease);
+    lock.bind(this);
+    state.holder = lock;
+    lockMap.put(id, lock);
+    getRequestLocks().put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Extend the lease on a lock held by the current thread, and publish it again so
+   * other nodes see the new expiry rather than treating the lock as lapsed. Must be
+   * called holding the state mutex.
+   *
+   * @param lock
+   */
+  private void renew(LockImpl lock) {
+    lock.setExpires(System.currentTimeMillis() + lease);
+    lockMap.put(lock.getLocked(), lock);
+  }
+
+  /**
+   * Remove the lock from the shared cache, if it is still the lock there.
+   *
+   * @param lock
+   */
+  private void removeShared(LockImpl lock) {
+    LockImpl shared = lockMap.get(lock.getLocked());
+    if (shared != null && shared.getLockId() == lock.getLockId()) {
+      lockMap.remove(lock.getLocked());
+    }
+  }
+
   /**
    * Unlock only if the current thread is the owner.
    *
@@ -147,9 +318,24 @@ public class LockManagerImpl implements LockManager {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      LockState state = lockStates.get(id);
+      if (state == null) {
+        lock.setLocked(false);
+        removeShared(lock);
+        return;
+      }
+      state.mutex.lock();
+      try {
+        lock.setLocked(false);
+        if (state.holder == lock) {
+          state.holder = null;
+          removeShared(lock);
+          state.released.signalAll();
+        }
+        releaseState(state, id);
+      } finally {
+        state.mutex.unlock();
       }
     }
   }
@@ -169,41 +355,71 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * {@inheritDoc}
+   * {@inheritDoc} Waiting threads are granted the lock in the order they
+   * arrived.
    *
    * @see org.sakaiproject.kernel.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
+    long deadline = System.currentTimeMillis() + waitTimeout;
+    Long me = threadId.get();
+    while (true) {
+      LockState state = getState(id);
+      state.mutex.lock();
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+        if (state.removed) {
+          continue;
+        }
+        LockImpl lock = getHolder(state, id);
+        if (lock != null && lock.isOwner()) {
+          renew(lock);
+          return lock;
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        state.waiters.addLast(me);
+        try {
+          while (true) {
+            lock = getHolder(state, id);
+            if (lock == null && me.equals(state.waiters.getFirst())) {
+              state.waiters.removeFirst();
+              lock = acquire(state, id);
+              if (debug) {
+                LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+              }
+              return lock;
+            }
+            long now = System.currentTimeMillis();
+            long wait = deadline - now;
+            if (wait <= 0) {
+              throw new LockTimeoutException("Failed to lock node " + id);
+            }
+            if (lock != null) {
+              if (lock.getInstanceId() != instanceId) {
+                wait = Math.min(wait, remoteCheck);
+              }
+              // wake up when the lease lapses
+              wait = Math.min(wait, lock.getExpires() - now + 1);
+            }
+            try {
+              state.released.await(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
+            }
+          }
+        } finally {
+          if (state.waiters.remove(me)) {
+            // let the next waiter see if it is now first
+            state.released.signalAll();
+          }
+          releaseState(state, id);
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+      } finally {
+        state.mutex.unlock();
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
   }
 
   /**
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The local state of one lock id, the lock held in this JVM and the threads
+ * queued for it in arrival order. Every field is guarded by mutex. Once removed
+ * is set the state has left the lock manager's map, and a thread that finds it
+ * must look the state up again.
+ */
+class LockState {
+
+  final ReentrantLock mutex = new ReentrantLock();
+  /**
+   * Signalled whenever the holder releases the lock or a waiter gives up.
+   */
+  final Condition released = mutex.newCondition();
+  /**
+   * Thread ids waiting for the lock, the first is next to acquire it.
+   */
+  final LinkedList<Long> waiters = new LinkedList<Long>();
+  LockImpl holder;
+  boolean removed;
+
+}
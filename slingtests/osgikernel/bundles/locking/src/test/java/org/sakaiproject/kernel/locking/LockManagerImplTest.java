@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.locking.Lock;
+import org.sakaiproject.kernel.api.locking.LockTimeoutException;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.LoopbackClusterCacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LockManagerImplTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LockManagerImplTest.class);
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void before() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  @After
+  public void after() {
+    cacheManagerService.stop();
+  }
+
+  private LockManagerImpl newLockManager(long lease, long wait) throws Exception {
+    LockManagerImpl lockManager = new LockManagerImpl(lease, wait, 10);
+    lockManager.bindCacheManagerService(cacheManagerService);
+    return lockManager;
+  }
+
+  @Test
+  public void testRenewalReplicated() throws Exception {
+    LoopbackClusterCacheTransport transport = new LoopbackClusterCacheTransport();
+    CacheManagerServiceImpl otherCacheManagerService = new CacheManagerServiceImpl();
+    cacheManagerService.bindTransport(transport);
+    otherCacheManagerService.bindTransport(transport);
+    try {
+      LockManagerImpl node1 = newLockManager(300, 1000);
+      LockManagerImpl node2 = new LockManagerImpl(300, 1000, 10);
+      node2.bindCacheManagerService(otherCacheManagerService);
+
+      Lock lock = node1.getLock("/a");
+      cacheManagerService.flushClusterCaches();
+      Thread.sleep(200);
+      // renewing the lease publishes the new expiry.
+      assertSame(lock, node1.getLock("/a"));
+      cacheManagerService.flushClusterCaches();
+      Thread.sleep(200);
+
+      // past the first lease, but within the renewed one.
+      Lock remote = node2.getLock("/a", true);
+      assertNotNull(remote);
+      assertFalse(remote.isOwner());
+      assertEquals(lock.getOwner(), remote.getOwner());
+      lock.unlock();
+    } finally {
+      cacheManagerService.unbindTransport(transport);
+      otherCacheManagerService.unbindTransport(transport);
+      otherCacheManagerService.stop();
+    }
+  }
+
+  @Test
+  public void testGetLock() throws Exception {
+    LockManagerImpl lockManager = newLockManager(60000, 1000);
+    assertNull(lockManager.getLock("/a", false));
+    Lock lock = lockManager.getLock("/a");
+    assertNotNull(lock);
+    assertTrue(lock.isOwner());
+    assertSame(lock, lockManager.getLock("/a", false));
+    lock.unlock();
+    assertNull(lockManager.getLock("/a", false));
+  }
+
+  @Test
+  public void testReentrant() throws Exception {
+    LockManagerImpl lockManager = newLockManager(60000, 1000);
+    Lock lock = lockManager.waitForLock("/a");
+    assertSame(lock, lockManager.waitForLock("/a"));
+    lock.unlock();
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    final LockManagerImpl lockManager = newLockManager(60000, 50);
+    lockManager.waitForLock("/a");
+    final AtomicInteger timeouts = new AtomicInteger();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("/a");
+        } catch (LockTimeoutException e) {
+          timeouts.incrementAndGet();
+        }
+      }
+    };
+    t.start();
+    t.join();
+    assertEquals(1, timeouts.get());
+  }
+
+  @Test
+  public void testLeaseLapses() throws Exception {
+    final LockManagerImpl lockManager = newLockManager(50, 5000);
+    final Lock lock = lockManager.waitForLock("/a");
+    final List<Lock> acquired = new ArrayList<Lock>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          acquired.add(lockManager.waitForLock("/a"));
+        } catch (LockTimeoutException e) {
+          LOGGER.info(e.getMessage());
+        }
+      }
+    };
+    long start = System.currentTimeMillis();
+    t.start();
+    t.join();
+    assertEquals(1, acquired.size());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertFalse(lock.isLocked());
+    // the lapsed lock must not release the new holder.
+    lock.unlock();
+    assertTrue(acquired.get(0).isLocked());
+  }
+
+  @Test
+  public void testFifo() throws Exception {
+    final LockManagerImpl lockManager = newLockManager(60000, 5000);
+    Lock lock = lockManager.waitForLock("/a");
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      final int n = i;
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Lock l = lockManager.waitForLock("/a");
+            order.add(n);
+            l.unlock();
+          } catch (LockTimeoutException e) {
+            LOGGER.info(e.getMessage());
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+      // wait for the thread to queue before starting the next one.
+      Thread.sleep(50);
+    }
+    lock.unlock();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(5, order.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  /**
+   * Many threads contending for a few locks. Not a rigorous benchmark, it
+   * checks mutual exclusion under load and logs the throughput.
+   */
+  @Test
+  public void testContention() throws Exception {
+    final LockManagerImpl lockManager = newLockManager(60000, 30000);
+    final int nthreads = 16;
+    final int iterations = 2000;
+    final int[] counters = new int[4];
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < nthreads; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < iterations; j++) {
+              int k = j % counters.length;
+              Lock l = lockManager.waitForLock("/counter/" + k);
+              try {
+                int v = counters[k];
+                Thread.yield();
+                counters[k] = v + 1;
+              } finally {
+                l.unlock();
+              }
+            }
+          } catch (Exception e) {
+            LOGGER.info(e.getMessage(), e);
+            failures.incrementAndGet();
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    long t0 = System.currentTimeMillis();
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    long t = Math.max(1, System.currentTimeMillis() - t0);
+    assertEquals(0, failures.get());
+    int total = 0;
+    for (int c : counters) {
+      total += c;
+    }
+    assertEquals(nthreads * iterations, total);
+    LOGGER.info("{} threads, {} lock/unlock in {} ms, {} per second", new Object[] {
+        nthreads, total, t, (1000L * total) / t });
+  }
+
+  @Test
+  public void testUnlockedBeforeWait() throws Exception {
+    LockManagerImpl lockManager = newLockManager(60000, 1000);
+    try {
+      Lock lock = lockManager.waitForLock("/b");
+      lock.unlock();
+      lock = lockManager.waitForLock("/b");
+      lock.unlock();
+    } catch (LockTimeoutException e) {
+      fail(e.getMessage());
+    }
+  }
+}
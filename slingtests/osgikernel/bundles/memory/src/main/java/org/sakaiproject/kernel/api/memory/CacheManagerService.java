@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.kernel.api.memory;
 
+import java.util.List;
 
 /**
  * The Cache manager provides access to all caches in the system. Caches are
@@ -43,4 +44,9 @@ public interface CacheManagerService {
    * @param scope
    */
   void unbind(CacheScope scope);
+
+  /**
+   * @return statistics for every cache name and scope that has been requested.
+   */
+  List<CacheStatistics> getStatistics();
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+/**
+ * Usage statistics for a named cache in one scope. Counts accumulate from the
+ * time the cache is first requested, for REQUEST and THREAD scopes they are
+ * summed over every request or thread that used the cache name.
+ */
+public interface CacheStatistics {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the scope of the cache.
+   */
+  CacheScope getScope();
+
+  /**
+   * @return the number of gets that returned a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that returned null.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of puts.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of removes.
+   */
+  long getRemoves();
+
+  /**
+   * @return the number of entries evicted or expired by the underlying cache, 0
+   *         for caches that do not evict.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of calls to removeChildren.
+   */
+  long getRemoveChildrenCount();
+
+  /**
+   * @return the total time spent in removeChildren, in ns.
+   */
+  long getRemoveChildrenTime();
+
+  /**
+   * @return the mean time of a get, in ns.
+   */
+  long getMeanGetTime();
+
+  /**
+   * @return the mean time of a put, in ns.
+   */
+  long getMeanPutTime();
+
+  /**
+   * @return a histogram of get times, element i is the number of gets that took
+   *         between 2^i and 2^(i+1) ns, the last element includes anything
+   *         slower.
+   */
+  long[] getGetTimeHistogram();
+
+  /**
+   * @return a histogram of put times, in the same form as
+   *         {@link #getGetTimeHistogram()}.
+   */
+  long[] getPutTimeHistogram();
+
+}
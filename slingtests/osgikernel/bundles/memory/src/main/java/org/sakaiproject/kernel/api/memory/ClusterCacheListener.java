@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.util.List;
+
+/**
+ * Receives batches of cluster cache messages from a {@link ClusterCacheTransport}.
+ */
+public interface ClusterCacheListener {
+
+  /**
+   * @param messages
+   *          a batch of messages, in the order they were sent. The batch may
+   *          include messages sent by this node, which the listener should
+   *          ignore.
+   */
+  void receive(List<ClusterCacheMessage> messages);
+
+}
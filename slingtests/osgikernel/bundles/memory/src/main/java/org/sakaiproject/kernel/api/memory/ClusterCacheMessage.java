@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.io.Serializable;
+
+/**
+ * A change to a cluster scoped cache, sent by one node to the others over a
+ * {@link ClusterCacheTransport}.
+ */
+public class ClusterCacheMessage implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2281516573839385187L;
+
+  /**
+   * The type of change.
+   */
+  public enum Type {
+    /**
+     * Put the value into the cache, only sent for CLUSTERREPLICATED caches.
+     */
+    PUT(),
+    /**
+     * Remove the key from the cache.
+     */
+    INVALIDATE(),
+    /**
+     * Remove the key and all child keys from the cache.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Clear the cache.
+     */
+    CLEAR();
+  }
+
+  private String source;
+  private String cacheName;
+  private CacheScope scope;
+  private Type type;
+  private String key;
+  private Object value;
+
+  /**
+   * @param source
+   *          the id of the node that sent the message.
+   * @param cacheName
+   *          the name of the cache.
+   * @param scope
+   *          the scope of the cache, CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param type
+   *          the type of change.
+   * @param key
+   *          the key, null for CLEAR.
+   * @param value
+   *          the value, only set for PUT.
+   */
+  public ClusterCacheMessage(String source, String cacheName, CacheScope scope, Type type,
+      String key, Object value) {
+    this.source = source;
+    this.cacheName = cacheName;
+    this.scope = scope;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * @return the id of the node that sent the message.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the scope of the cache.
+   */
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  /**
+   * @return the type of change.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the key, null for CLEAR.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value, only set for PUT.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return type + " " + cacheName + " " + key + " from " + source;
+  }
+}
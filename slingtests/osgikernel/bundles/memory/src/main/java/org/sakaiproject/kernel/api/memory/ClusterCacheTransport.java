@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.api.memory;
+
+import java.util.List;
+
+/**
+ * Carries cluster cache messages between the nodes of a cluster. Register an
+ * implementation as an OSGi service to make CLUSTERINVALIDATED and
+ * CLUSTERREPLICATED caches work across the cluster, without one they are local
+ * to the node.
+ */
+public interface ClusterCacheTransport {
+
+  /**
+   * Send a batch of messages to every node in the cluster.
+   *
+   * @param messages
+   *          the messages, which must be delivered in order.
+   */
+  void send(List<ClusterCacheMessage> messages);
+
+  /**
+   * @param listener
+   *          a listener to receive batches sent by any node.
+   */
+  void addListener(ClusterCacheListener listener);
+
+  /**
+   * @param listener
+   *          the listener to remove.
+   */
+  void removeListener(ClusterCacheListener listener);
+
+}
@@ -28,7 +28,7 @@ import java.util.List;
 /**
  *
  */
-public class CacheImpl<V> implements Cache<V> {
+public class CacheImpl<V> implements Cache<V>, EvictionCounter {
 
   private String cacheName;
   private net.sf.ehcache.Cache cache;
@@ -55,6 +55,15 @@ public class CacheImpl<V> implements Cache<V> {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.kernel.memory.EvictionCounter#getEvictionCount()
+   */
+  public long getEvictionCount() {
+    return cache.getStatistics().getEvictionCount();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -18,11 +18,18 @@
 package org.sakaiproject.kernel.memory;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.ConfigurationFactory;
 import net.sf.ehcache.management.ManagementService;
 
 import org.sakaiproject.kernel.api.memory.Cache;
 import org.sakaiproject.kernel.api.memory.CacheManagerService;
 import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
 import org.sakaiproject.kernel.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,10 +37,16 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
@@ -45,17 +58,45 @@ import javax.management.MBeanServer;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description"
  *      value="Cache Manager Service Implementation"
+ * @scr.reference name="ClusterCacheTransport" bind="bindTransport" unbind="unbindTransport"
+ *                interface="org.sakaiproject.kernel.api.memory.ClusterCacheTransport"
+ *                cardinality="0..1" policy="dynamic"
  */
-public class CacheManagerServiceImpl implements CacheManagerService {
+public class CacheManagerServiceImpl implements CacheManagerService, ClusterCacheListener {
 
+  /**
+   * System property that selects the implementation behind instance caches,
+   * <code>indexed</code> (the default) for {@link PathIndexedCacheImpl} or
+   * <code>ehcache</code> for {@link CacheImpl}.
+   */
+  public static final String INSTANCE_CACHE_IMPL = "sakai.memory.instancecache";
+  public static final String INSTANCE_CACHE_EHCACHE = "ehcache";
   private static final String CONFIG_PATH = "res://org/sakaiproject/kernel/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private CacheConfiguration defaultCacheConfiguration;
+  private ConcurrentMap<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
+  private ConcurrentMap<String, MeteredCache<?>> clusterCaches = new ConcurrentHashMap<String, MeteredCache<?>>();
+  private ConcurrentMap<String, CacheMetrics> metrics = new ConcurrentHashMap<String, CacheMetrics>();
+  private ClusterCacheReplicator replicator;
+  private boolean useEhcache;
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
 
   public CacheManagerServiceImpl() throws IOException {
+    this(INSTANCE_CACHE_EHCACHE.equals(System.getProperty(INSTANCE_CACHE_IMPL)));
+  }
+
+  /**
+   * @param useEhcache
+   *          if true instance caches are backed by ehcache, otherwise by the path
+   *          indexed cache.
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(boolean useEhcache) throws IOException {
+    this.useEhcache = useEhcache;
+    replicator = new ClusterCacheReplicator(UUID.randomUUID().toString(),
+        ClusterCacheReplicator.DEFAULT_FLUSH_INTERVAL, ClusterCacheReplicator.DEFAULT_MAX_BATCH);
     create();
   }
 
@@ -63,7 +104,10 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     logger.info("Loading Resource using "+this.getClass().getClassLoader());
     logger.info("Locally Stream was "+this.getClass().getClassLoader().getResourceAsStream(CONFIG_PATH));
     InputStream in = ResourceLoader.openResource(CONFIG_PATH, this.getClass().getClassLoader());
-    cacheManager = new CacheManager(in);
+    Configuration configuration = ConfigurationFactory.parseConfiguration(in);
+    cacheManager = new CacheManager(configuration);
+    // instance caches that are not ehcache caches take their limits from the default cache.
+    defaultCacheConfiguration = configuration.getDefaultCacheConfiguration();
     in.close();
 
     /*
@@ -98,6 +142,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    replicator.stop();
+    unregisterMetrics();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -112,9 +158,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -135,7 +181,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
+      threadCache = new MeteredCache<V>(new MapCacheImpl<V>(), getMetrics(name, CacheScope.THREAD));
       threadCacheMap.put(name, threadCache);
     }
     return threadCache;
@@ -152,28 +198,216 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
     Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
+      requestCache = new MeteredCache<V>(new MapCacheImpl<V>(), getMetrics(name,
+          CacheScope.REQUEST));
       requestCacheMap.put(name, requestCache);
     }
     return requestCache;
   }
 
   /**
+   * Get or create the named instance cache. Lookups do not lock, and racing
+   * creators of the same cache all end up with the one that was registered
+   * first.
+   *
    * @param name
    * @return
    */
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name) {
-    if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
-    } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+    String cacheName = (name == null) ? "default" : name;
+    Cache<V> c = (Cache<V>) caches.get(cacheName);
+    if (c == null) {
+      c = meter(cacheName, CacheScope.INSTANCE, this.<V> createInstanceCache(cacheName));
+      Cache<V> existing = (Cache<V>) caches.putIfAbsent(cacheName, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Get or create the named cluster cache, backed by a local instance cache.
+   *
+   * @param name
+   * @param scope
+   *          CLUSTERINVALIDATED or CLUSTERREPLICATED, a cache keeps the scope it
+   *          was created with.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, CacheScope scope) {
+    String cacheName = (name == null) ? "default" : name;
+    MeteredCache<V> c = (MeteredCache<V>) clusterCaches.get(cacheName);
+    if (c == null) {
+      Cache<V> local = createInstanceCache(cacheName);
+      c = meter(cacheName, scope, new ClusterCacheImpl<V>(cacheName, scope, local, replicator));
+      MeteredCache<V> existing = (MeteredCache<V>) clusterCaches.putIfAbsent(cacheName, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * {@inheritDoc} Applies changes made by other nodes to the local copies of
+   * cluster caches. Invalidations for caches this node has not created are
+   * ignored, replicated values create the cache.
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheListener#receive(java.util.List)
+   */
+  public void receive(List<ClusterCacheMessage> messages) {
+    for (ClusterCacheMessage message : messages) {
+      if (replicator.getNodeId().equals(message.getSource())) {
+        continue;
+      }
+      MeteredCache<?> c = clusterCaches.get(message.getCacheName());
+      if (c == null && message.getType() == ClusterCacheMessage.Type.PUT) {
+        c = (MeteredCache<?>) getClusterCache(message.getCacheName(), message.getScope());
       }
-      return c;
+      if (c != null) {
+        try {
+          ((ClusterCacheImpl<?>) c.getDelegate()).apply(message);
+        } catch (RuntimeException e) {
+          logger.warn("Failed to apply cluster cache message " + message, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Send any queued cluster cache changes now, rather than waiting for the next
+   * batch.
+   */
+  public void flushClusterCaches() {
+    replicator.flush();
+  }
+
+  /**
+   * @param transport
+   */
+  public void bindTransport(ClusterCacheTransport transport) {
+    replicator.setTransport(transport);
+    transport.addListener(this);
+  }
+
+  /**
+   * @param transport
+   */
+  public void unbindTransport(ClusterCacheTransport transport) {
+    transport.removeListener(this);
+    if (replicator.getTransport() == transport) {
+      replicator.setTransport(null);
+    }
+  }
+
+  /**
+   * @param name
+   * @param scope
+   * @param cache
+   * @return the cache wrapped so it records into the metrics for its name and
+   *         scope.
+   */
+  private <V> MeteredCache<V> meter(String name, CacheScope scope, Cache<V> cache) {
+    CacheMetrics m = getMetrics(name, scope);
+    if (cache instanceof EvictionCounter) {
+      m.setEvictionCounter((EvictionCounter) cache);
+    }
+    return new MeteredCache<V>(cache, m);
+  }
+
+  /**
+   * Get or create the metrics for a cache name and scope, registering new
+   * metrics with JMX.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  private CacheMetrics getMetrics(String name, CacheScope scope) {
+    String cacheName = (name == null) ? "default" : name;
+    String key = scope + ":" + cacheName;
+    CacheMetrics m = metrics.get(key);
+    if (m == null) {
+      m = new CacheMetrics(cacheName, scope);
+      CacheMetrics existing = metrics.putIfAbsent(key, m);
+      if (existing != null) {
+        return existing;
+      }
+      try {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getMetricsName(m);
+        if (!mBeanServer.isRegistered(objectName)) {
+          mBeanServer.registerMBean(m, objectName);
+        }
+      } catch (JMException e) {
+        logger.warn("Unable to register cache metrics for " + key + " with JMX ", e);
+      }
+    }
+    return m;
+  }
+
+  /**
+   * @param m
+   * @return the JMX name of the metrics.
+   * @throws JMException
+   */
+  private ObjectName getMetricsName(CacheMetrics m) throws JMException {
+    return new ObjectName("org.sakaiproject.kernel.memory:type=CacheMetrics,scope="
+        + m.getScopeName() + ",name=" + ObjectName.quote(m.getName()));
+  }
+
+  /**
+   * Remove all metrics from JMX.
+   */
+  private void unregisterMetrics() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (CacheMetrics m : metrics.values()) {
+      try {
+        ObjectName objectName = getMetricsName(m);
+        if (mBeanServer.isRegistered(objectName)) {
+          mBeanServer.unregisterMBean(objectName);
+        }
+      } catch (JMException e) {
+        logger.debug("Unable to unregister cache metrics " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheManagerService#getStatistics()
+   */
+  public List<CacheStatistics> getStatistics() {
+    return new ArrayList<CacheStatistics>(metrics.values());
+  }
+
+  /**
+   * @param name
+   * @return a new instance cache of the configured type.
+   */
+  private <V> Cache<V> createInstanceCache(String name) {
+    if (useEhcache) {
+      return new CacheImpl<V>(cacheManager, name);
+    }
+    CacheConfiguration config = defaultCacheConfiguration;
+    if (config == null) {
+      return new PathIndexedCacheImpl<V>(name);
+    }
+    // as in ehcache, 0 means no limit and an eternal cache never expires.
+    long timeToLive = config.getTimeToLiveSeconds() * 1000L;
+    long timeToIdle = config.getTimeToIdleSeconds() * 1000L;
+    if (config.isEternal() || timeToLive <= 0) {
+      timeToLive = Long.MAX_VALUE / 2;
+    }
+    if (config.isEternal()) {
+      timeToIdle = 0;
     }
+    return new PathIndexedCacheImpl<V>(name, config.getMaxElementsInMemory(), timeToLive,
+        timeToIdle);
   }
 
   /**
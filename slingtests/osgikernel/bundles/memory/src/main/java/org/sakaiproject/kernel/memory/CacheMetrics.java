@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+
+/**
+ * Records the use of a named cache in one scope. Counters are striped so
+ * recording from many threads is cheap enough to leave on.
+ */
+public class CacheMetrics implements CacheStatistics, CacheMetricsMBean {
+
+  private final String name;
+  private final CacheScope scope;
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+  private final StripedCounter removes = new StripedCounter();
+  private final StripedCounter removeChildrenCount = new StripedCounter();
+  private final StripedCounter removeChildrenTime = new StripedCounter();
+  private final LatencyHistogram getTimes = new LatencyHistogram();
+  private final LatencyHistogram putTimes = new LatencyHistogram();
+  private volatile EvictionCounter evictionCounter;
+  private volatile long evictionBase;
+
+  /**
+   * @param name
+   * @param scope
+   */
+  public CacheMetrics(String name, CacheScope scope) {
+    this.name = name;
+    this.scope = scope;
+  }
+
+  /**
+   * @param evictionCounter
+   *          the cache to read evictions from.
+   */
+  public void setEvictionCounter(EvictionCounter evictionCounter) {
+    this.evictionCounter = evictionCounter;
+  }
+
+  /**
+   * @param nanos
+   * @param hit
+   */
+  public void recordGet(long nanos, boolean hit) {
+    if (hit) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    getTimes.record(nanos);
+  }
+
+  /**
+   * @param nanos
+   */
+  public void recordPut(long nanos) {
+    putTimes.record(nanos);
+  }
+
+  public void recordRemove() {
+    removes.increment();
+  }
+
+  /**
+   * @param nanos
+   */
+  public void recordRemoveChildren(long nanos) {
+    removeChildrenCount.increment();
+    removeChildrenTime.add(nanos);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getName()
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getScope()
+   */
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#getScopeName()
+   */
+  public String getScopeName() {
+    return scope.toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getHits()
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getMisses()
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#getHitRatio()
+   */
+  public double getHitRatio() {
+    long h = getHits();
+    long total = h + getMisses();
+    if (total == 0L) {
+      return 0.0;
+    }
+    return (double) h / (double) total;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getPuts()
+   */
+  public long getPuts() {
+    return putTimes.getCount();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getRemoves()
+   */
+  public long getRemoves() {
+    return removes.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getEvictions()
+   */
+  public long getEvictions() {
+    EvictionCounter e = evictionCounter;
+    if (e == null) {
+      return 0L;
+    }
+    return e.getEvictionCount() - evictionBase;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getRemoveChildrenCount()
+   */
+  public long getRemoveChildrenCount() {
+    return removeChildrenCount.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getRemoveChildrenTime()
+   */
+  public long getRemoveChildrenTime() {
+    return removeChildrenTime.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#getMeanRemoveChildrenTime()
+   */
+  public long getMeanRemoveChildrenTime() {
+    long count = getRemoveChildrenCount();
+    if (count == 0L) {
+      return 0L;
+    }
+    return getRemoveChildrenTime() / count;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getMeanGetTime()
+   */
+  public long getMeanGetTime() {
+    return getTimes.getMean();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#getGetTime99thPercentile()
+   */
+  public long getGetTime99thPercentile() {
+    return getTimes.getPercentile(99.0);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getMeanPutTime()
+   */
+  public long getMeanPutTime() {
+    return putTimes.getMean();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#getPutTime99thPercentile()
+   */
+  public long getPutTime99thPercentile() {
+    return putTimes.getPercentile(99.0);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getGetTimeHistogram()
+   */
+  public long[] getGetTimeHistogram() {
+    return getTimes.getCounts();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.CacheStatistics#getPutTimeHistogram()
+   */
+  public long[] getPutTimeHistogram() {
+    return putTimes.getCounts();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.CacheMetricsMBean#reset()
+   */
+  public void reset() {
+    hits.reset();
+    misses.reset();
+    removes.reset();
+    removeChildrenCount.reset();
+    removeChildrenTime.reset();
+    getTimes.reset();
+    putTimes.reset();
+    EvictionCounter e = evictionCounter;
+    if (e != null) {
+      evictionBase = e.getEvictionCount();
+    }
+  }
+}
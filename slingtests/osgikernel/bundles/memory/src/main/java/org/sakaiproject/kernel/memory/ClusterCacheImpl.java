@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+
+import java.util.List;
+
+/**
+ * A cluster scoped cache. Reads are served from the local cache, changes are
+ * applied locally and then queued for the rest of the cluster. In
+ * CLUSTERINVALIDATED scope only keys are sent and other nodes drop their copy,
+ * in CLUSTERREPLICATED scope values are sent and other nodes store them.
+ */
+public class ClusterCacheImpl<V> implements Cache<V>, EvictionCounter {
+
+  private String cacheName;
+  private CacheScope scope;
+  private Cache<V> local;
+  private ClusterCacheReplicator replicator;
+
+  /**
+   * @param cacheName
+   * @param scope
+   *          CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param local
+   *          the cache holding this node's copy.
+   * @param replicator
+   */
+  public ClusterCacheImpl(String cacheName, CacheScope scope, Cache<V> local,
+      ClusterCacheReplicator replicator) {
+    this.cacheName = cacheName;
+    this.scope = scope;
+    this.local = local;
+    this.replicator = replicator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.EvictionCounter#getEvictionCount()
+   */
+  public long getEvictionCount() {
+    if (local instanceof EvictionCounter) {
+      return ((EvictionCounter) local).getEvictionCount();
+    }
+    return 0L;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    replicator.enqueue(cacheName, scope, Type.CLEAR, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    if (scope == CacheScope.CLUSTERREPLICATED) {
+      replicator.enqueue(cacheName, scope, Type.PUT, key, payload);
+    } else {
+      replicator.enqueue(cacheName, scope, Type.INVALIDATE, key, null);
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    replicator.enqueue(cacheName, scope, Type.INVALIDATE, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    replicator.enqueue(cacheName, scope, Type.REMOVE_CHILDREN, key, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * Apply a change made by another node to the local copy, without sending it
+   * on.
+   *
+   * @param message
+   */
+  @SuppressWarnings("unchecked")
+  void apply(ClusterCacheMessage message) {
+    switch (message.getType()) {
+    case PUT:
+      local.put(message.getKey(), (V) message.getValue());
+      break;
+    case INVALIDATE:
+      local.remove(message.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      local.removeChildren(message.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    }
+  }
+
+}
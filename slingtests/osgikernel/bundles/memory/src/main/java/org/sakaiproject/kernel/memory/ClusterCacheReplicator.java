@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues outbound cluster cache messages and sends them in batches. Messages for
+ * the same key are coalesced while they wait, so only the last change to a key
+ * is sent, and changes superseded by a later removeChildren or clear are
+ * dropped. Ordering between the messages that remain is preserved.
+ */
+public class ClusterCacheReplicator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheReplicator.class);
+  /**
+   * The default interval between flushes in ms.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL = 100L;
+  /**
+   * The default maximum number of messages in a batch.
+   */
+  public static final int DEFAULT_MAX_BATCH = 500;
+
+  private String nodeId;
+  private int maxBatch;
+  private volatile ClusterCacheTransport transport;
+  /**
+   * Pending messages keyed by cache name and key, in the order they were last
+   * changed. Guarded by itself.
+   */
+  private Map<String, ClusterCacheMessage> pending = new LinkedHashMap<String, ClusterCacheMessage>();
+  /**
+   * Held while draining and sending, so batches leave in the order they were
+   * drained.
+   */
+  private Object sendLock = new Object();
+  private ScheduledExecutorService flusher;
+
+  /**
+   * @param nodeId
+   *          the id of this node, set as the source of every message.
+   * @param flushInterval
+   *          the interval between flushes in ms.
+   * @param maxBatch
+   *          the maximum number of messages in a batch, reaching it triggers a
+   *          flush.
+   */
+  public ClusterCacheReplicator(String nodeId, long flushInterval, int maxBatch) {
+    this.nodeId = nodeId;
+    this.maxBatch = maxBatch;
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "ClusterCacheReplicator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (Throwable t) {
+          LOGGER.warn("Failed to send cluster cache messages ", t);
+        }
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the id of this node.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * @param transport
+   *          the transport to send with, or null to stop sending.
+   */
+  public void setTransport(ClusterCacheTransport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * @return the transport in use, or null if there is none.
+   */
+  public ClusterCacheTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * Queue a message, coalescing it with any pending message it supersedes.
+   *
+   * @param cacheName
+   * @param scope
+   * @param type
+   * @param key
+   * @param value
+   */
+  public void enqueue(String cacheName, CacheScope scope, Type type, String key, Object value) {
+    if (transport == null) {
+      return;
+    }
+    ClusterCacheMessage message = new ClusterCacheMessage(nodeId, cacheName, scope, type, key,
+        value);
+    boolean full;
+    synchronized (pending) {
+      switch (type) {
+      case CLEAR:
+        removePending(cacheName, null);
+        break;
+      case REMOVE_CHILDREN:
+        removePending(cacheName, key);
+        break;
+      default:
+        // remove before put so the key moves to the end of the queue
+        pending.remove(pendingKey(message));
+      }
+      pending.put(pendingKey(message), message);
+      full = pending.size() >= maxBatch;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * The key a message is queued under. The type is part of the key, so a put
+   * of "a/" doesn't replace a removeChildren of "a", nor a put of "" a clear.
+   *
+   * @param message
+   * @return
+   */
+  private String pendingKey(ClusterCacheMessage message) {
+    String tag;
+    switch (message.getType()) {
+    case CLEAR:
+      return message.getCacheName() + "\u0000C";
+    case REMOVE_CHILDREN:
+      tag = "R";
+      break;
+    default:
+      tag = "K";
+    }
+    return message.getCacheName() + '\u0000' + tag + '\u0000' + message.getKey();
+  }
+
+  /**
+   * Remove every pending message of a cache that a removeChildren of key would
+   * make redundant, or every pending message of the cache if key is null.
+   *
+   * @param cacheName
+   * @param key
+   */
+  private void removePending(String cacheName, String key) {
+    String children = null;
+    if (key != null) {
+      children = key.endsWith("/") ? key : key + "/";
+    }
+    for (Iterator<ClusterCacheMessage> i = pending.values().iterator(); i.hasNext();) {
+      ClusterCacheMessage message = i.next();
+      if (!cacheName.equals(message.getCacheName())) {
+        continue;
+      }
+      if (key == null) {
+        i.remove();
+      } else if (message.getType() != Type.CLEAR
+          && (key.equals(message.getKey()) || message.getKey().startsWith(children))) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Send all pending messages, in batches of at most the maximum batch size.
+   */
+  public void flush() {
+    synchronized (sendLock) {
+      ClusterCacheTransport t = transport;
+      List<ClusterCacheMessage> messages;
+      synchronized (pending) {
+        if (pending.size() == 0) {
+          return;
+        }
+        messages = new ArrayList<ClusterCacheMessage>(pending.values());
+        pending.clear();
+      }
+      if (t == null) {
+        return;
+      }
+      for (int i = 0; i < messages.size(); i += maxBatch) {
+        t.send(new ArrayList<ClusterCacheMessage>(messages.subList(i, Math.min(messages
+            .size(), i + maxBatch))));
+      }
+    }
+  }
+
+  /**
+   * Flush any pending messages and stop the flush thread.
+   */
+  public void stop() {
+    flusher.shutdown();
+    try {
+      flush();
+    } catch (Throwable t) {
+      LOGGER.warn("Failed to send cluster cache messages on shutdown ", t);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in ns with power of two buckets, bucket i holds
+ * durations in [2^i, 2^(i+1)) ns, the last bucket holds anything longer. Each
+ * stripe of threads records into its own row of buckets, as in
+ * {@link StripedCounter}.
+ */
+public class LatencyHistogram {
+
+  /**
+   * 2^31 ns is about 2s, slower operations go in the last bucket.
+   */
+  public static final int BUCKETS = 32;
+  private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+  private final StripedCounter total = new StripedCounter();
+
+  /**
+   * @param nanos
+   *          the duration to record.
+   */
+  public void record(long nanos) {
+    if (nanos < 1L) {
+      nanos = 1L;
+    }
+    int bucket = 63 - Long.numberOfLeadingZeros(nanos);
+    if (bucket >= BUCKETS) {
+      bucket = BUCKETS - 1;
+    }
+    buckets.incrementAndGet(StripedCounter.stripe() * BUCKETS + bucket);
+    total.add(nanos);
+  }
+
+  /**
+   * @return the number of durations in each bucket.
+   */
+  public long[] getCounts() {
+    long[] counts = new long[BUCKETS];
+    for (int s = 0; s < StripedCounter.STRIPES; s++) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += buckets.get(s * BUCKETS + i);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * @return the number of durations recorded.
+   */
+  public long getCount() {
+    long count = 0L;
+    for (long c : getCounts()) {
+      count += c;
+    }
+    return count;
+  }
+
+  /**
+   * @return the mean duration in ns, 0 if none have been recorded.
+   */
+  public long getMean() {
+    long count = getCount();
+    if (count == 0L) {
+      return 0L;
+    }
+    return total.get() / count;
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return the upper bound in ns of the bucket containing the percentile, 0 if
+   *         none have been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] counts = getCounts();
+    long count = 0L;
+    for (long c : counts) {
+      count += c;
+    }
+    if (count == 0L) {
+      return 0L;
+    }
+    long target = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return 1L << (i + 1);
+      }
+    }
+    return 1L << BUCKETS;
+  }
+
+  /**
+   * Reset all buckets.
+   */
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0L);
+    }
+    total.reset();
+  }
+}
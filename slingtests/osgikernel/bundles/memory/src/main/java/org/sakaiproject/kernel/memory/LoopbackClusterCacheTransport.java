@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+import org.sakaiproject.kernel.api.memory.ClusterCacheTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in JVM transport that delivers every batch to every listener, in the
+ * sending thread. Messages are serialized on the way through so each listener
+ * gets its own copy of the values, as it would over a network. Share one
+ * instance between several cache managers to simulate a cluster in tests.
+ */
+public class LoopbackClusterCacheTransport implements ClusterCacheTransport {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LoopbackClusterCacheTransport.class);
+  private List<ClusterCacheListener> listeners = new CopyOnWriteArrayList<ClusterCacheListener>();
+  private long batches;
+  private long messages;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#addListener(org.sakaiproject.kernel.api.memory.ClusterCacheListener)
+   */
+  public void addListener(ClusterCacheListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#removeListener(org.sakaiproject.kernel.api.memory.ClusterCacheListener)
+   */
+  public void removeListener(ClusterCacheListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * {@inheritDoc} Each message is serialized on its own, a message whose value can't be
+   * serialized is sent as an invalidation of its key, so the other nodes drop their
+   * copy rather than the whole batch being lost.
+   *
+   * @see org.sakaiproject.kernel.api.memory.ClusterCacheTransport#send(java.util.List)
+   */
+  public void send(List<ClusterCacheMessage> batch) {
+    List<byte[]> serialized = new ArrayList<byte[]>(batch.size());
+    for (ClusterCacheMessage message : batch) {
+      try {
+        serialized.add(serialize(message));
+      } catch (IOException e) {
+        LOGGER.warn("Unable to serialize the value of {} in cache {}, sending an invalidation "
+            + e.getMessage(), message.getKey(), message.getCacheName());
+        if (message.getType() != Type.PUT) {
+          continue;
+        }
+        try {
+          serialized.add(serialize(new ClusterCacheMessage(message.getSource(), message
+              .getCacheName(), message.getScope(), Type.INVALIDATE, message.getKey(), null)));
+        } catch (IOException e2) {
+          LOGGER.error("Unable to serialize cluster cache message, dropped ", e2);
+        }
+      }
+    }
+    synchronized (this) {
+      batches++;
+      messages += serialized.size();
+    }
+    for (ClusterCacheListener listener : listeners) {
+      listener.receive(deserialize(serialized));
+    }
+  }
+
+  /**
+   * @param message
+   * @return the serialized message.
+   * @throws IOException
+   *           if the message can't be serialized.
+   */
+  private byte[] serialize(ClusterCacheMessage message) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(message);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @param serialized
+   * @return a copy of the messages.
+   */
+  private List<ClusterCacheMessage> deserialize(List<byte[]> serialized) {
+    List<ClusterCacheMessage> messages = new ArrayList<ClusterCacheMessage>(serialized.size());
+    for (byte[] message : serialized) {
+      try {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(message));
+        messages.add((ClusterCacheMessage) in.readObject());
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read cluster cache messages ", e);
+      } catch (ClassNotFoundException e) {
+        throw new IllegalStateException("Unable to read cluster cache messages ", e);
+      }
+    }
+    return messages;
+  }
+
+  /**
+   * @return the number of batches sent.
+   */
+  public synchronized long getBatches() {
+    return batches;
+  }
+
+  /**
+   * @return the number of messages sent.
+   */
+  public synchronized long getMessages() {
+    return messages;
+  }
+}
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import org.sakaiproject.kernel.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An instance cache that keeps its keys in a sorted, concurrent index. Path keys
+ * that share a prefix are stored next to each other so
+ * {@link #removeChildren(String)} only visits the subtree being removed, rather
+ * than every key in the cache. Entries expire after a time to live, or once they
+ * have not been used for the time to idle, and once the cache holds more than its
+ * maximum number of elements the least recently used entries are evicted first.
+ */
+public class PathIndexedCacheImpl<V> implements Cache<V>, EvictionCounter {
+
+  /**
+   * The default maximum number of elements, matches the ehcache default cache.
+   */
+  public static final int DEFAULT_MAX_ELEMENTS = 10000;
+  /**
+   * The default time to live in ms, matches the ehcache default cache.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 600000L;
+  /**
+   * The default time to idle in ms, matches the ehcache default cache.
+   */
+  public static final long DEFAULT_TIME_TO_IDLE = 600000L;
+
+  /**
+   * A cache entry, the time it was last used is updated on every hit.
+   */
+  static class CacheEntry<V> {
+    final String key;
+    final V value;
+    final long expires;
+    volatile long lastAccessed;
+    volatile Access<V> lastAccess;
+
+    CacheEntry(String key, V value, long created, long expires) {
+      this.key = key;
+      this.value = value;
+      this.expires = expires;
+      this.lastAccessed = created;
+    }
+  }
+
+  /**
+   * A use of an entry, the marker in the eviction queue. Only the latest use of an
+   * entry counts, earlier ones are discarded as they are found.
+   */
+  static class Access<V> {
+    final CacheEntry<V> entry;
+    /**
+     * Cleared by whichever thread takes the use off the queue, so it is only counted
+     * off once however many threads find it.
+     */
+    final AtomicBoolean queued = new AtomicBoolean(true);
+
+    Access(CacheEntry<V> entry) {
+      this.entry = entry;
+    }
+
+    boolean isCurrent() {
+      return entry.lastAccess == this;
+    }
+
+    boolean dequeue() {
+      return queued.compareAndSet(true, false);
+    }
+  }
+
+  private final String cacheName;
+  private final int maxElements;
+  private final long timeToLive;
+  private final long timeToIdle;
+  private final ConcurrentSkipListMap<String, CacheEntry<V>> entries = new ConcurrentSkipListMap<String, CacheEntry<V>>();
+  /**
+   * Uses of entries, least recent first. It may hold uses that have been
+   * superseded, or of entries that have since been replaced or removed, these are
+   * discarded as they are found.
+   */
+  private final ConcurrentLinkedQueue<Access<V>> evictionQueue = new ConcurrentLinkedQueue<Access<V>>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger queueLength = new AtomicInteger();
+  /**
+   * Held while the eviction queue is compacted or rebuilt, only one thread does either
+   * at a time.
+   */
+  private final ReentrantLock queueLock = new ReentrantLock();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param name
+   */
+  public PathIndexedCacheImpl(String name) {
+    this(name, DEFAULT_MAX_ELEMENTS, DEFAULT_TIME_TO_LIVE, DEFAULT_TIME_TO_IDLE);
+  }
+
+  /**
+   * @param name
+   * @param maxElements
+   *          the maximum number of elements to hold before evicting.
+   * @param timeToLive
+   *          the time to live of an entry in ms.
+   */
+  public PathIndexedCacheImpl(String name, int maxElements, long timeToLive) {
+    this(name, maxElements, timeToLive, DEFAULT_TIME_TO_IDLE);
+  }
+
+  /**
+   * @param name
+   * @param maxElements
+   *          the maximum number of elements to hold before evicting.
+   * @param timeToLive
+   *          the time to live of an entry in ms.
+   * @param timeToIdle
+   *          the time in ms an entry is kept without being used, 0 for no limit.
+   */
+  public PathIndexedCacheImpl(String name, int maxElements, long timeToLive,
+      long timeToIdle) {
+    if (name == null) {
+      cacheName = "default";
+    } else {
+      cacheName = name;
+    }
+    this.maxElements = maxElements;
+    this.timeToLive = timeToLive;
+    this.timeToIdle = timeToIdle;
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  public String getName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the number of entries held by the cache, including any that have
+   *         expired but not yet been purged.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.memory.EvictionCounter#getEvictionCount()
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#clear()
+   */
+  public void clear() {
+    queueLock.lock();
+    try {
+      for (String k : entries.keySet()) {
+        removeEntry(k);
+      }
+      for (Access<V> access = evictionQueue.poll(); access != null; access = evictionQueue
+          .poll()) {
+        if (access.dequeue()) {
+          queueLength.decrementAndGet();
+        }
+      }
+      // entries put while the cache was being cleared may have lost their uses with
+      // the rest of the queue, they are queued again so they can still be evicted.
+      for (CacheEntry<V> e : entries.values()) {
+        touch(e);
+      }
+    } finally {
+      queueLock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return getEntry(key) != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    CacheEntry<V> e = getEntry(key);
+    if (e == null) {
+      return null;
+    }
+    return e.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    long now = System.currentTimeMillis();
+    CacheEntry<V> e = new CacheEntry<V>(key, payload, now, now + timeToLive);
+    CacheEntry<V> previous = entries.put(key, e);
+    if (previous == null) {
+      size.incrementAndGet();
+    }
+    touch(e);
+    evict(now);
+    if (previous == null || isExpired(previous, now)) {
+      return null;
+    }
+    return previous.value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    removeEntry(key);
+  }
+
+  /**
+   * {@inheritDoc} Only the keys in the subtree are visited.
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    removeEntry(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    // every key starting with "key/" sorts before "key0", '0' follows '/'
+    String end = key.substring(0, key.length() - 1) + (char) ('/' + 1);
+    for (String k : entries.subMap(key, end).keySet()) {
+      removeEntry(k);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    long now = System.currentTimeMillis();
+    List<V> values = new ArrayList<V>();
+    for (CacheEntry<V> e : entries.values()) {
+      if (!isExpired(e, now)) {
+        values.add(e.value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @param key
+   * @return the live entry for the key, or null if there is none. Expired
+   *         entries are removed as they are found, live ones become the most
+   *         recently used.
+   */
+  private CacheEntry<V> getEntry(String key) {
+    CacheEntry<V> e = entries.get(key);
+    if (e == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (isExpired(e, now)) {
+      if (entries.remove(key, e)) {
+        size.decrementAndGet();
+        evictions.incrementAndGet();
+      }
+      return null;
+    }
+    e.lastAccessed = now;
+    touch(e);
+    compact(now);
+    return e;
+  }
+
+  /**
+   * @param e
+   * @param now
+   * @return true if the entry has lived too long or has been idle too long.
+   */
+  private boolean isExpired(CacheEntry<V> e, long now) {
+    return now > e.expires || (timeToIdle > 0 && now > e.lastAccessed + timeToIdle);
+  }
+
+  /**
+   * Make an entry the most recently used.
+   *
+   * @param e
+   */
+  private void touch(CacheEntry<V> e) {
+    Access<V> access = new Access<V>(e);
+    e.lastAccess = access;
+    evictionQueue.offer(access);
+    queueLength.incrementAndGet();
+  }
+
+  /**
+   * @param key
+   */
+  private void removeEntry(String key) {
+    if (entries.remove(key) != null) {
+      size.decrementAndGet();
+    }
+  }
+
+  /**
+   * Evict the least recently used entries while the cache is over size, and
+   * compact the eviction queue.
+   *
+   * @param now
+   */
+  private void evict(long now) {
+    while (size.get() > maxElements) {
+      Access<V> access = evictionQueue.poll();
+      if (access == null) {
+        break;
+      }
+      if (!access.dequeue()) {
+        // a compaction has taken it already.
+        continue;
+      }
+      queueLength.decrementAndGet();
+      if (access.isCurrent() && entries.remove(access.entry.key, access.entry)) {
+        size.decrementAndGet();
+        evictions.incrementAndGet();
+      }
+    }
+    compact(now);
+  }
+
+  /**
+   * Drop superseded uses and expired entries from the eviction queue once it has
+   * collected too many of them. The queue grows by one for every hit, so this runs
+   * once for every few hits and the cost is spread over them. Threads that find a
+   * compaction running leave it to that one.
+   *
+   * @param now
+   */
+  private void compact(long now) {
+    if (queueLength.get() <= 2 * Math.max(size.get(), maxElements)
+        || !queueLock.tryLock()) {
+      return;
+    }
+    try {
+      for (Iterator<Access<V>> i = evictionQueue.iterator(); i.hasNext();) {
+        Access<V> access = i.next();
+        CacheEntry<V> e = access.entry;
+        if (!access.isCurrent() || entries.get(e.key) != e || isExpired(e, now)) {
+          if (access.isCurrent() && isExpired(e, now) && entries.remove(e.key, e)) {
+            size.decrementAndGet();
+            evictions.incrementAndGet();
+          }
+          // an eviction may have polled it meanwhile, only one of them counts it.
+          if (access.dequeue()) {
+            i.remove();
+            queueLength.decrementAndGet();
+          }
+        }
+      }
+    } finally {
+      queueLock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of uses in the eviction queue, at least one for each entry.
+   */
+  public int getQueueLength() {
+    return queueLength.get();
+  }
+
+}
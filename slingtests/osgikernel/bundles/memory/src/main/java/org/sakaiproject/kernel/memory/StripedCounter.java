@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.memory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells so threads incrementing it concurrently
+ * rarely contend on the same cache line. The cell is chosen from the thread id,
+ * reads sum every cell and are not atomic with respect to writes.
+ */
+public class StripedCounter {
+
+  /**
+   * Cells are spaced this many longs apart, 64 bytes, to keep them on separate
+   * cache lines.
+   */
+  private static final int PAD = 8;
+  static final int STRIPES = 8;
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+  /**
+   * Add one.
+   */
+  public void increment() {
+    add(1L);
+  }
+
+  /**
+   * @param delta
+   */
+  public void add(long delta) {
+    cells.addAndGet(cell(), delta);
+  }
+
+  /**
+   * @return the sum of all cells.
+   */
+  public long get() {
+    long sum = 0L;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  /**
+   * Reset to zero.
+   */
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PAD, 0L);
+    }
+  }
+
+  /**
+   * @return the index of the cell for the current thread.
+   */
+  private int cell() {
+    return stripe() * PAD;
+  }
+
+  /**
+   * @return the stripe, between 0 and STRIPES - 1, for the current thread.
+   */
+  static int stripe() {
+    long id = Thread.currentThread().getId();
+    return (int) ((id ^ (id >>> 3)) & (STRIPES - 1));
+  }
+}
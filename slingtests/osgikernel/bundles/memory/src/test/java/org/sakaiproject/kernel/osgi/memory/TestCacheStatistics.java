@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.CacheStatistics;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.LatencyHistogram;
+
+import java.io.IOException;
+
+public class TestCacheStatistics {
+
+  private CacheManagerServiceImpl cacheManagerService;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+  }
+
+  private CacheStatistics findStatistics(String name, CacheScope scope) {
+    for (CacheStatistics statistics : cacheManagerService.getStatistics()) {
+      if (statistics.getName().equals(name) && statistics.getScope() == scope) {
+        return statistics;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testStatisticsForEachScope() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("StatisticsCache" + scope, scope);
+      cache.put("a", "a");
+      cache.put("a/b", "b");
+      cache.get("a");
+      cache.get("a");
+      cache.get("missing");
+      cache.remove("a/b");
+      cache.removeChildren("a");
+      CacheStatistics statistics = findStatistics("StatisticsCache" + scope, scope);
+      assertNotNull(statistics);
+      assertEquals(2, statistics.getHits());
+      assertEquals(1, statistics.getMisses());
+      assertEquals(2, statistics.getPuts());
+      assertEquals(1, statistics.getRemoves());
+      assertEquals(1, statistics.getRemoveChildrenCount());
+      long gets = 0;
+      for (long count : statistics.getGetTimeHistogram()) {
+        gets += count;
+      }
+      assertEquals(3, gets);
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testRequestStatisticsSpanRequests() {
+    for (int i = 0; i < 3; i++) {
+      Cache<String> cache = cacheManagerService.getCache("RequestStatistics",
+          CacheScope.REQUEST);
+      cache.get("a");
+      cacheManagerService.unbind(CacheScope.REQUEST);
+    }
+    assertEquals(3, findStatistics("RequestStatistics", CacheScope.REQUEST).getMisses());
+  }
+
+  @Test
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    histogram.record(1000);
+    histogram.record(1023);
+    histogram.record(Long.MAX_VALUE);
+    long[] counts = histogram.getCounts();
+    assertEquals(1, counts[0]);
+    assertEquals(2, counts[9]);
+    assertEquals(1, counts[LatencyHistogram.BUCKETS - 1]);
+    assertEquals(1024, histogram.getPercentile(50));
+    assertTrue(histogram.getPercentile(100) > 1024);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.api.memory.ClusterCacheListener;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage;
+import org.sakaiproject.kernel.api.memory.ClusterCacheMessage.Type;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.ClusterCacheReplicator;
+import org.sakaiproject.kernel.memory.LoopbackClusterCacheTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestClusterCache {
+
+  private LoopbackClusterCacheTransport transport;
+  private CacheManagerServiceImpl node1;
+  private CacheManagerServiceImpl node2;
+
+  @Before
+  public void setUp() throws IOException {
+    transport = new LoopbackClusterCacheTransport();
+    node1 = new CacheManagerServiceImpl();
+    node2 = new CacheManagerServiceImpl();
+    node1.bindTransport(transport);
+    node2.bindTransport(transport);
+  }
+
+  @After
+  public void tearDown() {
+    node1.unbindTransport(transport);
+    node2.unbindTransport(transport);
+  }
+
+  @Test
+  public void testReplicated() {
+    Cache<String> cache1 = node1.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cache2 = node2.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    cache1.put("a", "1");
+    cache1.put("a/b", "2");
+    node1.flushClusterCaches();
+    assertEquals("1", cache2.get("a"));
+    assertEquals("2", cache2.get("a/b"));
+
+    cache2.removeChildren("a");
+    node2.flushClusterCaches();
+    assertNull(cache1.get("a"));
+    assertNull(cache1.get("a/b"));
+  }
+
+  @Test
+  public void testReplicatedCreatesRemoteCache() {
+    Cache<String> cache1 = node1.getCache("created", CacheScope.CLUSTERREPLICATED);
+    cache1.put("a", "1");
+    node1.flushClusterCaches();
+    Cache<String> cache2 = node2.getCache("created", CacheScope.CLUSTERREPLICATED);
+    assertEquals("1", cache2.get("a"));
+  }
+
+  @Test
+  public void testInvalidated() {
+    Cache<String> cache1 = node1.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cache2 = node2.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    cache1.put("a", "1");
+    node1.flushClusterCaches();
+    cache2.put("a", "2");
+    node2.flushClusterCaches();
+    // only keys travel, node2's put removes node1's copy
+    assertFalse(cache1.containsKey("a"));
+    assertEquals("2", cache2.get("a"));
+    cache1.put("b", "1");
+    node1.flushClusterCaches();
+    assertNull(cache2.get("b"));
+    assertEquals("1", cache1.get("b"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    final List<ClusterCacheMessage> received = new ArrayList<ClusterCacheMessage>();
+    LoopbackClusterCacheTransport loopback = new LoopbackClusterCacheTransport();
+    loopback.addListener(new ClusterCacheListener() {
+      public void receive(List<ClusterCacheMessage> messages) {
+        received.addAll(messages);
+      }
+    });
+    ClusterCacheReplicator replicator = new ClusterCacheReplicator("node", 60000L, 500);
+    replicator.setTransport(loopback);
+    for (int i = 0; i < 100; i++) {
+      replicator.enqueue("coalesced", CacheScope.CLUSTERREPLICATED, Type.PUT, "a", String
+          .valueOf(i));
+      replicator.enqueue("coalesced", CacheScope.CLUSTERREPLICATED, Type.PUT, "a/" + i,
+          "child");
+    }
+    replicator.enqueue("coalesced", CacheScope.CLUSTERREPLICATED, Type.REMOVE_CHILDREN, "a",
+        null);
+    replicator.enqueue("coalesced", CacheScope.CLUSTERREPLICATED, Type.PUT, "a/last", "last");
+    replicator.enqueue("other", CacheScope.CLUSTERREPLICATED, Type.PUT, "a", "other");
+    replicator.flush();
+    replicator.stop();
+    assertEquals(1, loopback.getBatches());
+    assertEquals(3, received.size());
+    assertEquals(Type.REMOVE_CHILDREN, received.get(0).getType());
+    assertEquals("a/last", received.get(1).getKey());
+    assertEquals("other", received.get(2).getCacheName());
+  }
+
+  @Test
+  public void testCoalescingKeepsOperationsApart() {
+    final List<ClusterCacheMessage> received = new ArrayList<ClusterCacheMessage>();
+    LoopbackClusterCacheTransport loopback = new LoopbackClusterCacheTransport();
+    loopback.addListener(new ClusterCacheListener() {
+      public void receive(List<ClusterCacheMessage> messages) {
+        received.addAll(messages);
+      }
+    });
+    ClusterCacheReplicator replicator = new ClusterCacheReplicator("node", 60000L, 500);
+    replicator.setTransport(loopback);
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.REMOVE_CHILDREN, "a", null);
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.PUT, "a/", "child");
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.CLEAR, null, null);
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.PUT, "", "empty");
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.REMOVE_CHILDREN, "b", null);
+    replicator.enqueue("apart", CacheScope.CLUSTERREPLICATED, Type.PUT, "b/", "child");
+    replicator.flush();
+    replicator.stop();
+    assertEquals(4, received.size());
+    assertEquals(Type.CLEAR, received.get(0).getType());
+    assertEquals("", received.get(1).getKey());
+    assertEquals(Type.REMOVE_CHILDREN, received.get(2).getType());
+    assertEquals("b/", received.get(3).getKey());
+    assertEquals("child", received.get(3).getValue());
+  }
+
+  @Test
+  public void testUnserializableValue() {
+    Cache<Object> cache1 = node1.getCache("unserializable", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> cache2 = node2.getCache("unserializable", CacheScope.CLUSTERREPLICATED);
+    cache2.put("b", "stale");
+    cache1.put("a", "1");
+    cache1.put("b", new Object());
+    cache1.put("c", "3");
+    node1.flushClusterCaches();
+    // the other changes arrive, and the value that can't travel is invalidated.
+    assertEquals("1", cache2.get("a"));
+    assertFalse(cache2.containsKey("b"));
+    assertEquals("3", cache2.get("c"));
+  }
+
+  @Test
+  public void testClear() {
+    Cache<String> cache1 = node1.getCache("cleared", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cache2 = node2.getCache("cleared", CacheScope.CLUSTERREPLICATED);
+    cache1.put("a", "1");
+    node1.flushClusterCaches();
+    assertEquals("1", cache2.get("a"));
+    cache1.put("b", "1");
+    cache1.clear();
+    node1.flushClusterCaches();
+    assertEquals(0, cache2.list().size());
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.api.memory.Cache;
+import org.sakaiproject.kernel.api.memory.CacheScope;
+import org.sakaiproject.kernel.memory.CacheImpl;
+import org.sakaiproject.kernel.memory.CacheManagerServiceImpl;
+import org.sakaiproject.kernel.memory.PathIndexedCacheImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class TestPathIndexedCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TestPathIndexedCache.class);
+
+  @Test
+  public void testRemoveChildrenOnlyRemovesSubtree() {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>("test");
+    cache.put("a", "a");
+    cache.put("a/b", "ab");
+    cache.put("a/b/c", "abc");
+    cache.put("a-b", "a-b");
+    cache.put("ab", "ab");
+    cache.put("a0", "a0");
+    cache.removeChildren("a");
+    assertNull(cache.get("a"));
+    assertNull(cache.get("a/b"));
+    assertNull(cache.get("a/b/c"));
+    assertEquals("a-b", cache.get("a-b"));
+    assertEquals("ab", cache.get("ab"));
+    assertEquals("a0", cache.get("a0"));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testNullValues() {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>("test");
+    cache.put("a", null);
+    assertTrue(cache.containsKey("a"));
+    assertNull(cache.get("a"));
+    assertNull(cache.put("a", "b"));
+    assertEquals("b", cache.put("a", "c"));
+  }
+
+  @Test
+  public void testExpiry() throws InterruptedException {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>("test", 100, 10);
+    cache.put("a", "a");
+    Thread.sleep(50);
+    assertFalse(cache.containsKey("a"));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.list().size());
+  }
+
+  @Test
+  public void testEviction() {
+    PathIndexedCacheImpl<Integer> cache = new PathIndexedCacheImpl<Integer>("test", 100, 60000);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("key" + i, i);
+      cache.put("key" + (i / 2), i);
+    }
+    assertEquals(100, cache.size());
+    assertEquals(100, cache.list().size());
+    assertEquals(999, cache.get("key999").intValue());
+    assertNull(cache.get("key0"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() {
+    PathIndexedCacheImpl<Integer> cache = new PathIndexedCacheImpl<Integer>("test", 3, 60000);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    // a is the oldest but was used last, so b goes first.
+    assertEquals(1, cache.get("a").intValue());
+    cache.put("d", 4);
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.get("a").intValue());
+    cache.put("e", 5);
+    assertNull(cache.get("c"));
+    assertEquals(3, cache.size());
+    assertEquals(2, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testHitsKeepQueueBounded() {
+    PathIndexedCacheImpl<Integer> cache = new PathIndexedCacheImpl<Integer>("test", 10, 60000);
+    for (int i = 0; i < 10; i++) {
+      cache.put("key" + i, i);
+    }
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i % 10, cache.get("key" + (i % 10)).intValue());
+    }
+    assertEquals(10, cache.size());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testConcurrentHitsKeepQueueBounded() throws InterruptedException {
+    final PathIndexedCacheImpl<Integer> cache = new PathIndexedCacheImpl<Integer>("test", 10,
+        60000);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final int offset = t;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 50000; i++) {
+            // a mix of hits and puts that evict, so polls race the compactions.
+            int k = (i + offset) % 20;
+            if (cache.get("key" + k) == null) {
+              cache.put("key" + k, k);
+            }
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    int queueLength = cache.getQueueLength();
+    assertTrue("Queue length " + queueLength, queueLength >= cache.size());
+    // compaction keeps it near twice the maximum, each thread may have added one since.
+    assertTrue("Queue length " + queueLength, queueLength <= 2 * 10 + 2 * 8);
+  }
+
+  @Test
+  public void testClearKeepsQueueInStep() {
+    PathIndexedCacheImpl<Integer> cache = new PathIndexedCacheImpl<Integer>("test", 3, 60000);
+    for (int i = 0; i < 5; i++) {
+      cache.put("key" + i, i);
+      cache.get("key" + i);
+    }
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getQueueLength());
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    cache.put("d", 4);
+    assertNull(cache.get("a"));
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testTimeToIdle() throws InterruptedException {
+    PathIndexedCacheImpl<String> cache = new PathIndexedCacheImpl<String>("test", 100, 60000,
+        100);
+    cache.put("used", "used");
+    cache.put("idle", "idle");
+    for (int i = 0; i < 6; i++) {
+      Thread.sleep(30);
+      assertEquals("used", cache.get("used"));
+    }
+    // idle has not been used for longer than the time to idle, used has.
+    assertNull(cache.get("idle"));
+    assertEquals("used", cache.get("used"));
+  }
+
+  @Test
+  public void testConcurrentRegistry() throws IOException, InterruptedException {
+    final CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Cache<String>> found = new ArrayList<Cache<String>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          Cache<String> c = cacheManagerService.getCache("concurrent", CacheScope.INSTANCE);
+          synchronized (found) {
+            found.add(c);
+          }
+        }
+      };
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(8, found.size());
+    for (Cache<String> c : found) {
+      assertSame(found.get(0), c);
+    }
+  }
+
+  /**
+   * Compares subtree removal against the ehcache backed cache. Not a rigorous
+   * benchmark, but large enough to show the difference in cost.
+   */
+  @Test
+  public void testRemoveChildrenCost() throws IOException {
+    CacheManager cacheManager = new CacheManager();
+    try {
+      long ehcache = timeRemoveChildren(new CacheImpl<String>(cacheManager, "bench"));
+      long indexed = timeRemoveChildren(new PathIndexedCacheImpl<String>("bench"));
+      LOGGER.info("removeChildren x 100 over 10000 keys: ehcache {} ms, indexed {} ms",
+          ehcache, indexed);
+    } finally {
+      cacheManager.shutdown();
+    }
+  }
+
+  private long timeRemoveChildren(Cache<String> cache) {
+    for (int i = 0; i < 100; i++) {
+      for (int j = 0; j < 100; j++) {
+        cache.put("/site/" + i + "/node/" + j, "v");
+      }
+    }
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      cache.removeChildren("/site/" + i);
+    }
+    long t = System.currentTimeMillis() - start;
+    assertEquals(0, cache.list().size());
+    return t;
+  }
+
+}
@@ -74,6 +74,20 @@ public interface MessageConstants {
    * This property will hold the value for the body.
    */
   public static final String PROP_SAKAI_BODY = "sakai:body";
+  /**
+   * This property will hold the path of the node in the body store a delivery takes its
+   * body and attachments from, when they were not copied to it.
+   */
+  public static final String PROP_SAKAI_BODY_PATH = "sakai:bodyPath";
+  /**
+   * This property will hold the paths of the attachments in the body store of a delivery
+   * that points to its body.
+   */
+  public static final String PROP_SAKAI_ATTACHMENTS = "sakai:attachments";
+  /**
+   * This property will hold the id of the group that may read a body in the body store.
+   */
+  public static final String PROP_SAKAI_BODY_READERS = "sakai:bodyReaders";
   /**
    * This property will hold the path to the previous message (starts after the message
    * store.)
@@ -128,6 +142,20 @@ public interface MessageConstants {
   public static final String FOLDER_MESSAGES = "message";
   public static final String _USER_MESSAGE = "/_user/message";
   public static final String _GROUP_MESSAGE = "/_group/message";
+  /**
+   * The store of message bodies that deliveries point to. Nobody may read it, apart from
+   * the body of each message, which a group of its recipients is allowed to read.
+   */
+  public static final String BODY_STORE = "/var/message/bodies";
+  /**
+   * The start of the id of the group of recipients that may read a body in the body
+   * store, the rest is the id of the message.
+   */
+  public static final String BODY_READERS_PREFIX = "g-message-";
+  /**
+   * The age in seconds after which a body no delivery points to is removed.
+   */
+  public static final int BODY_MIN_AGE = 86400;
   /**
    * JCR folder name for chat logs.
    */
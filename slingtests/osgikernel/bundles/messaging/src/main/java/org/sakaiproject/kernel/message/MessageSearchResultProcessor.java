@@ -132,9 +132,35 @@ public class MessageSearchResultProcessor implements SearchResultProcessor {
         }
       }
     }
+    writePointedBody(write, resultNode);
     write.endObject();
   }
 
+  /**
+   * A delivery that points to the body store rather than holding a copy of the body
+   * takes it from there, through the session of the reader, who was allowed to read it
+   * when the message was delivered.
+   *
+   * @param write
+   * @param resultNode
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  private void writePointedBody(JSONWriter write, Node resultNode) throws JSONException,
+      RepositoryException {
+    if (resultNode.hasProperty(MessageConstants.PROP_SAKAI_BODY)
+        || !resultNode.hasProperty(MessageConstants.PROP_SAKAI_BODY_PATH)) {
+      return;
+    }
+    Session s = resultNode.getSession();
+    String bodyPath = resultNode.getProperty(MessageConstants.PROP_SAKAI_BODY_PATH)
+        .getString() + "/" + MessageConstants.PROP_SAKAI_BODY;
+    if (s.itemExists(bodyPath)) {
+      write.key(MessageConstants.PROP_SAKAI_BODY);
+      write.value(((Property) s.getItem(bodyPath)).getString());
+    }
+  }
+
   /**
    * Parse a message we have replied on.
    * 
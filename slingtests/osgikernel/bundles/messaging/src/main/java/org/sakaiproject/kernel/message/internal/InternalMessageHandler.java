@@ -19,23 +19,36 @@
 package org.sakaiproject.kernel.message.internal;
 
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.kernel.api.message.MessageConstants;
 import org.sakaiproject.kernel.api.message.MessageRoute;
 import org.sakaiproject.kernel.api.message.MessageRoutes;
 import org.sakaiproject.kernel.api.message.MessageTransport;
 import org.sakaiproject.kernel.api.message.MessagingService;
-import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
- * started immediately to make sure it registers with JCR as soon as possible.
+ * started immediately to make sure it registers with JCR as soon as possible. The
+ * recipients of a message are expanded and freed of duplicates once, then delivered to in
+ * batches, each saved once, on a bounded pool of threads.
  * 
  * @scr.component label="InternalMessageHandler"
  *                description="Handler for internally delivered messages."
@@ -51,6 +64,19 @@ public class InternalMessageHandler implements MessageTransport {
   private static final Logger LOG = LoggerFactory.getLogger(InternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
+  /** @scr.property value="50" type="Integer" */
+  static final String BATCH_SIZE = "internal.delivery.batch.size";
+
+  /** @scr.property value="4" type="Integer" */
+  static final String THREADS = "internal.delivery.threads";
+
+  /** @scr.property value="false" type="Boolean" */
+  static final String POINTER_DELIVERY = "internal.delivery.pointer";
+
+  private int batchSize = 50;
+  private boolean pointerDelivery = false;
+  private ExecutorService executor;
+
   /**
    * The JCR Repository we access.
    * 
@@ -89,6 +115,43 @@ public class InternalMessageHandler implements MessageTransport {
   public InternalMessageHandler() {
   }
 
+  protected void activate(ComponentContext ctx) {
+    Dictionary<?, ?> props = ctx.getProperties();
+    int threads = 4;
+    Integer _threads = (Integer) props.get(THREADS);
+    if (_threads != null && _threads > 0) {
+      threads = _threads;
+    }
+    Integer _batchSize = (Integer) props.get(BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    Boolean _pointerDelivery = (Boolean) props.get(POINTER_DELIVERY);
+    if (_pointerDelivery != null) {
+      pointerDelivery = _pointerDelivery;
+    }
+    // when the queue is full the batch is delivered on the sending thread, which slows
+    // the senders down rather than dropping deliveries.
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(threads * 100), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "internal-delivery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    if (executor != null) {
+      // deliveries already queued are finished, as the messages are marked as sent.
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -97,33 +160,22 @@ public class InternalMessageHandler implements MessageTransport {
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
     try {
-
-      Session session = slingRepository.loginAdministrative(null);
-
-      for (MessageRoute route : routes) {
-        if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          LOG.info("Started handling a message.");
-          String rcpt = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
-              .getString();
-          String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
-
-          // Copy the node into the user his folder.
-          JcrUtils.deepGetOrCreateNode(session, toPath.substring(0, toPath.lastIndexOf("/")));
-          session.save();
-          session.getWorkspace().copy(originalMessage.getPath(), toPath);
-          Node n = JcrUtils.deepGetOrCreateNode(session, toPath);
-
-          // Add some extra properties on the just created node.
-          n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-              MessageConstants.BOX_INBOX);
-          n.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt);
-          n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
-              MessageConstants.STATE_NOTIFIED);
-
-          n.save();
+      List<String> recipients = getRecipients(routes);
+      if (recipients.isEmpty()) {
+        return;
+      }
+      LOG.info("Started handling a message for {} recipients.", recipients.size());
+      String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
+          .getString();
+      MessageFanOut fanOut = new MessageFanOut(slingRepository, messagingService,
+          originalMessage.getPath(), messageId, recipients, batchSize, pointerDelivery);
+      fanOut.storeBody();
+      ExecutorService pool = executor;
+      for (Runnable batch : fanOut.getBatches()) {
+        if (pool == null) {
+          batch.run();
+        } else {
+          pool.execute(batch);
         }
       }
     } catch (RepositoryException e) {
@@ -131,6 +183,21 @@ public class InternalMessageHandler implements MessageTransport {
     }
   }
 
+  /**
+   * @param routes
+   * @return the internal recipients of the routes, with aliases expanded and each
+   *         recipient only once.
+   */
+  protected List<String> getRecipients(MessageRoutes routes) {
+    Set<String> recipients = new LinkedHashSet<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        recipients.addAll(messagingService.expandAliases(route.getRcpt()));
+      }
+    }
+    return new ArrayList<String>(recipients);
+  }
+
   /**
    * Determines what type of messages this handler will process. {@inheritDoc}
    * 
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+/**
+ * Removes the bodies in the body store that no delivery points to any more, together with
+ * the groups allowed to read them. Bodies younger than
+ * {@link MessageConstants#BODY_MIN_AGE} are kept, as their deliveries may not all have
+ * been made yet.
+ * 
+ * @scr.component label="MessageBodyCleaner"
+ *                description="Removes message bodies no delivery points to."
+ *                immediate="true"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="scheduler.period" value="3600" type="Long"
+ * @scr.property name="scheduler.concurrent" value="false" type="Boolean"
+ * @scr.service interface="java.lang.Runnable"
+ * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
+ *                name="SlingRepository"
+ */
+public class MessageBodyCleaner implements Runnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageBodyCleaner.class);
+
+  private SlingRepository slingRepository;
+
+  /**
+   * @param slingRepository
+   *          the slingRepository to set
+   */
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  /**
+   * @param slingRepository
+   *          the slingRepository to unset
+   */
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      int removed = clean(session, System.currentTimeMillis());
+      if (removed > 0) {
+        LOG.info("Removed {} message bodies no delivery points to.", removed);
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to remove unused message bodies: {}", e.getMessage());
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Remove every body old enough that no delivery points to, and its group of readers.
+   * 
+   * @param session
+   * @param now
+   *          the time in milliseconds to measure the age of the bodies from.
+   * @return the number of bodies removed.
+   * @throws RepositoryException
+   */
+  protected static int clean(Session session, long now) throws RepositoryException {
+    if (!session.itemExists(MessageConstants.BODY_STORE)) {
+      return 0;
+    }
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery("/jcr:root" + MessageConstants.BODY_STORE
+        + "//*[@" + MessageConstants.PROP_SAKAI_BODY_READERS + "]", Query.XPATH);
+    NodeIterator bodies = query.execute().getNodes();
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    int removed = 0;
+    while (bodies.hasNext()) {
+      Node body = bodies.nextNode();
+      if (!isOld(body, now) || isReferenced(queryManager, body.getPath())) {
+        continue;
+      }
+      Authorizable readers = userManager.getAuthorizable(body.getProperty(
+          MessageConstants.PROP_SAKAI_BODY_READERS).getString());
+      if (readers != null) {
+        readers.remove();
+      }
+      body.remove();
+      removed++;
+    }
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+    return removed;
+  }
+
+  /**
+   * @return true if the body was stored long enough ago to be removed, or has no date.
+   */
+  private static boolean isOld(Node body, long now) throws RepositoryException {
+    if (!body.hasProperty(MessageConstants.PROP_SAKAI_CREATED)) {
+      return true;
+    }
+    Calendar created = body.getProperty(MessageConstants.PROP_SAKAI_CREATED).getDate();
+    return now - created.getTimeInMillis() > MessageConstants.BODY_MIN_AGE * 1000L;
+  }
+
+  /**
+   * @return true if any delivery points to the body.
+   */
+  private static boolean isReferenced(QueryManager queryManager, String path)
+      throws RepositoryException {
+    Query query = queryManager.createQuery("//*[@" + MessageConstants.PROP_SAKAI_BODY_PATH
+        + "='" + path + "']", Query.XPATH);
+    return query.execute().getNodes().hasNext();
+  }
+}
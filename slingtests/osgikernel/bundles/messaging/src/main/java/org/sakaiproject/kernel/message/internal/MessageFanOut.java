@@ -0,0 +1,395 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import static org.sakaiproject.kernel.util.ACLUtils.READ_DENIED;
+import static org.sakaiproject.kernel.util.ACLUtils.READ_GRANTED;
+import static org.sakaiproject.kernel.util.ACLUtils.WRITE_DENIED;
+import static org.sakaiproject.kernel.util.ACLUtils.addEntry;
+
+import org.apache.jackrabbit.api.security.principal.PrincipalManager;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessagingException;
+import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.sakaiproject.kernel.util.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * The delivery of one message to its internal recipients. The recipients are split into
+ * batches, each of which is delivered in a session of its own and saved once. If the save
+ * of a batch fails it is delivered again one recipient at a time, so that one bad
+ * recipient does not cost the others their copy. When the last batch is done the time the
+ * message took to deliver is logged.
+ *
+ * Deliveries that point to the body rather than copy it point to a copy of the body and
+ * attachments made once in the body store. A group of the recipients is allowed to read
+ * the copy before any of the batches are delivered, the members of a site being those of
+ * the authorizables of the site. The message itself is in the private store of the
+ * sender, which the recipients can't read. Copies no delivery points to any more are
+ * removed by the {@link MessageBodyCleaner}.
+ */
+public class MessageFanOut {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageFanOut.class);
+
+  private final SlingRepository slingRepository;
+  private final MessagingService messagingService;
+  private final String sourcePath;
+  private final String messageId;
+  private final List<String> recipientList;
+  private boolean pointer;
+  private String bodyPath;
+  private String[] attachmentPaths;
+  private final List<List<String>> batches = new ArrayList<List<String>>();
+  private final int recipients;
+  private final long started = System.currentTimeMillis();
+  private final AtomicInteger remaining;
+  private final AtomicInteger delivered = new AtomicInteger();
+
+  /**
+   * @param slingRepository
+   * @param messagingService
+   * @param sourcePath
+   *          the path of the message to deliver.
+   * @param messageId
+   * @param recipients
+   *          the recipients, without duplicates.
+   * @param batchSize
+   *          the number of recipients to deliver to with each save.
+   * @param pointer
+   *          if true the body and attachments are not copied, the deliveries point to a
+   *          copy of them in the body store instead, made by {@link #storeBody()}.
+   */
+  public MessageFanOut(SlingRepository slingRepository, MessagingService messagingService,
+      String sourcePath, String messageId, List<String> recipients, int batchSize,
+      boolean pointer) {
+    this.slingRepository = slingRepository;
+    this.messagingService = messagingService;
+    this.sourcePath = sourcePath;
+    this.messageId = messageId;
+    this.pointer = pointer;
+    this.recipientList = recipients;
+    this.recipients = recipients.size();
+    for (int i = 0; i < recipients.size(); i += batchSize) {
+      batches.add(new ArrayList<String>(recipients.subList(i, Math.min(i + batchSize,
+          recipients.size()))));
+    }
+    remaining = new AtomicInteger(batches.size());
+  }
+
+  /**
+   * Copy the body and attachments of the message to the body store, once, and allow the
+   * recipients to read them, so that deliveries can point to them. If that fails the
+   * deliveries are full copies instead.
+   */
+  public void storeBody() {
+    if (!pointer) {
+      return;
+    }
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      createBodyStore(session);
+      Node source = (Node) session.getItem(sourcePath);
+      String path = PathUtils.toInternalHashedPath(MessageConstants.BODY_STORE, messageId,
+          "");
+      Node body;
+      if (session.itemExists(path)) {
+        body = (Node) session.getItem(path);
+      } else {
+        body = JcrUtils.deepGetOrCreateNode(session, path);
+        body.setProperty(MessageConstants.PROP_SAKAI_CREATED, Calendar.getInstance());
+        if (source.hasProperty(MessageConstants.PROP_SAKAI_BODY)) {
+          body.setProperty(MessageConstants.PROP_SAKAI_BODY, source.getProperty(
+              MessageConstants.PROP_SAKAI_BODY).getValue());
+        }
+        NodeIterator ni = source.getNodes();
+        while (ni.hasNext()) {
+          Node child = ni.nextNode();
+          copyNode(child, body.addNode(child.getName(), child.getPrimaryNodeType()
+              .getName()), true);
+        }
+      }
+      List<String> attachments = new ArrayList<String>();
+      NodeIterator ni = body.getNodes();
+      while (ni.hasNext()) {
+        attachments.add(ni.nextNode().getPath());
+      }
+      UserManager userManager = AccessControlUtil.getUserManager(session);
+      Group readers = getReaders(session, userManager, body);
+      for (String rcpt : recipientList) {
+        for (Authorizable authorizable : getAuthorizables(session, userManager, rcpt)) {
+          readers.addMember(authorizable);
+        }
+      }
+      session.save();
+      bodyPath = path;
+      attachmentPaths = attachments.toArray(new String[attachments.size()]);
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to store the body of message {}, delivering full copies instead: {}",
+          messageId, e.getMessage());
+      pointer = false;
+    } catch (MessagingException e) {
+      LOG.warn("Failed to store the body of message {}, delivering full copies instead: {}",
+          messageId, e.getMessage());
+      pointer = false;
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Get the group that may read a body, creating it and allowing it to read the body if
+   * there is none, so that the body has one entry in its ACL however many recipients it
+   * has.
+   *
+   * @param session
+   * @param userManager
+   * @param body
+   * @return the group of the readers of the body.
+   * @throws RepositoryException
+   */
+  private Group getReaders(Session session, UserManager userManager, Node body)
+      throws RepositoryException {
+    final String groupId = MessageConstants.BODY_READERS_PREFIX + messageId;
+    Authorizable authorizable = userManager.getAuthorizable(groupId);
+    if (authorizable instanceof Group) {
+      return (Group) authorizable;
+    }
+    Group readers = userManager.createGroup(new Principal() {
+      public String getName() {
+        return groupId;
+      }
+    }, PathUtils.getUserPrefix(groupId, 2));
+    addEntry(body.getPath(), readers, session, READ_GRANTED);
+    body.setProperty(MessageConstants.PROP_SAKAI_BODY_READERS, groupId);
+    return readers;
+  }
+
+  /**
+   * @param session
+   * @param userManager
+   * @param rcpt
+   * @return the authorizables that read the store of a recipient, for a site those named
+   *         by the site.
+   * @throws RepositoryException
+   */
+  List<Authorizable> getAuthorizables(Session session, UserManager userManager,
+      String rcpt) throws RepositoryException {
+    List<Authorizable> authorizables = new ArrayList<Authorizable>();
+    if (rcpt.startsWith("s-")) {
+      String store = messagingService.getFullPathToStore(rcpt, session);
+      Node site = (Node) session.getItem(store.substring(0, store.lastIndexOf('/')));
+      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+        Property property = site.getProperty(SiteService.AUTHORIZABLE);
+        Value[] values = property.getDefinition().isMultiple() ? property.getValues()
+            : new Value[] { property.getValue() };
+        for (Value value : values) {
+          Authorizable authorizable = userManager.getAuthorizable(value.getString());
+          if (authorizable != null) {
+            authorizables.add(authorizable);
+          }
+        }
+      }
+    } else {
+      Authorizable authorizable = userManager.getAuthorizable(rcpt);
+      if (authorizable != null) {
+        authorizables.add(authorizable);
+      }
+    }
+    return authorizables;
+  }
+
+  /**
+   * Make sure the body store exists and nobody can read it.
+   *
+   * @param session
+   * @throws RepositoryException
+   */
+  private void createBodyStore(Session session) throws RepositoryException {
+    if (session.itemExists(MessageConstants.BODY_STORE)) {
+      return;
+    }
+    Node store = JcrUtils.deepGetOrCreateNode(session, MessageConstants.BODY_STORE);
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
+    Authorizable everyone = userManager.getAuthorizable(principalManager.getEveryone());
+    if (everyone != null) {
+      addEntry(store.getPath(), everyone, session, READ_DENIED, WRITE_DENIED);
+    }
+    session.save();
+  }
+
+  /**
+   * @return a task for each batch of recipients.
+   */
+  public List<Runnable> getBatches() {
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (final List<String> batch : batches) {
+      tasks.add(new Runnable() {
+        public void run() {
+          deliver(batch);
+        }
+      });
+    }
+    return tasks;
+  }
+
+  /**
+   * Deliver the message to a batch of recipients.
+   *
+   * @param batch
+   */
+  protected void deliver(List<String> batch) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      Node source = (Node) session.getItem(sourcePath);
+      int count = 0;
+      try {
+        for (String rcpt : batch) {
+          if (deliver(session, source, rcpt)) {
+            count++;
+          }
+        }
+        session.save();
+      } catch (Exception e) {
+        LOG.warn("Failed to deliver message {} to a batch of recipients, retrying them "
+            + "one at a time: {}", messageId, e.getMessage());
+        session.refresh(false);
+        count = 0;
+        for (String rcpt : batch) {
+          try {
+            if (deliver(session, source, rcpt)) {
+              session.save();
+              count++;
+            }
+          } catch (Exception ex) {
+            LOG.error("Failed to deliver message " + messageId + " to " + rcpt, ex);
+            session.refresh(false);
+          }
+        }
+      }
+      delivered.addAndGet(count);
+    } catch (RepositoryException e) {
+      LOG.error("Failed to deliver message " + messageId, e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+      if (remaining.decrementAndGet() == 0) {
+        LOG.info("Delivered message {} to {} of {} recipients in {} ms", new Object[] {
+            messageId, delivered.get(), recipients,
+            System.currentTimeMillis() - started });
+      }
+    }
+  }
+
+  /**
+   * Add the delivery of the message to one recipient to the session, without saving it.
+   *
+   * @param session
+   * @param source
+   * @param rcpt
+   * @return false if the recipient already has the message.
+   * @throws RepositoryException
+   * @throws MessagingException
+   */
+  private boolean deliver(Session session, Node source, String rcpt)
+      throws RepositoryException, MessagingException {
+    String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
+    if (session.itemExists(toPath)) {
+      return false;
+    }
+    Node n = JcrUtils.deepGetOrCreateNode(session, toPath, source.getPrimaryNodeType()
+        .getName());
+    copyNode(source, n, !pointer);
+    if (pointer) {
+      n.setProperty(MessageConstants.PROP_SAKAI_BODY_PATH, bodyPath);
+      if (attachmentPaths.length > 0) {
+        n.setProperty(MessageConstants.PROP_SAKAI_ATTACHMENTS, attachmentPaths);
+      }
+    }
+
+    // Add some extra properties on the just created node.
+    n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    n.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt);
+    n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    return true;
+  }
+
+  /**
+   * Copy the properties of a node, and optionally its body and child nodes, in the
+   * session rather than the workspace, so that the copy is saved with the batch.
+   *
+   * @param source
+   * @param target
+   * @param full
+   *          if false the body and child nodes are left out.
+   * @throws RepositoryException
+   */
+  static void copyNode(Node source, Node target, boolean full) throws RepositoryException {
+    PropertyIterator pi = source.getProperties();
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      if (p.getDefinition().isProtected()
+          || (!full && MessageConstants.PROP_SAKAI_BODY.equals(p.getName()))) {
+        continue;
+      }
+      if (p.getDefinition().isMultiple()) {
+        target.setProperty(p.getName(), p.getValues());
+      } else {
+        target.setProperty(p.getName(), p.getValue());
+      }
+    }
+    if (full) {
+      NodeIterator ni = source.getNodes();
+      while (ni.hasNext()) {
+        Node child = ni.nextNode();
+        copyNode(child, target.addNode(child.getName(), child.getPrimaryNodeType()
+            .getName()), true);
+      }
+    }
+  }
+
+}
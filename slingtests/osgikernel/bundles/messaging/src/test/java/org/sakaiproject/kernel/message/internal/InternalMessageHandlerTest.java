@@ -0,0 +1,315 @@
+package org.sakaiproject.kernel.message.internal;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlEntry;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlList;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlManager;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlPolicy;
+import org.apache.jackrabbit.api.jsr283.security.AccessControlPolicyIterator;
+import org.apache.jackrabbit.api.jsr283.security.Privilege;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+import org.sakaiproject.kernel.api.message.MessagingService;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.sakaiproject.kernel.message.listener.MessageRoutesImpl;
+import org.sakaiproject.kernel.util.PathUtils;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Properties;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+
+public class InternalMessageHandlerTest {
+  private static final String SOURCE = "/_user/message/bob/outbox/m1";
+  private static final String ID = "m1";
+  private static final String BODY = "/var/message/bodies/ae/23/b9/4c/m1";
+  private static final String READERS = MessageConstants.BODY_READERS_PREFIX + ID;
+
+  /**
+   * A session that hands out its access control manager, as the Jackrabbit one does.
+   */
+  public interface AccessControlSession extends JackrabbitSession {
+    AccessControlManager getAccessControlManager();
+  }
+
+  private InternalMessageHandler handler;
+  private MessagingService messagingService;
+  private SlingRepository slingRepository;
+  private Session session;
+  private Node message;
+
+  @Before
+  public void setup() throws Exception {
+    messagingService = createMock(MessagingService.class);
+    slingRepository = createMock(SlingRepository.class);
+    session = createNiceMock(Session.class);
+
+    Property to = createMock(Property.class);
+    expect(to.getString()).andReturn(
+        "internal:alice,internal:carol,smtp:dave@example.com,internal:alice,internal:g-x");
+    Property id = createMock(Property.class);
+    expect(id.getString()).andReturn(ID);
+    message = createMock(Node.class);
+    expect(message.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(to);
+    expect(message.getProperty(MessageConstants.PROP_SAKAI_ID)).andReturn(id);
+    expect(message.getPath()).andReturn(SOURCE);
+    replay(to, id, message);
+
+    for (String rcpt : new String[] { "alice", "carol", "g-x" }) {
+      expect(messagingService.expandAliases(rcpt)).andReturn(Arrays.asList(rcpt))
+          .anyTimes();
+    }
+
+    handler = new InternalMessageHandler();
+    handler.bindMessagingService(messagingService);
+    handler.bindSlingRepository(slingRepository);
+  }
+
+  @Test
+  public void testBatchedFanOut() throws Exception {
+    Node source = createSource();
+    Node carol = expectDelivery("carol", false);
+    Node gx = expectDelivery("g-x", false);
+    // alice already has the message, so is not delivered to twice.
+    expectDelivery("alice", true);
+
+    // the recipients are delivered to in batches of two, each saved once.
+    expect(slingRepository.loginAdministrative(null)).andReturn(session).times(2);
+    expect(session.getItem(SOURCE)).andReturn(source).times(2);
+    session.save();
+    expectLastCall().times(2);
+    session.logout();
+    expectLastCall().times(2);
+    replay(messagingService, slingRepository, session, source);
+
+    MessageFanOut fanOut = new MessageFanOut(slingRepository, messagingService, SOURCE, ID,
+        handler.getRecipients(new MessageRoutesImpl(message)), 2, false);
+    for (Runnable batch : fanOut.getBatches()) {
+      batch.run();
+    }
+    verify(messagingService, slingRepository, session, carol, gx);
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    Node source = createSource();
+    expectDelivery("alice", false);
+    expectDelivery("carol", false);
+    expectDelivery("g-x", false);
+
+    // without a pool the batch is delivered on the sending thread.
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    expect(session.getItem(SOURCE)).andReturn(source);
+    session.save();
+    expectLastCall();
+    session.logout();
+    expectLastCall();
+    replay(messagingService, slingRepository, session, source);
+
+    handler.send(new MessageRoutesImpl(message), new Event("topic", new Properties()),
+        message);
+    verify(messagingService, slingRepository, session);
+  }
+
+  @Test
+  public void testPointerDelivery() throws Exception {
+    Node source = createSource();
+    Property bodyProperty = createMock(Property.class);
+    Value bodyValue = createMock(Value.class);
+    expect(bodyProperty.getValue()).andReturn(bodyValue);
+    expect(source.hasProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(true);
+    expect(source.getProperty(MessageConstants.PROP_SAKAI_BODY)).andReturn(bodyProperty);
+
+    // the body is copied once to the body store, where the recipients may read it.
+    AccessControlSession bodySession = createNiceMock(AccessControlSession.class);
+    expect(bodySession.itemExists(MessageConstants.BODY_STORE)).andReturn(true);
+    expect(bodySession.getItem(SOURCE)).andReturn(source);
+    expect(bodySession.itemExists(BODY)).andReturn(false).anyTimes();
+    Node bodyParent = createMock(Node.class);
+    Node body = createMock(Node.class);
+    String parentPath = BODY.substring(0, BODY.lastIndexOf('/'));
+    expect(bodySession.itemExists(parentPath)).andReturn(true);
+    expect(bodySession.getItem(parentPath)).andReturn(bodyParent);
+    expect(bodyParent.hasNode(ID)).andReturn(false);
+    expect(bodyParent.addNode(ID)).andReturn(body);
+    expect(body.setProperty(MessageConstants.PROP_SAKAI_BODY, bodyValue)).andReturn(null);
+    expect(body.setProperty(eq(MessageConstants.PROP_SAKAI_CREATED), isA(Calendar.class)))
+        .andReturn(null);
+    expect(body.setProperty(MessageConstants.PROP_SAKAI_BODY_READERS, READERS)).andReturn(
+        null);
+    expect(body.getPath()).andReturn(BODY).anyTimes();
+    NodeIterator noAttachments = createMock(NodeIterator.class);
+    expect(noAttachments.hasNext()).andReturn(false);
+    expect(body.getNodes()).andReturn(noAttachments);
+
+    UserManager userManager = createMock(UserManager.class);
+    expect(bodySession.getUserManager()).andReturn(userManager).anyTimes();
+    AccessControlManager accessControlManager = createMock(AccessControlManager.class);
+    expect(bodySession.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
+    AccessControlPolicyIterator none = createMock(AccessControlPolicyIterator.class);
+    expect(none.hasNext()).andReturn(false).anyTimes();
+    AccessControlList acl = createMock(AccessControlList.class);
+    expect(acl.getAccessControlEntries()).andReturn(new AccessControlEntry[0]).anyTimes();
+    expect(accessControlManager.getApplicablePolicies(BODY)).andReturn(none).anyTimes();
+    expect(accessControlManager.getPolicies(BODY)).andReturn(
+        new AccessControlPolicy[] { acl }).anyTimes();
+    Privilege read = createMock(Privilege.class);
+    expect(read.getName()).andReturn("jcr:read").anyTimes();
+    expect(accessControlManager.privilegeFromName("jcr:read")).andReturn(read).anyTimes();
+    // one group of the recipients is allowed to read it.
+    Principal readersPrincipal = createMock(Principal.class);
+    expect(readersPrincipal.getName()).andReturn(READERS).anyTimes();
+    Group readers = createMock(Group.class);
+    expect(readers.getPrincipal()).andReturn(readersPrincipal).anyTimes();
+    expect(readers.getID()).andReturn(READERS).anyTimes();
+    expect(userManager.getAuthorizable(READERS)).andReturn(null);
+    expect(userManager.createGroup(isA(Principal.class), eq(PathUtils.getUserPrefix(READERS,
+        2)))).andReturn(readers);
+    expect(acl.addAccessControlEntry(eq(readersPrincipal),
+        aryEq(new Privilege[] { read }))).andReturn(true);
+    accessControlManager.setPolicy(BODY, acl);
+    for (String rcpt : new String[] { "alice", "carol", "g-x" }) {
+      Authorizable authorizable = createMock(Authorizable.class);
+      expect(userManager.getAuthorizable(rcpt)).andReturn(authorizable);
+      expect(readers.addMember(authorizable)).andReturn(true);
+      replay(authorizable);
+    }
+    bodySession.save();
+    bodySession.logout();
+    replay(bodyProperty, bodyValue, bodySession, bodyParent, body, noAttachments,
+        userManager, accessControlManager, none, acl, read, readersPrincipal, readers);
+
+    // each delivery points to it.
+    Node[] deliveries = new Node[] { expectDelivery("alice", false),
+        expectDelivery("carol", false), expectDelivery("g-x", false) };
+    for (Node delivery : deliveries) {
+      reset(delivery);
+      expect(delivery.setProperty(MessageConstants.PROP_SAKAI_BODY_PATH, BODY)).andReturn(
+          null);
+      replay(delivery);
+    }
+    expect(slingRepository.loginAdministrative(null)).andReturn(bodySession).andReturn(
+        session);
+    expect(session.getItem(SOURCE)).andReturn(source);
+    session.save();
+    session.logout();
+    replay(messagingService, slingRepository, session, source);
+
+    MessageFanOut fanOut = new MessageFanOut(slingRepository, messagingService, SOURCE, ID,
+        handler.getRecipients(new MessageRoutesImpl(message)), 10, true);
+    fanOut.storeBody();
+    for (Runnable batch : fanOut.getBatches()) {
+      batch.run();
+    }
+    verify(slingRepository, bodySession, body, acl, accessControlManager, readers,
+        session);
+    for (Node delivery : deliveries) {
+      verify(delivery);
+    }
+  }
+
+  @Test
+  public void testSiteReaders() throws Exception {
+    // the readers of a site are the authorizables of the site.
+    Value[] values = new Value[2];
+    UserManager userManager = createMock(UserManager.class);
+    Authorizable staff = createMock(Authorizable.class);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = createMock(Value.class);
+    }
+    expect(values[0].getString()).andReturn("g-physics-staff");
+    expect(values[1].getString()).andReturn("g-gone");
+    expect(userManager.getAuthorizable("g-physics-staff")).andReturn(staff);
+    expect(userManager.getAuthorizable("g-gone")).andReturn(null);
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(true);
+    Property authorizables = createMock(Property.class);
+    expect(authorizables.getDefinition()).andReturn(definition);
+    expect(authorizables.getValues()).andReturn(values);
+    Node site = createMock(Node.class);
+    expect(site.hasProperty(SiteService.AUTHORIZABLE)).andReturn(true);
+    expect(site.getProperty(SiteService.AUTHORIZABLE)).andReturn(authorizables);
+    Session siteSession = createMock(Session.class);
+    expect(siteSession.getItem("/sites/physics")).andReturn(site);
+    expect(messagingService.getFullPathToStore("s-physics", siteSession)).andReturn(
+        "/sites/physics/store");
+    replay(messagingService, values[0], values[1], userManager, staff, definition,
+        authorizables, site, siteSession);
+
+    MessageFanOut fanOut = new MessageFanOut(slingRepository, messagingService, SOURCE, ID,
+        Arrays.asList("s-physics"), 10, true);
+    assertEquals(Arrays.asList(staff), fanOut.getAuthorizables(siteSession, userManager,
+        "s-physics"));
+    verify(messagingService, userManager, site);
+  }
+
+  @Test
+  public void testRecipients() throws Exception {
+    replay(messagingService);
+    assertEquals(Arrays.asList("alice", "carol", "g-x"), handler
+        .getRecipients(new MessageRoutesImpl(message)));
+  }
+
+  private Node createSource() throws Exception {
+    NodeType type = createMock(NodeType.class);
+    expect(type.getName()).andReturn("nt:unstructured").anyTimes();
+    PropertyIterator properties = createMock(PropertyIterator.class);
+    expect(properties.hasNext()).andReturn(false).anyTimes();
+    NodeIterator nodes = createMock(NodeIterator.class);
+    expect(nodes.hasNext()).andReturn(false).anyTimes();
+    replay(type, properties, nodes);
+
+    Node source = createMock(Node.class);
+    expect(source.getPrimaryNodeType()).andReturn(type).anyTimes();
+    expect(source.getProperties()).andReturn(properties).anyTimes();
+    expect(source.getNodes()).andReturn(nodes).anyTimes();
+    return source;
+  }
+
+  private Node expectDelivery(String rcpt, boolean delivered) throws Exception {
+    String store = "/_user/message/" + rcpt;
+    String path = store + "/" + ID;
+    expect(messagingService.getFullPathToMessage(rcpt, ID, session)).andReturn(path);
+    expect(session.itemExists(path)).andReturn(delivered).anyTimes();
+    if (delivered) {
+      return null;
+    }
+    Node n = createNiceMock(Node.class);
+    n.setProperty(MessageConstants.PROP_SAKAI_TO, rcpt);
+    expectLastCall().andReturn(null);
+    Node parent = createMock(Node.class);
+    expect(session.itemExists(store)).andReturn(true).anyTimes();
+    expect(session.getItem(store)).andReturn(parent).anyTimes();
+    expect(parent.hasNode(ID)).andReturn(false);
+    expect(parent.addNode(ID, "nt:unstructured")).andReturn(n);
+    replay(parent, n);
+    return n;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.message.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.message.MessageConstants;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class MessageBodyCleanerTest {
+  private static final long NOW = 10L * MessageConstants.BODY_MIN_AGE * 1000L;
+  private static final long OLD = NOW - 2L * MessageConstants.BODY_MIN_AGE * 1000L;
+
+  @Test
+  public void testUnusedBodiesRemoved() throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.itemExists(MessageConstants.BODY_STORE)).andReturn(true);
+    QueryManager queryManager = createMock(QueryManager.class);
+    UserManager userManager = createMock(UserManager.class);
+    expect(session.getUserManager()).andReturn(userManager);
+
+    // no delivery points to the body any more.
+    Node unused = body("/var/message/bodies/m1", OLD);
+    references(queryManager, "/var/message/bodies/m1", false);
+    expectReaders(unused, "g-message-m1");
+    Group readers = createMock(Group.class);
+    expect(userManager.getAuthorizable("g-message-m1")).andReturn(readers);
+    readers.remove();
+    unused.remove();
+    // a delivery still points to the body.
+    Node used = body("/var/message/bodies/m2", OLD);
+    references(queryManager, "/var/message/bodies/m2", true);
+    // the body is too young for all its deliveries to have been made.
+    Node young = body("/var/message/bodies/m3", NOW);
+
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(
+        new MockNodeIterator(new Node[] { unused, used, young }));
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    expect(queryManager.createQuery("/jcr:root/var/message/bodies//*[@"
+        + MessageConstants.PROP_SAKAI_BODY_READERS + "]", Query.XPATH)).andReturn(query);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    expect(session.getWorkspace()).andReturn(workspace);
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+    replay(session, queryManager, userManager, unused, used, young, readers, result, query,
+        workspace);
+
+    assertEquals(1, MessageBodyCleaner.clean(session, NOW));
+    verify(session, userManager, unused, used, young, readers);
+  }
+
+  @Test
+  public void testNoBodyStore() throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.itemExists(MessageConstants.BODY_STORE)).andReturn(false);
+    replay(session);
+    assertEquals(0, MessageBodyCleaner.clean(session, NOW));
+    verify(session);
+  }
+
+  private Node body(String path, long created) throws Exception {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(created);
+    Property property = createMock(Property.class);
+    expect(property.getDate()).andReturn(calendar);
+    replay(property);
+    Node body = createMock(Node.class);
+    expect(body.getPath()).andReturn(path).anyTimes();
+    expect(body.hasProperty(MessageConstants.PROP_SAKAI_CREATED)).andReturn(true);
+    expect(body.getProperty(MessageConstants.PROP_SAKAI_CREATED)).andReturn(property);
+    return body;
+  }
+
+  private void expectReaders(Node body, String readers) throws Exception {
+    Property property = createMock(Property.class);
+    expect(property.getString()).andReturn(readers);
+    replay(property);
+    expect(body.getProperty(MessageConstants.PROP_SAKAI_BODY_READERS)).andReturn(property);
+  }
+
+  private void references(QueryManager queryManager, String path, boolean referenced)
+      throws Exception {
+    Node delivery = createMock(Node.class);
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(
+        new MockNodeIterator(referenced ? new Node[] { delivery } : new Node[0]));
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    expect(queryManager.createQuery("//*[@" + MessageConstants.PROP_SAKAI_BODY_PATH + "='"
+        + path + "']", Query.XPATH)).andReturn(query);
+    replay(result, query);
+  }
+}
@@ -16,6 +16,8 @@
  */
 package org.sakaiproject.kernel.api.persondirectory;
 
+import java.util.Map;
+
 import javax.jcr.Node;
 
 /**
@@ -34,4 +36,17 @@ public interface PersonProvider {
    *         UID is not found.
    */
   Person getPerson(String uid, Node profileNode) throws PersonProviderException;
+
+  /**
+   * Get all attributes associated to several people at once. Providers backed
+   * by a remote store should fetch them in as few requests as they can.
+   *
+   * @param profileNodes
+   *          The user IDs to lookup, mapped to their profile nodes. Only users
+   *          whose profile node the caller can read are asked for.
+   * @return The {@link Person} found for each user ID. User IDs that are not
+   *         found are left out.
+   */
+  Map<String, Person> getPeople(Map<String, Node> profileNodes)
+      throws PersonProviderException;
 }
@@ -29,6 +29,8 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.kernel.api.doc.ServiceDocumentation;
 import org.sakaiproject.kernel.api.doc.ServiceMethod;
+import org.sakaiproject.kernel.api.doc.ServiceParameter;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.persondirectory.Person;
 import org.sakaiproject.kernel.api.persondirectory.PersonProvider;
 import org.sakaiproject.kernel.api.persondirectory.PersonProviderException;
@@ -37,12 +39,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -52,12 +57,18 @@ import javax.servlet.http.HttpServletResponse;
  * 'json' extension.
  */
 @SlingServlet(methods = "GET", resourceTypes = "sakai/user", selectors = "profile", extensions = "json")
-@ServiceDocumentation(name = "Person Directory Servlet", description = "Servlet for looking up person information from various federated sources. This servlet is triggered by accessing a user node a 'profile' selector and 'json' extension.", methods = { @ServiceMethod(name = "GET", description = "Returns the person information found by querying all registered person providers.") })
+@ServiceDocumentation(name = "Person Directory Servlet", description = "Servlet for looking up person information from various federated sources. This servlet is triggered by accessing a user node a 'profile' selector and 'json' extension.", methods = { @ServiceMethod(name = "GET", description = "Returns the person information found by querying all registered person providers.", parameters = { @ServiceParameter(name = "uid", description = "Optional, may be repeated. Look up these users together rather than the user of the node, returning an object keyed by user ID.") }) })
 public class PersonDirectoryServlet extends SlingSafeMethodsServlet {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PersonDirectoryServlet.class);
   private static final long serialVersionUID = 6707040084319189872L;
 
+  /** Request parameter naming the users to look up together. */
+  public static final String PARAM_UID = "uid";
+
+  /** The most users that may be looked up together. */
+  public static final int MAX_UIDS = 100;
+
   /** Storage of providers available for looking up person information. */
   @Reference(referenceInterface = PersonProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, bind = "bindProvider", unbind = "unbindProvider")
   private Set<PersonProvider> providers = new HashSet<PersonProvider>();
@@ -91,6 +102,17 @@ public class PersonDirectoryServlet extends SlingSafeMethodsServlet {
     Node node = (Node) resource.adaptTo(Node.class);
 
     try {
+      String[] uids = request.getParameterValues(PARAM_UID);
+      if (uids != null && uids.length > 0) {
+        if (uids.length > MAX_UIDS) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No more than " + MAX_UIDS
+              + " " + PARAM_UID + " parameters may be given");
+          return;
+        }
+        writePeople(uids, node.getSession(), response);
+        return;
+      }
+
       String uid = node.getName();
       LOGGER.info("Getting information for [" + uid + "]");
 
@@ -99,32 +121,12 @@ public class PersonDirectoryServlet extends SlingSafeMethodsServlet {
 
       // if a person is returned, digest attributes into json
       if (person != null) {
-        Map<String, String[]> attrs = person.getAttributes();
         response.setStatus(HttpServletResponse.SC_OK);
 
         // create a json writer using the response writer
         Writer writer = response.getWriter();
         JSONWriter jsonWriter = new JSONWriter(writer);
-
-        // start the object
-        jsonWriter.object();
-        for (Map.Entry<String, String[]> attr : attrs.entrySet()) {
-          jsonWriter.key(attr.getKey());
-          String[] vals = attr.getValue();
-
-          if (vals.length > 1) {
-            // if multiple values are found, output them as an array
-            jsonWriter.array();
-            for (String val : vals) {
-              jsonWriter.value(val);
-            }
-            jsonWriter.endArray();
-          } else {
-            // output single values as, well, single values
-            jsonWriter.value(vals[0]);
-          }
-        }
-        jsonWriter.endObject();
+        writePerson(jsonWriter, person);
       } else {
         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
         response.setIntHeader("Content-Length", 0);
@@ -141,6 +143,70 @@ public class PersonDirectoryServlet extends SlingSafeMethodsServlet {
     }
   }
 
+  /**
+   * Write the people found for several user IDs as an object keyed by user ID.
+   * The profile node of each user is read with the session of the request, users
+   * whose profile node it can't read are left out rather than looked up.
+   *
+   * @param uids
+   * @param session
+   * @param response
+   * @throws RepositoryException
+   * @throws PersonProviderException
+   * @throws JSONException
+   * @throws IOException
+   */
+  private void writePeople(String[] uids, Session session, SlingHttpServletResponse response)
+      throws RepositoryException, PersonProviderException, JSONException, IOException {
+    LOGGER.info("Getting information for {} people", uids.length);
+    Map<String, Node> profileNodes = new LinkedHashMap<String, Node>();
+    for (String uid : uids) {
+      String profilePath = PersonalUtils.getProfilePath(uid);
+      if (session.itemExists(profilePath)) {
+        profileNodes.put(uid, (Node) session.getItem(profilePath));
+      } else {
+        LOGGER.debug("Unable to read the profile of [{}], leaving it out", uid);
+      }
+    }
+
+    Map<String, Person> people = getPeople(profileNodes);
+    response.setStatus(HttpServletResponse.SC_OK);
+    JSONWriter jsonWriter = new JSONWriter(response.getWriter());
+    jsonWriter.object();
+    for (String uid : profileNodes.keySet()) {
+      Person person = people.get(uid);
+      if (person != null) {
+        jsonWriter.key(uid);
+        writePerson(jsonWriter, person);
+      }
+    }
+    jsonWriter.endObject();
+  }
+
+  private void writePerson(JSONWriter jsonWriter, Person person) throws JSONException {
+    Map<String, String[]> attrs = person.getAttributes();
+
+    // start the object
+    jsonWriter.object();
+    for (Map.Entry<String, String[]> attr : attrs.entrySet()) {
+      jsonWriter.key(attr.getKey());
+      String[] vals = attr.getValue();
+
+      if (vals.length > 1) {
+        // if multiple values are found, output them as an array
+        jsonWriter.array();
+        for (String val : vals) {
+          jsonWriter.value(val);
+        }
+        jsonWriter.endArray();
+      } else {
+        // output single values as, well, single values
+        jsonWriter.value(vals[0]);
+      }
+    }
+    jsonWriter.endObject();
+  }
+
   /**
    * Get a person from providers.
    *
@@ -162,4 +228,35 @@ public class PersonDirectoryServlet extends SlingSafeMethodsServlet {
     }
     return retPerson;
   }
+
+  /**
+   * Get several people from providers. Each provider is asked for all of the
+   * people at once so that it can look them up together.
+   *
+   * @param profileNodes
+   *          the user IDs to get, mapped to their profile nodes.
+   * @return the people found by user ID.
+   * @throws PersonProviderException
+   */
+  protected Map<String, Person> getPeople(Map<String, Node> profileNodes)
+      throws PersonProviderException {
+    Map<String, Person> retPeople = new HashMap<String, Person>();
+    for (PersonProvider provider : providers) {
+      Map<String, Person> people = provider.getPeople(profileNodes);
+      if (people != null) {
+        for (Map.Entry<String, Person> p : people.entrySet()) {
+          if (p.getValue() == null) {
+            continue;
+          }
+          PersonImpl retPerson = (PersonImpl) retPeople.get(p.getKey());
+          if (retPerson == null) {
+            retPeople.put(p.getKey(), new PersonImpl(p.getValue()));
+          } else {
+            retPerson.addAttributes(p.getValue().getAttributes());
+          }
+        }
+      }
+    }
+    return retPeople;
+  }
 }
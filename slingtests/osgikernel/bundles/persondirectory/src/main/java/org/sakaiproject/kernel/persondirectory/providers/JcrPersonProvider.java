@@ -11,6 +11,9 @@ import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
@@ -59,4 +62,17 @@ public class JcrPersonProvider implements PersonProvider {
     }
     return jcrPerson;
   }
+
+  public Map<String, Person> getPeople(Map<String, Node> profileNodes)
+      throws PersonProviderException {
+    Map<String, Person> people = new HashMap<String, Person>();
+    for (Map.Entry<String, Node> profile : profileNodes.entrySet()) {
+      // the attributes all come from the profile node, so there is nothing to
+      // find for a user without one.
+      if (profile.getValue() != null) {
+        people.put(profile.getKey(), getPerson(profile.getKey(), profile.getValue()));
+      }
+    }
+    return people;
+  }
 }
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. The SF licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.sakaiproject.kernel.persondirectory.providers;
+
+import org.sakaiproject.kernel.api.persondirectory.Person;
+import org.sakaiproject.kernel.persondirectory.PersonImpl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the people looked up in LDAP by user ID. A user that was
+ * not found is cached as well, for a shorter time, so that repeated lookups of
+ * an unknown user don't all go to the directory. People are copied in and out
+ * of the cache so callers may change what they are given.
+ */
+public class LdapPersonCache {
+  /**
+   * The default number of people to hold.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  /**
+   * The default time in ms a person is held for.
+   */
+  public static final long DEFAULT_TTL = 300000L;
+
+  /**
+   * The default time in ms a user that was not found is held for.
+   */
+  public static final long DEFAULT_NEGATIVE_TTL = 60000L;
+
+  private final int maxEntries;
+  private final long ttl;
+  private final long negativeTtl;
+  private final Map<String, CachedPerson> entries;
+
+  public LdapPersonCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+  }
+
+  /**
+   * @param maxEntries
+   *          the number of people to hold, the least recently used is dropped
+   *          first.
+   * @param ttl
+   *          the time in ms a person is held for.
+   * @param negativeTtl
+   *          the time in ms a user that was not found is held for.
+   */
+  public LdapPersonCache(final int maxEntries, long ttl, long negativeTtl) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.entries = new LinkedHashMap<String, CachedPerson>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedPerson> eldest) {
+        return size() > LdapPersonCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Get the people held for some users.
+   *
+   * @param uids
+   *          the users to get.
+   * @param people
+   *          the people held are put in here. A user that was not found is put
+   *          in with a null person.
+   * @return the users that have no current entry, which need to be looked up.
+   */
+  public synchronized List<String> get(Collection<String> uids, Map<String, Person> people) {
+    List<String> missing = new ArrayList<String>();
+    long now = System.currentTimeMillis();
+    for (String uid : uids) {
+      CachedPerson entry = entries.get(uid);
+      if (entry != null && entry.expires <= now) {
+        entries.remove(uid);
+        entry = null;
+      }
+      if (entry == null) {
+        missing.add(uid);
+      } else {
+        people.put(uid, entry.person == null ? null : new PersonImpl(entry.person));
+      }
+    }
+    return missing;
+  }
+
+  /**
+   * Hold a person that was looked up.
+   *
+   * @param uid
+   * @param person
+   *          the person, or null if the user was not found.
+   */
+  public synchronized void put(String uid, Person person) {
+    if (person == null) {
+      if (negativeTtl > 0) {
+        entries.put(uid, new CachedPerson(null, System.currentTimeMillis() + negativeTtl));
+      }
+    } else if (ttl > 0) {
+      entries.put(uid, new CachedPerson(new PersonImpl(person), System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Drop all entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  private static class CachedPerson {
+    private final Person person;
+    private final long expires;
+
+    private CachedPerson(Person person, long expires) {
+      this.person = person;
+      this.expires = expires;
+    }
+  }
+}
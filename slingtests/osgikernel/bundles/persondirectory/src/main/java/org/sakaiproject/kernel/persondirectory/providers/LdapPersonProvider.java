@@ -24,16 +24,26 @@ import org.sakaiproject.kernel.persondirectory.PersonImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 
 /**
  * Person provider implementation that gets its information from an LDAP store.
+ * People are held in a {@link LdapPersonCache} for a while after they are
+ * looked up, and several people are looked up with a single search where the
+ * filter pattern allows it. Every connection borrowed from the broker is given
+ * back once the search is done.
  *
  * @author Carl Hall
  */
@@ -43,12 +53,18 @@ public class LdapPersonProvider implements PersonProvider {
   private static final Logger LOG = LoggerFactory.getLogger(LdapPersonProvider.class);
   private static final String LDAP_BROKER_NAME = "LdapUserProvider";
 
+  /** Finds the attribute the user ID is matched against in a filter pattern. */
+  private static final Pattern UID_ATTRIBUTE = Pattern.compile("([\\w.-]+)=\\{\\}");
+
   /** Default LDAP access timeout in milliseconds */
   public static final int DEFAULT_OPERATION_TIMEOUT_MILLIS = 5000;
 
   /** Default referral following behavior */
   public static final boolean DEFAULT_IS_FOLLOW_REFERRALS = false;
 
+  /** Default number of people to look up with one search */
+  public static final int DEFAULT_BATCH_SIZE = 50;
+
   @Property(value = "ou=accounts,dc=sakai")
   protected static final String PROP_BASE_DN = "ldap.provider.baseDn.pattern";
 
@@ -66,14 +82,32 @@ public class LdapPersonProvider implements PersonProvider {
   @Property(boolValue = false)
   protected static final String PROP_ALLOW_ADMIN_LOOKUP = "ldap.provider.admin.lookup";
 
+  /** Seconds a person is cached for, 0 to not cache */
+  @Property(intValue = 300)
+  protected static final String PROP_CACHE_TTL = "ldap.provider.cache.ttl";
+
+  /** Seconds a user that was not found is cached for, 0 to not cache */
+  @Property(intValue = 60)
+  protected static final String PROP_CACHE_NEGATIVE_TTL = "ldap.provider.cache.negativeTtl";
+
+  @Property(intValue = LdapPersonCache.DEFAULT_MAX_ENTRIES)
+  protected static final String PROP_CACHE_SIZE = "ldap.provider.cache.size";
+
+  @Property(intValue = DEFAULT_BATCH_SIZE)
+  protected static final String PROP_BATCH_SIZE = "ldap.provider.batch.size";
+
   @Reference
   private LdapConnectionBroker ldapBroker;
 
   private boolean allowAdminLookup;
   private String baseDn;
   private String filterPattern;
+  private String uidAttribute;
   private HashMap<String, String> attributesMap = new HashMap<String, String>();
   private String[] attributes;
+  private String[] searchAttributes;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private LdapPersonCache cache;
 
   /**
    * Default constructor.
@@ -129,67 +163,250 @@ public class LdapPersonProvider implements PersonProvider {
     Set<String> attrKeys = attributesMap.keySet();
     String[] attrs = new String[attrKeys.size()];
     attrKeys.toArray(attrs);
+
+    // people can only be looked up together if the entries found can be
+    // matched back to the user IDs, so the user ID attribute has to be read.
+    uidAttribute = null;
+    searchAttributes = attributes;
+    if (filterPattern != null) {
+      Matcher m = UID_ATTRIBUTE.matcher(filterPattern);
+      if (m.find()) {
+        uidAttribute = m.group(1);
+        if (attributes != null && !Arrays.asList(attributes).contains(uidAttribute)) {
+          searchAttributes = new String[attributes.length + 1];
+          System.arraycopy(attributes, 0, searchAttributes, 0, attributes.length);
+          searchAttributes[attributes.length] = uidAttribute;
+        }
+      }
+    }
+
+    Integer _batchSize = (Integer) props.get(PROP_BATCH_SIZE);
+    if (_batchSize != null && _batchSize > 0) {
+      batchSize = _batchSize;
+    }
+    int cacheSize = LdapPersonCache.DEFAULT_MAX_ENTRIES;
+    Integer _cacheSize = (Integer) props.get(PROP_CACHE_SIZE);
+    if (_cacheSize != null && _cacheSize > 0) {
+      cacheSize = _cacheSize;
+    }
+    long ttl = LdapPersonCache.DEFAULT_TTL;
+    Integer _ttl = (Integer) props.get(PROP_CACHE_TTL);
+    if (_ttl != null) {
+      ttl = _ttl * 1000L;
+    }
+    long negativeTtl = LdapPersonCache.DEFAULT_NEGATIVE_TTL;
+    Integer _negativeTtl = (Integer) props.get(PROP_CACHE_NEGATIVE_TTL);
+    if (_negativeTtl != null) {
+      negativeTtl = _negativeTtl * 1000L;
+    }
+    cache = new LdapPersonCache(cacheSize, ttl, negativeTtl);
   }
 
   protected Map<String, String> getAttributesMap() {
     return attributesMap;
   }
 
-  @SuppressWarnings("unchecked")
+  protected LdapPersonCache getCache() {
+    return cache;
+  }
+
   public Person getPerson(String uid, Node profileNode) throws PersonProviderException {
+    Map<String, Person> people = lookup(Collections.singletonList(uid));
+    return people.get(uid);
+  }
+
+  public Map<String, Person> getPeople(Map<String, Node> profileNodes)
+      throws PersonProviderException {
+    return lookup(new ArrayList<String>(profileNodes.keySet()));
+  }
+
+  /**
+   * Look people up in the cache, then in LDAP for those that aren't cached.
+   *
+   * @param uids
+   * @return the people found by user ID.
+   * @throws PersonProviderException
+   */
+  private Map<String, Person> lookup(List<String> uids) throws PersonProviderException {
+    List<String> allowed = new ArrayList<String>(uids.size());
+    for (String uid : uids) {
+      if (allowAdminLookup || !"admin".equals(uid)) {
+        allowed.add(uid);
+      }
+    }
+    Map<String, Person> people = new HashMap<String, Person>();
+    List<String> missing = cache.get(allowed, people);
+    if (!missing.isEmpty()) {
+      Map<String, Person> found = search(missing);
+      for (String uid : missing) {
+        Person person = found.get(uid);
+        cache.put(uid, person);
+        people.put(uid, person);
+      }
+    }
+    // users that weren't found are cached as null, but aren't returned.
+    people.values().removeAll(Collections.singleton(null));
+    return people;
+  }
+
+  /**
+   * Search LDAP for people, a batch at a time, over one connection.
+   *
+   * @param uids
+   * @return the people found by user ID.
+   * @throws PersonProviderException
+   */
+  private Map<String, Person> search(List<String> uids) throws PersonProviderException {
+    Map<String, Person> people = new HashMap<String, Person>();
+    LDAPConnection conn = null;
     try {
-      PersonImpl ldapPerson = null;
-      if (allowAdminLookup || (!allowAdminLookup && !"admin".equals(uid))) {
-        // set the constraints
-        LDAPSearchConstraints constraints = new LDAPSearchConstraints();
-        constraints.setDereference(LDAPSearchConstraints.DEREF_ALWAYS);
-        constraints.setTimeLimit(DEFAULT_OPERATION_TIMEOUT_MILLIS);
-        constraints.setReferralFollowing(DEFAULT_IS_FOLLOW_REFERRALS);
-        constraints.setBatchSize(0);
-
-        // set the properties
-        String filter = filterPattern.replace("{}", uid);
-
-        LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-            new Object[] { baseDn, filter, attributes });
-
-        // get a connection
-        LDAPConnection conn = ldapBroker.getBoundConnection(LDAP_BROKER_NAME);
-        LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB, filter,
-            attributes, false, constraints);
-        if (searchResults.hasMore()) {
-          // create the person to populate
-          ldapPerson = new PersonImpl(uid);
-
-          // pick off the first result returned
-          LDAPEntry entry = searchResults.next();
-
-          // get the attributes from the entry and loop through them
-          LDAPAttributeSet attrs = entry.getAttributeSet();
-          Iterator attrIter = attrs.iterator();
-          while (attrIter.hasNext()) {
-            // get the key and values from the attribute
-            LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-            String name = attr.getName();
-            String[] vals = attr.getStringValueArray();
-
-            // check for an aliased name
-            String mappingName = name;
-            if (attributesMap.containsKey(name)) {
-              mappingName = attributesMap.get(name);
-            }
-
-            // add the values under the appropriate key
-            ldapPerson.addAttribute(mappingName, vals);
+      conn = ldapBroker.getBoundConnection(LDAP_BROKER_NAME);
+      if (uidAttribute == null) {
+        // the entries found can't be told apart, so search for each in turn.
+        for (String uid : uids) {
+          searchOne(conn, uid, people);
+        }
+      } else {
+        for (int i = 0; i < uids.size(); i += batchSize) {
+          List<String> batch = uids.subList(i, Math.min(uids.size(), i + batchSize));
+          if (batch.size() == 1) {
+            searchOne(conn, batch.get(0), people);
+          } else {
+            searchBatch(conn, batch, people);
           }
         }
       }
-
-      return ldapPerson;
+      return people;
     } catch (LdapException e) {
       throw new PersonProviderException(e.getMessage(), e);
     } catch (LDAPException e) {
       throw new PersonProviderException(e.getMessage(), e);
+    } finally {
+      if (conn != null) {
+        ldapBroker.returnConnection(LDAP_BROKER_NAME, conn);
+      }
+    }
+  }
+
+  private void searchOne(LDAPConnection conn, String uid, Map<String, Person> people)
+      throws LDAPException {
+    String filter = filterPattern.replace("{}", escapeFilterValue(uid));
+    LDAPSearchResults searchResults = search(conn, filter);
+    if (searchResults.hasMore()) {
+      // pick off the first result returned
+      people.put(uid, toPerson(uid, searchResults.next()));
+    }
+  }
+
+  private void searchBatch(LDAPConnection conn, List<String> batch, Map<String, Person> people)
+      throws LDAPException {
+    // directories match user IDs without regard to case, so do the same when
+    // matching the entries found back to the user IDs asked for.
+    Map<String, String> uids = new HashMap<String, String>();
+    StringBuilder filter = new StringBuilder("(|");
+    for (String uid : batch) {
+      uids.put(uid.toLowerCase(), uid);
+      String term = filterPattern.replace("{}", escapeFilterValue(uid));
+      if (term.startsWith("(")) {
+        filter.append(term);
+      } else {
+        filter.append('(').append(term).append(')');
+      }
+    }
+    filter.append(')');
+
+    LDAPSearchResults searchResults = search(conn, filter.toString());
+    while (searchResults.hasMore()) {
+      LDAPEntry entry = searchResults.next();
+      LDAPAttribute uidAttr = entry.getAttribute(uidAttribute);
+      if (uidAttr == null) {
+        continue;
+      }
+      for (String value : uidAttr.getStringValueArray()) {
+        String uid = uids.get(value.toLowerCase());
+        // keep the first entry found for a user, as a single search would.
+        if (uid != null && !people.containsKey(uid)) {
+          people.put(uid, toPerson(uid, entry));
+        }
+      }
+    }
+  }
+
+  private LDAPSearchResults search(LDAPConnection conn, String filter) throws LDAPException {
+    // set the constraints
+    LDAPSearchConstraints constraints = new LDAPSearchConstraints();
+    constraints.setDereference(LDAPSearchConstraints.DEREF_ALWAYS);
+    constraints.setTimeLimit(DEFAULT_OPERATION_TIMEOUT_MILLIS);
+    constraints.setReferralFollowing(DEFAULT_IS_FOLLOW_REFERRALS);
+    constraints.setBatchSize(0);
+
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, searchAttributes });
+
+    return conn.search(baseDn, LDAPConnection.SCOPE_SUB, filter, searchAttributes, false,
+        constraints);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Person toPerson(String uid, LDAPEntry entry) {
+    // create the person to populate
+    PersonImpl ldapPerson = new PersonImpl(uid);
+
+    // get the attributes from the entry and loop through them
+    LDAPAttributeSet attrs = entry.getAttributeSet();
+    Iterator attrIter = attrs.iterator();
+    while (attrIter.hasNext()) {
+      // get the key and values from the attribute
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      if (searchAttributes != attributes && name.equalsIgnoreCase(uidAttribute)) {
+        // only read to match entries to users.
+        continue;
+      }
+      String[] vals = attr.getStringValueArray();
+
+      // check for an aliased name
+      String mappingName = name;
+      if (attributesMap.containsKey(name)) {
+        mappingName = attributesMap.get(name);
+      }
+
+      // add the values under the appropriate key
+      ldapPerson.addAttribute(mappingName, vals);
+    }
+    return ldapPerson;
+  }
+
+  /**
+   * Escape a value for use in a search filter, as given by RFC 4515.
+   *
+   * @param value
+   * @return the escaped value.
+   */
+  protected static String escapeFilterValue(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append("\\5c");
+        break;
+      case '*':
+        sb.append("\\2a");
+        break;
+      case '(':
+        sb.append("\\28");
+        break;
+      case ')':
+        sb.append("\\29");
+        break;
+      case '\0':
+        sb.append("\\00");
+        break;
+      default:
+        sb.append(c);
+      }
     }
+    return sb.toString();
   }
 }
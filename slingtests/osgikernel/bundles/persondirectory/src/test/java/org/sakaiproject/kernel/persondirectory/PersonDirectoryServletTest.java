@@ -27,6 +27,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -37,6 +38,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.persondirectory.Person;
 import org.sakaiproject.kernel.api.persondirectory.PersonProvider;
 import org.sakaiproject.kernel.api.persondirectory.PersonProviderException;
@@ -49,6 +51,7 @@ import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -113,6 +116,8 @@ public class PersonDirectoryServletTest {
 
     request = createMock(SlingHttpServletRequest.class);
     expect(request.getResource()).andReturn(resource);
+    expect(request.getParameterValues(PersonDirectoryServlet.PARAM_UID)).andReturn(null)
+        .anyTimes();
 
     response = createMock(SlingHttpServletResponse.class);
     writer = new StringWriter();
@@ -274,6 +279,46 @@ public class PersonDirectoryServletTest {
     assertNull(vals);
   }
 
+  /**
+   * Get several people at once. Tests that each provider is asked once for all
+   * of the people and that what they return is merged per person.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testGetPeople() throws Exception {
+    Map<String, Node> profileNodes = new HashMap<String, Node>();
+    profileNodes.put("user0", profileNode);
+    profileNodes.put("user1", createMock(Node.class));
+
+    Map<String, Person> people0 = new HashMap<String, Person>();
+    people0.put("user0", person0);
+    Map<String, Person> people1 = new HashMap<String, Person>();
+    people1.put("user0", person2);
+    people1.put("user1", person1);
+    expect(provider0.getPeople(profileNodes)).andReturn(people0);
+    expect(provider1.getPeople(profileNodes)).andReturn(people1);
+    expect(provider2.getPeople(profileNodes)).andReturn(new HashMap<String, Person>());
+    expect(provider3.getPeople(profileNodes)).andReturn(null);
+    expect(provider4.getPeople(profileNodes)).andReturn(new HashMap<String, Person>());
+    replay(provider0, provider1, provider2, provider3, provider4);
+
+    Map<String, Person> people = servlet.getPeople(profileNodes);
+    assertEquals(2, people.size());
+
+    Person person = people.get("user0");
+    assertEquals(3, person.getAttributes().size());
+    assertEquals(2, person.getAttributeValues("attr0").length);
+    assertEquals("val2", person.getAttributeValue("attr2"));
+
+    person = people.get("user1");
+    assertEquals(2, person.getAttributes().size());
+    assertEquals("val1", person.getAttributeValue("attr1"));
+
+    // the people returned by the providers are left as they were.
+    assertEquals(1, person0.getAttributes().size());
+  }
+
   @Test
   public void testDoGet() throws Exception {
     expect(profileNode.getName()).andReturn("user0");
@@ -327,4 +372,65 @@ public class PersonDirectoryServletTest {
     replay(request, response, resource, profileNode, provider0);
     servlet.doGet(request, response);
   }
+
+  /**
+   * Look up several people, one of whom the session can't read the profile of.
+   * The providers are only asked for those whose profile can be read.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDoGetPeopleUnreadable() throws Exception {
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getParameterValues(PersonDirectoryServlet.PARAM_UID)).andReturn(
+        new String[] { "user0", "user1" });
+    Node user0Node = createMock(Node.class);
+    Session session = createMock(Session.class);
+    expect(profileNode.getSession()).andReturn(session);
+    expect(session.itemExists(PersonalUtils.getProfilePath("user0"))).andReturn(true);
+    expect(session.getItem(PersonalUtils.getProfilePath("user0"))).andReturn(user0Node);
+    expect(session.itemExists(PersonalUtils.getProfilePath("user1"))).andReturn(false);
+
+    Map<String, Node> readable = new HashMap<String, Node>();
+    readable.put("user0", user0Node);
+    Map<String, Person> people = new HashMap<String, Person>();
+    people.put("user0", person0);
+    expect(provider0.getPeople(readable)).andReturn(people);
+    for (PersonProvider provider : new PersonProvider[] { provider1, provider2, provider3,
+        provider4 }) {
+      expect(provider.getPeople(readable)).andReturn(null);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    replay(request, response, resource, profileNode, session, user0Node, provider0,
+        provider1, provider2, provider3, provider4);
+    servlet.doGet(request, response);
+
+    JSONObject respObj = new JSONObject(writer.toString());
+    assertEquals(1, respObj.length());
+    assertEquals("val0", respObj.getJSONObject("user0").getString("attr0"));
+    verify(session, provider0, provider1, provider2, provider3, provider4);
+  }
+
+  /**
+   * Too many people can't be looked up at once.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testDoGetTooManyPeople() throws Exception {
+    String[] uids = new String[PersonDirectoryServlet.MAX_UIDS + 1];
+    for (int i = 0; i < uids.length; i++) {
+      uids[i] = "user" + i;
+    }
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getParameterValues(PersonDirectoryServlet.PARAM_UID)).andReturn(uids);
+    response = createMock(SlingHttpServletResponse.class);
+    response.sendError(eq(HttpServletResponse.SC_BAD_REQUEST), (String) anyObject());
+    replay(request, response, resource, profileNode, provider0, provider1, provider2,
+        provider3, provider4);
+    servlet.doGet(request, response);
+    verify(response, provider0, provider1, provider2, provider3, provider4);
+  }
 }
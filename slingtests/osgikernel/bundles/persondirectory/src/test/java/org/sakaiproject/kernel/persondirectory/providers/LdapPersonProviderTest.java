@@ -27,9 +27,11 @@ import static org.easymock.EasyMock.anyBoolean;
 import static org.easymock.EasyMock.anyInt;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 
 import com.novell.ldap.LDAPAttribute;
 import com.novell.ldap.LDAPAttributeSet;
@@ -48,12 +50,17 @@ import org.sakaiproject.kernel.api.ldap.LdapConnectionManagerConfig;
 import org.sakaiproject.kernel.api.ldap.LdapException;
 import org.sakaiproject.kernel.api.persondirectory.Person;
 import org.sakaiproject.kernel.api.persondirectory.PersonProviderException;
+import org.sakaiproject.kernel.persondirectory.PersonImpl;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import javax.jcr.Node;
+
 public class LdapPersonProviderTest {
   /**
    * Test for the default constructor. Too simple to not have and boosts code
@@ -217,6 +224,7 @@ public class LdapPersonProviderTest {
     expect(broker.getBoundConnection(isA(String.class))).andReturn(connection);
     expect(broker.create(isA(String.class), isA(LdapConnectionManagerConfig.class)))
         .andReturn(null);
+    broker.returnConnection(isA(String.class), eq(connection));
     replay(broker);
     expect(
         connection.search(isA(String.class), anyInt(), isA(String.class), (String[]) anyObject(),
@@ -231,6 +239,130 @@ public class LdapPersonProviderTest {
     } catch (PersonProviderException e) {
       // expected
     }
+    // the connection goes back to the pool even though the search failed.
+    verify(broker);
+  }
+
+  /**
+   * Test that a person is cached once looked up, so the directory is only
+   * searched once.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testGetPersonCached() throws Exception {
+    String[] attrMap = new String[] { "firstname => called" };
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap);
+    Person person = provider.getPerson("tUser", null);
+    assertEquals("Tester", person.getAttributeValue("called"));
+
+    // a changed copy doesn't change what is cached.
+    ((PersonImpl) person).addAttribute("called", "Changed");
+
+    // the broker only expects to be asked for one connection.
+    person = provider.getPerson("tUser", null);
+    assertNotNull(person);
+    assertEquals(1, person.getAttributeValues("called").length);
+    assertEquals("Tester", person.getAttributeValue("called"));
+  }
+
+  /**
+   * Test that a user that isn't found is cached as not found.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testGetPersonNotFoundCached() throws Exception {
+    LDAPConnection connection = EasyMock.createMock(LDAPConnection.class);
+    LDAPSearchResults results = EasyMock.createMock(LDAPSearchResults.class);
+    LdapConnectionBroker broker = createMock(LdapConnectionBroker.class);
+    expect(broker.getBoundConnection(isA(String.class))).andReturn(connection);
+    broker.returnConnection(isA(String.class), eq(connection));
+    replay(broker);
+    expect(
+        connection.search(isA(String.class), anyInt(), eq("uid=nobody"), (String[]) anyObject(),
+            anyBoolean(), isA(LDAPSearchConstraints.class))).andReturn(results);
+    expect(results.hasMore()).andReturn(FALSE);
+    EasyMock.replay(connection, results);
+
+    LdapPersonProvider provider = new LdapPersonProvider(broker);
+    provider.activate(buildContext(null));
+    assertNull(provider.getPerson("nobody", null));
+    assertNull(provider.getPerson("nobody", null));
+    verify(broker);
+  }
+
+  /**
+   * Test that several people are looked up with one search over one
+   * connection, and that the entries found are matched back to the users.
+   *
+   * @throws Exception
+   */
+  @Test
+  public void testGetPeople() throws Exception {
+    LDAPConnection connection = EasyMock.createMock(LDAPConnection.class);
+    LDAPSearchResults results = EasyMock.createMock(LDAPSearchResults.class);
+    LdapConnectionBroker broker = createMock(LdapConnectionBroker.class);
+    expect(broker.getBoundConnection(isA(String.class))).andReturn(connection);
+    broker.returnConnection(isA(String.class), eq(connection));
+    replay(broker);
+    expect(
+        connection.search(isA(String.class), anyInt(),
+            eq("(|(uid=userA)(uid=userB)(uid=userC))"), (String[]) anyObject(), anyBoolean(),
+            isA(LDAPSearchConstraints.class))).andReturn(results);
+    EasyMock.replay(connection);
+
+    // the directory answers in its own order and case.
+    LDAPEntry entryB = mockEntry("USERB", "Bee");
+    LDAPEntry entryA = mockEntry("usera", "Ay");
+    expect(results.hasMore()).andReturn(TRUE);
+    expect(results.next()).andReturn(entryB);
+    expect(results.hasMore()).andReturn(TRUE);
+    expect(results.next()).andReturn(entryA);
+    expect(results.hasMore()).andReturn(FALSE);
+    EasyMock.replay(results);
+
+    LdapPersonProvider provider = new LdapPersonProvider(broker);
+    provider.activate(buildContext(null));
+    Map<String, Node> profileNodes = new LinkedHashMap<String, Node>();
+    profileNodes.put("userA", null);
+    profileNodes.put("userB", null);
+    profileNodes.put("userC", null);
+    Map<String, Person> people = provider.getPeople(profileNodes);
+    verify(broker);
+
+    assertEquals(2, people.size());
+    assertEquals("userA", people.get("userA").getName());
+    assertEquals("Ay", people.get("userA").getAttributeValue("lastname"));
+    assertEquals("Bee", people.get("userB").getAttributeValue("lastname"));
+    assertNull(people.get("userC"));
+
+    // all three are cached now, including the one that wasn't found.
+    people = provider.getPeople(profileNodes);
+    assertEquals(2, people.size());
+  }
+
+  @Test
+  public void testEscapeFilterValue() {
+    assertEquals("tUser", LdapPersonProvider.escapeFilterValue("tUser"));
+    assertEquals("\\2a\\28uid=\\5c\\29", LdapPersonProvider.escapeFilterValue("*(uid=\\)"));
+  }
+
+  private LDAPEntry mockEntry(String uid, String lastname) {
+    LDAPAttribute uidAttr = EasyMock.createMock(LDAPAttribute.class);
+    expect(uidAttr.getName()).andReturn("uid").anyTimes();
+    expect(uidAttr.getStringValueArray()).andReturn(new String[] { uid }).anyTimes();
+    LDAPAttribute lastnameAttr = EasyMock.createMock(LDAPAttribute.class);
+    expect(lastnameAttr.getName()).andReturn("lastname").anyTimes();
+    expect(lastnameAttr.getStringValueArray()).andReturn(new String[] { lastname }).anyTimes();
+
+    LDAPAttributeSet attrSet = EasyMock.createMock(LDAPAttributeSet.class);
+    expect(attrSet.iterator()).andReturn(Arrays.asList(uidAttr, lastnameAttr).iterator());
+    LDAPEntry entry = EasyMock.createMock(LDAPEntry.class);
+    expect(entry.getAttribute("uid")).andReturn(uidAttr);
+    expect(entry.getAttributeSet()).andReturn(attrSet);
+    EasyMock.replay(uidAttr, lastnameAttr, attrSet, entry);
+    return entry;
   }
 
   private LdapPersonProvider setUpForPositiveTest(String[] attributeMap) throws Exception {
@@ -258,6 +390,7 @@ public class LdapPersonProviderTest {
     expect(broker.create(isA(String.class), isA(LdapConnectionManagerConfig.class)))
         .andReturn(null);
     expect(broker.getBoundConnection(isA(String.class))).andReturn(connection);
+    broker.returnConnection(isA(String.class), eq(connection));
     replay(broker);
     expect(
         connection.search(isA(String.class), anyInt(), isA(String.class), (String[]) anyObject(),
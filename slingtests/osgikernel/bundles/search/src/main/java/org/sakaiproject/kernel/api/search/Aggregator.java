@@ -43,4 +43,9 @@ public interface Aggregator {
    */
   Map<String, Map<String, Integer>> getAggregate();
 
+  /**
+   * @return true if the aggregate stopped before all the nodes were counted.
+   */
+  boolean isTruncated();
+
 }
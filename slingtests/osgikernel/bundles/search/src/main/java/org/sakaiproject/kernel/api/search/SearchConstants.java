@@ -41,6 +41,10 @@ public interface SearchConstants {
    * The frequency of the aggregate term.
    */
   public static final String JSON_COUNT = "count";
+  /**
+   * Set in the totals when the aggregate stopped before all the nodes were counted.
+   */
+  public static final String JSON_TRUNCATED = "truncated";
 
   /**
   *
@@ -97,5 +101,74 @@ public interface SearchConstants {
    * child nodes of the result set will be inspected during the aggregation process.
    */
   public static final String SAKAI_AGGREGATE_CHILDREN = "sakai:aggregate-search-results-children";
+  /**
+   * A property of the search template where there are properties to aggregate, if true,
+   * the aggregate is counted from an in memory index of the properties rather than by
+   * reading the nodes. The index only counts the result nodes, so with children, or if
+   * the properties have too many nodes to index, the nodes are read as usual.
+   */
+  public static final String SAKAI_AGGREGATE_INDEX = "sakai:aggregate-search-results-index";
+
+  /**
+   * A property of the search template, if true the results are streamed to the
+   * response as they are read and paged with a cursor rather than a page number.
+   */
+  public static final String SAKAI_STREAMING = "sakai:streaming";
+  /**
+   * A property of a streaming search template naming a property that orders the
+   * results and is unique for each row. The value of that property on the last row
+   * of a page is made available to the template as {_cursor} on the next page, so
+   * the query can select the rows after it rather than skipping over those seen.
+   */
+  public static final String SAKAI_KEYSET_PROPERTY = "sakai:keyset-property";
+  /**
+   * A property of a streaming search template, how the total is reported, one of
+   * {@link #TOTAL_EXACT}, {@link #TOTAL_ESTIMATE} or {@link #TOTAL_NONE}.
+   */
+  public static final String SAKAI_TOTAL = "sakai:total";
+  /**
+   * Count every row in the result set.
+   */
+  public static final String TOTAL_EXACT = "exact";
+  /**
+   * Report the rows read so far, flagged as estimated when there are more.
+   */
+  public static final String TOTAL_ESTIMATE = "estimate";
+  /**
+   * Do not report a total.
+   */
+  public static final String TOTAL_NONE = "none";
+  /**
+   * The request parameter holding the cursor of a streaming search.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The template property holding the keyset value of the cursor.
+   */
+  public static final String CURSOR_PROPERTY = "_cursor";
+  /**
+   * The cursor for the next page of a streaming search, absent on the last page.
+   */
+  public static final String JSON_NEXT = "next";
+  /**
+   * True if the total of a streaming search is an estimate.
+   */
+  public static final String JSON_ESTIMATED = "estimated";
+  /**
+   * The largest page a streaming search will return.
+   */
+  public static final int MAX_STREAMING_ITEMS = 1000;
+
+  /**
+   * A property of a search template that is not streamed, the number of seconds the
+   * paths of its results may be cached for. Results are shared by users with the same
+   * principals who make the same query, and are dropped when the repository below the
+   * path the query starts from changes. If absent or 0 the results are not cached.
+   */
+  public static final String SAKAI_CACHE_TTL = "sakai:cache-ttl";
+  /**
+   * The largest result set whose paths will be cached.
+   */
+  public static final int MAX_CACHED_ROWS = 1000;
 
 }
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.jackrabbit.value.StringValue;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Rows over a list of cached result paths. Each row only has the jcr:path column,
+ * the nodes are read by the result processors with the session of the request.
+ */
+class CachedRowIterator implements RowIterator {
+
+  private static final String JCR_PATH = "jcr:path";
+
+  private final List<String> paths;
+  private int position;
+
+  /**
+   * @param paths
+   *          the paths of the rows, not copied.
+   */
+  CachedRowIterator(List<String> paths) {
+    this.paths = paths;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.query.RowIterator#nextRow()
+   */
+  public Row nextRow() {
+    if (position >= paths.size()) {
+      throw new NoSuchElementException();
+    }
+    final Value path = new StringValue(paths.get(position++));
+    return new Row() {
+
+      public Value[] getValues() {
+        return new Value[] { path };
+      }
+
+      public Value getValue(String propertyName) throws ItemNotFoundException {
+        if (JCR_PATH.equals(propertyName)) {
+          return path;
+        }
+        throw new ItemNotFoundException(propertyName + " is not a column of a cached result");
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return paths.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    if (position + skipNum > paths.size()) {
+      position = paths.size();
+      throw new NoSuchElementException();
+    }
+    position += skipNum;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    return position < paths.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextRow();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+}
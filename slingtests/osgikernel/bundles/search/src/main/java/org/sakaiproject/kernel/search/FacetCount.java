@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.sakaiproject.kernel.api.search.Aggregator;
+import org.sakaiproject.kernel.util.JcrUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Counts the values of a set of properties over the nodes presented via add, and
+ * optionally over their child nodes. Counts are held as primitive counters, and the
+ * nodes already counted are tracked as path hashes, up to a maximum number of nodes
+ * after which the count stops and is marked as truncated. Counts made separately,
+ * for instance over batches of results in parallel, can be merged.
+ */
+public class FacetCount implements Aggregator {
+
+  /**
+   * The default maximum number of nodes counted.
+   */
+  public static final int DEFAULT_MAX_NODES = 100000;
+
+  /**
+   * A mutable count.
+   */
+  static final class Counter {
+    int count;
+  }
+
+  private final String[] fields;
+  private final Map<String, Map<String, Counter>> counts = new HashMap<String, Map<String, Counter>>();
+  private final boolean children;
+  private final PathHashSet visited;
+  private boolean truncated;
+
+  /**
+   * @param fields
+   *          the properties to count.
+   * @param children
+   *          if true child nodes are counted.
+   */
+  public FacetCount(String[] fields, boolean children) {
+    this(fields, children, DEFAULT_MAX_NODES);
+  }
+
+  /**
+   * @param fields
+   *          the properties to count.
+   * @param children
+   *          if true child nodes are counted.
+   * @param maxNodes
+   *          the most nodes to count.
+   */
+  public FacetCount(String[] fields, boolean children, int maxNodes) {
+    this.fields = fields;
+    this.children = children;
+    for (String f : fields) {
+      counts.put(f, new HashMap<String, Counter>());
+    }
+    visited = new PathHashSet(maxNodes);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#add(javax.jcr.Node)
+   */
+  public void add(Node node) throws RepositoryException {
+    if (!visited.add(node.getPath())) {
+      if (visited.isFull()) {
+        truncated = true;
+      }
+      return;
+    }
+    for (String f : fields) {
+      if (node.hasProperty(f)) {
+        Map<String, Counter> termCounts = counts.get(f);
+        for (Value t : JcrUtils.getValues(node, f)) {
+          count(termCounts, t.getString());
+        }
+      }
+    }
+    if (children) {
+      for (NodeIterator ni = node.getNodes(); ni.hasNext();) {
+        add(ni.nextNode());
+      }
+    }
+  }
+
+  /**
+   * Count the values of a field.
+   *
+   * @param field
+   * @param terms
+   */
+  void count(String field, String[] terms) {
+    Map<String, Counter> termCounts = counts.get(field);
+    if (termCounts != null) {
+      for (String term : terms) {
+        count(termCounts, term);
+      }
+    }
+  }
+
+  private void count(Map<String, Counter> termCounts, String term) {
+    Counter c = termCounts.get(term);
+    if (c == null) {
+      c = new Counter();
+      termCounts.put(term, c);
+    }
+    c.count++;
+  }
+
+  /**
+   * Add the counts of another count over the same fields, made over different nodes.
+   *
+   * @param other
+   */
+  public void merge(FacetCount other) {
+    for (Entry<String, Map<String, Counter>> e : other.counts.entrySet()) {
+      Map<String, Counter> termCounts = counts.get(e.getKey());
+      if (termCounts == null) {
+        continue;
+      }
+      for (Entry<String, Counter> t : e.getValue().entrySet()) {
+        Counter c = termCounts.get(t.getKey());
+        if (c == null) {
+          c = new Counter();
+          termCounts.put(t.getKey(), c);
+        }
+        c.count += t.getValue().count;
+      }
+    }
+    truncated = truncated || other.truncated;
+  }
+
+  /**
+   * Mark the count as stopped before all the nodes were counted.
+   */
+  void setTruncated() {
+    truncated = true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#isTruncated()
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#getAggregate()
+   */
+  public Map<String, Map<String, Integer>> getAggregate() {
+    Map<String, Map<String, Integer>> aggregate = new HashMap<String, Map<String, Integer>>();
+    for (Entry<String, Map<String, Counter>> e : counts.entrySet()) {
+      Map<String, Integer> termCounts = new HashMap<String, Integer>();
+      for (Entry<String, Counter> t : e.getValue().entrySet()) {
+        termCounts.put(t.getKey(), t.getValue().count);
+      }
+      aggregate.put(e.getKey(), termCounts);
+    }
+    return aggregate;
+  }
+
+}
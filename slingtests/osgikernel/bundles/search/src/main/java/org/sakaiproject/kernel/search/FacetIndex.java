@@ -0,0 +1,614 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.kernel.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+/**
+ * An in memory index of the values of the properties that searches aggregate,
+ * keyed by node path. A property is indexed from the repository the first time a
+ * search asks for it, after which the index follows changes through JCR
+ * observation, including nodes that are added or moved. The listener only notes the
+ * changes, which are read from the repository by a single thread of the index's own,
+ * so observation is never held up walking the trees of added nodes. If too many
+ * changes wait the index is emptied. Counts over the index read no nodes, so large
+ * result sets can be counted in parallel batches.
+ *
+ * The index is built with an administrative session, so it only counts the paths it
+ * is given, which must be paths the user has already been able to read. It holds at
+ * most a fixed number of nodes; a property with more nodes than that is not indexed,
+ * and if changes take the index over the limit it is emptied, in both cases
+ * searches count by reading the nodes instead.
+ */
+public class FacetIndex implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FacetIndex.class);
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+  /**
+   * The number of paths counted by each parallel task.
+   */
+  static final int BATCH_SIZE = 1000;
+  /**
+   * The default maximum number of nodes held in the index.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 200000;
+  /**
+   * The most changes that may wait to be read, if more come the index is emptied.
+   */
+  static final int MAX_PENDING = 10000;
+
+  private final ConcurrentSkipListMap<String, ConcurrentMap<String, String[]>> values = new ConcurrentSkipListMap<String, ConcurrentMap<String, String[]>>();
+  private final Set<String> fields = new CopyOnWriteArraySet<String>();
+  /**
+   * Fields that had too many nodes to index, guarded by this.
+   */
+  private final Set<String> rejected = new TreeSet<String>();
+  /**
+   * Fields being loaded, with the paths that changed during the load and whether the
+   * change was to the node itself (true) or to one of its properties (false). Guarded
+   * by this.
+   */
+  private final Map<String, Map<String, Boolean>> loading = new HashMap<String, Map<String, Boolean>>();
+  private final int maxEntries;
+  private SlingRepository repository;
+  /**
+   * Guarded by this, JCR sessions are not safe for concurrent use.
+   */
+  private Session session;
+  private volatile boolean observing;
+  /**
+   * Reads the changes noted by the listener, one thread so they are read in order.
+   */
+  private volatile ExecutorService executor;
+  /**
+   * Changes waiting to be read, guarded by itself.
+   */
+  private final List<Change> pending = new ArrayList<Change>();
+  /**
+   * True if changes were lost since the pending ones were last read, guarded by
+   * pending.
+   */
+  private boolean lost;
+  /**
+   * True if a task to read the pending changes is waiting, guarded by pending.
+   */
+  private boolean scheduled;
+
+  /**
+   * A change noted by the listener.
+   */
+  private static class Change {
+    final int type;
+    final String path;
+
+    Change(int type, String path) {
+      this.type = type;
+      this.path = path;
+    }
+  }
+
+  public FacetIndex() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries
+   *          the most nodes to hold in the index.
+   */
+  public FacetIndex(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Start following changes in the repository.
+   *
+   * @param repository
+   *          the repository, an administrative session is kept to follow changes
+   *          until {@link #stop()}, and fields are loaded with sessions of their own.
+   * @throws RepositoryException
+   */
+  public synchronized void start(SlingRepository repository) throws RepositoryException {
+    this.repository = repository;
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "facet-index");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    session = repository.loginAdministrative(null);
+    session.getWorkspace().getObservationManager().addEventListener(this, EVENT_TYPES, "/",
+        true, null, null, false);
+    observing = true;
+  }
+
+  /**
+   * Stop following changes and empty the index.
+   */
+  public synchronized void stop() {
+    observing = false;
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove facet index listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    synchronized (pending) {
+      pending.clear();
+      lost = false;
+    }
+    repository = null;
+    fields.clear();
+    rejected.clear();
+    values.clear();
+  }
+
+  /**
+   * @return true if the index is following the repository.
+   */
+  public boolean isObserving() {
+    return observing;
+  }
+
+  /**
+   * Make sure the fields are indexed, loading any that are not from the repository.
+   *
+   * @param indexFields
+   * @return true if all the fields are indexed, false if any could not be, because
+   *         they have too many nodes or are still being loaded by another request.
+   * @throws RepositoryException
+   */
+  public boolean index(String[] indexFields) throws RepositoryException {
+    boolean indexed = true;
+    for (String field : indexFields) {
+      if (!fields.contains(field)) {
+        indexed = indexField(field) && indexed;
+      }
+    }
+    return indexed;
+  }
+
+  /**
+   * Load a field. The query runs outside the monitor, so changes keep being followed
+   * while it does; those changes are noted and read again once the load is merged.
+   */
+  private boolean indexField(String field) throws RepositoryException {
+    SlingRepository loadRepository;
+    synchronized (this) {
+      if (fields.contains(field)) {
+        return true;
+      }
+      if (!observing || rejected.contains(field) || loading.containsKey(field)) {
+        return false;
+      }
+      loading.put(field, new HashMap<String, Boolean>());
+      loadRepository = repository;
+    }
+    long start = System.currentTimeMillis();
+    Map<String, String[]> loaded = new HashMap<String, String[]>();
+    boolean complete = false;
+    boolean tooMany = false;
+    Session loadSession = null;
+    try {
+      loadSession = loadRepository.loginAdministrative(null);
+      Query query = loadSession.getWorkspace().getQueryManager().createQuery(
+          "//*[@" + ISO9075.encode(field) + "]", Query.XPATH);
+      for (NodeIterator ni = query.execute().getNodes(); ni.hasNext() && !tooMany;) {
+        Node node = ni.nextNode();
+        loaded.put(node.getPath(), getTerms(node, field));
+        tooMany = loaded.size() > maxEntries;
+      }
+      complete = !tooMany;
+    } finally {
+      if (loadSession != null) {
+        loadSession.logout();
+      }
+      synchronized (this) {
+        Map<String, Boolean> changed = loading.remove(field);
+        // without a record of the changes, because the index fell behind, the load is
+        // thrown away.
+        if (complete && observing && changed != null) {
+          if (values.size() + loaded.size() > maxEntries) {
+            tooMany = true;
+          } else {
+            merge(field, loaded, changed);
+          }
+        }
+        if (tooMany && observing) {
+          LOGGER.warn("More than {} nodes with {}, searches will count it from the nodes",
+              maxEntries, field);
+          rejected.add(field);
+        }
+      }
+    }
+    if (tooMany || !fields.contains(field)) {
+      return false;
+    }
+    LOGGER.info("Indexed {} nodes with {} in {} ms", new Object[] { loaded.size(), field,
+        System.currentTimeMillis() - start });
+    return true;
+  }
+
+  /**
+   * Merge a loaded field into the index, reading again the nodes that changed while it
+   * was loading. Must be called holding the monitor.
+   */
+  private void merge(String field, Map<String, String[]> loaded, Map<String, Boolean> changed)
+      throws RepositoryException {
+    fields.add(field);
+    for (Entry<String, String[]> e : loaded.entrySet()) {
+      if (!isChanged(e.getKey(), changed)) {
+        put(e.getKey(), field, e.getValue());
+      }
+    }
+    String[] field1 = new String[] { field };
+    for (Entry<String, Boolean> e : changed.entrySet()) {
+      String path = e.getKey();
+      if (session.itemExists(path)) {
+        Node node = (Node) session.getItem(path);
+        if (e.getValue()) {
+          updateTree(node, field1);
+        } else {
+          update(node, field);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the path, or with a change to the node itself one of its
+   *         ancestors, changed during a load.
+   */
+  private boolean isChanged(String path, Map<String, Boolean> changed) {
+    if (changed.containsKey(path)) {
+      return true;
+    }
+    for (int i = path.lastIndexOf('/'); i >= 0; i = path.lastIndexOf('/', i - 1)) {
+      if (Boolean.TRUE.equals(changed.get(i == 0 ? "/" : path.substring(0, i)))) {
+        return true;
+      }
+      if (i == 0) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private String[] getTerms(Node node, String field) throws RepositoryException {
+    Value[] v = JcrUtils.getValues(node, field);
+    String[] terms = new String[v.length];
+    for (int i = 0; i < v.length; i++) {
+      terms[i] = v[i].getString();
+    }
+    return terms;
+  }
+
+  /**
+   * Read the current values of the field on the node into the index.
+   */
+  private void update(Node node, String field) throws RepositoryException {
+    if (node.hasProperty(field)) {
+      put(node.getPath(), field, getTerms(node, field));
+    } else {
+      Map<String, String[]> nodeValues = values.get(node.getPath());
+      if (nodeValues != null) {
+        nodeValues.remove(field);
+      }
+    }
+  }
+
+  /**
+   * Read the fields of a node and all the nodes below it into the index, for nodes
+   * that have been added or moved.
+   */
+  private void updateTree(Node node, String[] treeFields) throws RepositoryException {
+    for (String field : treeFields) {
+      if (node.hasProperty(field)) {
+        put(node.getPath(), field, getTerms(node, field));
+      }
+    }
+    for (NodeIterator ni = node.getNodes(); ni.hasNext() && !fields.isEmpty();) {
+      updateTree(ni.nextNode(), treeFields);
+    }
+  }
+
+  private void put(String path, String field, String[] terms) {
+    if (!fields.contains(field)) {
+      return;
+    }
+    ConcurrentMap<String, String[]> nodeValues = values.get(path);
+    if (nodeValues == null) {
+      if (values.size() >= maxEntries) {
+        LOGGER.warn("Facet index is over {} nodes, clearing it", maxEntries);
+        rejected.addAll(fields);
+        clear();
+        return;
+      }
+      nodeValues = new ConcurrentHashMap<String, String[]>();
+      ConcurrentMap<String, String[]> existing = values.putIfAbsent(path, nodeValues);
+      if (existing != null) {
+        nodeValues = existing;
+      }
+    }
+    nodeValues.put(field, terms);
+  }
+
+  private void clear() {
+    fields.clear();
+    values.clear();
+  }
+
+  /**
+   * {@inheritDoc} Notes the changes, to be read into the index by the executor.
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    ExecutorService executor = this.executor;
+    if (executor == null) {
+      return;
+    }
+    List<Change> changes = new ArrayList<Change>();
+    boolean failed = false;
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        changes.add(new Change(event.getType(), event.getPath()));
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to get the path of a change {} ", e.getMessage());
+        failed = true;
+      }
+    }
+    synchronized (pending) {
+      if (failed || pending.size() + changes.size() > MAX_PENDING) {
+        pending.clear();
+        lost = true;
+      } else {
+        pending.addAll(changes);
+      }
+      if (scheduled) {
+        return;
+      }
+      scheduled = true;
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          readChanges();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Facet index is stopping, changes are not read");
+      synchronized (pending) {
+        pending.clear();
+        scheduled = false;
+      }
+    }
+  }
+
+  /**
+   * Read the pending changes into the index, emptying it if changes were lost.
+   */
+  private void readChanges() {
+    List<Change> changes;
+    boolean changesLost;
+    synchronized (pending) {
+      changes = new ArrayList<Change>(pending);
+      pending.clear();
+      changesLost = lost;
+      lost = false;
+      scheduled = false;
+    }
+    synchronized (this) {
+      if (session == null) {
+        return;
+      }
+      if (changesLost) {
+        LOGGER.warn("Facet index fell behind the repository, clearing it");
+        clear();
+        loading.clear();
+      }
+      for (Change change : changes) {
+        try {
+          readChange(change.type, change.path);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to follow change, clearing facet index {} ", e.getMessage());
+          clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Update the index for a change to indexed properties. A move is seen as the removal of
+   * the old path and the addition of the new one, so added nodes are read with
+   * everything below them. Must be called holding the monitor.
+   */
+  private void readChange(int type, String path) throws RepositoryException {
+    if (type == Event.NODE_REMOVED) {
+      values.remove(path);
+      values.subMap(path + "/", path + "0").clear();
+      noteChange(null, path, true);
+    } else if (type == Event.NODE_ADDED) {
+      noteChange(null, path, true);
+      if (!fields.isEmpty() && session.itemExists(path)) {
+        updateTree((Node) session.getItem(path), fields.toArray(new String[0]));
+      }
+    } else {
+      int i = path.lastIndexOf('/');
+      String field = path.substring(i + 1);
+      String nodePath = i > 0 ? path.substring(0, i) : "/";
+      noteChange(field, nodePath, false);
+      if (fields.contains(field)) {
+        if (session.itemExists(nodePath)) {
+          update((Node) session.getItem(nodePath), field);
+        } else {
+          values.remove(nodePath);
+        }
+      }
+    }
+  }
+
+  /**
+   * Note a change for the fields being loaded, or for one field if not null.
+   */
+  private void noteChange(String field, String path, boolean node) {
+    for (Entry<String, Map<String, Boolean>> e : loading.entrySet()) {
+      if (field == null || field.equals(e.getKey())) {
+        Map<String, Boolean> changed = e.getValue();
+        if (!Boolean.TRUE.equals(changed.get(path))) {
+          changed.put(path, node);
+        }
+      }
+    }
+  }
+
+  /**
+   * Count the values of fields over a set of nodes. Only the nodes themselves are
+   * counted, not the nodes below them.
+   *
+   * @param paths
+   *          the paths of the nodes to count, which the user must be able to read.
+   * @param countFields
+   *          the fields to count, which must have been indexed.
+   * @param maxNodes
+   *          the most paths to count, further paths are ignored and the count marked
+   *          truncated.
+   * @param executor
+   *          if not null, batches of paths are counted in parallel on the executor.
+   * @return the count.
+   */
+  public FacetCount count(Collection<String> paths, final String[] countFields,
+      int maxNodes, ExecutorService executor) {
+    // sorting removes duplicates.
+    List<String> sorted = new ArrayList<String>(new TreeSet<String>(paths));
+    FacetCount result = new FacetCount(countFields, false, 0);
+    if (sorted.size() > maxNodes) {
+      sorted = sorted.subList(0, maxNodes);
+      result.setTruncated();
+    }
+    if (executor == null || sorted.size() <= BATCH_SIZE) {
+      result.merge(countBatch(sorted, countFields));
+      return result;
+    }
+    List<Future<FacetCount>> futures = new ArrayList<Future<FacetCount>>();
+    for (int i = 0; i < sorted.size(); i += BATCH_SIZE) {
+      final List<String> batch = sorted.subList(i, Math.min(sorted.size(), i + BATCH_SIZE));
+      futures.add(executor.submit(new Callable<FacetCount>() {
+        public FacetCount call() {
+          return countBatch(batch, countFields);
+        }
+      }));
+    }
+    for (Future<FacetCount> f : futures) {
+      try {
+        result.merge(f.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        result.setTruncated();
+        break;
+      } catch (ExecutionException e) {
+        LOGGER.warn("Facet count failed {} ", e.getMessage());
+        result.setTruncated();
+      }
+    }
+    return result;
+  }
+
+  private FacetCount countBatch(List<String> paths, String[] countFields) {
+    FacetCount count = new FacetCount(countFields, false, 0);
+    for (String path : paths) {
+      Map<String, String[]> nodeValues = values.get(path);
+      if (nodeValues != null) {
+        for (String field : countFields) {
+          String[] terms = nodeValues.get(field);
+          if (terms != null) {
+            count.count(field, terms);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of nodes in the index.
+   */
+  public int size() {
+    return values.size();
+  }
+
+  /**
+   * Wait for the changes noted so far to be read, for testing.
+   */
+  void flush() throws InterruptedException, ExecutionException {
+    executor.submit(new Runnable() {
+      public void run() {
+      }
+    }).get();
+  }
+
+  /**
+   * @return the indexed values of a node, for testing.
+   */
+  Map<String, String[]> getValues(String path) {
+    return values.get(path);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.sakaiproject.kernel.api.search.Aggregator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * An aggregator answered from a {@link FacetIndex}. Adding a node only records its
+ * path, the counting is done over the index when the aggregate is asked for, in
+ * parallel batches if there is an executor. Only the nodes added are counted, never
+ * the nodes below them, as the index cannot tell which of those the user may read.
+ */
+public class IndexedFacetCount implements Aggregator {
+
+  private final FacetIndex index;
+  private final String[] fields;
+  private final int maxNodes;
+  private final ExecutorService executor;
+  private final List<String> paths = new ArrayList<String>();
+  private FacetCount count;
+
+  /**
+   * @param index
+   *          the index, with the fields already indexed.
+   * @param fields
+   *          the properties to count.
+   * @param executor
+   *          the executor to count batches on, may be null.
+   */
+  public IndexedFacetCount(FacetIndex index, String[] fields,
+      ExecutorService executor) {
+    this.index = index;
+    this.fields = fields;
+    this.executor = executor;
+    this.maxNodes = FacetCount.DEFAULT_MAX_NODES;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#add(javax.jcr.Node)
+   */
+  public void add(Node node) throws RepositoryException {
+    if (paths.size() <= maxNodes) {
+      paths.add(node.getPath());
+    }
+    count = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#getAggregate()
+   */
+  public Map<String, Map<String, Integer>> getAggregate() {
+    return getCount().getAggregate();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.api.search.Aggregator#isTruncated()
+   */
+  public boolean isTruncated() {
+    return getCount().isTruncated();
+  }
+
+  private FacetCount getCount() {
+    if (count == null) {
+      count = index.count(paths, fields, maxNodes, executor);
+    }
+    return count;
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+/**
+ * A set of node paths held as 64 bit hashes in an open addressed table, a few
+ * bytes a path rather than a String each. Two paths with the same hash are taken as
+ * the same path, with 64 bits that is vanishingly unlikely for the number of paths
+ * seen by one search. The set will not grow beyond its maximum size.
+ */
+class PathHashSet {
+
+  private long[] table;
+  private int size;
+  private final int maxSize;
+  private boolean hasZero;
+
+  /**
+   * @param maxSize
+   *          the most paths the set will hold.
+   */
+  PathHashSet(int maxSize) {
+    this.maxSize = maxSize;
+    table = new long[64];
+  }
+
+  /**
+   * Add a path.
+   *
+   * @param path
+   * @return true if the path was added, false if it was already present or the set
+   *         is full.
+   */
+  boolean add(String path) {
+    long h = hash(path);
+    if (h == 0) {
+      if (hasZero) {
+        return false;
+      }
+      if (size >= maxSize) {
+        return false;
+      }
+      hasZero = true;
+      size++;
+      return true;
+    }
+    int mask = table.length - 1;
+    int i = (int) (h ^ (h >>> 32)) & mask;
+    while (table[i] != 0) {
+      if (table[i] == h) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    if (size >= maxSize) {
+      return false;
+    }
+    table[i] = h;
+    size++;
+    if (size * 2 > table.length) {
+      resize();
+    }
+    return true;
+  }
+
+  /**
+   * @param path
+   * @return true if the path is in the set.
+   */
+  boolean contains(String path) {
+    long h = hash(path);
+    if (h == 0) {
+      return hasZero;
+    }
+    int mask = table.length - 1;
+    int i = (int) (h ^ (h >>> 32)) & mask;
+    while (table[i] != 0) {
+      if (table[i] == h) {
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * @return true if no more paths can be added.
+   */
+  boolean isFull() {
+    return size >= maxSize;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void resize() {
+    long[] old = table;
+    table = new long[old.length * 2];
+    int mask = table.length - 1;
+    for (long h : old) {
+      if (h != 0) {
+        int i = (int) (h ^ (h >>> 32)) & mask;
+        while (table[i] != 0) {
+          i = (i + 1) & mask;
+        }
+        table[i] = h;
+      }
+    }
+  }
+
+  /**
+   * 64 bit FNV-1a over the characters of the path.
+   */
+  static long hash(String path) {
+    long h = 0xcbf29ce484222325L;
+    int n = path.length();
+    for (int i = 0; i < n; i++) {
+      h ^= path.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
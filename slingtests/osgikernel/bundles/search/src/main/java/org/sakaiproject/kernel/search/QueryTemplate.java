@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * A query template parsed once into literal text and placeholders, so that
+ * expanding it for a request is a single pass over the parts. Placeholders are of
+ * the form {name} or {name|default}, names starting with _ are taken from the user
+ * properties, all others from the request parameters. A \ outside a placeholder
+ * escapes the next character. Values are escaped for the query language as they are
+ * appended.
+ */
+public class QueryTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryTemplate.class);
+
+  /**
+   * The literal text before each placeholder, and after the last.
+   */
+  private final String[] literals;
+  private final String[] names;
+  private final String[] defaults;
+  private final boolean escape;
+  private final String queryLanguage;
+  private final int length;
+
+  /**
+   * @param queryTemplate
+   *          the template to parse.
+   * @param queryLanguage
+   *          the language of the query, used to escape values.
+   */
+  public QueryTemplate(String queryTemplate, String queryLanguage) {
+    this.queryLanguage = queryLanguage;
+    escape = Query.XPATH.equals(queryLanguage) || Query.SQL.equals(queryLanguage);
+    List<String> literalList = new ArrayList<String>();
+    List<String> nameList = new ArrayList<String>();
+    List<String> defaultList = new ArrayList<String>();
+    StringBuilder sb = new StringBuilder();
+    boolean escaped = false;
+    int vstart = -1;
+    int n = queryTemplate.length();
+    for (int i = 0; i < n; i++) {
+      char c = queryTemplate.charAt(i);
+      if (escaped) {
+        sb.append(c);
+        escaped = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = queryTemplate.substring(vstart + 1, i);
+          String defaultValue = null;
+          int bar = v.indexOf('|');
+          if (bar >= 0) {
+            defaultValue = v.substring(bar + 1);
+            v = v.substring(0, bar);
+          }
+          literalList.add(sb.toString());
+          sb.setLength(0);
+          nameList.add(v);
+          defaultList.add(defaultValue);
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          vstart = i;
+          break;
+        case '\\':
+          escaped = true;
+          break;
+        default:
+          sb.append(c);
+        }
+      }
+    }
+    literalList.add(sb.toString());
+    literals = literalList.toArray(new String[literalList.size()]);
+    names = nameList.toArray(new String[nameList.size()]);
+    defaults = defaultList.toArray(new String[defaultList.size()]);
+    int l = 0;
+    for (String literal : literals) {
+      l += literal.length();
+    }
+    length = l;
+  }
+
+  /**
+   * Expand the template for a request.
+   *
+   * @param request
+   *          the request, supplying values for placeholders that are not user
+   *          properties.
+   * @param propertiesMap
+   *          the user properties, supplying values for placeholders starting with _.
+   * @return the query.
+   */
+  public String expand(SlingHttpServletRequest request, Map<String, String> propertiesMap) {
+    StringBuilder sb = new StringBuilder(length + 16 * names.length);
+    for (int i = 0; i < names.length; i++) {
+      sb.append(literals[i]);
+      String value = null;
+      if (names[i].startsWith("_")) {
+        value = propertiesMap.get(names[i]);
+      } else {
+        RequestParameter rp = request.getRequestParameter(names[i]);
+        if (rp != null) {
+          value = rp.getString();
+        }
+      }
+      if (value == null) {
+        value = defaults[i];
+      }
+      if (value != null) {
+        appendEscaped(sb, value);
+      }
+    }
+    sb.append(literals[names.length]);
+    return sb.toString();
+  }
+
+  /**
+   * @return true if the template contains placeholders.
+   */
+  public boolean hasPlaceholders() {
+    return names.length > 0;
+  }
+
+  /**
+   * Append the value escaped for the query language, in one pass. See JSR-170 spec
+   * v1.0, Sec. 6.6.4.9 and 6.6.5.2. A \ not followed by - or " is doubled, and a ' is
+   * replaced by \''.
+   *
+   * @param sb
+   * @param value
+   */
+  private void appendEscaped(StringBuilder sb, String value) {
+    if (!escape) {
+      LOGGER.error("Unknown query language: " + queryLanguage);
+      sb.append((String) null);
+      return;
+    }
+    int n = value.length();
+    for (int i = 0; i < n; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        if (i + 1 < n && (value.charAt(i + 1) == '-' || value.charAt(i + 1) == '"')) {
+          sb.append(c);
+        } else {
+          sb.append("\\\\");
+        }
+        break;
+      case '\'':
+        sb.append("\\''");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+  }
+}
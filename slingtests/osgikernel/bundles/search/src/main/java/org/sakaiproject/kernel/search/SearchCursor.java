@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+/**
+ * The position reached in a streamed search, handed to the client as the
+ * <code>next</code> token and passed back as the <code>cursor</code> parameter.
+ * It records the number of rows already returned and, when the search has a
+ * keyset property, the value of that property on the last row returned. A keyed
+ * cursor lets the query template select the rows after the key rather than
+ * skipping over the rows already seen. The token is opaque to clients.
+ */
+public class SearchCursor {
+
+  private long offset;
+  private String key;
+
+  /**
+   * @param offset
+   *          the number of rows already returned.
+   * @param key
+   *          the keyset value of the last row returned, or null if the search is
+   *          paged by offset.
+   */
+  public SearchCursor(long offset, String key) {
+    this.offset = Math.max(0, offset);
+    this.key = key;
+  }
+
+  /**
+   * @param token
+   *          a token produced by {@link #toString()}.
+   * @return the cursor, or null if the token is null or not a valid token.
+   */
+  public static SearchCursor parse(String token) {
+    if (token == null || token.length() == 0) {
+      return null;
+    }
+    int i = token.indexOf(':');
+    try {
+      if (i < 0) {
+        return new SearchCursor(Long.parseLong(token), null);
+      }
+      return new SearchCursor(Long.parseLong(token.substring(0, i)), token.substring(i + 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the number of rows already returned.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the keyset value of the last row returned, or null.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return true if the cursor carries a keyset value.
+   */
+  public boolean isKeyed() {
+    return key != null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    if (key == null) {
+      return String.valueOf(offset);
+    }
+    return offset + ":" + key;
+  }
+}
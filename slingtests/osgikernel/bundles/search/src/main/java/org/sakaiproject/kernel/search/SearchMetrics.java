@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times the stages of a search, so the cost of compiling and expanding
+ * query templates can be compared with the cost of executing the queries.
+ */
+public class SearchMetrics implements SearchMetricsMBean {
+
+  private final AtomicLong compiles = new AtomicLong();
+  private final AtomicLong compileTime = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong expands = new AtomicLong();
+  private final AtomicLong expandTime = new AtomicLong();
+  private final AtomicLong executes = new AtomicLong();
+  private final AtomicLong executeTime = new AtomicLong();
+  private SearchTemplateCache templateCache;
+
+  /**
+   * @param templateCache
+   *          the cache whose size is reported, may be null.
+   */
+  public SearchMetrics(SearchTemplateCache templateCache) {
+    this.templateCache = templateCache;
+  }
+
+  /**
+   * @param nanos
+   *          the time taken to compile a template.
+   */
+  public void templateCompiled(long nanos) {
+    compiles.incrementAndGet();
+    compileTime.addAndGet(nanos);
+  }
+
+  public void templateCacheHit() {
+    cacheHits.incrementAndGet();
+  }
+
+  /**
+   * @param nanos
+   *          the time taken to expand a template into a query.
+   */
+  public void queryExpanded(long nanos) {
+    expands.incrementAndGet();
+    expandTime.addAndGet(nanos);
+  }
+
+  /**
+   * @param nanos
+   *          the time taken to execute a query.
+   */
+  public void queryExecuted(long nanos) {
+    executes.incrementAndGet();
+    executeTime.addAndGet(nanos);
+  }
+
+  public long getTemplateCompiles() {
+    return compiles.get();
+  }
+
+  public long getMeanTemplateCompileTime() {
+    return mean(compileTime, compiles);
+  }
+
+  public long getTemplateCacheHits() {
+    return cacheHits.get();
+  }
+
+  public int getCachedTemplates() {
+    if (templateCache == null) {
+      return 0;
+    }
+    return templateCache.size();
+  }
+
+  public long getQueryExpands() {
+    return expands.get();
+  }
+
+  public long getMeanQueryExpandTime() {
+    return mean(expandTime, expands);
+  }
+
+  public long getQueryExecutes() {
+    return executes.get();
+  }
+
+  public long getMeanQueryExecuteTime() {
+    return mean(executeTime, executes);
+  }
+
+  public void reset() {
+    compiles.set(0);
+    compileTime.set(0);
+    cacheHits.set(0);
+    expands.set(0);
+    expandTime.set(0);
+    executes.set(0);
+    executeTime.set(0);
+  }
+
+  private long mean(AtomicLong time, AtomicLong count) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    return time.get() / n;
+  }
+}
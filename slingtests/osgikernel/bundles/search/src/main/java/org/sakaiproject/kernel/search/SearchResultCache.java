@@ -0,0 +1,724 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.sakaiproject.kernel.api.search.SearchConstants.MAX_CACHED_ROWS;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.util.ISO9075;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Caches the paths of the rows of search results, for search templates with a
+ * cache time to live. Results are keyed by the search node, the query and the
+ * principals of the user, so users who share the same principals and make the
+ * same query share the same results, and the user's own principal is part of that
+ * set. Keying on every principal is safe whatever the access control entries name,
+ * but it means that results are rarely shared between users; it pays for queries a
+ * user repeats, such as paging through their own messages, more than for queries
+ * many users make. Each result has a scope, the path an XPath query starts from or the root for
+ * any other query, and the names of the properties an XPath query tests. It is
+ * dropped when a node is added or removed below the scope, or one of those properties
+ * changes below it, which the cache learns of through JCR observation. Queries that
+ * search full text or follow references depend on any property anywhere, and are
+ * dropped by any change below the root. A change to an access control policy drops
+ * every result. A result whose query ran while a change that may alter it arrived is
+ * not cached; the recent changes are kept in a short log so that changes elsewhere do
+ * not stop results being cached. Until it is observing the repository, nothing is
+ * cached.
+ */
+public class SearchResultCache implements EventListener, SearchResultCacheMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+  private static final String JCR_ROOT = "/jcr:root";
+  private static final String POLICY_NODE = "/rep:policy";
+  /**
+   * Names of properties tested in an XPath query.
+   */
+  private static final Pattern PROPERTY_NAME = Pattern.compile("@([^\\s=!<>()\\[\\],|/'\"]+)");
+  /**
+   * Query functions whose result depends on properties the query does not name: a
+   * full text search of a node rather than of a property, or a dereference.
+   */
+  private static final Pattern ANY_PROPERTY = Pattern.compile(
+      "jcr:contains\\(\\s*[^@\\s]|jcr:deref|@\\*");
+  /**
+   * The default maximum number of results held.
+   */
+  public static final int DEFAULT_MAX_RESULTS = 1000;
+  /**
+   * The number of recent changes kept, a query that ran over more changes than this is
+   * not cached.
+   */
+  static final int MAX_CHANGES = 1000;
+
+  /**
+   * A change, to the node at a path or to a property, or to everything.
+   */
+  static class Change {
+    static final Change ALL = new Change(null, null);
+    /**
+     * The path of the node or property, null for everything.
+     */
+    final String path;
+    /**
+     * The name of the property, null for a node added or removed.
+     */
+    final String property;
+
+    Change(String path, String property) {
+      this.path = path;
+      this.property = property;
+    }
+
+    /**
+     * @return true if the change may alter a result with a scope that depends on the
+     *         properties, null for any property.
+     */
+    boolean affects(String scope, Set<String> properties) {
+      if (path == null) {
+        return true;
+      }
+      if (property == null) {
+        // a node moved into or out of the tree may hold the scope of a result.
+        return isWithin(path, scope) || isWithin(scope, path);
+      }
+      return isWithin(path, scope) && (properties == null || properties.contains(property));
+    }
+  }
+
+  /**
+   * The paths of a result, the scope it was filed under and the properties it depends
+   * on, null if it depends on any property.
+   */
+  static class CachedResult {
+    final String scope;
+    final Set<String> properties;
+    final List<String> paths;
+    final long expires;
+
+    CachedResult(String scope, Set<String> properties, List<String> paths, long expires) {
+      this.scope = scope;
+      this.properties = properties;
+      this.paths = paths;
+      this.expires = expires;
+    }
+
+    boolean isExpired(long now) {
+      return now > expires;
+    }
+
+    /**
+     * @param property
+     *          the name of a changed property, or null for a node added or removed.
+     * @return true if the change may alter the result.
+     */
+    boolean dependsOn(String property) {
+      return property == null || properties == null || properties.contains(property);
+    }
+  }
+
+  /**
+   * The hits and misses of one search template.
+   */
+  static class TemplateStatistics {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+  }
+
+  private final int maxResults;
+  private final ConcurrentMap<String, CachedResult> results = new ConcurrentHashMap<String, CachedResult>();
+  /**
+   * The keys of the results filed under each scope.
+   */
+  private final ConcurrentSkipListMap<String, Set<String>> scopes = new ConcurrentSkipListMap<String, Set<String>>();
+  private final ConcurrentMap<String, TemplateStatistics> statistics = new ConcurrentHashMap<String, TemplateStatistics>();
+  /**
+   * Incremented on every change, a result read while a change that may alter it
+   * arrived is not cached, as the query may have run before the change.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  /**
+   * The last {@link #MAX_CHANGES} changes, keyed by their generation.
+   */
+  private final ConcurrentSkipListMap<Long, Change> changes = new ConcurrentSkipListMap<Long, Change>();
+  private volatile boolean observing;
+  private Session session;
+
+  public SearchResultCache() {
+    this(DEFAULT_MAX_RESULTS);
+  }
+
+  /**
+   * @param maxResults
+   *          the maximum number of results to hold.
+   */
+  public SearchResultCache(int maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * @param templatePath
+   *          the path of the search node.
+   * @param query
+   *          the expanded query.
+   * @param language
+   *          the query language.
+   * @param userSession
+   *          the session of the user making the query.
+   * @return the key of the result of the query for the user, or null if the
+   *         principals of the user cannot be found, in which case the result may not
+   *         be cached. The key holds all the principals of the user rather than just
+   *         those named by access control entries, which would let more users share
+   *         a result but would have to be worked out again whenever a policy changes.
+   */
+  public String getKey(String templatePath, String query, String language,
+      Session userSession) {
+    Set<String> principals;
+    try {
+      principals = getPrincipals(userSession);
+    } catch (RepositoryException e) {
+      LOGGER.debug("Unable to find the principals of {} {} ", userSession.getUserID(), e
+          .getMessage());
+      return null;
+    }
+    if (principals == null) {
+      return null;
+    }
+    StringBuilder key = new StringBuilder(templatePath);
+    key.append('\n').append(language).append('\n');
+    for (String principal : principals) {
+      key.append(principal).append(',');
+    }
+    return key.append('\n').append(query).toString();
+  }
+
+  /**
+   * @return the sorted names of the principals of the user of the session, or null if
+   *         the session cannot say.
+   * @throws RepositoryException
+   */
+  static Set<String> getPrincipals(Session userSession) throws RepositoryException {
+    if (!(userSession instanceof JackrabbitSession)) {
+      return null;
+    }
+    Authorizable authorizable = ((JackrabbitSession) userSession).getUserManager()
+        .getAuthorizable(userSession.getUserID());
+    if (authorizable == null) {
+      return null;
+    }
+    Set<String> principals = new TreeSet<String>();
+    principals.add(authorizable.getPrincipal().getName());
+    for (Iterator<?> i = authorizable.memberOf(); i.hasNext();) {
+      principals.add(((Authorizable) i.next()).getPrincipal().getName());
+    }
+    return principals;
+  }
+
+  /**
+   * @param templatePath
+   *          the path of the search node, the hit or miss is counted against it.
+   * @param key
+   *          the key of the result.
+   * @return rows over the cached paths of the result, or null if it is not cached.
+   */
+  public RowIterator get(String templatePath, String key) {
+    CachedResult result = results.get(key);
+    if (result != null && result.isExpired(System.currentTimeMillis())) {
+      removeResult(key, result);
+      result = null;
+    }
+    TemplateStatistics templateStatistics = getStatistics(templatePath);
+    if (result == null) {
+      templateStatistics.misses.incrementAndGet();
+      return null;
+    }
+    templateStatistics.hits.incrementAndGet();
+    return new CachedRowIterator(result.paths);
+  }
+
+  /**
+   * Cache the paths of the rows of a result, if the size of the result is known and
+   * no larger than {@link org.sakaiproject.kernel.api.search.SearchConstants#MAX_CACHED_ROWS}.
+   *
+   * @param key
+   *          the key of the result.
+   * @param query
+   *          the expanded query, which gives the scope of the result.
+   * @param language
+   *          the query language.
+   * @param rows
+   *          the rows of the result.
+   * @param ttl
+   *          the time in ms the result may be cached for.
+   * @param startGeneration
+   *          the generation before the query was executed.
+   * @return rows to use in place of those passed in, which may have been read.
+   * @throws RepositoryException
+   */
+  public RowIterator put(String key, String query, String language, RowIterator rows,
+      long ttl, long startGeneration) throws RepositoryException {
+    long size = rows.getSize();
+    if (!observing || size < 0 || size > MAX_CACHED_ROWS) {
+      return rows;
+    }
+    List<String> paths = new ArrayList<String>((int) size);
+    while (rows.hasNext()) {
+      paths.add(rows.nextRow().getValue("jcr:path").getString());
+    }
+    paths = Collections.unmodifiableList(paths);
+    String scope = getScope(query, language);
+    Set<String> properties = getProperties(query, language);
+    if (isChangedSince(startGeneration, scope, properties) || !hasRoom()) {
+      return new CachedRowIterator(paths);
+    }
+    CachedResult result = new CachedResult(scope, properties, paths,
+        System.currentTimeMillis() + ttl);
+    results.put(key, result);
+    Set<String> keys = scopes.get(scope);
+    if (keys == null) {
+      keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      Set<String> existing = scopes.putIfAbsent(scope, keys);
+      if (existing != null) {
+        keys = existing;
+      }
+    }
+    keys.add(key);
+    // the scope may have been invalidated while the result was filed.
+    if (isChangedSince(startGeneration, scope, properties) || scopes.get(scope) != keys) {
+      results.remove(key, result);
+    }
+    return new CachedRowIterator(paths);
+  }
+
+  /**
+   * @param startGeneration
+   * @param scope
+   * @param properties
+   * @return true if a change that may alter a result with the scope and properties has
+   *         arrived since the generation, or it can't be told because the changes are
+   *         no longer in the log.
+   */
+  private boolean isChangedSince(long startGeneration, String scope, Set<String> properties) {
+    if (generation.get() == startGeneration) {
+      return false;
+    }
+    for (Change change : changes.tailMap(startGeneration, false).values()) {
+      if (change.affects(scope, properties)) {
+        return true;
+      }
+    }
+    // the changes read may not have gone back far enough.
+    return generation.get() - startGeneration > MAX_CHANGES;
+  }
+
+  /**
+   * Note a change in the log, before the results it alters are dropped, so that a result
+   * filed after they were dropped sees it.
+   *
+   * @param change
+   */
+  private void logChange(Change change) {
+    long changeGeneration = generation.incrementAndGet();
+    changes.put(changeGeneration, change);
+    changes.remove(changeGeneration - MAX_CHANGES);
+  }
+
+  /**
+   * @return true if the path is the scope or below it.
+   */
+  static boolean isWithin(String path, String scope) {
+    return "/".equals(scope) || path.equals(scope) || path.startsWith(scope + "/");
+  }
+
+  /**
+   * @return true if there is room for another result, once expired results are
+   *         purged.
+   */
+  private boolean hasRoom() {
+    if (results.size() < maxResults) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    for (Entry<String, CachedResult> e : results.entrySet()) {
+      if (e.getValue().isExpired(now)) {
+        removeResult(e.getKey(), e.getValue());
+      }
+    }
+    return results.size() < maxResults;
+  }
+
+  /**
+   * @param key
+   * @param result
+   */
+  private void removeResult(String key, CachedResult result) {
+    if (results.remove(key, result)) {
+      Set<String> keys = scopes.get(result.scope);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          scopes.remove(result.scope, keys);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param query
+   * @param language
+   * @return the path below which a change may alter the result of the query. For an
+   *         XPath query this is the path named before the first step that is not a
+   *         plain name, for anything else it is the root.
+   */
+  static String getScope(String query, String language) {
+    String q = query.trim();
+    if (q.startsWith(JCR_ROOT + "/")) {
+      q = q.substring(JCR_ROOT.length());
+    }
+    if (!Query.XPATH.equals(language) || !q.startsWith("/") || q.indexOf('|') >= 0
+        || ANY_PROPERTY.matcher(q).find()) {
+      return "/";
+    }
+    StringBuilder scope = new StringBuilder();
+    int i = 0;
+    while (i < q.length() && q.charAt(i) == '/') {
+      int end = q.indexOf('/', i + 1);
+      if (end < 0) {
+        end = q.length();
+      }
+      String step = q.substring(i + 1, end);
+      if (!isPlainName(step)) {
+        break;
+      }
+      scope.append('/').append(ISO9075.decode(step));
+      i = end;
+    }
+    if (scope.length() == 0) {
+      return "/";
+    }
+    return scope.toString();
+  }
+
+  /**
+   * @param query
+   * @param language
+   * @return the names of the properties a change to which may alter the result of the
+   *         query, or null if a change to any property may. For an XPath query these
+   *         are the properties it names and the node type properties, for anything
+   *         else any property.
+   */
+  static Set<String> getProperties(String query, String language) {
+    if (!Query.XPATH.equals(language) || ANY_PROPERTY.matcher(query).find()) {
+      return null;
+    }
+    Set<String> properties = new TreeSet<String>();
+    properties.add("jcr:primaryType");
+    properties.add("jcr:mixinTypes");
+    Matcher m = PROPERTY_NAME.matcher(query);
+    while (m.find()) {
+      properties.add(ISO9075.decode(m.group(1)));
+    }
+    return Collections.unmodifiableSet(properties);
+  }
+
+  /**
+   * @param step
+   * @return true if the step names a single node.
+   */
+  private static boolean isPlainName(String step) {
+    if (step.length() == 0) {
+      return false;
+    }
+    for (int i = 0; i < step.length(); i++) {
+      char c = step.charAt(i);
+      if (c == '*' || c == '[' || c == '(' || c == '@' || c == '.' || c == '\''
+          || c == '"' || Character.isWhitespace(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the current generation, to be passed to
+   *         {@link #put(String, String, String, RowIterator, long, long)}.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @return true if the cache is observing the repository.
+   */
+  public boolean isObserving() {
+    return observing;
+  }
+
+  /**
+   * Start observing the repository, after which results are cached.
+   *
+   * @param session
+   *          a session that can see the whole repository, it is kept until
+   *          {@link #stop()} and then logged out.
+   * @throws RepositoryException
+   */
+  public void start(Session session) throws RepositoryException {
+    this.session = session;
+    ObservationManager observationManager = session.getWorkspace().getObservationManager();
+    observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+    clear();
+    observing = true;
+    LOGGER.info("Caching search results ");
+  }
+
+  /**
+   * Stop observing the repository and empty the cache.
+   */
+  public void stop() {
+    observing = false;
+    clear();
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove search result listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc} Drops the results whose scope contains the change.
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        if (path.indexOf(POLICY_NODE) >= 0) {
+          clear();
+          continue;
+        }
+        int type = event.getType();
+        String property = null;
+        if (type != Event.NODE_ADDED && type != Event.NODE_REMOVED) {
+          property = path.substring(path.lastIndexOf('/') + 1);
+        }
+        logChange(new Change(path, property));
+        if (property == null) {
+          // a node moved into or out of the tree may hold the scope of a result.
+          String prefix = path.endsWith("/") ? path : path + "/";
+          String end = prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1);
+          for (String scope : scopes.subMap(prefix, end).keySet()) {
+            invalidateScope(scope, null);
+          }
+        }
+        String scope = path;
+        while (scope.length() > 0) {
+          invalidateScope(scope, property);
+          int i = scope.lastIndexOf('/');
+          if (i > 0) {
+            scope = scope.substring(0, i);
+          } else {
+            break;
+          }
+        }
+        invalidateScope("/", property);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to read event, clearing search results {} ", e.getMessage());
+        clear();
+      }
+    }
+  }
+
+  /**
+   * Drop the results filed under a scope that depend on a change.
+   *
+   * @param scope
+   * @param property
+   *          the name of the changed property, or null to drop every result.
+   */
+  private void invalidateScope(String scope, String property) {
+    if (property == null) {
+      Set<String> keys = scopes.remove(scope);
+      if (keys != null) {
+        for (String key : keys) {
+          results.remove(key);
+        }
+      }
+      return;
+    }
+    Set<String> keys = scopes.get(scope);
+    if (keys != null) {
+      for (String key : keys) {
+        CachedResult result = results.get(key);
+        if (result == null || result.dependsOn(property)) {
+          keys.remove(key);
+          if (result != null) {
+            results.remove(key, result);
+          }
+        }
+      }
+      if (keys.isEmpty()) {
+        scopes.remove(scope, keys);
+      }
+    }
+  }
+
+  /**
+   * @param templatePath
+   * @return the statistics of the template, created if it has none.
+   */
+  private TemplateStatistics getStatistics(String templatePath) {
+    TemplateStatistics templateStatistics = statistics.get(templatePath);
+    if (templateStatistics == null) {
+      templateStatistics = new TemplateStatistics();
+      TemplateStatistics existing = statistics.putIfAbsent(templatePath, templateStatistics);
+      if (existing != null) {
+        templateStatistics = existing;
+      }
+    }
+    return templateStatistics;
+  }
+
+  /**
+   * @param templatePath
+   * @return the fraction of requests for the template answered from the cache.
+   */
+  public double getHitRatio(String templatePath) {
+    TemplateStatistics templateStatistics = statistics.get(templatePath);
+    if (templateStatistics == null) {
+      return 0.0;
+    }
+    return ratio(templateStatistics.hits.get(), templateStatistics.misses.get());
+  }
+
+  private double ratio(long hits, long misses) {
+    if (hits + misses == 0) {
+      return 0.0;
+    }
+    return (double) hits / (hits + misses);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getCachedResults()
+   */
+  public int getCachedResults() {
+    return results.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getHits()
+   */
+  public long getHits() {
+    long hits = 0;
+    for (TemplateStatistics templateStatistics : statistics.values()) {
+      hits += templateStatistics.hits.get();
+    }
+    return hits;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getMisses()
+   */
+  public long getMisses() {
+    long misses = 0;
+    for (TemplateStatistics templateStatistics : statistics.values()) {
+      misses += templateStatistics.misses.get();
+    }
+    return misses;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#getTemplateHitRatios()
+   */
+  public String[] getTemplateHitRatios() {
+    Map<String, TemplateStatistics> sorted = new TreeMap<String, TemplateStatistics>(
+        statistics);
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, TemplateStatistics> e : sorted.entrySet()) {
+      long hits = e.getValue().hits.get();
+      long misses = e.getValue().misses.get();
+      lines.add(e.getKey() + " hits=" + hits + " misses=" + misses + " ratio="
+          + String.format("%.3f", ratio(hits, misses)));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#clear()
+   */
+  public void clear() {
+    logChange(Change.ALL);
+    scopes.clear();
+    results.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.kernel.search.SearchResultCacheMBean#reset()
+   */
+  public void reset() {
+    statistics.clear();
+  }
+
+}
@@ -15,37 +15,33 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.kernel.site;
-
-import java.util.Map;
+package org.sakaiproject.kernel.search;
 
 /**
- * 
+ * The JMX view of {@link SearchResultCache}.
  */
-public class MembershipTree {
+public interface SearchResultCacheMBean {
+
+  int getCachedResults();
+
+  long getHits();
 
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
+  long getMisses();
 
   /**
-   * @param groups
-   * @param users
+   * @return one line for each cached search template, its path, hits, misses and hit
+   *         ratio.
    */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
+  String[] getTemplateHitRatios();
+
   /**
-   * @return the groups
+   * Drop all cached results.
    */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
+  void clear();
+
   /**
-   * @return the users
+   * Reset all counters to zero.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  void reset();
 
 }
@@ -20,23 +20,25 @@ package org.sakaiproject.kernel.search;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_QUERY;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_RESULTS;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_TOTALS;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_TRUNCATED;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_NAME;
 import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_COUNT;
+import static org.sakaiproject.kernel.api.search.SearchConstants.CURSOR_PROPERTY;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_ESTIMATED;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_NEXT;
+import static org.sakaiproject.kernel.api.search.SearchConstants.MAX_STREAMING_ITEMS;
+import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_BATCH_PROCESSOR_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.kernel.api.search.SearchConstants.REG_PROVIDER_NAMES;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE_CHILDREN;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SEARCH_RESULT_PROCESSOR;
 import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL_EXACT;
+import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL_NONE;
 
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -47,6 +49,7 @@ import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
@@ -57,32 +60,40 @@ import org.sakaiproject.kernel.api.doc.ServiceResponse;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.search.Aggregator;
 import org.sakaiproject.kernel.api.search.SearchBatchResultProcessor;
-import org.sakaiproject.kernel.api.search.SearchConstants;
 import org.sakaiproject.kernel.api.search.SearchPropertyProvider;
 import org.sakaiproject.kernel.api.search.SearchResultProcessor;
 import org.sakaiproject.kernel.search.processors.NodeSearchBatchResultProcessor;
 import org.sakaiproject.kernel.search.processors.NodeSearchResultProcessor;
-import org.sakaiproject.kernel.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -111,6 +122,8 @@ import javax.servlet.http.HttpServletResponse;
  *                interface="org.sakaiproject.kernel.api.search.SearchPropertyProvider"
  *                bind="bindSearchPropertyProvider" unbind="unbindSearchPropertyProvider"
  *                cardinality="0..n" policy="dynamic"
+ * @scr.reference name="SlingRepository" interface="org.apache.sling.jcr.api.SlingRepository"
+ *                bind="bindSlingRepository" unbind="unbindSlingRepository"
  */
 @ServiceDocumentation(name = "Search Servlet", shortDescription = "The Search servlet provides search results.", description = {
     "The Search Servlet responds with search results in json form in response to GETs on search urls. Those URLs are resolved "
@@ -127,7 +140,15 @@ import javax.servlet.http.HttpServletResponse;
         + "        -sakai:propertyprovider - the name of a Property Provider used to populate the properties \n"
         + "                                  to be used in the query \n"
         + "        -sakai:batchresultprocessor - the name of a SearchResultProcessor to be used processing \n"
-        + "                                      the result set.\n" + "</pre>",
+        + "                                      the result set.\n"
+        + "        -sakai:streaming - if true, stream the results and page with a cursor rather \n"
+        + "                           than a page number.\n"
+        + "        -sakai:keyset-property - for streaming searches, a unique property that orders the \n"
+        + "                                 results, the template selects rows after {_cursor}.\n"
+        + "        -sakai:total - for streaming searches, exact, estimate (the default) or none.\n"
+        + "        -sakai:cache-ttl - for other searches, the number of seconds the result paths \n"
+        + "                           may be cached for, shared by users with the same principals.\n"
+        + "</pre>",
     "For example:",
     "<pre>" + "/var/search/content\n" + "{  \n"
         + "   \"sakai:query-language\": \"xpath\", \n"
@@ -167,6 +188,8 @@ import javax.servlet.http.HttpServletResponse;
         + "  ]\n" + "}\n" + "</pre>" }, parameters = {
     @ServiceParameter(name = "items", description = { "The number of items per page in the result set." }),
     @ServiceParameter(name = "page", description = { "The page number to start listing the results on." }),
+    @ServiceParameter(name = "cursor", description = { "For streaming searches, the next token of the "
+        + "previous page, in place of the page number." }),
     @ServiceParameter(name = "*", description = { "Any other parameters may be used by the template." }) }, response = {
     @ServiceResponse(code = 200, description = "A search response simular to the above will be emitted "),
     @ServiceResponse(code = 500, description = "Any error with the html containing the error")
@@ -179,6 +202,18 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   private static final long serialVersionUID = 4130126304725079596L;
   private static final Logger LOGGER = LoggerFactory.getLogger(SearchServlet.class);
+  /**
+   * The number of rows a streaming search writes between flushes of the response.
+   */
+  private static final int STREAMING_FLUSH_ROWS = 50;
+  /**
+   * The name the search metrics are registered under in JMX.
+   */
+  public static final String METRICS_OBJECT_NAME = "org.sakaiproject.kernel.search:type=SearchMetrics";
+  /**
+   * The name the search result cache is registered under in JMX.
+   */
+  public static final String RESULT_CACHE_OBJECT_NAME = "org.sakaiproject.kernel.search:type=SearchResultCache";
 
   private Map<String, SearchBatchResultProcessor> batchProcessors = new ConcurrentHashMap<String, SearchBatchResultProcessor>();
   private Map<Long, SearchBatchResultProcessor> batchProcessorsById = new ConcurrentHashMap<Long, SearchBatchResultProcessor>();
@@ -194,6 +229,22 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private List<ServiceReference> delayedPropertyReferences = new ArrayList<ServiceReference>();
   private List<ServiceReference> delayedBatchReferences = new ArrayList<ServiceReference>();
 
+  private SearchTemplateCache templateCache = new SearchTemplateCache();
+  private FacetIndex facetIndex = new FacetIndex();
+  private SearchResultCache resultCache = new SearchResultCache();
+  /**
+   * Counts facets from the index in parallel, threads are only started when used.
+   */
+  private ExecutorService facetExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+      .availableProcessors(), new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "SearchFacetCount");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+  private SlingRepository slingRepository;
+
   protected void output(JSONWriter write, NodeIterator resultNodes, long start, long end)
       throws RepositoryException, JSONException {
   }
@@ -204,42 +255,77 @@ public class SearchServlet extends SlingAllMethodsServlet {
     try {
       Resource resource = request.getResource();
       Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
-        String queryTemplate = node.getProperty(SAKAI_QUERY_TEMPLATE).getString();
-        String queryLanguage = Query.SQL;
-        if (node.hasProperty(SAKAI_QUERY_LANGUAGE)) {
-          queryLanguage = node.getProperty(SAKAI_QUERY_LANGUAGE).getString();
-        }
-        String propertyProviderName = null;
-        if (node.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-          propertyProviderName = node.getProperty(SAKAI_PROPERTY_PROVIDER).getString();
+      if (node == null) {
+        return;
+      }
+      SearchTemplate template = templateCache.get(node);
+      if (template != null) {
+        Aggregator aggregator = null;
+        if (template.getAggregateProperties() != null) {
+          // the index cannot tell which children the user may read.
+          if (template.isAggregateIndexed() && !template.isAggregateChildren()
+              && facetIndex.isObserving()
+              && facetIndex.index(template.getAggregateProperties())) {
+            aggregator = new IndexedFacetCount(facetIndex, template.getAggregateProperties(),
+                facetExecutor);
+          } else {
+            aggregator = new FacetCount(template.getAggregateProperties(), template
+                .isAggregateChildren());
+          }
         }
 
-        Aggregator aggregator = null;
-        if ( node.hasProperty(SAKAI_AGGREGATE)) {
-          Value[] aggregatePropertyValues = JcrUtils.getValues(node, SAKAI_AGGREGATE);
-          String[] aggregateProperties = new String[aggregatePropertyValues.length];
-          for ( int i = 0; i < aggregatePropertyValues.length; i++  ) {
-            aggregateProperties[i] = aggregatePropertyValues[i].getString();
+        // Default processors
+        NodeSearchBatchResultProcessor defaultSearchBatchProcessor = new NodeSearchBatchResultProcessor();
+        NodeSearchResultProcessor defaultSearchProcessor = new NodeSearchResultProcessor();
+
+        SearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
+        if (template.getBatchProcessorName() != null) {
+          searchBatchProcessor = batchProcessors.get(template.getBatchProcessorName());
+          if (searchBatchProcessor == null) {
+            searchBatchProcessor = defaultSearchBatchProcessor;
           }
-          boolean withChildren = false;
-          if ( node.hasProperty(SAKAI_AGGREGATE_CHILDREN) ) {
-            withChildren = "true".equals(node.getProperty(SAKAI_AGGREGATE_CHILDREN).getString());
+        }
+
+        SearchResultProcessor searchProcessor = defaultSearchProcessor;
+        if (template.getResultProcessorName() != null) {
+          searchProcessor = processors.get(template.getResultProcessorName());
+          if (searchProcessor == null) {
+            searchProcessor = defaultSearchProcessor;
           }
-          aggregator = new AggregateCount(aggregateProperties, withChildren);
         }
 
+        // a batch processor works over the whole result set, so cannot be streamed.
+        if (searchBatchProcessor == defaultSearchBatchProcessor && template.isStreaming()) {
+          doStreamingGet(request, response, node, template, aggregator, searchProcessor);
+          return;
+        }
 
         int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
         int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-        String queryString = processQueryTemplate(request, queryTemplate, queryLanguage,
-            propertyProviderName);
+        String queryString = expandQuery(request, template, null);
 
-        LOGGER.debug("Posting Query {} ", queryString);
-        QueryManager queryManager = node.getSession().getWorkspace().getQueryManager();
-        Query query = queryManager.createQuery(queryString, queryLanguage);
-        QueryResult result = query.execute();
+        RowIterator rowIterator = null;
+        String cacheKey = null;
+        if (template.getCacheTtl() > 0 && resultCache.isObserving()) {
+          cacheKey = resultCache.getKey(node.getPath(), queryString, template
+              .getQueryLanguage(), node.getSession());
+          if (cacheKey != null) {
+            rowIterator = resultCache.get(node.getPath(), cacheKey);
+          }
+        }
+        if (rowIterator == null) {
+          LOGGER.debug("Posting Query {} ", queryString);
+          long generation = resultCache.getGeneration();
+          QueryResult result = executeQuery(node, queryString, template.getQueryLanguage());
+          rowIterator = result.getRows();
+          if (cacheKey != null) {
+            rowIterator = resultCache.put(cacheKey, queryString, template.getQueryLanguage(),
+                rowIterator, template.getCacheTtl(), generation);
+          }
+        } else {
+          LOGGER.debug("Cached Query {} ", queryString);
+        }
 
         JSONWriter write = new JSONWriter(response.getWriter());
         write.object();
@@ -247,36 +333,12 @@ public class SearchServlet extends SlingAllMethodsServlet {
         write.value(queryString);
         write.key(PARAMS_ITEMS_PER_PAGE);
         write.value(nitems);
-        RowIterator rowIterator = result.getRows();
         write.key(TOTAL);
         long total = rowIterator.getSize();
         write.value(total);
         write.key(JSON_RESULTS);
         write.array();
         
-        // Default processors
-        NodeSearchBatchResultProcessor defaultSearchBatchProcessor = new NodeSearchBatchResultProcessor();
-        NodeSearchResultProcessor defaultSearchProcessor = new NodeSearchResultProcessor();
-        
-
-        SearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SearchConstants.SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = batchProcessors.get(node.getProperty(
-              SearchConstants.SAKAI_BATCHRESULTPROCESSOR).getString());
-          if (searchBatchProcessor == null) {
-            searchBatchProcessor = defaultSearchBatchProcessor;
-          }
-        }
-
-        SearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = processors.get(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
-          if (searchProcessor == null) {
-            searchProcessor = defaultSearchProcessor;
-          }
-        }
-
         // if we didnt get a total,
         if (total == -1) {
           total = Integer.MAX_VALUE;
@@ -300,25 +362,7 @@ public class SearchServlet extends SlingAllMethodsServlet {
           }
         }
         write.endArray();
-        if ( aggregator != null ) {
-          Map<String, Map<String, Integer>> aggregate = aggregator.getAggregate();
-          write.key(JSON_TOTALS);
-          write.object();
-          for ( Entry<String, Map<String,Integer>> t : aggregate.entrySet()) {
-            write.key(t.getKey());
-            write.array();
-            for ( Entry<String, Integer> v : t.getValue().entrySet() ) {
-             write.object();
-             write.key(JSON_NAME);
-             write.value(v.getKey());
-             write.key(JSON_COUNT);
-             write.value(v.getValue());
-             write.endObject();
-            }
-            write.endArray();
-          }
-          write.endObject();
-        }
+        writeAggregate(write, aggregator);
         write.endObject();
       }
     } catch (RepositoryException e) {
@@ -330,6 +374,179 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Stream the results of the search to the response as they are read. Only one
+   * page of rows is read, the page size is bounded, and the writer is flushed as
+   * rows are written so the response is not buffered. The next page is found from
+   * a cursor rather than a page number. If the search has a keyset property the
+   * query template selects the rows after the cursor, otherwise the rows already
+   * returned are skipped.
+   *
+   * @throws RepositoryException
+   * @throws JSONException
+   * @throws IOException
+   */
+  protected void doStreamingGet(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Node node, SearchTemplate template,
+      Aggregator aggregator, SearchResultProcessor searchProcessor)
+      throws RepositoryException, JSONException, IOException {
+    int nitems = Math.max(0, Math.min(intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        25), MAX_STREAMING_ITEMS));
+    String keysetProperty = template.getKeysetProperty();
+    String totalMode = template.getTotalMode();
+
+    RequestParameter cursorParameter = request.getRequestParameter(PARAMS_CURSOR);
+    SearchCursor cursor = null;
+    if (cursorParameter != null) {
+      cursor = SearchCursor.parse(cursorParameter.getString());
+    }
+    Map<String, String> cursorProperties = new HashMap<String, String>();
+    long seen = 0;
+    long skip = 0;
+    // rows counted by the result set start after the key of a keyed cursor.
+    long base = 0;
+    if (cursor != null) {
+      seen = cursor.getOffset();
+      if (keysetProperty != null && cursor.isKeyed()) {
+        cursorProperties.put(CURSOR_PROPERTY, cursor.getKey());
+        base = seen;
+      } else {
+        skip = seen;
+      }
+    }
+
+    String queryString = expandQuery(request, template, cursorProperties);
+    LOGGER.debug("Streaming Query {} ", queryString);
+    RowIterator rowIterator = executeQuery(node, queryString, template.getQueryLanguage())
+        .getRows();
+
+    PrintWriter writer = response.getWriter();
+    JSONWriter write = new JSONWriter(writer);
+    write.object();
+    write.key(JSON_QUERY);
+    write.value(queryString);
+    write.key(PARAMS_ITEMS_PER_PAGE);
+    write.value(nitems);
+    write.key(JSON_RESULTS);
+    write.array();
+    if (skip > 0) {
+      try {
+        rowIterator.skip(skip);
+      } catch (NoSuchElementException e) {
+        // the cursor is past the end, there are no more rows.
+        while (rowIterator.hasNext()) {
+          rowIterator.nextRow();
+        }
+      }
+    }
+    Session session = null;
+    String lastKey = null;
+    int n = 0;
+    while (n < nitems && rowIterator.hasNext()) {
+      Row row = rowIterator.nextRow();
+      searchProcessor.writeNode(request, write, aggregator, row);
+      if (keysetProperty != null) {
+        if (session == null) {
+          session = request.getResourceResolver().adaptTo(Session.class);
+        }
+        lastKey = getKeysetValue(session, row, keysetProperty);
+      }
+      n++;
+      if (n % STREAMING_FLUSH_ROWS == 0) {
+        writer.flush();
+      }
+    }
+    write.endArray();
+    seen += n;
+
+    boolean more = rowIterator.hasNext();
+    if (more) {
+      write.key(JSON_NEXT);
+      write.value(new SearchCursor(seen, lastKey).toString());
+    }
+
+    if (TOTAL_EXACT.equals(totalMode)) {
+      long size = rowIterator.getSize();
+      long total;
+      if (size >= 0) {
+        total = base + size;
+      } else {
+        // count the rest of the rows without loading their nodes.
+        total = seen;
+        while (rowIterator.hasNext()) {
+          rowIterator.nextRow();
+          total++;
+        }
+      }
+      write.key(TOTAL);
+      write.value(total);
+    } else if (!TOTAL_NONE.equals(totalMode)) {
+      write.key(TOTAL);
+      write.value(more ? seen + 1 : seen);
+      write.key(JSON_ESTIMATED);
+      write.value(more);
+    }
+    writeAggregate(write, aggregator);
+    write.endObject();
+  }
+
+  /**
+   * @return the keyset value of the row, read from the row if it is a column of the
+   *         query and from the node if not, or null if the row has no value.
+   * @throws RepositoryException
+   */
+  private String getKeysetValue(Session session, Row row, String keysetProperty)
+      throws RepositoryException {
+    Value value = null;
+    try {
+      value = row.getValue(keysetProperty);
+    } catch (RepositoryException e) {
+      LOGGER.debug("{} is not a column of the query ", keysetProperty);
+    }
+    if (value == null && session != null) {
+      Node n = (Node) session.getItem(row.getValue("jcr:path").getString());
+      if (n.hasProperty(keysetProperty)) {
+        value = n.getProperty(keysetProperty).getValue();
+      }
+    }
+    if (value == null) {
+      return null;
+    }
+    return value.getString();
+  }
+
+  /**
+   * Write the totals of the aggregator, if there is one.
+   *
+   * @throws JSONException
+   */
+  private void writeAggregate(JSONWriter write, Aggregator aggregator)
+      throws JSONException {
+    if ( aggregator != null ) {
+      Map<String, Map<String, Integer>> aggregate = aggregator.getAggregate();
+      write.key(JSON_TOTALS);
+      write.object();
+      for ( Entry<String, Map<String,Integer>> t : aggregate.entrySet()) {
+        write.key(t.getKey());
+        write.array();
+        for ( Entry<String, Integer> v : t.getValue().entrySet() ) {
+         write.object();
+         write.key(JSON_NAME);
+         write.value(v.getKey());
+         write.key(JSON_COUNT);
+         write.value(v.getValue());
+         write.endObject();
+        }
+        write.endArray();
+      }
+      if (aggregator.isTruncated()) {
+        write.key(JSON_TRUNCATED);
+        write.value(true);
+      }
+      write.endObject();
+    }
+  }
+
   private int intRequestParameter(SlingHttpServletRequest request, String paramName,
       int defaultVal) {
     RequestParameter param = request.getRequestParameter(paramName);
@@ -358,60 +575,62 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   protected String processQueryTemplate(SlingHttpServletRequest request,
       String queryTemplate, String queryLanguage, String propertyProviderName) {
-    Map<String, String> propertiesMap = loadUserProperties(request, propertyProviderName);
+    return processQueryTemplate(request, queryTemplate, queryLanguage, propertyProviderName,
+        null);
+  }
 
-    StringBuilder sb = new StringBuilder();
-    boolean escape = false;
-    int vstart = -1;
-    char[] ca = queryTemplate.toCharArray();
-    String defaultValue = null;
-    for (int i = 0; i < ca.length; i++) {
-      char c = ca[i];
-      if (escape) {
-        sb.append(c);
-        escape = false;
-      } else if (vstart >= 0) {
-        if (c == '}') {
-          String v = new String(ca, vstart + 1, i - vstart - 1);
-          defaultValue = null;
-          // Take care of default values
-          if (v.contains("|")) {
-            String[] val = v.split("\\|");
-            v = val[0];
-            defaultValue = val[1];
-          }
-          if (v.startsWith("_")) {
-            String value = propertiesMap.get(v);
-            if (value != null) {
-              sb.append(escapeString(value, queryLanguage));
-            } else if (value == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          } else {
+  /**
+   * @param extraProperties
+   *          properties, named with a leading _, available to the template in addition
+   *          to the user properties. May be null.
+   * @see #processQueryTemplate(SlingHttpServletRequest, String, String, String)
+   */
+  protected String processQueryTemplate(SlingHttpServletRequest request,
+      String queryTemplate, String queryLanguage, String propertyProviderName,
+      Map<String, String> extraProperties) {
+    Map<String, String> propertiesMap = loadUserProperties(request, propertyProviderName);
+    if (extraProperties != null) {
+      propertiesMap.putAll(extraProperties);
+    }
+    return new QueryTemplate(queryTemplate, queryLanguage).expand(request, propertiesMap);
+  }
 
-            RequestParameter rp = request.getRequestParameter(v);
-            if (rp != null) {
-              sb.append(escapeString(rp.getString(), queryLanguage));
-            } else if (rp == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          }
-          vstart = -1;
-        }
-      } else {
-        switch (c) {
-        case '{':
-          vstart = i;
-          break;
-        case '\\':
-          escape = true;
-          break;
-        default:
-          sb.append(c);
-        }
-      }
+  /**
+   * Expand the compiled query template of a search for the request.
+   *
+   * @param extraProperties
+   *          properties, named with a leading _, available to the template in addition
+   *          to the user properties. May be null.
+   * @return the query.
+   */
+  protected String expandQuery(SlingHttpServletRequest request, SearchTemplate template,
+      Map<String, String> extraProperties) {
+    long start = System.nanoTime();
+    Map<String, String> propertiesMap = loadUserProperties(request, template
+        .getPropertyProviderName());
+    if (extraProperties != null) {
+      propertiesMap.putAll(extraProperties);
     }
-    return sb.toString();
+    String queryString = template.getQueryTemplate().expand(request, propertiesMap);
+    templateCache.getMetrics().queryExpanded(System.nanoTime() - start);
+    return queryString;
+  }
+
+  /**
+   * Execute a query as the user of the search node, and time it. JCR queries belong
+   * to the session that created them, so they are created for each request.
+   *
+   * @return the result of the query.
+   * @throws RepositoryException
+   */
+  private QueryResult executeQuery(Node node, String queryString, String queryLanguage)
+      throws RepositoryException {
+    long start = System.nanoTime();
+    QueryManager queryManager = node.getSession().getWorkspace().getQueryManager();
+    Query query = queryManager.createQuery(queryString, queryLanguage);
+    QueryResult result = query.execute();
+    templateCache.getMetrics().queryExecuted(System.nanoTime() - start);
+    return result;
   }
 
   /**
@@ -442,20 +661,6 @@ public class SearchServlet extends SlingAllMethodsServlet {
     return propertiesMap;
   }
 
-  private String escapeString(String value, String queryLanguage) {
-    String escaped = null;
-    if (value != null) {
-      if (queryLanguage.equals(Query.XPATH) || queryLanguage.equals(Query.SQL)) {
-        // See JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2
-        escaped = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'", "\\\\'")
-            .replaceAll("'", "''");
-      } else {
-        LOGGER.error("Unknown query language: " + queryLanguage);
-      }
-    }
-    return escaped;
-  }
-
   protected void bindSearchResultProcessor(ServiceReference serviceReference) {
     synchronized (delayedReferences) {
       if (osgiComponentContext == null) {
@@ -655,6 +860,80 @@ public class SearchServlet extends SlingAllMethodsServlet {
       }
       delayedPropertyReferences.clear();
     }
+    if (slingRepository != null) {
+      try {
+        templateCache.start(slingRepository.loginAdministrative(null));
+        facetIndex.start(slingRepository);
+        resultCache.start(slingRepository.loginAdministrative(null));
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to observe the repository, search templates and results "
+            + "will not be cached {} ", e.getMessage());
+      }
+    }
+    registerMBean(templateCache.getMetrics(), METRICS_OBJECT_NAME);
+    registerMBean(resultCache, RESULT_CACHE_OBJECT_NAME);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    templateCache.stop();
+    facetIndex.stop();
+    resultCache.stop();
+    facetExecutor.shutdown();
+    unregisterMBean(METRICS_OBJECT_NAME);
+    unregisterMBean(RESULT_CACHE_OBJECT_NAME);
+  }
+
+  /**
+   * @param mbean
+   * @param objectName
+   */
+  private void registerMBean(Object mbean, String objectName) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(objectName);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(mbean, name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} {} ", objectName, e.getMessage());
+    }
+  }
+
+  /**
+   * @param objectName
+   */
+  private void unregisterMBean(String objectName) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(objectName);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister {} {} ", objectName, e.getMessage());
+    }
+  }
+
+  protected void bindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = slingRepository;
+  }
+
+  protected void unbindSlingRepository(SlingRepository slingRepository) {
+    this.slingRepository = null;
+  }
+
+  /**
+   * @return the cache of compiled search templates.
+   */
+  protected SearchTemplateCache getTemplateCache() {
+    return templateCache;
+  }
+
+  /**
+   * @return the cache of search results.
+   */
+  protected SearchResultCache getResultCache() {
+    return resultCache;
   }
 
 }
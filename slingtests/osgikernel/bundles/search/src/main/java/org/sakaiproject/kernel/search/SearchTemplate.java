@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE_CHILDREN;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE_INDEX;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_CACHE_TTL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_KEYSET_PROPERTY;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_STREAMING;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_TOTAL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL_ESTIMATE;
+
+import org.sakaiproject.kernel.util.JcrUtils;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+
+/**
+ * The properties of a search node, read once and held with the compiled query
+ * template.
+ */
+public class SearchTemplate {
+
+  private QueryTemplate queryTemplate;
+  private String queryLanguage = Query.SQL;
+  private String propertyProviderName;
+  private String batchProcessorName;
+  private String resultProcessorName;
+  private String[] aggregateProperties;
+  private boolean aggregateChildren;
+  private boolean aggregateIndexed;
+  private boolean streaming;
+  private String keysetProperty;
+  private String totalMode = TOTAL_ESTIMATE;
+  private long cacheTtl;
+
+  /**
+   * @param node
+   *          the search node.
+   * @return the template, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public static SearchTemplate load(Node node) throws RepositoryException {
+    if (!node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      return null;
+    }
+    SearchTemplate template = new SearchTemplate();
+    String queryTemplate = node.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    if (node.hasProperty(SAKAI_QUERY_LANGUAGE)) {
+      template.queryLanguage = node.getProperty(SAKAI_QUERY_LANGUAGE).getString();
+    }
+    template.queryTemplate = new QueryTemplate(queryTemplate, template.queryLanguage);
+    if (node.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
+      template.propertyProviderName = node.getProperty(SAKAI_PROPERTY_PROVIDER).getString();
+    }
+    if (node.hasProperty(SAKAI_AGGREGATE)) {
+      Value[] aggregatePropertyValues = JcrUtils.getValues(node, SAKAI_AGGREGATE);
+      template.aggregateProperties = new String[aggregatePropertyValues.length];
+      for (int i = 0; i < aggregatePropertyValues.length; i++) {
+        template.aggregateProperties[i] = aggregatePropertyValues[i].getString();
+      }
+      if (node.hasProperty(SAKAI_AGGREGATE_CHILDREN)) {
+        template.aggregateChildren = "true".equals(node.getProperty(
+            SAKAI_AGGREGATE_CHILDREN).getString());
+      }
+      if (node.hasProperty(SAKAI_AGGREGATE_INDEX)) {
+        template.aggregateIndexed = "true".equals(node.getProperty(SAKAI_AGGREGATE_INDEX)
+            .getString());
+      }
+    }
+    if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
+      template.batchProcessorName = node.getProperty(SAKAI_BATCHRESULTPROCESSOR)
+          .getString();
+    }
+    if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
+      template.resultProcessorName = node.getProperty(SAKAI_RESULTPROCESSOR).getString();
+    }
+    if (node.hasProperty(SAKAI_STREAMING)) {
+      template.streaming = "true".equals(node.getProperty(SAKAI_STREAMING).getString());
+    }
+    if (template.streaming) {
+      if (node.hasProperty(SAKAI_KEYSET_PROPERTY)) {
+        template.keysetProperty = node.getProperty(SAKAI_KEYSET_PROPERTY).getString();
+      }
+      if (node.hasProperty(SAKAI_TOTAL)) {
+        template.totalMode = node.getProperty(SAKAI_TOTAL).getString();
+      }
+    } else if (node.hasProperty(SAKAI_CACHE_TTL)) {
+      template.cacheTtl = node.getProperty(SAKAI_CACHE_TTL).getLong() * 1000L;
+    }
+    return template;
+  }
+
+  /**
+   * @return the compiled query template.
+   */
+  public QueryTemplate getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  /**
+   * @return the query language, SQL if the node does not say.
+   */
+  public String getQueryLanguage() {
+    return queryLanguage;
+  }
+
+  /**
+   * @return the name of the property provider, or null.
+   */
+  public String getPropertyProviderName() {
+    return propertyProviderName;
+  }
+
+  /**
+   * @return the name of the batch result processor, or null.
+   */
+  public String getBatchProcessorName() {
+    return batchProcessorName;
+  }
+
+  /**
+   * @return the name of the result processor, or null.
+   */
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the properties to aggregate, or null if the search does not aggregate.
+   */
+  public String[] getAggregateProperties() {
+    return aggregateProperties;
+  }
+
+  /**
+   * @return true if child nodes of the results are aggregated.
+   */
+  public boolean isAggregateChildren() {
+    return aggregateChildren;
+  }
+
+  /**
+   * @return true if the aggregate is counted from the facet index.
+   */
+  public boolean isAggregateIndexed() {
+    return aggregateIndexed;
+  }
+
+  /**
+   * @return true if the results are streamed.
+   */
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+   * @return the keyset property of a streaming search, or null.
+   */
+  public String getKeysetProperty() {
+    return keysetProperty;
+  }
+
+  /**
+   * @return how a streaming search reports its total.
+   */
+  public String getTotalMode() {
+    return totalMode;
+  }
+
+  /**
+   * @return the time in ms the results may be cached for, 0 if they are not cached.
+   */
+  public long getCacheTtl() {
+    return cacheTtl;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * Holds the compiled {@link SearchTemplate} of each search node by path. A template
+ * is dropped when the node or any of its properties change, which the cache learns
+ * of through JCR observation. Until it is observing the repository, the cache
+ * cannot tell when a template is stale, so it compiles the template on every
+ * request.
+ */
+public class SearchTemplateCache implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchTemplateCache.class);
+  private static final int EVENT_TYPES = Event.NODE_REMOVED | Event.PROPERTY_ADDED
+      | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+  private final ConcurrentMap<String, SearchTemplate> templates = new ConcurrentHashMap<String, SearchTemplate>();
+  /**
+   * Incremented on every change, a template compiled while a change arrived is not
+   * cached, as it may have read the node before the change.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final SearchMetrics metrics = new SearchMetrics(this);
+  private volatile boolean observing;
+  private Session session;
+
+  /**
+   * @param node
+   *          the search node.
+   * @return the template of the node, or null if the node has no query template.
+   * @throws RepositoryException
+   */
+  public SearchTemplate get(Node node) throws RepositoryException {
+    if (!observing) {
+      return compile(node);
+    }
+    String path = node.getPath();
+    SearchTemplate template = templates.get(path);
+    if (template != null) {
+      metrics.templateCacheHit();
+      return template;
+    }
+    long g = generation.get();
+    template = compile(node);
+    if (template != null && observing) {
+      templates.put(path, template);
+      if (generation.get() != g) {
+        templates.remove(path, template);
+      }
+    }
+    return template;
+  }
+
+  /**
+   * @param node
+   * @return the compiled template.
+   * @throws RepositoryException
+   */
+  private SearchTemplate compile(Node node) throws RepositoryException {
+    long start = System.nanoTime();
+    SearchTemplate template = SearchTemplate.load(node);
+    metrics.templateCompiled(System.nanoTime() - start);
+    return template;
+  }
+
+  /**
+   * Start observing the repository, after which templates are cached.
+   *
+   * @param session
+   *          a session that can see the search nodes, it is kept until
+   *          {@link #stop()} and then logged out.
+   * @throws RepositoryException
+   */
+  public void start(Session session) throws RepositoryException {
+    this.session = session;
+    ObservationManager observationManager = session.getWorkspace().getObservationManager();
+    observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+    templates.clear();
+    observing = true;
+    LOGGER.info("Caching compiled search templates ");
+  }
+
+  /**
+   * Stop observing the repository and empty the cache.
+   */
+  public void stop() {
+    observing = false;
+    templates.clear();
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove search template listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+  }
+
+  /**
+   * @return the number of cached templates.
+   */
+  public int size() {
+    return templates.size();
+  }
+
+  /**
+   * @return the metrics of searches using this cache.
+   */
+  public SearchMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * {@inheritDoc} Drops the template of any node that changed.
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    generation.incrementAndGet();
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        if (event.getType() == Event.NODE_REMOVED) {
+          invalidateTree(path);
+        } else {
+          // the path of a property event is the property, the template is its node.
+          int i = path.lastIndexOf('/');
+          if (i > 0) {
+            templates.remove(path.substring(0, i));
+          } else {
+            templates.remove("/");
+          }
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to read event, clearing search templates {} ", e.getMessage());
+        templates.clear();
+      }
+    }
+  }
+
+  /**
+   * Drop the templates of a node and all nodes below it.
+   *
+   * @param path
+   */
+  public void invalidateTree(String path) {
+    generation.incrementAndGet();
+    templates.remove(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      if (i.next().startsWith(prefix)) {
+        i.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+public class FacetCountTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testCountsEachNodeOnce() throws Exception {
+    Node child = node("/a/child", new String[] { "red" }, new Node[0]);
+    Node a = node("/a", new String[] { "red", "blue" }, new Node[] { child });
+    Node b = node("/b", new String[] { "blue" }, new Node[0]);
+    replay();
+    String[] fields = { "tag" };
+    FacetCount facetCount = new FacetCount(fields, true);
+    for (Node n : new Node[] { a, b, child, a }) {
+      facetCount.add(n);
+    }
+    Map<String, Integer> tags = facetCount.getAggregate().get("tag");
+    assertEquals(2, tags.size());
+    assertEquals(2, tags.get("red").intValue());
+    assertEquals(2, tags.get("blue").intValue());
+    assertFalse(facetCount.isTruncated());
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    Node a = node("/a", new String[] { "red" }, new Node[0]);
+    Node b = node("/b", new String[] { "red" }, new Node[0]);
+    replay();
+    FacetCount facetCount = new FacetCount(new String[] { "tag" }, false, 1);
+    facetCount.add(a);
+    facetCount.add(b);
+    assertTrue(facetCount.isTruncated());
+    assertEquals(1, facetCount.getAggregate().get("tag").get("red").intValue());
+  }
+
+  @Test
+  public void testMerge() {
+    FacetCount one = new FacetCount(new String[] { "tag" }, false);
+    one.count("tag", new String[] { "red", "blue" });
+    FacetCount two = new FacetCount(new String[] { "tag" }, false);
+    two.count("tag", new String[] { "red", "green" });
+    two.count("other", new String[] { "ignored" });
+    one.merge(two);
+    Map<String, Integer> tags = one.getAggregate().get("tag");
+    assertEquals(2, tags.get("red").intValue());
+    assertEquals(1, tags.get("blue").intValue());
+    assertEquals(1, tags.get("green").intValue());
+    assertEquals(1, one.getAggregate().size());
+  }
+
+  @Test
+  public void testPathHashSet() {
+    PathHashSet set = new PathHashSet(1000);
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      paths.add("/path/" + i);
+    }
+    for (String p : paths) {
+      assertTrue(set.add(p));
+    }
+    for (String p : paths) {
+      assertFalse(set.add(p));
+      assertTrue(set.contains(p));
+    }
+    assertTrue(set.isFull());
+    assertFalse(set.add("/another"));
+    assertFalse(set.contains("/another"));
+    assertEquals(1000, set.size());
+  }
+
+  private Node node(String path, String[] tags, Node[] children) throws Exception {
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.hasProperty("tag")).andReturn(true).anyTimes();
+    Property property = createMock(Property.class);
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    expect(property.getDefinition()).andReturn(definition).anyTimes();
+    Value[] values = new Value[tags.length];
+    for (int i = 0; i < tags.length; i++) {
+      values[i] = createMock(Value.class);
+      expect(values[i].getString()).andReturn(tags[i]).anyTimes();
+    }
+    expect(property.getValues()).andReturn(values).anyTimes();
+    expect(node.getProperty("tag")).andReturn(property).anyTimes();
+    final List<Node> childList = Arrays.asList(children);
+    NodeIterator ni = createMock(NodeIterator.class);
+    expect(node.getNodes()).andReturn(ni).anyTimes();
+    if (childList.isEmpty()) {
+      expect(ni.hasNext()).andReturn(false).anyTimes();
+    } else {
+      // each visit with children walks the iterator once.
+      for (Node c : childList) {
+        expect(ni.hasNext()).andReturn(true);
+        expect(ni.nextNode()).andReturn(c);
+      }
+      expect(ni.hasNext()).andReturn(false);
+      for (Node c : childList) {
+        expect(ni.hasNext()).andReturn(true);
+        expect(ni.nextNode()).andReturn(c);
+      }
+      expect(ni.hasNext()).andReturn(false);
+    }
+    return node;
+  }
+}
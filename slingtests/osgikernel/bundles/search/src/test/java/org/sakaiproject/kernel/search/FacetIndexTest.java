@@ -0,0 +1,275 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class FacetIndexTest extends AbstractEasyMockTest {
+
+  private static final int SITES = 1500;
+
+  private Session session;
+
+  @Test
+  public void testParallelCount() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    List<String> results = new ArrayList<String>();
+    for (int i = 0; i < SITES; i++) {
+      nodes.add(tagNode("/site" + i, i % 2 == 0 ? "even" : "odd"));
+      nodes.add(tagNode("/site" + i + "/page", "page"));
+      results.add("/site" + i);
+    }
+    SlingRepository repository = createRepository(nodes);
+    replay();
+
+    FacetIndex index = new FacetIndex();
+    index.start(repository);
+    assertTrue(index.index(new String[] { "tag" }));
+    assertEquals(2 * SITES, index.size());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // duplicates are only counted once, and children only if they are results.
+      results.add("/site1");
+      results.add("/site1/page");
+      FacetCount count = index.count(results, new String[] { "tag" },
+          FacetCount.DEFAULT_MAX_NODES, executor);
+      Map<String, Integer> tags = count.getAggregate().get("tag");
+      assertEquals(SITES / 2, tags.get("even").intValue());
+      assertEquals(SITES / 2, tags.get("odd").intValue());
+      assertEquals(1, tags.get("page").intValue());
+      assertFalse(count.isTruncated());
+
+      count = index.count(results, new String[] { "tag" }, 10, executor);
+      assertTrue(count.isTruncated());
+      int counted = 0;
+      for (Integer c : count.getAggregate().get("tag").values()) {
+        counted += c;
+      }
+      assertEquals(10, counted);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFollowsChanges() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(tagNode("/a", "red"));
+    nodes.add(tagNode("/b", "red"));
+    nodes.add(tagNode("/b/c", "red"));
+    SlingRepository repository = createRepository(nodes);
+    Node changed = tagNode("/a", "blue");
+    expect(session.itemExists("/a")).andReturn(true);
+    expect(session.getItem("/a")).andReturn(changed);
+    // /b/c moved to /d/c.
+    Node moved = tagNode("/d/c", "red");
+    Node d = tagNode("/d", "green", moved);
+    expect(session.itemExists("/d")).andReturn(true);
+    expect(session.getItem("/d")).andReturn(d);
+
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event(Event.PROPERTY_CHANGED, "/a/tag"));
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event(Event.PROPERTY_CHANGED, "/a/other"));
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event(Event.NODE_REMOVED, "/b"));
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event(Event.NODE_ADDED, "/d"));
+    expect(events.hasNext()).andReturn(false);
+    replay();
+
+    FacetIndex index = new FacetIndex();
+    index.start(repository);
+    index.index(new String[] { "tag" });
+    assertEquals(3, index.size());
+    index.onEvent(events);
+    index.flush();
+    assertEquals(3, index.size());
+    assertEquals("blue", index.getValues("/a").get("tag")[0]);
+    assertNull(index.getValues("/b/c"));
+    assertEquals("red", index.getValues("/d/c").get("tag")[0]);
+    assertEquals("green", index.getValues("/d").get("tag")[0]);
+  }
+
+  @Test
+  public void testLostChanges() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(tagNode("/a", "red"));
+    SlingRepository repository = createRepository(nodes);
+    Event broken = createMock(Event.class);
+    expect(broken.getType()).andReturn(Event.PROPERTY_CHANGED);
+    expect(broken.getPath()).andThrow(new RepositoryException("gone"));
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(broken);
+    expect(events.hasNext()).andReturn(false);
+    replay();
+
+    FacetIndex index = new FacetIndex();
+    index.start(repository);
+    index.index(new String[] { "tag" });
+    assertEquals(1, index.size());
+    // a change that can't be followed empties the index, to be loaded again.
+    index.onEvent(events);
+    index.flush();
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testTooManyNodes() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(tagNode("/a", "red"));
+    nodes.add(tagNode("/b", "red"));
+    nodes.add(tagNode("/c", "red"));
+    SlingRepository repository = createRepository(nodes);
+    replay();
+
+    FacetIndex index = new FacetIndex(2);
+    index.start(repository);
+    assertFalse(index.index(new String[] { "tag" }));
+    assertEquals(0, index.size());
+    // the field is not loaded again.
+    assertFalse(index.index(new String[] { "tag" }));
+  }
+
+  /**
+   * A repository that gives out a session to follow changes, then one that loads the
+   * tag field from the nodes.
+   */
+  private SlingRepository createRepository(List<Node> nodes) throws Exception {
+    NodeIterator ni = new ListNodeIterator(nodes);
+    QueryResult result = createMock(QueryResult.class);
+    expect(result.getNodes()).andReturn(ni);
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(result);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery("//*[@tag]", Query.XPATH)).andReturn(query);
+    Workspace loadWorkspace = createMock(Workspace.class);
+    expect(loadWorkspace.getQueryManager()).andReturn(queryManager);
+    Session loadSession = createMock(Session.class);
+    expect(loadSession.getWorkspace()).andReturn(loadWorkspace);
+    loadSession.logout();
+
+    ObservationManager observationManager = EasyMock.createNiceMock(ObservationManager.class);
+    EasyMock.replay(observationManager);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session);
+    expect(repository.loginAdministrative(null)).andReturn(loadSession);
+    return repository;
+  }
+
+  private Event event(int type, String path) throws Exception {
+    Event event = createMock(Event.class);
+    expect(event.getType()).andReturn(type).anyTimes();
+    expect(event.getPath()).andReturn(path).anyTimes();
+    return event;
+  }
+
+  private Node tagNode(String path, String tag, Node... children) throws Exception {
+    Node node = createMock(Node.class);
+    expect(node.getNodes()).andAnswer(new ListAnswer(Arrays.asList(children))).anyTimes();
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.hasProperty("tag")).andReturn(true).anyTimes();
+    Property property = createMock(Property.class);
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(definition.isMultiple()).andReturn(false).anyTimes();
+    expect(property.getDefinition()).andReturn(definition).anyTimes();
+    Value value = createMock(Value.class);
+    expect(value.getString()).andReturn(tag).anyTimes();
+    expect(property.getValue()).andReturn(value).anyTimes();
+    expect(node.getProperty("tag")).andReturn(property).anyTimes();
+    return node;
+  }
+
+  private static class ListAnswer implements IAnswer<NodeIterator> {
+    private List<Node> nodes;
+
+    ListAnswer(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    public NodeIterator answer() {
+      return new ListNodeIterator(nodes);
+    }
+  }
+
+  /**
+   * A node iterator over a list, faster than a mock for thousands of nodes.
+   */
+  private static class ListNodeIterator implements NodeIterator {
+    private Iterator<Node> nodes;
+    private long position;
+
+    ListNodeIterator(List<Node> nodes) {
+      this.nodes = nodes.iterator();
+    }
+
+    public Node nextNode() {
+      position++;
+      return nodes.next();
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return -1;
+    }
+
+    public void skip(long skipNum) {
+      for (long i = 0; i < skipNum; i++) {
+        nextNode();
+      }
+    }
+
+    public boolean hasNext() {
+      return nodes.hasNext();
+    }
+
+    public Object next() {
+      return nextNode();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
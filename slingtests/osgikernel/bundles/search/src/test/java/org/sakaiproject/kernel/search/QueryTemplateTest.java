@@ -0,0 +1,72 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jcr.query.Query;
+
+public class QueryTemplateTest {
+
+  @Test
+  public void testExpand() {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    RequestParameter rp = createMock(RequestParameter.class);
+    expect(rp.getString()).andReturn("it's").anyTimes();
+    expect(request.getRequestParameter("q")).andReturn(rp).anyTimes();
+    expect(request.getRequestParameter("missing")).andReturn(null).anyTimes();
+    replay(request, rp);
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("_userId", "bob");
+
+    QueryTemplate template = new QueryTemplate(
+        "\\{x\\} = '{q}' and u = '{_userId}' and m = '{missing|none}' and e = '{missing}'",
+        Query.SQL);
+    assertEquals("{x} = 'it\\''s' and u = 'bob' and m = 'none' and e = ''", template.expand(
+        request, properties));
+    verify(request, rp);
+  }
+
+  @Test
+  public void testNoPlaceholders() {
+    QueryTemplate template = new QueryTemplate("select * from y", Query.SQL);
+    assertFalse(template.hasPlaceholders());
+    assertEquals("select * from y", template.expand(null, null));
+  }
+
+  /**
+   * The single pass escaping must match the regular expressions it replaces.
+   */
+  @Test
+  public void testEscapingMatchesRegex() {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    Map<String, String> properties = new HashMap<String, String>();
+    replay(request);
+    QueryTemplate template = new QueryTemplate("{_v}", Query.XPATH);
+    Random random = new Random(42);
+    char[] chars = { 'a', '\\', '\'', '"', '-', ' ' };
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int n = random.nextInt(8);
+      for (int j = 0; j < n; j++) {
+        sb.append(chars[random.nextInt(chars.length)]);
+      }
+      String value = sb.toString();
+      properties.put("_v", value);
+      String expected = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'", "\\\\'")
+          .replaceAll("'", "''");
+      assertEquals(value, expected, template.expand(request, properties));
+    }
+  }
+}
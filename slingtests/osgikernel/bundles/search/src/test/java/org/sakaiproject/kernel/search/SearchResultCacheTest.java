@@ -0,0 +1,267 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.sakaiproject.kernel.api.search.SearchConstants.MAX_CACHED_ROWS;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+public class SearchResultCacheTest extends AbstractEasyMockTest {
+
+  private static final String TEMPLATE = "/var/search/sites";
+  private static final String QUERY = "/jcr:root/sites//*[@sling:resourceType='sakai/site']";
+
+  @Test
+  public void testScope() {
+    assertEquals("/sites", SearchResultCache.getScope(QUERY, Query.XPATH));
+    assertEquals("/_user/private/ab/bob", SearchResultCache.getScope(
+        "/jcr:root/_user/private/ab/bob//*[@sakai:messagebox='inbox']", Query.XPATH));
+    assertEquals("/a b/c", SearchResultCache.getScope("/jcr:root/a_x0020_b/c/*",
+        Query.XPATH));
+    assertEquals("/a", SearchResultCache.getScope("/jcr:root/a/b[@x='1/2']", Query.XPATH));
+    assertEquals("/", SearchResultCache.getScope("//*[jcr:contains(.,'a')]", Query.XPATH));
+    assertEquals("/", SearchResultCache.getScope("/jcr:root/a//* | /jcr:root/b//*",
+        Query.XPATH));
+    assertEquals("/", SearchResultCache.getScope("select * from nt:base", Query.SQL));
+    assertEquals("/sites/a", SearchResultCache.getScope(
+        "/sites/a//*[@sling:resourceType='sakai/page']", Query.XPATH));
+    assertEquals("/", SearchResultCache.getScope(
+        "/jcr:root/a//*[@x='y']/jcr:deref(@jcr:reference, '*')", Query.XPATH));
+  }
+
+  @Test
+  public void testProperties() {
+    assertEquals(new TreeSet<String>(Arrays.asList("jcr:mixinTypes", "jcr:primaryType",
+        "sakai:created", "sakai:from", "sling:resourceType")), SearchResultCache
+        .getProperties("/a//element(*)MetaData[@sling:resourceType='sakai/message' and "
+            + "jcr:contains(@sakai:from, '*x*')] order by @sakai:created descending",
+            Query.XPATH));
+    assertNull(SearchResultCache.getProperties("//*[jcr:contains(.,'a')]", Query.XPATH));
+    assertNull(SearchResultCache.getProperties(
+        "//*[@x and jcr:contains(jcr:content, 'a')]", Query.XPATH));
+    assertNull(SearchResultCache.getProperties("//*[@*='a']", Query.XPATH));
+    assertNull(SearchResultCache.getProperties("select * from nt:base", Query.SQL));
+  }
+
+  @Test
+  public void testRootScopeFollowsQueryProperties() throws Exception {
+    String query = "//*[@sling:resourceType='sakai/site']";
+    String fullText = "//*[jcr:contains(.,'a')]";
+    SearchResultCache cache = new SearchResultCache();
+    EventIterator title = events(event(Event.PROPERTY_CHANGED, "/other/site/title"));
+    EventIterator type = events(event(Event.PROPERTY_ADDED, "/other/site/sling:resourceType"));
+    EventIterator added = events(event(Event.NODE_ADDED, "/other/site"));
+    Session session = createObservingSession();
+    replay();
+
+    cache.start(session);
+    cache.put("k", query, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    cache.put("f", fullText, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    // a property the query does not test leaves it, but not the full text search.
+    cache.onEvent(title);
+    assertNotNull(cache.get(TEMPLATE, "k"));
+    assertNull(cache.get(TEMPLATE, "f"));
+    cache.onEvent(type);
+    assertNull(cache.get(TEMPLATE, "k"));
+
+    cache.put("k", query, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    cache.onEvent(added);
+    assertNull(cache.get(TEMPLATE, "k"));
+    cache.stop();
+  }
+
+  @Test
+  public void testCachedUntilChangedInScope() throws Exception {
+    SearchResultCache cache = new SearchResultCache();
+    EventIterator outside = events(event(Event.PROPERTY_CHANGED, "/other/site/title"));
+    EventIterator untested = events(event(Event.PROPERTY_CHANGED, "/sites/a/title"));
+    EventIterator inside = events(event(Event.PROPERTY_CHANGED,
+        "/sites/a/sling:resourceType"));
+    EventIterator parent = events(event(Event.NODE_REMOVED, "/"));
+    EventIterator policy = events(event(Event.NODE_ADDED, "/other/rep:policy/allow"));
+    Session session = createObservingSession();
+    replay();
+
+    cache.start(session);
+    assertNull(cache.get(TEMPLATE, "k"));
+    assertEquals(2, rows(cache.put("k", QUERY, Query.XPATH, rows("/sites/a", "/sites/b"),
+        60000, cache.getGeneration())).size());
+    RowIterator cached = cache.get(TEMPLATE, "k");
+    assertNotNull(cached);
+    assertEquals(Arrays.asList("/sites/a", "/sites/b"), rows(cached));
+
+    cache.onEvent(outside);
+    assertNotNull(cache.get(TEMPLATE, "k"));
+    cache.onEvent(untested);
+    assertNotNull(cache.get(TEMPLATE, "k"));
+    cache.onEvent(inside);
+    assertNull(cache.get(TEMPLATE, "k"));
+    assertEquals(0, cache.getCachedResults());
+
+    // removing an ancestor of the scope drops the result.
+    cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    assertEquals(1, cache.getCachedResults());
+    cache.onEvent(parent);
+    assertEquals(0, cache.getCachedResults());
+
+    // a change to any access control policy drops everything.
+    cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    cache.onEvent(policy);
+    assertEquals(0, cache.getCachedResults());
+
+    assertEquals(3, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(0.6, cache.getHitRatio(TEMPLATE), 0.001);
+    assertEquals(TEMPLATE + " hits=3 misses=2 ratio=0.600", cache.getTemplateHitRatios()[0]);
+    cache.stop();
+  }
+
+  @Test
+  public void testNotCached() throws Exception {
+    SearchResultCache cache = new SearchResultCache();
+    EventIterator elsewhere = events(event(Event.PROPERTY_CHANGED, "/elsewhere/x"));
+    EventIterator during = events(event(Event.PROPERTY_CHANGED,
+        "/sites/a/sling:resourceType"));
+    Session session = createObservingSession();
+    replay();
+
+    // nothing is cached until the cache is observing.
+    cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), 60000, cache.getGeneration());
+    assertEquals(0, cache.getCachedResults());
+
+    cache.start(session);
+    // a change that can't alter the result while the query runs does not stop it
+    // being cached.
+    long generation = cache.getGeneration();
+    cache.onEvent(elsewhere);
+    cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), 60000, generation);
+    assertEquals(1, cache.getCachedResults());
+    cache.clear();
+
+    // one that can does.
+    generation = cache.getGeneration();
+    cache.onEvent(during);
+    RowIterator rows = cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), 60000,
+        generation);
+    assertEquals(1, rows(rows).size());
+    assertEquals(0, cache.getCachedResults());
+
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i <= MAX_CACHED_ROWS; i++) {
+      paths.add("/sites/" + i);
+    }
+    cache.put("k", QUERY, Query.XPATH, new CachedRowIterator(paths), 60000, cache
+        .getGeneration());
+    assertEquals(0, cache.getCachedResults());
+
+    cache.put("k", QUERY, Query.XPATH, rows("/sites/a"), -1, cache.getGeneration());
+    Thread.sleep(5);
+    assertNull(cache.get(TEMPLATE, "k"));
+    assertEquals(0, cache.getCachedResults());
+    cache.stop();
+  }
+
+  @Test
+  public void testKeyedByPrincipals() throws Exception {
+    Session alice = createUserSession("alice", "g-maths", "g-physics");
+    Session alice2 = createUserSession("alice", "g-physics", "g-maths");
+    Session bob = createUserSession("bob", "g-maths", "g-physics");
+    Session alice3 = createUserSession("alice", "g-maths");
+    Session alice4 = createUserSession("alice", "g-maths", "g-physics");
+    Session plain = createMock(Session.class);
+    replay();
+
+    SearchResultCache cache = new SearchResultCache();
+    String key = cache.getKey(TEMPLATE, QUERY, Query.XPATH, alice);
+    assertEquals(key, cache.getKey(TEMPLATE, QUERY, Query.XPATH, alice2));
+    assertFalse(key.equals(cache.getKey(TEMPLATE, QUERY, Query.XPATH, bob)));
+    assertFalse(key.equals(cache.getKey(TEMPLATE, QUERY, Query.XPATH, alice3)));
+    assertFalse(key.equals(cache.getKey("/var/search/other", QUERY, Query.XPATH, alice4)));
+    assertNull(cache.getKey(TEMPLATE, QUERY, Query.XPATH, plain));
+  }
+
+  private Session createObservingSession() throws Exception {
+    ObservationManager observationManager = EasyMock.createNiceMock(ObservationManager.class);
+    EasyMock.replay(observationManager);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    session.logout();
+    return session;
+  }
+
+  private Session createUserSession(String userId, String... groups) throws Exception {
+    List<Authorizable> memberOf = new ArrayList<Authorizable>();
+    for (String group : groups) {
+      memberOf.add(authorizable(group));
+    }
+    Authorizable user = authorizable(userId);
+    expect(user.memberOf()).andReturn(memberOf.iterator());
+    UserManager userManager = createMock(UserManager.class);
+    expect(userManager.getAuthorizable(userId)).andReturn(user);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getUserID()).andReturn(userId).anyTimes();
+    expect(session.getUserManager()).andReturn(userManager);
+    return session;
+  }
+
+  private Authorizable authorizable(final String name) throws Exception {
+    Authorizable authorizable = createMock(Authorizable.class);
+    expect(authorizable.getPrincipal()).andReturn(new Principal() {
+      public String getName() {
+        return name;
+      }
+    });
+    return authorizable;
+  }
+
+  private Event event(int type, String path) throws Exception {
+    Event event = createMock(Event.class);
+    expect(event.getType()).andReturn(type).anyTimes();
+    expect(event.getPath()).andReturn(path).anyTimes();
+    return event;
+  }
+
+  private EventIterator events(Event event) {
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event);
+    expect(events.hasNext()).andReturn(false);
+    return events;
+  }
+
+  private RowIterator rows(String... paths) {
+    return new CachedRowIterator(Arrays.asList(paths));
+  }
+
+  private List<String> rows(RowIterator rows) throws Exception {
+    List<String> paths = new ArrayList<String>();
+    while (rows.hasNext()) {
+      paths.add(rows.nextRow().getValue("jcr:path").getString());
+    }
+    return paths;
+  }
+}
@@ -0,0 +1,228 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_ESTIMATED;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_NEXT;
+import static org.sakaiproject.kernel.api.search.SearchConstants.JSON_RESULTS;
+import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_CURSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_KEYSET_PROPERTY;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_STREAMING;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_TOTAL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.TOTAL_EXACT;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+public class SearchServletStreamingTest extends AbstractEasyMockTest {
+
+  private static final String SQL_QUERY = "select * from y where x > '{_cursor|}' order by x";
+
+  @Test
+  public void testFirstPage() throws Exception {
+    JSONObject json = streamingSearch(null, null, null, "select * from y where x > '' order by x",
+        0, 10);
+    assertEquals(3, json.getJSONArray(JSON_RESULTS).length());
+    assertEquals("3", json.getString(JSON_NEXT));
+    assertEquals(4, json.getLong(TOTAL));
+    assertTrue(json.getBoolean(JSON_ESTIMATED));
+  }
+
+  @Test
+  public void testLastPage() throws Exception {
+    JSONObject json = streamingSearch(null, null, "9", "select * from y where x > '' order by x",
+        0, 10);
+    assertEquals(1, json.getJSONArray(JSON_RESULTS).length());
+    assertFalse(json.has(JSON_NEXT));
+    assertEquals(10, json.getLong(TOTAL));
+    assertFalse(json.getBoolean(JSON_ESTIMATED));
+  }
+
+  @Test
+  public void testPastLastPage() throws Exception {
+    JSONObject json = streamingSearch(null, null, "20", "select * from y where x > '' order by x",
+        0, 10);
+    assertEquals(0, json.getJSONArray(JSON_RESULTS).length());
+    assertFalse(json.has(JSON_NEXT));
+  }
+
+  @Test
+  public void testKeysetPage() throws Exception {
+    // the query only matches rows after the cursor key, no rows are skipped.
+    JSONObject json = streamingSearch("x", TOTAL_EXACT, "3:k02",
+        "select * from y where x > 'k02' order by x", 3, 10);
+    assertEquals(3, json.getJSONArray(JSON_RESULTS).length());
+    assertEquals("6:k05", json.getString(JSON_NEXT));
+    assertEquals(10, json.getLong(TOTAL));
+    assertFalse(json.has(JSON_ESTIMATED));
+  }
+
+  @Test
+  public void testCursorParsing() {
+    assertNull(SearchCursor.parse(null));
+    assertNull(SearchCursor.parse("abc"));
+    assertEquals(5, SearchCursor.parse("5").getOffset());
+    assertFalse(SearchCursor.parse("5").isKeyed());
+    SearchCursor cursor = SearchCursor.parse("5:a:b");
+    assertEquals(5, cursor.getOffset());
+    assertEquals("a:b", cursor.getKey());
+    assertEquals("5:a:b", cursor.toString());
+  }
+
+  private JSONObject streamingSearch(String keysetProperty, String total, String cursor,
+      String expectedQuery, int first, int last) throws Exception {
+    Node queryNode = createMock(Node.class);
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_LANGUAGE, Query.SQL);
+    addStringPropertyToNode(queryNode, SAKAI_STREAMING, "true");
+    if (keysetProperty != null) {
+      addStringPropertyToNode(queryNode, SAKAI_KEYSET_PROPERTY, keysetProperty);
+    } else {
+      expect(queryNode.hasProperty(SAKAI_KEYSET_PROPERTY)).andReturn(false);
+    }
+    if (total != null) {
+      addStringPropertyToNode(queryNode, SAKAI_TOTAL, total);
+    } else {
+      expect(queryNode.hasProperty(SAKAI_TOTAL)).andReturn(false);
+    }
+    expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false).anyTimes();
+
+    Session session = createMock(Session.class);
+    Node resultNode = createMock(Node.class);
+    PropertyIterator propIterator = createMock(PropertyIterator.class);
+    expect(propIterator.hasNext()).andReturn(false).anyTimes();
+    expect(resultNode.getProperties()).andReturn(propIterator).anyTimes();
+
+    List<Row> rows = new ArrayList<Row>();
+    for (int i = first; i < last; i++) {
+      Row row = createMock(Row.class);
+      Value path = createMock(Value.class);
+      expect(path.getString()).andReturn("/p" + i).anyTimes();
+      expect(row.getValue("jcr:path")).andReturn(path).anyTimes();
+      Value key = createMock(Value.class);
+      expect(key.getString()).andReturn(String.format("k%02d", i)).anyTimes();
+      expect(row.getValue("x")).andReturn(key).anyTimes();
+      expect(session.getItem("/p" + i)).andReturn(resultNode).anyTimes();
+      rows.add(row);
+    }
+    QueryResult queryResult = createMock(QueryResult.class);
+    expect(queryResult.getRows()).andReturn(new ListRowIterator(rows));
+    Query query = createMock(Query.class);
+    expect(query.execute()).andReturn(queryResult);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery(expectedQuery, Query.SQL)).andReturn(query);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    Session querySession = createMock(Session.class);
+    expect(querySession.getWorkspace()).andReturn(workspace);
+    expect(queryNode.getSession()).andReturn(querySession);
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.adaptTo(Node.class)).andReturn(queryNode);
+    ResourceResolver resourceResolver = createMock(ResourceResolver.class);
+    expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
+    expect(request.getRemoteUser()).andReturn("bob").anyTimes();
+    addStringRequestParameter(request, PARAMS_ITEMS_PER_PAGE, "3");
+    if (cursor != null) {
+      addStringRequestParameter(request, PARAMS_CURSOR, cursor);
+    } else {
+      expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null);
+    }
+
+    StringWriter stringWriter = new StringWriter();
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(stringWriter));
+
+    replay();
+    new SearchServlet().doGet(request, response);
+    verify();
+    return new JSONObject(stringWriter.toString());
+  }
+
+  /**
+   * A row iterator over a list, that reports its size.
+   */
+  private static class ListRowIterator implements RowIterator {
+    private List<Row> rows;
+    private int position;
+
+    ListRowIterator(List<Row> rows) {
+      this.rows = rows;
+    }
+
+    public Row nextRow() {
+      if (position >= rows.size()) {
+        throw new NoSuchElementException();
+      }
+      return rows.get(position++);
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return rows.size();
+    }
+
+    public void skip(long skipNum) {
+      if (position + skipNum > rows.size()) {
+        position = rows.size();
+        throw new NoSuchElementException();
+      }
+      position += skipNum;
+    }
+
+    public boolean hasNext() {
+      return position < rows.size();
+    }
+
+    public Object next() {
+      return nextRow();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -5,10 +5,12 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.sakaiproject.kernel.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_CACHE_TTL;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
 import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_STREAMING;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -89,6 +91,8 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_STREAMING)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_CACHE_TTL)).andReturn(false).anyTimes();
 
     Resource resource = createMock(Resource.class);
     expect(resource.adaptTo(Node.class)).andReturn(queryNode);
@@ -166,6 +170,8 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_STREAMING)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_CACHE_TTL)).andReturn(false).anyTimes();
 
     Resource resource = createMock(Resource.class);
     expect(resource.adaptTo(Node.class)).andReturn(queryNode);
@@ -0,0 +1,120 @@
+package org.sakaiproject.kernel.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_AGGREGATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_CACHE_TTL;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_RESULTPROCESSOR;
+import static org.sakaiproject.kernel.api.search.SearchConstants.SAKAI_STREAMING;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+
+public class SearchTemplateCacheTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testCachedUntilChanged() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+
+    ObservationManager observationManager = createMock(ObservationManager.class);
+    observationManager.addEventListener(cache, Event.NODE_REMOVED | Event.PROPERTY_ADDED
+        | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, "/", true, null, null, false);
+    expectLastCall();
+    observationManager.removeEventListener(cache);
+    expectLastCall();
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    session.logout();
+    expectLastCall();
+
+    // the node is read twice, once before and once after the change.
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn("/var/search/test").anyTimes();
+    for (int i = 0; i < 2; i++) {
+      addStringPropertyToNode(node, SAKAI_QUERY_TEMPLATE, "select * from y where x = '{q}'");
+      addStringPropertyToNode(node, SAKAI_QUERY_LANGUAGE, Query.SQL);
+      expect(node.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false);
+      expect(node.hasProperty(SAKAI_AGGREGATE)).andReturn(false);
+      expect(node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false);
+      expect(node.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false);
+      expect(node.hasProperty(SAKAI_STREAMING)).andReturn(false);
+      expect(node.hasProperty(SAKAI_CACHE_TTL)).andReturn(false);
+    }
+
+    Event event = createMock(Event.class);
+    expect(event.getPath()).andReturn("/var/search/test/" + SAKAI_QUERY_TEMPLATE);
+    expect(event.getType()).andReturn(Event.PROPERTY_CHANGED);
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event);
+    expect(events.hasNext()).andReturn(false);
+    replay();
+
+    cache.start(session);
+    SearchTemplate template = cache.get(node);
+    assertSame(template, cache.get(node));
+    assertSame(template, cache.get(node));
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getMetrics().getTemplateCompiles());
+    assertEquals(2, cache.getMetrics().getTemplateCacheHits());
+
+    cache.onEvent(events);
+    assertEquals(0, cache.size());
+    SearchTemplate changed = cache.get(node);
+    assertNotSame(template, changed);
+    assertEquals(2, cache.getMetrics().getTemplateCompiles());
+
+    cache.stop();
+    assertEquals(0, cache.size());
+    verify();
+  }
+
+  @Test
+  public void testInvalidateTree() throws Exception {
+    SearchTemplateCache cache = new SearchTemplateCache();
+    ObservationManager observationManager = EasyMock.createNiceMock(ObservationManager.class);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    Session session = EasyMock.createNiceMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    EasyMock.replay(observationManager, session);
+
+    Node a = templateNode("/var/search/a");
+    Node b = templateNode("/var/search/b/c");
+    Node c = templateNode("/var/searches");
+    replay();
+    cache.start(session);
+    cache.get(a);
+    cache.get(b);
+    cache.get(c);
+    assertEquals(3, cache.size());
+    cache.invalidateTree("/var/search");
+    assertEquals(1, cache.size());
+  }
+
+  private Node templateNode(String path) throws Exception {
+    Node node = createMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    addStringPropertyToNode(node, SAKAI_QUERY_TEMPLATE, "select * from y");
+    expect(node.hasProperty((String) EasyMock.anyObject())).andReturn(false).anyTimes();
+    return node;
+  }
+}
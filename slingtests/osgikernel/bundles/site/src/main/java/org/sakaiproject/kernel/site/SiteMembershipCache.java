@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A bounded cache of {@link SiteMembershipIndex} by site path. Indexes are kept up to
+ * date as users join and leave the groups of a site, and dropped when a group of the
+ * site changes in a way that can't be applied to the index. An index is also rebuilt
+ * when the authorizables of the site change or it is older than the maximum age, which
+ * covers changes that are not seen as events. An index built while an event arrived is
+ * used but not cached, as it may be missing the change.
+ *
+ * Indexes are shared by every user, so they are built with an administrative session
+ * and hold members some users may not be able to see. Callers must filter what they
+ * return through the session of the user, as
+ * {@link SiteServiceImpl} does.
+ */
+public class SiteMembershipCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembershipCache.class);
+
+  /**
+   * The default number of sites to hold the membership of.
+   */
+  public static final int DEFAULT_MAX_SITES = 1000;
+
+  /**
+   * The default age in ms after which an index is rebuilt.
+   */
+  public static final long DEFAULT_MAX_AGE = 600000L;
+
+  private final int maxSites;
+  private final long maxAge;
+  private final Map<String, SiteMembershipIndex> indexes;
+  private long generation;
+
+  public SiteMembershipCache() {
+    this(DEFAULT_MAX_SITES, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param maxSites
+   *          the number of sites to hold, the least recently used is dropped first.
+   * @param maxAge
+   *          the age in ms after which an index is rebuilt.
+   */
+  public SiteMembershipCache(final int maxSites, long maxAge) {
+    this.maxSites = maxSites;
+    this.maxAge = maxAge;
+    this.indexes = new LinkedHashMap<String, SiteMembershipIndex>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SiteMembershipIndex> eldest) {
+        return size() > SiteMembershipCache.this.maxSites;
+      }
+    };
+  }
+
+  /**
+   * Get the membership index of a site, building it with an administrative session if
+   * it is not cached.
+   *
+   * @param site
+   *          the site, as the user sees it.
+   * @param repository
+   *          the repository to build the index from.
+   * @return the index of the site, including members the user may not see.
+   * @throws RepositoryException
+   */
+  public SiteMembershipIndex get(Node site, SlingRepository repository)
+      throws RepositoryException {
+    String path = site.getPath();
+    String authorizables = SiteMembershipIndex.getAuthorizables(site);
+    long startGeneration;
+    synchronized (this) {
+      SiteMembershipIndex index = indexes.get(path);
+      if (index != null && index.isCurrent(authorizables, maxAge)) {
+        return index;
+      }
+      startGeneration = generation;
+    }
+    SiteMembershipIndex index;
+    Session adminSession = repository.loginAdministrative(null);
+    try {
+      Node adminSite = (Node) adminSession.getItem(path);
+      UserManager userManager = AccessControlUtil.getUserManager(adminSession);
+      index = SiteMembershipIndex.build(adminSite, SiteMembershipIndex
+          .getAuthorizables(adminSite), userManager);
+    } finally {
+      adminSession.logout();
+    }
+    synchronized (this) {
+      if (startGeneration == generation) {
+        indexes.put(path, index);
+      } else {
+        LOGGER.debug("Membership of {} changed while it was indexed, not caching", path);
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @param groupId
+   * @return true if any cached site has the group as a member.
+   */
+  public synchronized boolean hasGroup(String groupId) {
+    for (SiteMembershipIndex index : indexes.values()) {
+      if (index.hasGroup(groupId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param userId
+   * @return true if any cached site has the user as a member.
+   */
+  public synchronized boolean hasUser(String userId) {
+    for (SiteMembershipIndex index : indexes.values()) {
+      if (index.hasUser(userId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Something has changed that no cached index holds, indexes being built at the moment
+   * may have missed it so they are not cached.
+   */
+  public synchronized void changed() {
+    generation++;
+  }
+
+  /**
+   * A user has joined a group.
+   *
+   * @param groupId
+   * @param userId
+   * @param session
+   *          a session to read the profile of the user with, if it is new to a site.
+   */
+  public synchronized void userJoined(String groupId, String userId, Session session) {
+    generation++;
+    String[] names = null;
+    for (Iterator<SiteMembershipIndex> i = indexes.values().iterator(); i.hasNext();) {
+      SiteMembershipIndex index = i.next();
+      if (index.hasGroup(groupId) && !index.addParent(groupId, userId)) {
+        try {
+          if (names == null) {
+            names = SiteMembershipIndex.readNames(session, userId);
+          }
+          index.addUser(groupId, userId, names[0], names[1]);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read the profile of {}, dropping index: {}", userId, e
+              .getMessage());
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * A user has left a group.
+   *
+   * @param groupId
+   * @param userId
+   */
+  public synchronized void userLeft(String groupId, String userId) {
+    generation++;
+    for (SiteMembershipIndex index : indexes.values()) {
+      if (index.hasGroup(groupId)) {
+        index.removeUser(groupId, userId);
+      }
+    }
+  }
+
+  /**
+   * The members of a group have changed in a way that can't be applied to an index, so
+   * drop all the sites it is a member of.
+   *
+   * @param groupId
+   */
+  public synchronized void groupChanged(String groupId) {
+    generation++;
+    for (Iterator<SiteMembershipIndex> i = indexes.values().iterator(); i.hasNext();) {
+      if (i.next().hasGroup(groupId)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * An authorizable has been removed.
+   *
+   * @param id
+   *          the id of the user or group.
+   */
+  public synchronized void authorizableRemoved(String id) {
+    generation++;
+    for (Iterator<SiteMembershipIndex> i = indexes.values().iterator(); i.hasNext();) {
+      SiteMembershipIndex index = i.next();
+      if (index.hasGroup(id)) {
+        i.remove();
+      } else {
+        index.removeUser(id);
+      }
+    }
+  }
+
+  /**
+   * A user has been updated, read the names again if the user is in any site.
+   *
+   * @param userId
+   * @param session
+   *          a session to read the profile of the user with.
+   */
+  public synchronized void userUpdated(String userId, Session session) {
+    generation++;
+    String[] names = null;
+    for (Iterator<SiteMembershipIndex> i = indexes.values().iterator(); i.hasNext();) {
+      SiteMembershipIndex index = i.next();
+      if (index.hasUser(userId)) {
+        try {
+          if (names == null) {
+            names = SiteMembershipIndex.readNames(session, userId);
+          }
+          index.updateNames(userId, names[0], names[1]);
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read the profile of {}, dropping index: {}", userId, e
+              .getMessage());
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of sites cached.
+   */
+  public synchronized int getCachedSites() {
+    return indexes.size();
+  }
+
+  /**
+   * Drop all cached indexes.
+   */
+  public synchronized void clear() {
+    generation++;
+    indexes.clear();
+  }
+
+}
@@ -0,0 +1,543 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * The members of a site, held as ids together with the fields they are sorted on. The
+ * groups named by the site are walked once, reading the profile of each user, after
+ * which the members can be counted, sorted and paged without touching the repository.
+ * Each member knows which of the groups of the site it was found in, so a user leaving
+ * one group is only removed once it is in none of them. Sorted lists of ids are made
+ * when first asked for and kept until the membership changes, as are the lists filtered
+ * for the most recent viewers, so counting and paging a site does not resolve every
+ * member again. A filtered list does not see changes to who can read a member, those
+ * are picked up when the index is rebuilt.
+ */
+public class SiteMembershipIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembershipIndex.class);
+
+  /**
+   * The maximum size of any list before we truncate. The user is warned.
+   */
+  static final int MAXLISTSIZE = 10000;
+
+  /**
+   * The number of lists filtered for a viewer to keep.
+   */
+  static final int MAX_VISIBLE_VIEWS = 100;
+
+  /**
+   * The parent of the authorizables named by the site itself.
+   */
+  private static final String SITE = "";
+
+  /**
+   * A user or group of the site.
+   */
+  static class Member {
+    final String id;
+    String firstName = "";
+    String lastName = "";
+    final Set<String> parents = new HashSet<String>();
+
+    Member(String id) {
+      this.id = id;
+    }
+  }
+
+  private final String authorizables;
+  private final long created = System.currentTimeMillis();
+  private final Map<String, Member> groups = new LinkedHashMap<String, Member>();
+  private final Map<String, Member> users = new LinkedHashMap<String, Member>();
+  private final Map<String, List<String>> groupViews = new HashMap<String, List<String>>();
+  private final Map<String, List<String>> userViews = new HashMap<String, List<String>>();
+  private final Map<String, List<String>> visibleViews = new LinkedHashMap<String, List<String>>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+      return size() > MAX_VISIBLE_VIEWS;
+    }
+  };
+  private boolean truncated;
+
+  /**
+   * @param authorizables
+   *          the authorizables property of the site the index is built from.
+   */
+  SiteMembershipIndex(String authorizables) {
+    this.authorizables = authorizables;
+  }
+
+  /**
+   * Build the index of a site, with the session of the site node, which should be able
+   * to see every member as the index is shared.
+   *
+   * @param site
+   *          the site.
+   * @param authorizables
+   *          the authorizables of the site, from {@link #getAuthorizables(Node)}.
+   * @param userManager
+   *          the user manager of the session of the site node.
+   * @return the index of the site.
+   * @throws RepositoryException
+   */
+  public static SiteMembershipIndex build(Node site, String authorizables,
+      UserManager userManager) throws RepositoryException {
+    SiteMembershipIndex index = new SiteMembershipIndex(authorizables);
+    if (authorizables == null) {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships",
+          site.getPath(), SiteService.AUTHORIZABLE);
+      return index;
+    }
+    Session session = site.getSession();
+    for (String id : authorizables.split("\n")) {
+      if (id.length() == 0) {
+        continue;
+      }
+      Authorizable a = userManager.getAuthorizable(id);
+      if (a instanceof Group) {
+        index.populate(SITE, (Group) a, session);
+      } else if (a instanceof User) {
+        if (!index.addParent(SITE, id)) {
+          String[] names = readNames(session, id);
+          index.addUser(SITE, id, names[0], names[1]);
+        }
+      } else if (a == null) {
+        LOGGER.warn("Authorizable could not be resolved from groupId: {}", id);
+      } else {
+        LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
+      }
+      if (index.truncated) {
+        break;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Add a group and, recursively, its members, avoiding duplicates or infinite
+   * recursion.
+   *
+   * @param parent
+   *          the id of the group the group was found in.
+   * @param group
+   *          the group.
+   * @param session
+   *          the session to read the profiles of users with.
+   * @throws RepositoryException
+   */
+  @SuppressWarnings("unchecked")
+  private void populate(String parent, Group group, Session session)
+      throws RepositoryException {
+    String groupId = group.getID();
+    Member g = groups.get(groupId);
+    if (g != null) {
+      g.parents.add(parent);
+      return;
+    }
+    g = new Member(groupId);
+    g.parents.add(parent);
+    groups.put(groupId, g);
+    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
+      Authorizable a = igm.next();
+      if (a instanceof Group) {
+        populate(groupId, (Group) a, session);
+      } else {
+        String id = a.getID();
+        if (!addParent(groupId, id)) {
+          String[] names = readNames(session, id);
+          addUser(groupId, id, names[0], names[1]);
+        }
+      }
+      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
+        LOGGER.warn("Large site listing, please consider using dynamic membership "
+            + "rather than explicit members groups parent Group {} ", groupId);
+        truncated = true;
+      }
+      if (truncated) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param session
+   * @param userId
+   * @return the first and last names of the user from their profile.
+   * @throws RepositoryException
+   */
+  static String[] readNames(Session session, String userId) throws RepositoryException {
+    Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(userId));
+    String[] names = new String[] { "", "" };
+    if (profileNode.hasProperty(SortField.firstName.toString())) {
+      names[0] = profileNode.getProperty(SortField.firstName.toString()).getString();
+    }
+    if (profileNode.hasProperty(SortField.lastName.toString())) {
+      names[1] = profileNode.getProperty(SortField.lastName.toString()).getString();
+    }
+    return names;
+  }
+
+  /**
+   * @param site
+   * @return the authorizables of the site, one per line, or null if it has none.
+   * @throws RepositoryException
+   */
+  static String getAuthorizables(Node site) throws RepositoryException {
+    if (!site.hasProperty(SiteService.AUTHORIZABLE)) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (Value v : getPropertyValues(site)) {
+      sb.append(v.getString()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static Value[] getPropertyValues(Node site) throws RepositoryException {
+    Property property = site.getProperty(SiteService.AUTHORIZABLE);
+    if (property.getDefinition().isMultiple()) {
+      return property.getValues();
+    } else {
+      return new Value[] { property.getValue() };
+    }
+  }
+
+  /**
+   * @param authorizables
+   *          the authorizables property of the site now.
+   * @param maxAge
+   *          the age in ms after which the index is rebuilt.
+   * @return true if the index was built from the same authorizables and is not too
+   *         old.
+   */
+  boolean isCurrent(String authorizables, long maxAge) {
+    if (System.currentTimeMillis() - created > maxAge) {
+      return false;
+    }
+    if (this.authorizables == null) {
+      return authorizables == null;
+    }
+    return this.authorizables.equals(authorizables);
+  }
+
+  /**
+   * @return true if the site was larger than the index will hold.
+   */
+  public synchronized boolean isTruncated() {
+    return truncated;
+  }
+
+  public synchronized boolean hasGroup(String groupId) {
+    return groups.containsKey(groupId);
+  }
+
+  public synchronized boolean hasUser(String userId) {
+    return users.containsKey(userId);
+  }
+
+  /**
+   * @return the number of users in the site.
+   */
+  public synchronized int getUserCount() {
+    return users.size();
+  }
+
+  /**
+   * @return the number of groups in the site.
+   */
+  public synchronized int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * Record that a user already in the site is a member of another group of the site.
+   *
+   * @param groupId
+   * @param userId
+   * @return false if the user is not in the site.
+   */
+  synchronized boolean addParent(String groupId, String userId) {
+    Member u = users.get(userId);
+    if (u == null) {
+      return false;
+    }
+    u.parents.add(groupId);
+    return true;
+  }
+
+  /**
+   * Add a user that is not in the site.
+   *
+   * @param groupId
+   *          the group of the site the user is a member of.
+   * @param userId
+   * @param firstName
+   * @param lastName
+   */
+  synchronized void addUser(String groupId, String userId, String firstName,
+      String lastName) {
+    Member u = users.get(userId);
+    if (u == null) {
+      u = new Member(userId);
+      u.firstName = firstName;
+      u.lastName = lastName;
+      users.put(userId, u);
+      userViews.clear();
+      visibleViews.clear();
+    }
+    u.parents.add(groupId);
+  }
+
+  /**
+   * Remove a user from a group of the site, and from the site if that was the only
+   * group of the site the user was in.
+   *
+   * @param groupId
+   * @param userId
+   */
+  synchronized void removeUser(String groupId, String userId) {
+    Member u = users.get(userId);
+    if (u != null) {
+      u.parents.remove(groupId);
+      if (u.parents.isEmpty()) {
+        users.remove(userId);
+        userViews.clear();
+        visibleViews.clear();
+      }
+    }
+  }
+
+  /**
+   * Remove a user from the site.
+   *
+   * @param userId
+   */
+  synchronized void removeUser(String userId) {
+    if (users.remove(userId) != null) {
+      userViews.clear();
+      visibleViews.clear();
+    }
+  }
+
+  /**
+   * @param userId
+   * @param firstName
+   * @param lastName
+   */
+  synchronized void updateNames(String userId, String firstName, String lastName) {
+    Member u = users.get(userId);
+    if (u != null) {
+      u.firstName = firstName;
+      u.lastName = lastName;
+      userViews.clear();
+      visibleViews.clear();
+    }
+  }
+
+  /**
+   * @param sort
+   *          the sort, may be null.
+   * @return the ids of the users of the site, in the order requested or the order they
+   *         were found if there is no sort.
+   */
+  public synchronized List<String> getUserIds(Sort[] sort) {
+    return getView(users, userViews, sort);
+  }
+
+  /**
+   * @param sort
+   *          the sort, may be null.
+   * @return the ids of the groups of the site, in the order requested or the order they
+   *         were found if there is no sort.
+   */
+  public synchronized List<String> getGroupIds(Sort[] sort) {
+    return getView(groups, groupViews, sort);
+  }
+
+  /**
+   * @param sort
+   *          the sort, may be null.
+   * @param session
+   *          the session of the viewer.
+   * @param userManager
+   *          the user manager of the session of the viewer.
+   * @return the ids of the users of the site the viewer can see, in the order of
+   *         {@link #getUserIds(Sort[])}.
+   */
+  public List<String> getVisibleUserIds(Sort[] sort, Session session,
+      UserManager userManager) {
+    return getVisible(users, userViews, "u", sort, session, userManager);
+  }
+
+  /**
+   * @param sort
+   *          the sort, may be null.
+   * @param session
+   *          the session of the viewer.
+   * @param userManager
+   *          the user manager of the session of the viewer.
+   * @return the ids of the groups of the site the viewer can see, in the order of
+   *         {@link #getGroupIds(Sort[])}.
+   */
+  public List<String> getVisibleGroupIds(Sort[] sort, Session session,
+      UserManager userManager) {
+    return getVisible(groups, groupViews, "g", sort, session, userManager);
+  }
+
+  private List<String> getVisible(Map<String, Member> members,
+      Map<String, List<String>> views, String type, Sort[] sort, Session session,
+      UserManager userManager) {
+    String key = type + ";" + session.getUserID() + ";" + getViewKey(sort);
+    List<String> view;
+    synchronized (this) {
+      List<String> visible = visibleViews.get(key);
+      if (visible != null) {
+        return visible;
+      }
+      view = getView(members, views, sort);
+    }
+    // resolving the members may take a while, so don't hold up the events meanwhile.
+    List<String> visible = new ArrayList<String>(view.size());
+    for (String id : view) {
+      try {
+        if (userManager.getAuthorizable(id) != null) {
+          visible.add(id);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.debug("Unable to resolve member {}: {}", id, e.getMessage());
+      }
+    }
+    visible = Collections.unmodifiableList(visible);
+    synchronized (this) {
+      if (views.get(getViewKey(sort)) == view) {
+        visibleViews.put(key, visible);
+      }
+    }
+    return visible;
+  }
+
+  private static String getViewKey(Sort[] sort) {
+    StringBuilder key = new StringBuilder();
+    if (sort != null) {
+      for (Sort s : sort) {
+        key.append(s.getField()).append(',').append(s.getOrder()).append(';');
+      }
+    }
+    return key.toString();
+  }
+
+  private List<String> getView(Map<String, Member> members, Map<String, List<String>> views,
+      Sort[] sort) {
+    String key = getViewKey(sort);
+    List<String> view = views.get(key);
+    if (view == null) {
+      List<Member> sorted = new ArrayList<Member>(members.values());
+      if (sort != null && sort.length > 0) {
+        // the sort is stable, so members that compare equal stay in the order found.
+        Collections.sort(sorted, buildCompoundComparator(sort, 0));
+      }
+      List<String> ids = new ArrayList<String>(sorted.size());
+      for (Member m : sorted) {
+        ids.add(m.id);
+      }
+      view = Collections.unmodifiableList(ids);
+      views.put(key, view);
+    }
+    return view;
+  }
+
+  /**
+   * Build a compound comparator for performing sorts, each comparator chains to the
+   * next where its fields are equal.
+   *
+   * @param sort
+   *          the sort array to base the compound set on.
+   * @param i
+   *          the sort of the comparator.
+   * @return the comparator of the sort at i, or null past the end of the array.
+   */
+  private static Comparator<Member> buildCompoundComparator(final Sort[] sort, int i) {
+    if (i >= sort.length) {
+      return null;
+    }
+    final Sort s = sort[i];
+    final Comparator<Member> next = buildCompoundComparator(sort, i + 1);
+    return new Comparator<Member>() {
+      public int compare(Member o1, Member o2) {
+        String c1 = field(o1);
+        String c2 = field(o2);
+        int c;
+        switch (s.getOrder()) {
+        case desc:
+          c = c2.compareTo(c1);
+          break;
+        default:
+          c = c1.compareTo(c2);
+        }
+        if (c == 0 && next != null) {
+          c = next.compare(o1, o2);
+        }
+        return c;
+      }
+
+      private String field(Member m) {
+        switch (s.getField()) {
+        case firstName:
+          return m.firstName;
+        case lastName:
+          return m.lastName;
+        default:
+          return m.id;
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.kernel.site;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * A bounded cache of the path of a site by its name. An entry is dropped when the site
+ * or one of its ancestors is removed or moved, when a node of the same name is added,
+ * which is how a site is created or arrives after a move, and when the resource type of
+ * a node of that name changes. The cache learns of these through JCR observation, and
+ * until it is observing the repository nothing is cached. A path found while the
+ * repository changed is not cached, as it may already be out of date.
+ */
+public class SiteNameIndex implements EventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteNameIndex.class);
+
+  /**
+   * The default number of site names to hold.
+   */
+  public static final int DEFAULT_MAX_SITES = 10000;
+
+  private static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+  private static final String RESOURCE_TYPE_PROPERTY = "/"
+      + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+
+  private final int maxSites;
+  private final Map<String, String> paths;
+  private long generation;
+  private Session session;
+  private volatile boolean observing;
+
+  public SiteNameIndex() {
+    this(DEFAULT_MAX_SITES);
+  }
+
+  /**
+   * @param maxSites
+   *          the number of names to hold, the least recently used is dropped first.
+   */
+  public SiteNameIndex(final int maxSites) {
+    this.maxSites = maxSites;
+    this.paths = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > SiteNameIndex.this.maxSites;
+      }
+    };
+  }
+
+  /**
+   * @param siteName
+   * @return the path of the site, or null if it is not cached.
+   */
+  public synchronized String get(String siteName) {
+    return paths.get(siteName);
+  }
+
+  /**
+   * @return the generation of the index, which changes with every change to the
+   *         repository, to be passed to {@link #put(String, String, long)}.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Cache the path of a site, if the repository has not changed since it was found.
+   *
+   * @param siteName
+   * @param path
+   * @param startGeneration
+   *          the generation of the index before the site was looked for.
+   */
+  public synchronized void put(String siteName, String path, long startGeneration) {
+    if (observing && startGeneration == generation) {
+      paths.put(siteName, path);
+    }
+  }
+
+  /**
+   * @param siteName
+   */
+  public synchronized void remove(String siteName) {
+    paths.remove(siteName);
+  }
+
+  /**
+   * @return the number of site names cached.
+   */
+  public synchronized int getCachedSites() {
+    return paths.size();
+  }
+
+  /**
+   * Drop all cached paths.
+   */
+  public synchronized void clear() {
+    generation++;
+    paths.clear();
+  }
+
+  /**
+   * Start observing the repository.
+   *
+   * @param session
+   *          an administrative session, owned by the index from now on.
+   * @throws RepositoryException
+   */
+  public void start(Session session) throws RepositoryException {
+    this.session = session;
+    ObservationManager observationManager = session.getWorkspace().getObservationManager();
+    observationManager.addEventListener(this, EVENT_TYPES, "/", true, null, null, false);
+    clear();
+    observing = true;
+    LOGGER.info("Indexing sites by name ");
+  }
+
+  /**
+   * Stop observing the repository and empty the cache.
+   */
+  public void stop() {
+    observing = false;
+    clear();
+    if (session != null) {
+      try {
+        session.getWorkspace().getObservationManager().removeEventListener(this);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to remove site name listener {} ", e.getMessage());
+      }
+      session.logout();
+      session = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc} Drops the sites the change may have moved, removed or created.
+   *
+   * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+   */
+  public void onEvent(EventIterator events) {
+    synchronized (this) {
+      generation++;
+    }
+    while (events.hasNext()) {
+      Event event = events.nextEvent();
+      try {
+        String path = event.getPath();
+        switch (event.getType()) {
+        case Event.NODE_REMOVED:
+          removeBelow(path);
+          break;
+        case Event.NODE_ADDED:
+          remove(getName(path));
+          break;
+        default:
+          if (path.endsWith(RESOURCE_TYPE_PROPERTY)) {
+            String nodePath = path.substring(0, path.length()
+                - RESOURCE_TYPE_PROPERTY.length());
+            remove(getName(nodePath));
+            removeBelow(nodePath);
+          }
+        }
+      } catch (RepositoryException e) {
+        LOGGER.warn("Failed to process event, dropping all site names {} ", e.getMessage());
+        clear();
+      }
+    }
+  }
+
+  /**
+   * @param path
+   * @return the name of the node at the path.
+   */
+  static String getName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * @param path
+   *          drop the sites at or below this path.
+   */
+  private synchronized void removeBelow(String path) {
+    String prefix = path.endsWith("/") ? path : path + "/";
+    for (Iterator<String> i = paths.values().iterator(); i.hasNext();) {
+      String sitePath = i.next();
+      if (sitePath.equals(path) || sitePath.startsWith(prefix)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @return true if the index is observing the repository.
+   */
+  public boolean isObserving() {
+    return observing;
+  }
+
+}
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.kernel.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -28,21 +27,26 @@ import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
-import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.kernel.api.site.SiteException;
 import org.sakaiproject.kernel.api.site.SiteService;
 import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent;
+import org.sakaiproject.kernel.api.user.AuthorizableEvent.Operation;
 import org.sakaiproject.kernel.util.JcrUtils;
 import org.sakaiproject.kernel.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -68,8 +72,14 @@ import javax.servlet.http.HttpServletResponse;
  *               value="Provides a site service to manage sites."
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.reference name="eventAdmin" interface="org.osgi.service.event.EventAdmin"
+ * @scr.service interface="org.osgi.service.event.EventHandler"
+ * @scr.property name="event.topics"
+ *               values.0="org/apache/sling/jackrabbit/usermanager/event/join"
+ *               values.1="org/apache/sling/jackrabbit/usermanager/event/part"
+ *               values.2="org/apache/sling/jackrabbit/usermanager/event/update"
+ *               values.3="org/apache/sling/jackrabbit/usermanager/event/delete"
  */
-public class SiteServiceImpl implements SiteService {
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -84,14 +94,30 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The OSGi Event Admin Service.
    */
-  private static final int MAXLISTSIZE = 10000;
+  private EventAdmin eventAdmin;
 
   /**
-   * The OSGi Event Admin Service.
+   * The membership of recently used sites.
    */
-  private EventAdmin eventAdmin;
+  private SiteMembershipCache membershipCache = new SiteMembershipCache();
+
+  /**
+   * @scr.property values.0="/sites" description="The sakai/sites stores a site is looked
+   *               for in by name, before the repository is searched for it."
+   */
+  static final String SITE_STORES = "sakai.site.stores";
+
+  /**
+   * The sakai/sites stores a site is looked for in by name.
+   */
+  private String[] siteStores = new String[] { "/sites" };
+
+  /**
+   * The paths of sites by name.
+   */
+  private SiteNameIndex siteNameIndex = new SiteNameIndex();
 
   /**
    * {@inheritDoc}
@@ -189,6 +215,7 @@ public class SiteServiceImpl implements SiteService {
 
       if (Joinable.yes.equals(groupJoin) && Joinable.yes.equals(siteJoin)) {
         targetGroup.addMember(userAuthorizable);
+        membershipCache.userJoined(targetGroup.getID(), user, session);
         postEvent(SiteEvent.joinedSite, site, targetGroup);
 
       } else {
@@ -238,6 +265,7 @@ public class SiteServiceImpl implements SiteService {
         throw new SiteException(HttpServletResponse.SC_CONFLICT, "User " + user
             + " was not a member of " + requestedGroup);
       }
+      membershipCache.userLeft(targetGroup.getID(), user);
       postEvent(SiteEvent.unjoinedSite, site, targetGroup);
 
     } catch (RepositoryException e) {
@@ -428,36 +456,16 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
+    try {
+      Session session = site.getSession();
+      UserManager userManager = AccessControlUtil.getUserManager(session);
+      List<String> ids = getMembershipIndex(site).getVisibleGroupIds(sort, session,
+          userManager);
+      return resolve(page(ids, start, nitems), userManager, Group.class);
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
-      }
-    };
   }
 
   /**
@@ -467,239 +475,122 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.kernel.api.site.Sort[])
    */
   public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
-    }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
-  }
-
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
-    return new AbstractCollection<User>() {
-
-      @Override
-      public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
-      }
-
-      @Override
-      public int size() {
-        return totalSize;
-      }
-    };
-  }
-
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public User next() {
-        return underlying.next().getUser();
-      }
+    try {
+      Session session = site.getSession();
+      final UserManager userManager = AccessControlUtil.getUserManager(session);
+      final List<String> ids = getMembershipIndex(site).getVisibleUserIds(sort, session,
+          userManager);
+      final List<String> page = page(ids, start, nitems);
+      return new AbstractCollection<User>() {
+
+        @Override
+        public Iterator<User> iterator() {
+          return resolve(page, userManager, User.class);
+        }
 
-      public void remove() {
-        underlying.remove();
-      }
-    };
+        @Override
+        public int size() {
+          return ids.size();
+        }
+      };
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to list the members of {} ", site, e);
+      return new ArrayList<User>();
+    }
   }
 
   public int getMemberCount(Node site) {
-    return getMembershipTree(site).getUsers().size();
+    try {
+      Session session = site.getSession();
+      UserManager userManager = AccessControlUtil.getUserManager(session);
+      return getMembershipIndex(site).getVisibleUserIds(null, session, userManager).size();
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to count the members of {} ", site, e);
+      return 0;
+    }
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
+   * Gets the membership index of users and groups for the site. Because of the tree like
+   * nature of membership the index is expensive to build, so it is cached and kept up to
+   * date from the authorizable events rather than built for each request. We are taking
+   * a google like approach to this operation, limiting the set to a practical size.
+   * Membership is derived not always declared. The index is shared between users, so
+   * it holds every member and the ids taken from it must be the visible ones.
    * 
    * @param site
    *          the site
-   * @return a membership tree
+   * @return the membership index, empty if it could not be built.
    */
-  private MembershipTree getMembershipTree(Node site) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
+  private SiteMembershipIndex getMembershipIndex(Node site) {
     try {
-      Session session = site.getSession();
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String groupId = v.getString();
-          Authorizable a = userManager.getAuthorizable(groupId);
-          if (a instanceof Group) {
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
-            }
-          } else if (a instanceof User) {
-            if (!users.containsKey(a)) {
-              String profilePath = PersonalUtils.getProfilePath(a.getID());
-              Node profileNode = (Node) session.getItem(profilePath);
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from groupId: {}", groupId);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a, (a == null ? "null" : a
-                .getClass()));
-          }
-        }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
-      }
+      return membershipCache.get(site, slingRepository);
     } catch (RepositoryException ex) {
-      LOGGER.warn("Failed to build membership Tree for {} ", site, ex);
+      LOGGER.warn("Failed to build membership index for {} ", site, ex);
+      return new SiteMembershipIndex(null);
     }
-    return new MembershipTree(groups, users);
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
-   * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   * @param ids
+   * @param start
+   * @param nitems
+   * @return the ids from start, at most nitems of them.
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparitor(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
-    }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
+  private List<String> page(List<String> ids, int start, int nitems) {
+    int from = Math.min(Math.max(start, 0), ids.size());
+    int to = nitems > ids.size() - from ? ids.size() : from + Math.max(nitems, 0);
+    return ids.subList(from, to);
+  }
 
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
+  /**
+   * Resolve a page of ids as they are iterated, skipping any that are no longer
+   * authorizables of the expected type.
+   * 
+   * @param ids
+   *          the ids to resolve.
+   * @param userManager
+   *          the user manager of the session of the request.
+   * @param type
+   *          the type of authorizable.
+   * @return an iterator of the authorizables.
+   */
+  private <T extends Authorizable> Iterator<T> resolve(final List<String> ids,
+      final UserManager userManager, final Class<T> type) {
+    return new Iterator<T>() {
+      private final Iterator<String> underlying = ids.iterator();
+      private T next;
 
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
+      public boolean hasNext() {
+        while (next == null && underlying.hasNext()) {
+          String id = underlying.next();
           try {
-            Object c1 = o1.getAuthorizable().getID();
-            Object c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-              c1 = o1.getFirstName();
-              c2 = o2.getFirstName();
-              break;
-            case id:
-              c1 = o1.getAuthorizable().getID();
-              c2 = o2.getAuthorizable().getID();
-              break;
-            case lastName:
-              c1 = o1.getLastName();
-              c2 = o2.getLastName();
-              break;
-            }
-            switch (s.getOrder()) {
-            case asc:
-              if (c1 instanceof Comparable) {
-                Comparable cc1 = (Comparable<?>) c1;
-                int i = cc1.compareTo(c2);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
-            case desc:
-              if (c2 instanceof Comparable) {
-                Comparable cc2 = (Comparable<?>) c2;
-                int i = cc2.compareTo(c1);
-                if (i == 0) {
-                  i = compareNext(o1, o2);
-                }
-                return i;
-              }
-              return 0;
+            Authorizable a = userManager.getAuthorizable(id);
+            if (type.isInstance(a)) {
+              next = type.cast(a);
+            } else {
+              LOGGER.debug("Member {} is no longer a {}", id, type.getSimpleName());
             }
           } catch (RepositoryException e) {
+            LOGGER.warn("Unable to resolve member {}: {}", id, e.getMessage());
           }
-          return 0;
         }
+        return next != null;
+      }
 
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
-          }
-          return 0;
-        }
-      };
-    }
-    return comparitors[0];
-  }
-
-  /**
-   * Recursively build a list of groups for the group avoiding duplicates or infinite
-   * recursion.
-   * 
-   * @param group
-   *          the group for which we want to know all members.
-   * @param groups
-   *          the groups associated with the site.
-   * @param users
-   *          the users associated with the sites, extracted from groups
-   * @param session
-   *          the session to grab the profile node for users.
-   * @throws RepositoryException
-   */
-  @SuppressWarnings("unchecked")
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
-    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
-      Authorizable a = igm.next();
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a.getID());
-          Node profileNode = (Node) session.getItem(profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
         }
+        T t = next;
+        next = null;
+        return t;
       }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
+
+      public void remove() {
+        throw new UnsupportedOperationException();
       }
-    }
+    };
   }
 
   /**
@@ -790,6 +681,30 @@ public class SiteServiceImpl implements SiteService {
    */
   public Node findSiteByName(Session session, String siteName) throws SiteException {
     try {
+      // the path of the site the last time it was looked for.
+      String path = siteNameIndex.get(siteName);
+      if (path != null) {
+        Node siteNode = getSiteNode(session, path);
+        if (siteNode != null) {
+          return siteNode;
+        }
+      }
+      long generation = siteNameIndex.getGeneration();
+
+      // where the site would be in each of the site stores.
+      for (String store : siteStores) {
+        String[] candidates = new String[] {
+            PathUtils.toInternalHashedPath(store, siteName, ""),
+            PathUtils.normalizePath(store + "/" + siteName) };
+        for (String candidate : candidates) {
+          Node siteNode = getSiteNode(session, candidate);
+          if (siteNode != null) {
+            siteNameIndex.put(siteName, siteNode.getPath(), generation);
+            return siteNode;
+          }
+        }
+      }
+
       QueryManager queryManager = session.getWorkspace().getQueryManager();
       String queryString = "//*[@sling:resourceType=\"" + SiteService.SITE_RESOURCE_TYPE
           + "\" and jcr:contains(.,\"" + siteName + "\")]";
@@ -804,6 +719,7 @@ public class SiteServiceImpl implements SiteService {
       while (nodeIterator.hasNext()) {
         Node siteNode = nodeIterator.nextNode();
         if (isSite(siteNode)) {
+          siteNameIndex.put(siteName, siteNode.getPath(), generation);
           return siteNode;
         }
       }
@@ -817,6 +733,109 @@ public class SiteServiceImpl implements SiteService {
     return null;
   }
 
+  /**
+   * @param session
+   * @param path
+   * @return the site at the path, or null if there is no site the session can read
+   *         there.
+   */
+  private Node getSiteNode(Session session, String path) {
+    try {
+      if (session.itemExists(path)) {
+        Item item = session.getItem(path);
+        if (isSite(item)) {
+          return (Node) item;
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.debug("No site at {}: {}", path, e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Keep the cached site memberships up to date as users and groups change.
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Operation operation = (Operation) event.getProperty(AuthorizableEvent.OPERATION);
+    Object principalName = event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (operation == null || principalName == null) {
+      return;
+    }
+    String id = principalName.toString();
+    try {
+      switch (operation) {
+      case join:
+      case part:
+        // the principal is the group, the user is only present when a user has joined
+        // or left it.
+        // an index of the group may be being built, so it must see the change even if
+        // no cached index has the group.
+        Object user = event.getProperty(AuthorizableEvent.USER);
+        if (!membershipCache.hasGroup(id)) {
+          membershipCache.changed();
+        } else if (!(user instanceof User)) {
+          membershipCache.groupChanged(id);
+        } else if (Operation.join.equals(operation)) {
+          Session session = slingRepository.loginAdministrative(null);
+          try {
+            membershipCache.userJoined(id, ((User) user).getID(), session);
+          } finally {
+            session.logout();
+          }
+        } else {
+          membershipCache.userLeft(id, ((User) user).getID());
+        }
+        break;
+      case update:
+        if (membershipCache.hasGroup(id)) {
+          membershipCache.groupChanged(id);
+        } else if (membershipCache.hasUser(id)) {
+          Session session = slingRepository.loginAdministrative(null);
+          try {
+            membershipCache.userUpdated(id, session);
+          } finally {
+            session.logout();
+          }
+        } else {
+          membershipCache.changed();
+        }
+        break;
+      case delete:
+        membershipCache.authorizableRemoved(id);
+        break;
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to apply {} of {} to site memberships, dropping them: {}",
+          new Object[] { operation, id, e.getMessage() });
+      membershipCache.clear();
+    }
+  }
+
+  protected void activate(ComponentContext componentContext) {
+    Object stores = componentContext.getProperties().get(SITE_STORES);
+    if (stores instanceof String[]) {
+      siteStores = (String[]) stores;
+    } else if (stores instanceof String) {
+      siteStores = new String[] { (String) stores };
+    }
+    try {
+      siteNameIndex.start(slingRepository.loginAdministrative(null));
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to observe the repository, sites will not be indexed by name {} ",
+          e.getMessage());
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    siteNameIndex.stop();
+    membershipCache.clear();
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
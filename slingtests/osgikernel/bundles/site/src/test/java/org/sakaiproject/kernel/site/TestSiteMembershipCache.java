@@ -0,0 +1,231 @@
+package org.sakaiproject.kernel.site;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.testing.jcr.MockValue;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
+import org.sakaiproject.kernel.api.site.SiteService;
+import org.sakaiproject.kernel.api.site.Sort;
+import org.sakaiproject.kernel.api.site.SortField;
+import org.sakaiproject.kernel.api.site.SortOrder;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+public class TestSiteMembershipCache extends AbstractEasyMockTest {
+
+  private JackrabbitSession session;
+  private SlingRepository repository;
+  private UserManager userManager;
+  private Node site;
+  private Group students;
+
+  private void createSite() throws RepositoryException {
+    // the index is built with an administrative session, not the user's.
+    session = createMock(JackrabbitSession.class);
+    userManager = createMock(UserManager.class);
+    repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    session.logout();
+    expectLastCall().anyTimes();
+    site = createMock(Node.class);
+    expect(session.getItem("/sites/physics101")).andReturn(site).anyTimes();
+    expect(site.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(site.getSession()).andReturn(session).anyTimes();
+    Property property = createMock(Property.class);
+    expect(property.getValues()).andReturn(
+        new Value[] { new MockValue("g-students"), new MockValue("dave") }).anyTimes();
+    PropertyDefinition definition = createMock(PropertyDefinition.class);
+    expect(property.getDefinition()).andReturn(definition).anyTimes();
+    expect(definition.isMultiple()).andReturn(true).anyTimes();
+    expect(site.hasProperty(SiteService.AUTHORIZABLE)).andReturn(true).anyTimes();
+    expect(site.getProperty(SiteService.AUTHORIZABLE)).andReturn(property).anyTimes();
+
+    students = createMock(Group.class);
+    expect(students.getID()).andReturn("g-students").anyTimes();
+    expect(userManager.getAuthorizable("g-students")).andReturn(students);
+    expect(userManager.getAuthorizable("dave")).andReturn(createUser("dave"));
+    addProfile("carol", "Zoe", "Adams");
+    addProfile("alice", "Alice", "Carter");
+    addProfile("bob", "Bob", "Adams");
+    addProfile("dave", "Alice", "Adams");
+  }
+
+  @Test
+  public void testSortedViews() throws RepositoryException {
+    createSite();
+    expect(students.getDeclaredMembers()).andReturn(members("carol", "alice", "bob"));
+    replay();
+
+    SiteMembershipCache cache = new SiteMembershipCache();
+    SiteMembershipIndex index = cache.get(site, repository);
+    assertEquals(4, index.getUserCount());
+    assertEquals(1, index.getGroupCount());
+    assertEquals(Arrays.asList("g-students"), index.getGroupIds(null));
+    assertEquals(Arrays.asList("carol", "alice", "bob", "dave"), index.getUserIds(null));
+    assertEquals(Arrays.asList("alice", "dave", "bob", "carol"), index
+        .getUserIds(new Sort[] { new Sort(SortField.firstName, SortOrder.asc) }));
+    assertEquals(Arrays.asList("carol", "bob", "alice", "dave"), index
+        .getUserIds(new Sort[] { new Sort(SortField.firstName, SortOrder.desc) }));
+    assertEquals(Arrays.asList("dave", "carol", "bob", "alice"), index.getUserIds(new Sort[] {
+        new Sort(SortField.lastName, SortOrder.asc), new Sort(SortField.id, SortOrder.desc) }));
+
+    // the second request is served from the cache, without walking the groups.
+    assertSame(index, cache.get(site, repository));
+    assertSame(index.getUserIds(null), index.getUserIds(null));
+    assertEquals(1, cache.getCachedSites());
+    verify();
+  }
+
+  @Test
+  public void testIncrementalUpdates() throws RepositoryException {
+    createSite();
+    expect(students.getDeclaredMembers()).andReturn(members("carol", "alice", "bob"));
+    addProfile("erin", "Erin", "Baker");
+    replay();
+
+    SiteMembershipCache cache = new SiteMembershipCache();
+    SiteMembershipIndex index = cache.get(site, repository);
+    Sort[] byFirstName = new Sort[] { new Sort(SortField.firstName, SortOrder.asc) };
+    assertEquals(Arrays.asList("alice", "dave", "bob", "carol"), index.getUserIds(byFirstName));
+
+    cache.userJoined("g-students", "erin", session);
+    cache.userJoined("g-other", "frank", session);
+    assertEquals(5, index.getUserCount());
+    assertEquals(Arrays.asList("alice", "dave", "bob", "erin", "carol"), index
+        .getUserIds(byFirstName));
+
+    // dave is named by the site as well as joining the group, so stays when leaving it.
+    cache.userJoined("g-students", "dave", session);
+    cache.userLeft("g-students", "dave");
+    cache.userLeft("g-students", "alice");
+    assertEquals(Arrays.asList("carol", "bob", "dave", "erin"), index.getUserIds(null));
+
+    cache.authorizableRemoved("carol");
+    assertEquals(3, index.getUserCount());
+    assertTrue(cache.hasGroup("g-students"));
+    assertSame(index, cache.get(site, repository));
+
+    cache.groupChanged("g-students");
+    assertFalse(cache.hasGroup("g-students"));
+    assertEquals(0, cache.getCachedSites());
+    verify();
+  }
+
+  @Test
+  public void testChangedWhileBuilding() throws RepositoryException {
+    createSite();
+    final SiteMembershipCache cache = new SiteMembershipCache();
+    final Iterator<Authorizable> members = members("carol", "alice", "bob");
+    expect(students.getDeclaredMembers()).andAnswer(new IAnswer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer() throws Throwable {
+        cache.userLeft("g-other", "zed");
+        return members;
+      }
+    });
+    replay();
+
+    assertEquals(4, cache.get(site, repository).getUserCount());
+    assertEquals(0, cache.getCachedSites());
+  }
+
+  @Test
+  public void testUnknownGroupChangedWhileBuilding() throws RepositoryException {
+    createSite();
+    final SiteMembershipCache cache = new SiteMembershipCache();
+    final Iterator<Authorizable> members = members("carol", "alice", "bob");
+    expect(students.getDeclaredMembers()).andAnswer(new IAnswer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer() throws Throwable {
+        // no cached index has the group yet, as this one is being built.
+        assertFalse(cache.hasGroup("g-students"));
+        cache.changed();
+        return members;
+      }
+    });
+    replay();
+
+    cache.get(site, repository);
+    assertEquals(0, cache.getCachedSites());
+  }
+
+  @Test
+  public void testVisibleViews() throws RepositoryException {
+    createSite();
+    expect(students.getDeclaredMembers()).andReturn(members("carol", "alice", "bob"));
+    addProfile("erin", "Erin", "Baker");
+    Session viewer = createMock(Session.class);
+    expect(viewer.getUserID()).andReturn("alice").anyTimes();
+    UserManager viewerUserManager = createMock(UserManager.class);
+    // resolved once for the first list, and again once erin joins.
+    for (String id : new String[] { "carol", "alice", "bob", "dave" }) {
+      expect(viewerUserManager.getAuthorizable(id)).andReturn(createUser(id)).times(2);
+    }
+    expect(viewerUserManager.getAuthorizable("erin")).andReturn(null);
+    replay();
+
+    SiteMembershipCache cache = new SiteMembershipCache();
+    SiteMembershipIndex index = cache.get(site, repository);
+    List<String> visible = index.getVisibleUserIds(null, viewer, viewerUserManager);
+    assertEquals(4, visible.size());
+    assertSame(visible, index.getVisibleUserIds(null, viewer, viewerUserManager));
+
+    cache.userJoined("g-students", "erin", session);
+    assertEquals(5, index.getUserCount());
+    assertEquals(Arrays.asList("carol", "alice", "bob", "dave"), index.getVisibleUserIds(
+        null, viewer, viewerUserManager));
+    verify();
+  }
+
+  private void addProfile(String userId, String firstName, String lastName)
+      throws RepositoryException {
+    Node profile = createMock(Node.class);
+    expect(session.getItem(PersonalUtils.getProfilePath(userId))).andReturn(profile);
+    addName(profile, SortField.firstName.toString(), firstName);
+    addName(profile, SortField.lastName.toString(), lastName);
+  }
+
+  private void addName(Node profile, String name, String value) throws RepositoryException {
+    Property property = createMock(Property.class);
+    expect(property.getString()).andReturn(value);
+    expect(profile.hasProperty(name)).andReturn(true);
+    expect(profile.getProperty(name)).andReturn(property);
+  }
+
+  private User createUser(String userId) throws RepositoryException {
+    User user = createMock(User.class);
+    expect(user.getID()).andReturn(userId).anyTimes();
+    return user;
+  }
+
+  private Iterator<Authorizable> members(String... userIds) throws RepositoryException {
+    List<Authorizable> members = new ArrayList<Authorizable>();
+    for (String userId : userIds) {
+      members.add(createUser(userId));
+    }
+    return members.iterator();
+  }
+}
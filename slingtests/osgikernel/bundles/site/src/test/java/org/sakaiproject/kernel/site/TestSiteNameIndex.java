@@ -0,0 +1,103 @@
+package org.sakaiproject.kernel.site;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.easymock.EasyMock.expect;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
+
+public class TestSiteNameIndex extends AbstractEasyMockTest {
+
+  private static final String PHYSICS = "/sites/a1/b2/c3/d4/physics101";
+
+  @Test
+  public void testDroppedOnChange() throws Exception {
+    EventIterator elsewhere = events(event(Event.NODE_ADDED, "/sites/a1/b2/c3/d4/maths101"));
+    EventIterator content = events(event(Event.PROPERTY_CHANGED, PHYSICS + "/_pages/title"));
+    EventIterator added = events(event(Event.NODE_ADDED, "/courses/physics101"));
+    EventIterator moved = events(event(Event.NODE_REMOVED, "/sites/a1"));
+    EventIterator retyped = events(event(Event.PROPERTY_CHANGED, PHYSICS + "/"
+        + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY));
+    Session session = createObservingSession();
+    replay();
+
+    SiteNameIndex index = new SiteNameIndex();
+    index.put("physics101", PHYSICS, index.getGeneration());
+    assertNull(index.get("physics101"));
+
+    index.start(session);
+    index.put("physics101", PHYSICS, index.getGeneration());
+    assertEquals(PHYSICS, index.get("physics101"));
+    index.onEvent(elsewhere);
+    index.onEvent(content);
+    assertEquals(PHYSICS, index.get("physics101"));
+
+    // a new node of the same name may be the site, or a site that replaces it.
+    index.onEvent(added);
+    assertNull(index.get("physics101"));
+
+    index.put("physics101", PHYSICS, index.getGeneration());
+    index.onEvent(moved);
+    assertNull(index.get("physics101"));
+
+    index.put("physics101", PHYSICS, index.getGeneration());
+    index.onEvent(retyped);
+    assertEquals(0, index.getCachedSites());
+    index.stop();
+  }
+
+  @Test
+  public void testNotCachedWhenChanged() throws Exception {
+    EventIterator during = events(event(Event.NODE_ADDED, "/elsewhere/x"));
+    Session session = createObservingSession();
+    replay();
+
+    SiteNameIndex index = new SiteNameIndex(1);
+    index.start(session);
+    long generation = index.getGeneration();
+    index.onEvent(during);
+    index.put("physics101", PHYSICS, generation);
+    assertNull(index.get("physics101"));
+
+    index.put("physics101", PHYSICS, index.getGeneration());
+    index.put("maths101", "/sites/maths101", index.getGeneration());
+    assertEquals(1, index.getCachedSites());
+    assertNull(index.get("physics101"));
+    index.stop();
+  }
+
+  private Session createObservingSession() throws Exception {
+    ObservationManager observationManager = EasyMock.createNiceMock(ObservationManager.class);
+    EasyMock.replay(observationManager);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getObservationManager()).andReturn(observationManager).anyTimes();
+    Session session = createMock(Session.class);
+    expect(session.getWorkspace()).andReturn(workspace).anyTimes();
+    session.logout();
+    return session;
+  }
+
+  private Event event(int type, String path) throws Exception {
+    Event event = createMock(Event.class);
+    expect(event.getType()).andReturn(type).anyTimes();
+    expect(event.getPath()).andReturn(path).anyTimes();
+    return event;
+  }
+
+  private EventIterator events(Event event) {
+    EventIterator events = createMock(EventIterator.class);
+    expect(events.hasNext()).andReturn(true);
+    expect(events.nextEvent()).andReturn(event);
+    expect(events.hasNext()).andReturn(false);
+    return events;
+  }
+}
@@ -2,7 +2,9 @@ package org.sakaiproject.kernel.site;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -11,11 +13,14 @@ import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.commons.testing.jcr.MockValue;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.junit.Test;
+import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.site.SiteService;
 import org.sakaiproject.kernel.api.site.SortField;
 import org.sakaiproject.kernel.site.SiteServiceImpl;
 import org.sakaiproject.kernel.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.kernel.util.PathUtils;
 
 import java.util.AbstractCollection;
 import java.util.HashSet;
@@ -25,6 +30,7 @@ import java.util.Set;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 
 public class TestSiteService extends AbstractEasyMockTest {
@@ -38,7 +44,10 @@ public class TestSiteService extends AbstractEasyMockTest {
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session).anyTimes();
-    expect(session.getUserManager()).andReturn(userManager);
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("admin").anyTimes();
+    expectAdministrativeSession(slingRepository, session, siteNode);
     Node profileNode = createMock(Node.class);
     expect(session.getItem("/_user/public/48/18/1a/cd/bob/authprofile")).andReturn(profileNode).anyTimes();
     expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
@@ -47,8 +56,11 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(prop.getString()).andReturn("bob").anyTimes();
     expect(profileNode.getProperty(SortField.firstName.toString())).andReturn(prop).anyTimes();
     expect(profileNode.getProperty(SortField.lastName.toString())).andReturn(prop).anyTimes();
-    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue("group1"),
-        new MockValue("group2") });
+    // read as the user sees it, then by the administrative session that builds the index.
+    for (int i = 0; i < 2; i++) {
+      addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] {
+          new MockValue("group1"), new MockValue("group2") });
+    }
 
     Group group1 = createMock(Group.class);
     Group group2 = createMock(Group.class);
@@ -58,6 +70,7 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(group1.getID()).andReturn("group1").anyTimes();
     expect(group2.getDeclaredMembers()).andReturn(createUserIterator("bob"));
     expect(group2.getID()).andReturn("group2").anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(createUser("bob")).anyTimes();
 
     replay();
     AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 3, null); 
@@ -73,9 +86,91 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
-  private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
-    final User mockUser = createMock(User.class);
+  @Test
+  public void testHiddenMembers() throws RepositoryException {
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.bindSlingRepository(slingRepository);
+    Node siteNode = createMock(Node.class);
+    expect(siteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    // read for the list of members and again for the count.
+    for (int i = 0; i < 2; i++) {
+      addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] {
+          new MockValue("bob"), new MockValue("carol") });
+    }
+    // the index is built by the administrative session, which can see carol.
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    UserManager adminUserManager = createMock(UserManager.class);
+    expect(adminSession.getUserManager()).andReturn(adminUserManager).anyTimes();
+    expect(adminUserManager.getAuthorizable("bob")).andReturn(createUser("bob"));
+    expect(adminUserManager.getAuthorizable("carol")).andReturn(createUser("carol"));
+    Node adminSiteNode = createMock(Node.class);
+    expect(adminSiteNode.getPath()).andReturn("/sites/physics101").anyTimes();
+    expect(adminSiteNode.getSession()).andReturn(adminSession).anyTimes();
+    addPropertyToNode(adminSiteNode, SiteService.AUTHORIZABLE, new Value[] {
+        new MockValue("bob"), new MockValue("carol") });
+    addProfile(adminSession, "bob");
+    addProfile(adminSession, "carol");
+    expectAdministrativeSession(slingRepository, adminSession, adminSiteNode);
+    // the user can't.
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    UserManager userManager = createMock(UserManager.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(createUser("bob")).anyTimes();
+    // the members alice can see are kept, so carol is only looked for once.
+    expect(userManager.getAuthorizable("carol")).andReturn(null);
+    replay();
+
+    AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 10, null);
+    assertEquals(1, users.size());
+    assertEquals("bob", users.iterator().next().getID());
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    verify();
+  }
+
+  private void expectAdministrativeSession(SlingRepository slingRepository,
+      Session adminSession, Node adminSiteNode) throws RepositoryException {
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession).anyTimes();
+    expect(adminSession.getItem("/sites/physics101")).andReturn(adminSiteNode).anyTimes();
+    adminSession.logout();
+    expectLastCall().anyTimes();
+  }
+
+  private void addProfile(Session session, String userId) throws RepositoryException {
+    Node profileNode = createMock(Node.class);
+    expect(session.getItem(PersonalUtils.getProfilePath(userId))).andReturn(profileNode);
+    expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(false);
+    expect(profileNode.hasProperty(SortField.lastName.toString())).andReturn(false);
+  }
+
+  @Test
+  public void testFindSiteByNameInStore() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    String sitePath = PathUtils.toInternalHashedPath("/sites", "physics101", "");
+    Session session = createMock(Session.class);
+    Node siteNode = createMock(Node.class);
+    expect(session.itemExists(sitePath)).andReturn(true);
+    expect(session.getItem(sitePath)).andReturn(siteNode);
+    expect(siteNode.getPath()).andReturn(sitePath).anyTimes();
+    addStringPropertyToNode(siteNode, JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        SiteService.SITE_RESOURCE_TYPE);
+    replay();
+
+    // found where the sites store would put it, without searching.
+    assertSame(siteNode, siteService.findSiteByName(session, "physics101"));
+    verify();
+  }
+
+  private User createUser(String userName) throws RepositoryException {
+    User mockUser = createMock(User.class);
     expect(mockUser.getID()).andReturn(userName).anyTimes();
+    return mockUser;
+  }
+
+  private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
+    final User mockUser = createUser(userName);
     return new Iterator<Authorizable>() {
 
       boolean had = false;
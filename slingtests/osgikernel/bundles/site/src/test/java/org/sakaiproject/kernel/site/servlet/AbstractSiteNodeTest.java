@@ -66,6 +66,7 @@ public abstract class AbstractSiteNodeTest extends AbstractSiteServiceServletTes
         resourceType).anyTimes();
     expect(node.getPath()).andReturn(SITE_PATH).anyTimes();
     expect(node.getSession()).andReturn(session).anyTimes();
+    expect(session.getItem(SITE_PATH)).andReturn(node).anyTimes();
   }
   
   @Test
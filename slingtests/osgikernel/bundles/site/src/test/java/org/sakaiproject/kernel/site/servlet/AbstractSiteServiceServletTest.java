@@ -18,6 +18,7 @@
 package org.sakaiproject.kernel.site.servlet;
 
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.eq;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
@@ -52,6 +53,8 @@ public abstract class AbstractSiteServiceServletTest extends AbstractSiteService
     session = createMock(JackrabbitSession.class);
     expect(session.getUserManager()).andReturn(userManager).anyTimes();
     expect(slingRepository.loginAdministrative((String) eq(null))).andReturn(session).anyTimes();
+    session.logout();
+    expectLastCall().anyTimes();
   }
 
   public byte[] makeGetRequestReturningBytes() throws IOException, ServletException
@@ -33,6 +33,7 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.kernel.api.personal.PersonalUtils;
 import org.sakaiproject.kernel.api.site.SiteService;
@@ -56,6 +57,14 @@ public class TestMembersServlet extends AbstractSiteNodeTest {
   private static final String TEST_GROUP = "TestGroup";
   private static final String TEST_USER = "TestUser";
 
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    // the members are filtered for, and kept by, the user of the session.
+    expect(session.getUserID()).andReturn(TEST_USER).anyTimes();
+  }
+
   @Test
   public void testRenderSiteWithNoMembers() throws RepositoryException,
       IOException, ServletException, JSONException {